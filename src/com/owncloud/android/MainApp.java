@@ -33,6 +33,7 @@ import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory.Policy;
 import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.utils.BitmapPool;
 
 
 /**
@@ -131,6 +132,16 @@ public class MainApp extends Application {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        ThumbnailsCacheManager.trimMemoryCache(level);
+        BitmapPool.getInstance().trimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            ThumbnailsCacheManager.flushDiskCache();
+        }
+    }
+
     public static Context getAppContext() {
         return MainApp.mContext;
     }
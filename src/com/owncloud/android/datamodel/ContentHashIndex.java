@@ -0,0 +1,132 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.datamodel;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.owncloud.android.db.DbHandler;
+
+/**
+ * Index of the hashes of the contents of remote files, filled when they are downloaded or
+ * uploaded, used to recognize uploads of contents the server already has in the target path.
+ *
+ * Every hash is bound to the ETag of the version of the remote file it was computed for, so
+ * that it's not trusted anymore when the file changes in the server.
+ *
+ * Also keeps the count of bytes that were not uploaded because the server already had them.
+ */
+public class ContentHashIndex {
+
+    private static final String PREF_BYTES_AVOIDED = "upload_bytes_avoided";
+
+    /** Serializes the updates of the counter of bytes avoided */
+    private static final Object sCounterLock = new Object();
+
+    private final Context mContext;
+
+
+    public ContentHashIndex(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+
+    /**
+     * @param accountName   Name of the ownCloud account.
+     * @param remotePath    Path of the file in the server.
+     * @param length        Length of the contents.
+     * @return              ETag of the version of the remote file with a known hash, if it has
+     *                      the given length; null otherwise.
+     */
+    public String getKnownEtag(String accountName, String remotePath, long length) {
+        DbHandler db = new DbHandler(mContext);
+        try {
+            return db.getContentHashEtag(accountName, remotePath, length);
+        } finally {
+            db.close();
+        }
+    }
+
+
+    /**
+     * @param accountName   Name of the ownCloud account.
+     * @param remotePath    Path of the file in the server.
+     * @param length        Length of the contents.
+     * @param etag          ETag of the version of the remote file.
+     * @return              Hash of the contents of that version, or null if unknown.
+     */
+    public String getHash(String accountName, String remotePath, long length, String etag) {
+        DbHandler db = new DbHandler(mContext);
+        try {
+            return db.getContentHash(accountName, remotePath, length, etag);
+        } finally {
+            db.close();
+        }
+    }
+
+
+    /**
+     * Records the hash of the contents of a version of a remote file.
+     *
+     * @param accountName   Name of the ownCloud account.
+     * @param remotePath    Path of the file in the server.
+     * @param hash          Hash of the contents, as computed by
+     *                      {@link com.owncloud.android.utils.ContentHash}.
+     * @param length        Length of the contents.
+     * @param etag          ETag of the version of the remote file with these contents.
+     */
+    public void put(String accountName, String remotePath, String hash, long length,
+                    String etag) {
+        if (hash == null || etag == null || etag.length() == 0) {
+            return;
+        }
+        DbHandler db = new DbHandler(mContext);
+        try {
+            db.putContentHash(accountName, remotePath, hash, length, etag);
+        } finally {
+            db.close();
+        }
+    }
+
+
+    /**
+     * Adds bytes that didn't need to be uploaded to the counter of bytes avoided.
+     */
+    public void addBytesAvoided(long bytes) {
+        synchronized (sCounterLock) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+            prefs.edit()
+                    .putLong(PREF_BYTES_AVOIDED, prefs.getLong(PREF_BYTES_AVOIDED, 0) + bytes)
+                    .apply();
+        }
+    }
+
+
+    /**
+     * @return  Total number of bytes that didn't need to be uploaded because the server
+     *          already had them.
+     */
+    public long getBytesAvoided() {
+        return PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getLong(PREF_BYTES_AVOIDED, 0);
+    }
+
+}
@@ -199,6 +199,7 @@ public class FileDataStorageManager {
         cv.put(ProviderTableMeta.FILE_UPDATE_THUMBNAIL, file.needsUpdateThumbnail());
         cv.put(ProviderTableMeta.FILE_IS_DOWNLOADING, file.isDownloading());
         cv.put(ProviderTableMeta.FILE_ETAG_IN_CONFLICT, file.getEtagInConflict());
+        cv.put(ProviderTableMeta.FILE_IMAGE_ORIENTATION, file.getImageOrientation());
 
         boolean sameRemotePath = fileExists(file.getRemotePath());
         if (sameRemotePath ||
@@ -305,6 +306,7 @@ public class FileDataStorageManager {
             cv.put(ProviderTableMeta.FILE_UPDATE_THUMBNAIL, file.needsUpdateThumbnail());
             cv.put(ProviderTableMeta.FILE_IS_DOWNLOADING, file.isDownloading());
             cv.put(ProviderTableMeta.FILE_ETAG_IN_CONFLICT, file.getEtagInConflict());
+            cv.put(ProviderTableMeta.FILE_IMAGE_ORIENTATION, file.getImageOrientation());
 
             boolean existsByPath = fileExists(file.getRemotePath());
             if (existsByPath || fileExists(file.getFileId())) {
@@ -909,6 +911,8 @@ public class FileDataStorageManager {
             file.setDownloading(c.getInt(
                     c.getColumnIndex(ProviderTableMeta.FILE_IS_DOWNLOADING)) == 1 ? true : false);
             file.setEtagInConflict(c.getString(c.getColumnIndex(ProviderTableMeta.FILE_ETAG_IN_CONFLICT)));
+            file.setImageOrientation(
+                    c.getInt(c.getColumnIndex(ProviderTableMeta.FILE_IMAGE_ORIENTATION)));
 
         }
         return file;
@@ -1306,6 +1310,7 @@ public class FileDataStorageManager {
                         file.isDownloading() ? 1 : 0
                 );
                 cv.put(ProviderTableMeta.FILE_ETAG_IN_CONFLICT, file.getEtagInConflict());
+                cv.put(ProviderTableMeta.FILE_IMAGE_ORIENTATION, file.getImageOrientation());
 
                 boolean existsByPath = fileExists(file.getRemotePath());
                 if (existsByPath || fileExists(file.getFileId())) {
@@ -1655,6 +1660,36 @@ public class FileDataStorageManager {
 
     }
 
+    /**
+     * Saves the EXIF orientation read from the local copy of an image, so that it's not parsed
+     * again until the file changes.
+     *
+     * @param file      Image with the orientation set.
+     */
+    public void saveImageOrientation(OCFile file) {
+        ContentValues cv = new ContentValues();
+        cv.put(ProviderTableMeta.FILE_IMAGE_ORIENTATION, file.getImageOrientation());
+        if (getContentResolver() != null) {
+            getContentResolver().update(
+                    ProviderTableMeta.CONTENT_URI_FILE,
+                    cv,
+                    ProviderTableMeta._ID + "=?",
+                    new String[] { String.valueOf(file.getFileId())}
+            );
+        } else {
+            try {
+                getContentProviderClient().update(
+                        ProviderTableMeta.CONTENT_URI_FILE,
+                        cv,
+                        ProviderTableMeta._ID + "=?",
+                        new String[]{String.valueOf(file.getFileId())}
+                );
+            } catch (RemoteException e) {
+                Log_OC.e(TAG, "Failed saving image orientation in database " + e.getMessage());
+            }
+        }
+    }
+
     public void saveConflict(OCFile file, String etagInConflict) {
         if (!file.isDown()) {
             etagInConflict = null;
@@ -52,6 +52,9 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
     public static final String PATH_SEPARATOR = "/";
     public static final String ROOT_PATH = PATH_SEPARATOR;
 
+    /** Value of {@link #getImageOrientation()} before the EXIF data of the file are read */
+    public static final int IMAGE_ORIENTATION_UNKNOWN = 0;    // ExifInterface.ORIENTATION_UNDEFINED
+
     private static final String TAG = OCFile.class.getSimpleName();
 
     private long mId;
@@ -84,6 +87,8 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
 
     private boolean mShareWithSharee;
 
+    private int mImageOrientation = IMAGE_ORIENTATION_UNKNOWN;
+
     /**
      * URI to the local path of the file contents, if stored in the device; cached after first call
      * to {@link #getStorageUri()}
@@ -135,6 +140,7 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mIsDownloading = source.readInt() == 1;
         mEtagInConflict = source.readString();
         mShareWithSharee = source.readInt() == 1;
+        mImageOrientation = source.readInt();
 
     }
 
@@ -162,6 +168,7 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         dest.writeInt(mIsDownloading ? 1 : 0);
         dest.writeString(mEtagInConflict);
         dest.writeInt(mShareWithSharee ? 1 : 0);
+        dest.writeInt(mImageOrientation);
     }
 
     /**
@@ -380,6 +387,7 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         mIsDownloading = false;
         mEtagInConflict = null;
         mShareWithSharee = false;
+        mImageOrientation = IMAGE_ORIENTATION_UNKNOWN;
     }
 
     /**
@@ -453,6 +461,18 @@ public class OCFile implements Parcelable, Comparable<OCFile> {
         this.mNeedsUpdateThumbnail = needsUpdateThumbnail;
     }
 
+    /**
+     * @return  EXIF orientation of the local copy of the image, or
+     *          {@link #IMAGE_ORIENTATION_UNKNOWN} if not read yet.
+     */
+    public int getImageOrientation() {
+        return mImageOrientation;
+    }
+
+    public void setImageOrientation(int imageOrientation) {
+        mImageOrientation = imageOrientation;
+    }
+
     public long getLastSyncDateForProperties() {
         return mLastSyncDateForProperties;
     }
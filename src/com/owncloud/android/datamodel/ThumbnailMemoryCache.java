@@ -0,0 +1,68 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.owncloud.android.datamodel;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+/**
+ * In-memory cache of thumbnails, bounded by the bytes of the bitmaps kept.
+ *
+ * Cheap enough to be checked from the main thread, in front of the disk cache.
+ */
+public class ThumbnailMemoryCache extends LruCache<String, Bitmap> {
+
+    /** Fraction of the memory class of the app used for thumbnails: 1/8 */
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+
+
+    /**
+     * Creates a cache sized from the memory class of the device.
+     */
+    public ThumbnailMemoryCache(Context context) {
+        this(getDefaultMaxSize(context));
+    }
+
+    /**
+     * @param maxBytes  Maximum bytes of the bitmaps kept in the cache.
+     */
+    public ThumbnailMemoryCache(int maxBytes) {
+        super(maxBytes);
+    }
+
+    /**
+     * @return  Bytes of the bitmaps to keep in the cache, as a fraction of the memory that the
+     *          device grants to the app.
+     */
+    public static int getDefaultMaxSize(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap bitmap) {
+        return bitmap.getByteCount();
+    }
+
+}
@@ -22,40 +22,57 @@
 package com.owncloud.android.datamodel;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
 
 import android.accounts.Account;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.media.ThumbnailUtils;
+import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Process;
+import android.preference.PreferenceManager;
 import android.widget.ImageView;
 
 import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
+import com.owncloud.android.files.services.BandwidthGovernor;
+import com.owncloud.android.files.services.ThrottledInputStream;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.lib.resources.status.OwnCloudVersion;
 import com.owncloud.android.ui.adapter.DiskLruImageCache;
+import com.owncloud.android.utils.BitmapPool;
 import com.owncloud.android.utils.BitmapUtils;
+import com.owncloud.android.utils.BoundedLifoExecutor;
 import com.owncloud.android.utils.DisplayUtils;
 
 /**
  * Manager for concurrent access to thumbnails cache.
+ *
+ * Thumbnails are kept in two tiers: a {@link ThumbnailMemoryCache}, that can be checked from the
+ * main thread, in front of a {@link DiskLruImageCache}, that must only be read from background
+ * threads.
  */
 public class ThumbnailsCacheManager {
     
@@ -63,14 +80,37 @@ public class ThumbnailsCacheManager {
     
     private static final String CACHE_FOLDER = "thumbnailCache";
 
+    private static final ThumbnailMemoryCache mMemoryCache =
+            new ThumbnailMemoryCache(MainApp.getAppContext());
+
     private static final Object mThumbnailsDiskCacheLock = new Object();
     private static DiskLruImageCache mThumbnailCache = null;
     private static boolean mThumbnailCacheStarting = true;
     
-    private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
+    /** Preference with the maximum size of the disk cache chosen by the user, in MB */
+    public static final String PREF_DISK_CACHE_MAX_SIZE = "thumbnails_disk_cache_max_size";
+
+    private static final long MB = 1024 * 1024;
     private static final CompressFormat mCompressFormat = CompressFormat.JPEG;
     private static final int mCompressQuality = 70;
-    private static OwnCloudClient mClient = null;
+
+    /** Threads generating thumbnails: one can wait for the server while other reads the disk */
+    private static final int GENERATION_THREADS = 2;
+    /** Thumbnails waiting for a thread; enough for the rows of a screen in grid mode */
+    private static final int MAX_WAITING_GENERATIONS = 48;
+
+    private static final BoundedLifoExecutor mGenerationExecutor =
+            new BoundedLifoExecutor(GENERATION_THREADS, MAX_WAITING_GENERATIONS, "Thumbnails");
+
+    /** Thumbnails of files not shown yet are generated in a single thread of lowest priority */
+    private static final int MAX_WAITING_PREFETCHES = 64;
+
+    private static final BoundedLifoExecutor mPrefetchExecutor =
+            new BoundedLifoExecutor(1, MAX_WAITING_PREFETCHES, "Thumbnail prefetch");
+
+    /** Tasks generating thumbnails, by key of the thumbnail; only accessed from main thread */
+    private static final Map<String, ThumbnailGenerationTask> mGenerationsInFlight =
+            new HashMap<String, ThumbnailGenerationTask>();
 
     public static Bitmap mDefaultImg = 
             BitmapFactory.decodeResource(
@@ -95,12 +135,19 @@ public class ThumbnailsCacheManager {
                                 File.separator + CACHE_FOLDER;
                         Log_OC.d(TAG, "create dir: " + cachePath);
                         final File diskCacheDir = new File(cachePath);
+                        final long maxSize = getUserMaxSize();
                         mThumbnailCache = new DiskLruImageCache(
                                 diskCacheDir, 
-                                DISK_CACHE_SIZE, 
+                                getDiskCacheSize(diskCacheDir.getParentFile(), 0, maxSize),
                                 mCompressFormat, 
-                                mCompressQuality
+                                mCompressQuality,
+                                true
                         );
+                        // the free space didn't count the thumbnails already stored
+                        mThumbnailCache.setMaxSize(getDiskCacheSize(
+                                diskCacheDir.getParentFile(), mThumbnailCache.size(), maxSize));
+                        Log_OC.d(TAG, "Thumbnails cache opened with " + mThumbnailCache.size() +
+                                " of " + mThumbnailCache.getMaxSize() + " bytes");
                     } catch (Exception e) {
                         Log_OC.d(TAG, "Thumbnail cache could not be opened ", e);
                         mThumbnailCache = null;
@@ -114,7 +161,91 @@ public class ThumbnailsCacheManager {
     }
     
     
+    /**
+     * Computes the maximum size of the disk cache as a share of the free storage, so that
+     * devices with plenty of space keep more thumbnails and devices running out of space don't
+     * fill it with them.
+     *
+     * @param freeSpace         Bytes free in the storage of the cache.
+     * @param cacheSize         Bytes used by the cache in the storage, that could be reused.
+     * @param freeSpacePercent  Share of the free storage to use, in percentage.
+     * @param minSize           Minimum size of the cache, in bytes.
+     * @param userMaxSize       Maximum size of the cache chosen by the user, in bytes; limits
+     *                          also the minimum size.
+     * @return                  Maximum size of the cache, in bytes.
+     */
+    public static long computeDiskCacheSize(long freeSpace, long cacheSize, int freeSpacePercent,
+                                            long minSize, long userMaxSize) {
+        long size = (freeSpace + cacheSize) / 100 * freeSpacePercent;
+        return Math.min(Math.max(size, minSize), userMaxSize);
+    }
+
+
+    private static long getDiskCacheSize(File storage, long cacheSize, long userMaxSize) {
+        Resources res = MainApp.getAppContext().getResources();
+        return computeDiskCacheSize(
+                storage.getUsableSpace(),
+                cacheSize,
+                res.getInteger(R.integer.thumbnails_disk_cache_free_space_percent),
+                res.getInteger(R.integer.thumbnails_disk_cache_min_size) * MB,
+                userMaxSize
+        );
+    }
+
+
+    private static long getUserMaxSize() {
+        Context context = MainApp.getAppContext();
+        String maxSize = PreferenceManager.getDefaultSharedPreferences(context).getString(
+                PREF_DISK_CACHE_MAX_SIZE,
+                context.getString(R.string.thumbnails_disk_cache_max_size_default)
+        );
+        try {
+            return Long.parseLong(maxSize) * MB;
+        } catch (NumberFormatException e) {
+            Log_OC.w(TAG, "Wrong maximum size of thumbnails cache: " + maxSize);
+            return Long.parseLong(
+                    context.getString(R.string.thumbnails_disk_cache_max_size_default)) * MB;
+        }
+    }
+
+
+    /**
+     * Applies in a background thread a new maximum size chosen by the user to the disk cache;
+     * thumbnails over it are evicted, oldest first.
+     *
+     * @param userMaxSize   Maximum size of the cache chosen by the user, in MB.
+     */
+    public static void setDiskCacheMaxSize(final long userMaxSize) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mThumbnailsDiskCacheLock) {
+                    if (mThumbnailCache != null) {
+                        File storage = mThumbnailCache.getCacheFolder().getParentFile();
+                        mThumbnailCache.setMaxSize(getDiskCacheSize(
+                                storage, mThumbnailCache.size(), userMaxSize * MB));
+                        Log_OC.d(TAG, "Maximum size of thumbnails cache set to " +
+                                mThumbnailCache.getMaxSize() + " bytes");
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * @return  Counters of the use of the disk cache since the app started, or null if it's
+     *          not open.
+     */
+    public static DiskLruImageCache.Stats getDiskCacheStats() {
+        synchronized (mThumbnailsDiskCacheLock) {
+            return (mThumbnailCache != null) ? mThumbnailCache.getStats() : null;
+        }
+    }
+
+
     public static void addBitmapToCache(String key, Bitmap bitmap) {
+        mMemoryCache.put(key, bitmap);
         synchronized (mThumbnailsDiskCacheLock) {
             if (mThumbnailCache != null) {
                 mThumbnailCache.put(key, bitmap);
@@ -123,7 +254,34 @@ public class ThumbnailsCacheManager {
     }
 
 
+    /**
+     * Returns a thumbnail kept in memory.
+     *
+     * Doesn't access the disk; safe to call from the main thread.
+     *
+     * @param key   Key of the thumbnail.
+     * @return      Thumbnail, or null if not in memory.
+     */
+    public static Bitmap getBitmapFromMemoryCache(String key) {
+        return mMemoryCache.get(key);
+    }
+
+
+    /**
+     * Returns a thumbnail kept in memory or in disk; thumbnails found in disk are kept in memory
+     * from then on.
+     *
+     * Can block while the disk cache is opened and the thumbnail is decoded; MUST NOT be called
+     * from the main thread.
+     *
+     * @param key   Key of the thumbnail.
+     * @return      Thumbnail, or null if not cached.
+     */
     public static Bitmap getBitmapFromDiskCache(String key) {
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
         synchronized (mThumbnailsDiskCacheLock) {
             // Wait while disk cache is started from background thread
             while (mThumbnailCacheStarting) {
@@ -134,18 +292,74 @@ public class ThumbnailsCacheManager {
                 }
             }
             if (mThumbnailCache != null) {
-                return mThumbnailCache.getBitmap(key);
+                bitmap = mThumbnailCache.getBitmap(key);
             }
         }
-        return null;
+        if (bitmap != null) {
+            mMemoryCache.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * Writes in a background thread the pending changes of the disk cache of thumbnails,
+     * written behind, and logs the counters of its use.
+     *
+     * To call when the app could be killed soon, as when moved to background.
+     */
+    public static void flushDiskCache() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mThumbnailsDiskCacheLock) {
+                    if (mThumbnailCache != null) {
+                        try {
+                            mThumbnailCache.flush();
+                        } catch (IOException e) {
+                            Log_OC.w(TAG, "Thumbnails cache could not be flushed", e);
+                        }
+                        Log_OC.i(TAG, "Thumbnails disk cache: " + mThumbnailCache.getStats());
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Releases thumbnails kept in memory when the system asks for it.
+     *
+     * @param level     Level received in {@link android.content.ComponentCallbacks2#onTrimMemory}.
+     */
+    public static void trimMemoryCache(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mMemoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
     }
 
     public static class ThumbnailGenerationTask extends AsyncTask<Object, Void, Bitmap> {
         private final WeakReference<ImageView> mImageViewReference;
-        private static Account mAccount;
+        private Account mAccount;
+        private OwnCloudClient mClient;
         private Object mFile;
         private FileDataStorageManager mStorageManager;
 
+        /**
+         * Tasks for the same thumbnail, requested while this was in flight; they are not
+         * executed, but get the result of this. Only accessed from main thread.
+         */
+        private List<ThumbnailGenerationTask> mFollowers =
+                new ArrayList<ThumbnailGenerationTask>();
+
+        /** Set when the task gets a thread to run */
+        private volatile boolean mRun = false;
+
+        /** Set when the thumbnail is generated before its file is shown */
+        private boolean mPrefetch = false;
+
 
         public ThumbnailGenerationTask(ImageView imageView, FileDataStorageManager storageManager,
                                        Account account) {
@@ -162,18 +376,69 @@ public class ThumbnailsCacheManager {
             mImageViewReference = new WeakReference<ImageView>(imageView);
         }
 
+        /**
+         * Starts the generation of the thumbnail of a file in the pool of threads for thumbnails.
+         *
+         * The newest requests are served first. If the thumbnail is already being generated
+         * for other view, this task waits for the result of that one instead of generating it
+         * again.
+         *
+         * Must be called from main thread, as {@link #execute(Object[])}.
+         *
+         * @param file      {@link OCFile} or {@link File} to generate the thumbnail for.
+         */
+        public void start(Object file) {
+            mFile = file;
+            String key = getThumbnailKey(file);
+            ThumbnailGenerationTask inFlight = mGenerationsInFlight.get(key);
+            if (inFlight != null && inFlight.mPrefetch && !inFlight.mRun) {
+                // still waiting in the queue of prefetches; better generate it now
+                inFlight.cancel(false);
+                mPrefetchExecutor.purge();
+                inFlight = null;
+            }
+            if (inFlight != null && !inFlight.isCancelled()) {
+                inFlight.mFollowers.add(this);
+            } else {
+                mGenerationsInFlight.put(key, this);
+                executeOnExecutor(mGenerationExecutor, file);
+            }
+        }
+
+        /**
+         * Starts the generation of the thumbnail of a file that is not shown yet, so that it's
+         * in the caches when shown.
+         *
+         * Prefetches run in a single thread of lowest priority, newest first. A request to
+         * show the thumbnail while its prefetch is still waiting replaces the prefetch.
+         *
+         * Must be called from main thread.
+         *
+         * @param file      {@link OCFile} or {@link File} to generate the thumbnail for.
+         * @return          'false' if the thumbnail was already being generated, so that the
+         *                  prefetch was not started.
+         */
+        public boolean prefetch(Object file) {
+            mFile = file;
+            String key = getThumbnailKey(file);
+            if (mGenerationsInFlight.containsKey(key)) {
+                return false;
+            }
+            mPrefetch = true;
+            mGenerationsInFlight.put(key, this);
+            executeOnExecutor(mPrefetchExecutor, file);
+            return true;
+        }
+
         @Override
         protected Bitmap doInBackground(Object... params) {
             Bitmap thumbnail = null;
+            mRun = true;
+            if (mPrefetch) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            }
 
             try {
-                if (mAccount != null) {
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mAccount,
-                            MainApp.getAppContext());
-                    mClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, MainApp.getAppContext());
-                }
-
                 mFile = params[0];
                 
                 if (mFile instanceof OCFile) {
@@ -187,6 +452,7 @@ public class ThumbnailsCacheManager {
                     // the app should never break due to a problem with thumbnails
                     Log_OC.e(TAG, "Generation of thumbnail for " + mFile + " failed", t);
                     if (t instanceof OutOfMemoryError) {
+                        BitmapPool.getInstance().clear();
                         System.gc();
                     }
                 }
@@ -195,7 +461,51 @@ public class ThumbnailsCacheManager {
         }
 
         protected void onPostExecute(Bitmap bitmap){
+            finishGeneration(bitmap);
+        }
+
+        @Override
+        protected void onCancelled(Bitmap bitmap) {
+            finishGeneration(bitmap);
+        }
+
+        /**
+         * Shows the thumbnail generated in the views waiting for it, or passes the generation
+         * to a follower still interested if this was cancelled before getting it.
+         */
+        private void finishGeneration(Bitmap bitmap) {
+            String key = getThumbnailKey(mFile);
+            if (mGenerationsInFlight.get(key) == this) {
+                mGenerationsInFlight.remove(key);
+            }
+            showThumbnail(bitmap);
             if (bitmap != null) {
+                for (ThumbnailGenerationTask follower : mFollowers) {
+                    if (!follower.isCancelled()) {
+                        follower.showThumbnail(bitmap);
+                    }
+                }
+            } else if (isCancelled() || !mRun) {
+                // the first follower still interested is started, the rest follow it
+                for (ThumbnailGenerationTask follower : mFollowers) {
+                    if (!follower.isCancelled()) {
+                        follower.start(follower.mFile);
+                    }
+                }
+            }
+            mFollowers.clear();
+        }
+
+        /**
+         * @return  'true' if the task was taken out of the queue of the executor, full of
+         *          newer requests, without running.
+         */
+        private boolean wasDropped() {
+            return getStatus() == Status.FINISHED && !mRun;
+        }
+
+        private void showThumbnail(Bitmap bitmap) {
+            if (bitmap != null && !isCancelled()) {
                 final ImageView imageView = mImageViewReference.get();
                 final ThumbnailGenerationTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
                 if (this == bitmapWorkerTask) {
@@ -215,17 +525,20 @@ public class ThumbnailsCacheManager {
         /**
          * Add thumbnail to cache
          * @param imageKey: thumb key
-         * @param bitmap:   image for extracting thumbnail
-         * @param path:     image path
+         * @param bitmap:   image for extracting thumbnail; put in the pool of bitmaps after it
+         * @param orientation: EXIF orientation of the image
          * @param px:       thumbnail dp
+         * @param isPNG:    'true' to draw the thumbnail over the background of the app
          * @return Bitmap
          */
-        private Bitmap addThumbnailToCache(String imageKey, Bitmap bitmap, String path, int px){
-
-            Bitmap thumbnail = ThumbnailUtils.extractThumbnail(bitmap, px, px);
+        private Bitmap addThumbnailToCache(String imageKey, Bitmap bitmap, int orientation, int px,
+                                           boolean isPNG){
+            BitmapPool pool = BitmapPool.getInstance();
 
-            // Rotate image, obeying exif tag
-            thumbnail = BitmapUtils.rotateImage(thumbnail,path);
+            // Crop, scale and rotate image, obeying exif tag, in a single bitmap
+            Bitmap thumbnail = BitmapUtils.extractThumbnail(bitmap, px, orientation,
+                    getBackgroundColor(isPNG), pool);
+            pool.put(bitmap);
 
             // Add thumbnail to cache
             addBitmapToCache(imageKey, thumbnail);
@@ -257,17 +570,19 @@ public class ThumbnailsCacheManager {
                 int px = getThumbnailDimension();
 
                 if (file.isDown()) {
-                    Bitmap temp = BitmapUtils.decodeSampledBitmapFromFile(
-                            file.getStoragePath(), px, px);
-                    Bitmap bitmap = ThumbnailUtils.extractThumbnail(temp, px, px);
+                    // EXIF is parsed only once per content of the file; saved below
+                    int orientation = file.getImageOrientation();
+                    if (orientation == OCFile.IMAGE_ORIENTATION_UNKNOWN) {
+                        orientation = BitmapUtils.getExifOrientation(file.getStoragePath());
+                        file.setImageOrientation(orientation);
+                    }
 
-                    if (bitmap != null) {
-                        // Handle PNG
-                        if (file.getMimetype().equalsIgnoreCase("image/png")) {
-                            bitmap = handlePNG(bitmap, px);
-                        }
+                    Bitmap bitmap = BitmapUtils.decodeSampledBitmapFromFile(
+                            file.getStoragePath(), px, px, BitmapPool.getInstance());
 
-                        thumbnail = addThumbnailToCache(imageKey, bitmap, file.getStoragePath(), px);
+                    if (bitmap != null) {
+                        thumbnail = addThumbnailToCache(imageKey, bitmap, orientation,
+                                px, file.getMimetype().equalsIgnoreCase("image/png"));
 
                         file.setNeedsUpdateThumbnail(false);
                         mStorageManager.saveFile(file);
@@ -276,9 +591,24 @@ public class ThumbnailsCacheManager {
                 } else {
                     // Download thumbnail from server
                     OwnCloudVersion serverOCVersion = AccountUtils.getServerVersion(mAccount);
+                    if (mAccount != null && mClient == null) {
+                        OwnCloudAccount ocAccount = new OwnCloudAccount(mAccount,
+                                MainApp.getAppContext());
+                        mClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                                getClientFor(ocAccount, MainApp.getAppContext());
+                    }
                     if (mClient != null && serverOCVersion != null) {
                         if (serverOCVersion.supportsRemoteThumbnails()) {
                             GetMethod get = null;
+                            BandwidthGovernor governor = BandwidthGovernor.getInstance();
+                            // prefetches are bulk traffic; they must not slow down transfers
+                            // as if the user were waiting for them
+                            BandwidthGovernor.TrafficClass trafficClass = mPrefetch ?
+                                    BandwidthGovernor.TrafficClass.DOWNLOAD :
+                                    BandwidthGovernor.TrafficClass.INTERACTIVE;
+                            if (!mPrefetch) {
+                                governor.beginInteractive();
+                            }
                             try {
                                 String uri = mClient.getBaseUri() + "" +
                                         "/index.php/apps/files/api/v1/thumbnail/" +
@@ -287,17 +617,25 @@ public class ThumbnailsCacheManager {
                                 get = new GetMethod(uri);
                                 int status = mClient.executeMethod(get);
                                 if (status == HttpStatus.SC_OK) {
-                                    InputStream inputStream = get.getResponseBodyAsStream();
-                                    Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                                    thumbnail = ThumbnailUtils.extractThumbnail(bitmap, px, px);
-
-                                    // Handle PNG
-                                    if (file.getMimetype().equalsIgnoreCase("image/png")) {
-                                        thumbnail = handlePNG(thumbnail, px);
-                                    }
-
-                                    // Add thumbnail to cache
-                                    if (thumbnail != null) {
+                                    InputStream inputStream = new ThrottledInputStream(
+                                            get.getResponseBodyAsStream(), trafficClass);
+                                    BitmapPool pool = BitmapPool.getInstance();
+                                    BitmapFactory.Options options = new BitmapFactory.Options();
+                                    options.inMutable = true;   // to be put in the pool after
+                                    Bitmap bitmap =
+                                            BitmapFactory.decodeStream(inputStream, null, options);
+                                    pool.countAllocation(bitmap);
+
+                                    if (bitmap != null) {
+                                        // Handle PNG
+                                        boolean isPNG =
+                                                file.getMimetype().equalsIgnoreCase("image/png");
+                                        thumbnail = BitmapUtils.extractThumbnail(bitmap, px,
+                                                ExifInterface.ORIENTATION_NORMAL,
+                                                getBackgroundColor(isPNG), pool);
+                                        pool.put(bitmap);
+
+                                        // Add thumbnail to cache
                                         addBitmapToCache(imageKey, thumbnail);
                                     }
                                 } else {
@@ -306,6 +644,9 @@ public class ThumbnailsCacheManager {
                             } catch (Exception e) {
                                 e.printStackTrace();
                             } finally {
+                                if (!mPrefetch) {
+                                    governor.endInteractive();
+                                }
                                 if (get != null) {
                                     get.releaseConnection();
                                 }
@@ -321,17 +662,15 @@ public class ThumbnailsCacheManager {
 
         }
 
-        private Bitmap handlePNG(Bitmap bitmap, int px){
-            Bitmap resultBitmap = Bitmap.createBitmap(px,
-                    px,
-                    Bitmap.Config.ARGB_8888);
-            Canvas c = new Canvas(resultBitmap);
-
-            c.drawColor(MainApp.getAppContext().getResources().
-                    getColor(R.color.background_color));
-            c.drawBitmap(bitmap, 0, 0, null);
-
-            return resultBitmap;
+        /**
+         * @param isPNG     'true' for images that can be transparent.
+         * @return          Color to draw behind the thumbnail.
+         */
+        private int getBackgroundColor(boolean isPNG){
+            if (isPNG) {
+                return MainApp.getAppContext().getResources().getColor(R.color.background_color);
+            }
+            return Color.TRANSPARENT;
         }
 
         private Bitmap doFileInBackground() {
@@ -346,12 +685,13 @@ public class ThumbnailsCacheManager {
             if (thumbnail == null) {
 
                 int px = getThumbnailDimension();
+                int orientation = BitmapUtils.getExifOrientation(file.getPath());
 
                 Bitmap bitmap = BitmapUtils.decodeSampledBitmapFromFile(
-                        file.getAbsolutePath(), px, px);
+                        file.getAbsolutePath(), px, px, BitmapPool.getInstance());
 
                 if (bitmap != null) {
-                    thumbnail = addThumbnailToCache(imageKey, bitmap, file.getPath(), px);
+                    thumbnail = addThumbnailToCache(imageKey, bitmap, orientation, px, false);
                 }
             }
             return thumbnail;
@@ -359,15 +699,36 @@ public class ThumbnailsCacheManager {
 
     }
 
+    /**
+     * @param file      {@link OCFile} or {@link File}.
+     * @return          Key of the thumbnail of the file in the caches.
+     */
+    private static String getThumbnailKey(Object file) {
+        if (file instanceof OCFile) {
+            return String.valueOf(((OCFile) file).getRemoteId());
+        } else {
+            return String.valueOf(file.hashCode());
+        }
+    }
+
+    /**
+     * Removes from the queue of prefetches the ones cancelled.
+     */
+    public static void purgePrefetches() {
+        mPrefetchExecutor.purge();
+    }
+
     public static boolean cancelPotentialWork(Object file, ImageView imageView) {
         final ThumbnailGenerationTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
 
         if (bitmapWorkerTask != null) {
             final Object bitmapData = bitmapWorkerTask.mFile;
-            // If bitmapData is not yet set or it differs from the new data
-            if (bitmapData == null || bitmapData != file) {
-                // Cancel previous task
+            // If bitmapData is not yet set or it differs from the new data, or the task was
+            // dropped without running
+            if (bitmapData == null || bitmapData != file || bitmapWorkerTask.wasDropped()) {
+                // Cancel previous task, and free its place in the queue if still waiting
                 bitmapWorkerTask.cancel(true);
+                mGenerationExecutor.purge();
                 Log_OC.v(TAG, "Cancelled generation of thumbnail for a reused imageView");
             } else {
                 // The same work is already in progress
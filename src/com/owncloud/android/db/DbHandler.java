@@ -28,6 +28,14 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Custom database helper for ownCloud
@@ -36,9 +44,12 @@ public class DbHandler {
     private SQLiteDatabase mDB;
     private OpenerHelper mHelper;
     private final String mDatabaseName;
-    private final int mDatabaseVersion = 3;
+    private final int mDatabaseVersion = 8;
 
     private final String TABLE_INSTANT_UPLOAD = "instant_upload";
+    private final String TABLE_CHUNKED_UPLOAD = "chunked_upload";
+    private final String TABLE_TRANSFER_QUEUE = "transfer_queue";
+    private final String TABLE_CONTENT_HASH = "content_hash";
 
     public static final int UPLOAD_STATUS_UPLOAD_LATER = 0;
     public static final int UPLOAD_STATUS_UPLOAD_FAILED = 1;
@@ -97,6 +108,452 @@ public class DbHandler {
 
     }
 
+    /**
+     * Looks for a former chunked upload of the same local file to the same remote path that
+     * could be resumed.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param localPath     Path to the local file being uploaded.
+     * @param remotePath    Path of the file in the server.
+     * @param length        Length of the local file.
+     * @param modified      Last modification timestamp of the local file.
+     * @param uploadedAfter Only chunks uploaded after this timestamp are considered.
+     * @return              Transfer id of the former upload, or null if none was found.
+     */
+    public String getChunkedUploadTransferId(String account, String localPath, String remotePath,
+                                             long length, long modified, long uploadedAfter) {
+        Cursor c = mDB.query(
+                TABLE_CHUNKED_UPLOAD,
+                new String[]{"transfer_id"},
+                "account=? AND local_path=? AND remote_path=? AND length=? AND modified=? " +
+                        "AND uploaded>?",
+                new String[]{account, localPath, remotePath, String.valueOf(length),
+                        String.valueOf(modified), String.valueOf(uploadedAfter)},
+                null, null, "uploaded DESC", "1"
+        );
+        String transferId = null;
+        if (c.moveToFirst()) {
+            transferId = c.getString(0);
+        }
+        c.close();
+        return transferId;
+    }
+
+    /**
+     * Looks for a former chunked upload of the same local file to the same remote path, with
+     * the same length but maybe different contents, that could be resumed after checking
+     * which of its chunks are still equal in the local file.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param localPath     Path to the local file being uploaded.
+     * @param remotePath    Path of the file in the server.
+     * @param length        Length of the local file.
+     * @param uploadedAfter Only chunks uploaded after this timestamp are considered.
+     * @return              Transfer id of the former upload, or null if none was found.
+     */
+    public String getChunkedUploadTransferId(String account, String localPath, String remotePath,
+                                             long length, long uploadedAfter) {
+        Cursor c = mDB.query(
+                TABLE_CHUNKED_UPLOAD,
+                new String[]{"transfer_id"},
+                "account=? AND local_path=? AND remote_path=? AND length=? AND uploaded>?",
+                new String[]{account, localPath, remotePath, String.valueOf(length),
+                        String.valueOf(uploadedAfter)},
+                null, null, "uploaded DESC", "1"
+        );
+        String transferId = null;
+        if (c.moveToFirst()) {
+            transferId = c.getString(0);
+        }
+        c.close();
+        return transferId;
+    }
+
+    /**
+     * @param transferId    Transfer id of a chunked upload.
+     * @return              Hashes of the contents of the chunks already uploaded in the
+     *                      transfer, by index; null for chunks recorded without hash.
+     */
+    public Map<Long, String> getUploadedChunkHashes(String transferId) {
+        Cursor c = mDB.query(
+                TABLE_CHUNKED_UPLOAD,
+                new String[]{"chunk_index", "chunk_hash"},
+                "transfer_id=?",
+                new String[]{transferId},
+                null, null, null
+        );
+        Map<Long, String> hashes = new HashMap<Long, String>();
+        while (c.moveToNext()) {
+            hashes.put(c.getLong(0), c.isNull(1) ? null : c.getString(1));
+        }
+        c.close();
+        return hashes;
+    }
+
+    /**
+     * @param transferId    Transfer id of a chunked upload.
+     * @return              Indexes of the chunks already uploaded in the transfer.
+     */
+    public Set<Long> getUploadedChunks(String transferId) {
+        Cursor c = mDB.query(
+                TABLE_CHUNKED_UPLOAD,
+                new String[]{"chunk_index"},
+                "transfer_id=?",
+                new String[]{transferId},
+                null, null, null
+        );
+        Set<Long> chunks = new HashSet<Long>();
+        while (c.moveToNext()) {
+            chunks.add(c.getLong(0));
+        }
+        c.close();
+        return chunks;
+    }
+
+    /**
+     * @param transferId    Transfer id of a chunked upload.
+     * @return              Size of the chunks of the transfer, or 0 if unknown.
+     */
+    public long getChunkedUploadChunkSize(String transferId) {
+        Cursor c = mDB.query(
+                TABLE_CHUNKED_UPLOAD,
+                new String[]{"chunk_size"},
+                "transfer_id=?",
+                new String[]{transferId},
+                null, null, null, "1"
+        );
+        long chunkSize = 0;
+        if (c.moveToFirst()) {
+            chunkSize = c.getLong(0);
+        }
+        c.close();
+        return chunkSize;
+    }
+
+    public boolean putUploadedChunk(String transferId, String account, String localPath,
+                                    String remotePath, long length, long modified,
+                                    long chunkSize, long chunkIndex, String chunkHash) {
+        ContentValues cv = new ContentValues();
+        cv.put("transfer_id", transferId);
+        cv.put("account", account);
+        cv.put("local_path", localPath);
+        cv.put("remote_path", remotePath);
+        cv.put("length", length);
+        cv.put("modified", modified);
+        cv.put("chunk_size", chunkSize);
+        cv.put("chunk_index", chunkIndex);
+        cv.put("chunk_hash", chunkHash);
+        cv.put("uploaded", System.currentTimeMillis());
+        long result = mDB.insert(TABLE_CHUNKED_UPLOAD, null, cv);
+        return result != -1;
+    }
+
+    /**
+     * Forgets a chunk uploaded in a transfer whose contents changed in the local file.
+     *
+     * @param transferId    Transfer id of a chunked upload.
+     * @param chunkIndex    Index of the chunk.
+     */
+    public boolean removeUploadedChunk(String transferId, long chunkIndex) {
+        return mDB.delete(TABLE_CHUNKED_UPLOAD, "transfer_id=? AND chunk_index=?",
+                new String[]{transferId, String.valueOf(chunkIndex)}) > 0;
+    }
+
+    /**
+     * Updates the last modification timestamp of the local file recorded for the chunks of a
+     * transfer, once they were checked against the current contents of the file.
+     *
+     * @param transferId    Transfer id of a chunked upload.
+     * @param modified      New last modification timestamp of the local file.
+     */
+    public int updateChunkedUploadModified(String transferId, long modified) {
+        ContentValues cv = new ContentValues();
+        cv.put("modified", modified);
+        return mDB.update(TABLE_CHUNKED_UPLOAD, cv, "transfer_id=?", new String[]{transferId});
+    }
+
+    /**
+     * Forgets the chunks uploaded in a transfer, once it finished or can't be resumed anymore.
+     *
+     * @param transferId    Transfer id of a chunked upload.
+     */
+    public int removeChunkedUpload(String transferId) {
+        int result = mDB.delete(TABLE_CHUNKED_UPLOAD, "transfer_id=?", new String[]{transferId});
+        Log_OC.d(TABLE_CHUNKED_UPLOAD, "removeChunkedUpload returns with: " + result +
+                " for transfer: " + transferId);
+        return result;
+    }
+
+    /**
+     * Forgets the chunks uploaded before a given moment, that the server will not keep anymore.
+     *
+     * @param uploadedBefore    Timestamp limit.
+     */
+    public int removeExpiredChunks(long uploadedBefore) {
+        return mDB.delete(TABLE_CHUNKED_UPLOAD, "uploaded<?",
+                new String[]{String.valueOf(uploadedBefore)});
+    }
+
+    /**
+     * Stores new transfers in the queue of transfers, in a single transaction.
+     *
+     * The identifier given to every transfer is set in the passed objects.
+     *
+     * @param transfers     Transfers to store.
+     * @return              Number of transfers stored.
+     */
+    public int putTransfers(List<QueuedTransfer> transfers) {
+        int stored = 0;
+        long now = System.currentTimeMillis();
+        SQLiteStatement insert = mDB.compileStatement(
+                "INSERT INTO " + TABLE_TRANSFER_QUEUE + " (type, account, remote_path, " +
+                        "local_path, mime_type, local_behaviour, force_overwrite, is_instant, " +
+                        "priority, state, attempts, next_attempt, created) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, " + QueuedTransfer.STATE_PENDING +
+                        ", 0, 0, ?)"
+        );
+        mDB.beginTransaction();
+        try {
+            for (QueuedTransfer transfer : transfers) {
+                insert.clearBindings();
+                insert.bindLong(1, transfer.getType());
+                insert.bindString(2, transfer.getAccountName());
+                insert.bindString(3, transfer.getRemotePath());
+                if (transfer.getLocalPath() != null) {
+                    insert.bindString(4, transfer.getLocalPath());
+                }
+                if (transfer.getMimeType() != null) {
+                    insert.bindString(5, transfer.getMimeType());
+                }
+                insert.bindLong(6, transfer.getLocalBehaviour());
+                insert.bindLong(7, transfer.isForceOverwrite() ? 1 : 0);
+                insert.bindLong(8, transfer.isInstant() ? 1 : 0);
+                insert.bindLong(9, transfer.getPriority());
+                insert.bindLong(10, now);
+                long id = insert.executeInsert();
+                if (id != -1) {
+                    transfer.setId(id);
+                    stored++;
+                }
+            }
+            mDB.setTransactionSuccessful();
+
+        } finally {
+            mDB.endTransaction();
+            insert.close();
+        }
+        Log_OC.d(TABLE_TRANSFER_QUEUE, "putTransfers stored " + stored + " of " +
+                transfers.size() + " transfers");
+        return stored;
+    }
+
+    /**
+     * Gets the transfers in the queue that can be run at a given moment, in the order they
+     * should run: higher priority first, older first for the same priority.
+     *
+     * @param type      Type of the transfers: {@link QueuedTransfer#TYPE_DOWNLOAD} or
+     *                  {@link QueuedTransfer#TYPE_UPLOAD}.
+     * @param now       Timestamp of the moment; failed transfers to retry after it are skipped.
+     * @return          Transfers ready to run.
+     */
+    public List<QueuedTransfer> getTransfersToRun(int type, long now) {
+        Cursor c = mDB.query(
+                TABLE_TRANSFER_QUEUE,
+                new String[]{"_id", "account", "remote_path", "local_path", "mime_type",
+                        "local_behaviour", "force_overwrite", "is_instant", "priority",
+                        "attempts"},
+                "type=? AND state<>? AND next_attempt<=?",
+                new String[]{String.valueOf(type),
+                        String.valueOf(QueuedTransfer.STATE_IN_PROGRESS), String.valueOf(now)},
+                null, null, "priority DESC, _id ASC"
+        );
+        List<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>(c.getCount());
+        while (c.moveToNext()) {
+            transfers.add(new QueuedTransfer(
+                    c.getLong(0), type, c.getString(1), c.getString(2), c.getString(3),
+                    c.getString(4), c.getInt(5), c.getInt(6) != 0, c.getInt(7) != 0,
+                    c.getInt(8), c.getInt(9)
+            ));
+        }
+        c.close();
+        return transfers;
+    }
+
+    /**
+     * @param type      Type of transfers.
+     * @return          Timestamp of the next retry of a failed transfer, or 0 if there is none.
+     */
+    public long getNextTransferAttempt(int type) {
+        Cursor c = mDB.query(
+                TABLE_TRANSFER_QUEUE,
+                new String[]{"MIN(next_attempt)"},
+                "type=? AND state=?",
+                new String[]{String.valueOf(type), String.valueOf(QueuedTransfer.STATE_FAILED)},
+                null, null, null
+        );
+        long next = 0;
+        if (c.moveToFirst() && !c.isNull(0)) {
+            next = c.getLong(0);
+        }
+        c.close();
+        return next;
+    }
+
+    public boolean setTransferInProgress(long id) {
+        ContentValues cv = new ContentValues();
+        cv.put("state", QueuedTransfer.STATE_IN_PROGRESS);
+        return mDB.update(TABLE_TRANSFER_QUEUE, cv, "_id=?",
+                new String[]{String.valueOf(id)}) > 0;
+    }
+
+    /**
+     * Registers a failed attempt of a transfer, and schedules the next one after a delay
+     * growing with the number of attempts. The transfer is removed when
+     * {@link QueuedTransfer#MAX_ATTEMPTS} are reached.
+     *
+     * @param id        Identifier of the transfer.
+     * @param now       Timestamp of the failure.
+     * @return          Timestamp of the next attempt, or -1 if the transfer was given up.
+     */
+    public long setTransferFailed(long id, long now) {
+        String[] whereArgs = new String[]{String.valueOf(id)};
+        Cursor c = mDB.query(TABLE_TRANSFER_QUEUE, new String[]{"attempts"}, "_id=?",
+                whereArgs, null, null, null);
+        int attempts = -1;
+        if (c.moveToFirst()) {
+            attempts = c.getInt(0) + 1;
+        }
+        c.close();
+        if (attempts < 0) {
+            return -1;  // removed meanwhile
+        }
+        if (attempts >= QueuedTransfer.MAX_ATTEMPTS) {
+            Log_OC.d(TABLE_TRANSFER_QUEUE, "Giving up transfer " + id + " after " + attempts +
+                    " attempts");
+            removeTransfer(id);
+            return -1;
+        }
+        long nextAttempt = now + QueuedTransfer.getRetryDelay(attempts);
+        ContentValues cv = new ContentValues();
+        cv.put("state", QueuedTransfer.STATE_FAILED);
+        cv.put("attempts", attempts);
+        cv.put("next_attempt", nextAttempt);
+        mDB.update(TABLE_TRANSFER_QUEUE, cv, "_id=?", whereArgs);
+        return nextAttempt;
+    }
+
+    public boolean removeTransfer(long id) {
+        return mDB.delete(TABLE_TRANSFER_QUEUE, "_id=?", new String[]{String.valueOf(id)}) > 0;
+    }
+
+    /**
+     * Removes from the queue the transfers of a file, or of all the files in a folder.
+     *
+     * @param type          Type of transfers.
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Path of a file, or of a folder ending in a separator, in the server;
+     *                      null to remove all the transfers of the account.
+     * @return              Number of transfers removed.
+     */
+    public int removeTransfers(int type, String account, String remotePath) {
+        if (remotePath == null) {
+            return mDB.delete(TABLE_TRANSFER_QUEUE, "type=? AND account=?",
+                    new String[]{String.valueOf(type), account});
+        }
+        if (!remotePath.endsWith("/")) {
+            // only the file; other files starting with the same name are kept
+            return mDB.delete(TABLE_TRANSFER_QUEUE, "type=? AND account=? AND remote_path=?",
+                    new String[]{String.valueOf(type), account, remotePath});
+        }
+        return mDB.delete(TABLE_TRANSFER_QUEUE,
+                "type=? AND account=? AND substr(remote_path, 1, ?)=?",
+                new String[]{String.valueOf(type), account,
+                        String.valueOf(remotePath.length()), remotePath});
+    }
+
+    /**
+     * Returns to the pending state the transfers that were in progress when the process
+     * of the app finished, so that they are run again.
+     *
+     * @param type      Type of transfers.
+     * @return          Number of transfers recovered.
+     */
+    public int resetTransfersInProgress(int type) {
+        ContentValues cv = new ContentValues();
+        cv.put("state", QueuedTransfer.STATE_PENDING);
+        return mDB.update(TABLE_TRANSFER_QUEUE, cv, "type=? AND state=?",
+                new String[]{String.valueOf(type),
+                        String.valueOf(QueuedTransfer.STATE_IN_PROGRESS)});
+    }
+
+    /**
+     * Records the hash of the contents of a remote file, known after downloading or uploading
+     * it, replacing the former record for the same path.
+     *
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Path of the file in the server.
+     * @param hash          Hash of the contents.
+     * @param length        Length of the contents.
+     * @param etag          ETag of the version of the remote file with these contents.
+     */
+    public boolean putContentHash(String account, String remotePath, String hash, long length,
+                                  String etag) {
+        ContentValues cv = new ContentValues();
+        cv.put("account", account);
+        cv.put("remote_path", remotePath);
+        cv.put("hash", hash);
+        cv.put("length", length);
+        cv.put("etag", etag);
+        return mDB.replace(TABLE_CONTENT_HASH, null, cv) != -1;
+    }
+
+    /**
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Path of the file in the server.
+     * @param length        Length of the contents.
+     * @return              ETag of the version of the remote file whose hash is known, if its
+     *                      length is the given one; null otherwise.
+     */
+    public String getContentHashEtag(String account, String remotePath, long length) {
+        Cursor c = mDB.query(
+                TABLE_CONTENT_HASH,
+                new String[]{"etag"},
+                "account=? AND remote_path=? AND length=?",
+                new String[]{account, remotePath, String.valueOf(length)},
+                null, null, null
+        );
+        String etag = null;
+        if (c.moveToFirst()) {
+            etag = c.getString(0);
+        }
+        c.close();
+        return etag;
+    }
+
+    /**
+     * @param account       Name of the ownCloud account.
+     * @param remotePath    Path of the file in the server.
+     * @param length        Length of the contents.
+     * @param etag          ETag of the version of the remote file.
+     * @return              Hash of the contents of that version of the remote file, or null
+     *                      if unknown.
+     */
+    public String getContentHash(String account, String remotePath, long length, String etag) {
+        Cursor c = mDB.query(
+                TABLE_CONTENT_HASH,
+                new String[]{"hash"},
+                "account=? AND remote_path=? AND length=? AND etag=?",
+                new String[]{account, remotePath, String.valueOf(length), etag},
+                null, null, null
+        );
+        String hash = null;
+        if (c.moveToFirst()) {
+            hash = c.getString(0);
+        }
+        c.close();
+        return hash;
+    }
+
     private class OpenerHelper extends SQLiteOpenHelper {
         public OpenerHelper(Context context) {
             super(context, mDatabaseName, null, mDatabaseVersion);
@@ -106,6 +563,34 @@ public class DbHandler {
         public void onCreate(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + TABLE_INSTANT_UPLOAD + " (" + " _id INTEGER PRIMARY KEY, " + " path TEXT,"
                     + " account TEXT,attempt INTEGER,message TEXT);");
+            createChunkedUploadTable(db);
+            createTransferQueueTable(db);
+            createContentHashTable(db);
+        }
+
+        private void createChunkedUploadTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_CHUNKED_UPLOAD + " (" + " _id INTEGER PRIMARY KEY, "
+                    + " transfer_id TEXT, account TEXT, local_path TEXT, remote_path TEXT,"
+                    + " length INTEGER, modified INTEGER, chunk_size INTEGER, chunk_index INTEGER,"
+                    + " uploaded INTEGER, chunk_hash TEXT);");
+            db.execSQL("CREATE INDEX " + TABLE_CHUNKED_UPLOAD + "_transfer ON "
+                    + TABLE_CHUNKED_UPLOAD + " (transfer_id);");
+        }
+
+        private void createTransferQueueTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_TRANSFER_QUEUE + " (" + " _id INTEGER PRIMARY KEY, "
+                    + " type INTEGER, account TEXT, remote_path TEXT, local_path TEXT,"
+                    + " mime_type TEXT, local_behaviour INTEGER, force_overwrite INTEGER,"
+                    + " is_instant INTEGER, priority INTEGER, state INTEGER, attempts INTEGER,"
+                    + " next_attempt INTEGER, created INTEGER);");
+            db.execSQL("CREATE INDEX " + TABLE_TRANSFER_QUEUE + "_order ON "
+                    + TABLE_TRANSFER_QUEUE + " (type, priority DESC, _id);");
+        }
+
+        private void createContentHashTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_CONTENT_HASH + " (" + " _id INTEGER PRIMARY KEY, "
+                    + " account TEXT, remote_path TEXT, hash TEXT, length INTEGER, etag TEXT,"
+                    + " UNIQUE (account, remote_path) ON CONFLICT REPLACE);");
         }
 
         @Override
@@ -113,7 +598,23 @@ public class DbHandler {
             if (oldVersion < 2) {
                 db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN attempt INTEGER;");
             }
-            db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            if (oldVersion < 3) {
+                db.execSQL("ALTER TABLE " + TABLE_INSTANT_UPLOAD + " ADD COLUMN message TEXT;");
+            }
+            if (oldVersion < 4) {
+                createChunkedUploadTable(db);
+            } else if (oldVersion < 5) {
+                db.execSQL("ALTER TABLE " + TABLE_CHUNKED_UPLOAD + " ADD COLUMN chunk_size INTEGER;");
+            }
+            if (oldVersion < 6) {
+                createTransferQueueTable(db);
+            }
+            if (oldVersion >= 4 && oldVersion < 7) {
+                db.execSQL("ALTER TABLE " + TABLE_CHUNKED_UPLOAD + " ADD COLUMN chunk_hash TEXT;");
+            }
+            if (oldVersion < 8) {
+                createContentHashTable(db);
+            }
         }
         
         @Override
@@ -121,6 +622,9 @@ public class DbHandler {
             //downgrading is the exception, so deleting and re-creating is acceptable.
             //otherwise exception will be thrown (cannot downgrade) and oc app will crash.
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_INSTANT_UPLOAD + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHUNKED_UPLOAD + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRANSFER_QUEUE + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_CONTENT_HASH + ";");
             onCreate(db);
         }
     }
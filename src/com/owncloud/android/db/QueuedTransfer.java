@@ -0,0 +1,190 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.db;
+
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+
+/**
+ * Transfer stored in the persistent queue of transfers, so that it's not lost if the process
+ * of the app is killed before it's done.
+ *
+ * Transfers that fail for reasons that could disappear by themselves, like a lost connection,
+ * are kept in the queue and retried later, with a delay growing with every failed attempt.
+ */
+public class QueuedTransfer {
+
+    public static final int TYPE_DOWNLOAD = 0;
+    public static final int TYPE_UPLOAD = 1;
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_IN_PROGRESS = 1;
+    public static final int STATE_FAILED = 2;
+
+    /** Transfers started in background, like instant uploads or folder synchronizations */
+    public static final int PRIORITY_BACKGROUND = 0;
+
+    /** Transfers requested by the user, that should run as soon as possible */
+    public static final int PRIORITY_USER = 10;
+
+    /** Attempts to perform a transfer before it's given up */
+    public static final int MAX_ATTEMPTS = 5;
+
+    private static final long RETRY_DELAY = 30 * 1000;
+    private static final long MAX_RETRY_DELAY = 60 * 60 * 1000;
+
+    private long mId = -1;
+    private final int mType;
+    private final String mAccountName;
+    private final String mRemotePath;
+    private final String mLocalPath;
+    private final String mMimeType;
+    private final int mLocalBehaviour;
+    private final boolean mForceOverwrite;
+    private final boolean mInstant;
+    private final int mPriority;
+    private final int mAttempts;
+
+
+    /**
+     * @return  Delay before the next attempt of a transfer that failed the given number of
+     *          times, in milliseconds.
+     */
+    public static long getRetryDelay(int attempts) {
+        if (attempts <= 0) {
+            return 0;
+        }
+        long delay = RETRY_DELAY << Math.min(attempts - 1, 16);
+        return Math.min(delay, MAX_RETRY_DELAY);
+    }
+
+
+    /**
+     * @param result    Result of a failed transfer.
+     * @return          'true' if the transfer could succeed if it's tried again later without
+     *                  changes.
+     */
+    public static boolean isRetriable(RemoteOperationResult result) {
+        if (result == null || result.isSuccess()) {
+            return false;
+        }
+        ResultCode code = result.getCode();
+        return (code == ResultCode.NO_NETWORK_CONNECTION ||
+                code == ResultCode.TIMEOUT ||
+                code == ResultCode.HOST_NOT_AVAILABLE ||
+                code == ResultCode.WRONG_CONNECTION ||
+                result.getHttpCode() >= 500);
+    }
+
+
+    /**
+     * Creates a download to store in the queue.
+     */
+    public static QueuedTransfer newDownload(String accountName, String remotePath,
+                                             int priority) {
+        return new QueuedTransfer(-1, TYPE_DOWNLOAD, accountName, remotePath, null, null, 0,
+                false, false, priority, 0);
+    }
+
+
+    /**
+     * Creates an upload to store in the queue.
+     */
+    public static QueuedTransfer newUpload(String accountName, String remotePath,
+                                           String localPath, String mimeType,
+                                           int localBehaviour, boolean forceOverwrite,
+                                           boolean instant, int priority) {
+        return new QueuedTransfer(-1, TYPE_UPLOAD, accountName, remotePath, localPath,
+                mimeType, localBehaviour, forceOverwrite, instant, priority, 0);
+    }
+
+
+    QueuedTransfer(long id, int type, String accountName, String remotePath, String localPath,
+                   String mimeType, int localBehaviour, boolean forceOverwrite,
+                   boolean instant, int priority, int attempts) {
+        mId = id;
+        mType = type;
+        mAccountName = accountName;
+        mRemotePath = remotePath;
+        mLocalPath = localPath;
+        mMimeType = mimeType;
+        mLocalBehaviour = localBehaviour;
+        mForceOverwrite = forceOverwrite;
+        mInstant = instant;
+        mPriority = priority;
+        mAttempts = attempts;
+    }
+
+
+    /**
+     * @return  Identifier of the transfer in the queue, or -1 if it was not stored yet.
+     */
+    public long getId() {
+        return mId;
+    }
+
+    void setId(long id) {
+        mId = id;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public String getAccountName() {
+        return mAccountName;
+    }
+
+    public String getRemotePath() {
+        return mRemotePath;
+    }
+
+    public String getLocalPath() {
+        return mLocalPath;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    public int getLocalBehaviour() {
+        return mLocalBehaviour;
+    }
+
+    public boolean isForceOverwrite() {
+        return mForceOverwrite;
+    }
+
+    public boolean isInstant() {
+        return mInstant;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return  Number of failed attempts to perform the transfer.
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+}
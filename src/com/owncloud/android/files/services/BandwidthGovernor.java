@@ -0,0 +1,259 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import android.content.res.Resources;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.R;
+
+/**
+ * Shares the bandwidth of the app between the different classes of traffic.
+ *
+ * Every byte sent or received by a governed transfer is taken from a token bucket of its
+ * class and from a global token bucket, blocking the transfer while the budget per second of
+ * any of them is spent. A budget of 0 means no limit.
+ *
+ * Interactive traffic, the one the user is waiting for, has priority inside the buckets: bulk
+ * transfers wait while interactive traffic is waiting for tokens of the same bucket, and while
+ * any interactive traffic is in progress they leave {@link #INTERACTIVE_RESERVE} tokens in the
+ * global bucket for it. Without budgets nothing is ever waited for.
+ */
+public class BandwidthGovernor {
+
+    /**
+     * Classes of traffic, with separate budgets.
+     */
+    public enum TrafficClass {
+        /** Traffic the user is waiting for: thumbnails, refresh of the visible folder */
+        INTERACTIVE,
+        /** Contents of files uploaded */
+        UPLOAD,
+        /** Contents of files downloaded, and thumbnails prefetched before they are shown */
+        DOWNLOAD
+    }
+
+    /** Bytes taken from the buckets at once */
+    private static final int QUANTUM = 16 * 1024;
+
+    /** Tokens of the global bucket that bulk transfers leave to interactive traffic in progress */
+    public static final int INTERACTIVE_RESERVE = 2 * QUANTUM;
+
+    private static BandwidthGovernor sInstance = null;
+
+    private final TokenBucket mGlobalBucket;
+    private final Map<TrafficClass, TokenBucket> mClassBuckets =
+            new EnumMap<TrafficClass, TokenBucket>(TrafficClass.class);
+
+    private final Object mInteractiveLock = new Object();
+    private int mInteractiveCount = 0;
+
+
+    /**
+     * @return  Governor shared by all the transfers of the app, with the budgets configured
+     *          in the resources of the app.
+     */
+    public static synchronized BandwidthGovernor getInstance() {
+        if (sInstance == null) {
+            Resources res = MainApp.getAppContext().getResources();
+            sInstance = new BandwidthGovernor(
+                    res.getInteger(R.integer.bandwidth_limit_total) * 1024L,
+                    res.getInteger(R.integer.bandwidth_limit_interactive) * 1024L,
+                    res.getInteger(R.integer.bandwidth_limit_uploads) * 1024L,
+                    res.getInteger(R.integer.bandwidth_limit_downloads) * 1024L
+            );
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * Budgets are given in bytes per second; 0 means no limit.
+     */
+    public BandwidthGovernor(long totalBudget, long interactiveBudget, long uploadsBudget,
+                             long downloadsBudget) {
+        mGlobalBucket = new TokenBucket(totalBudget);
+        mClassBuckets.put(TrafficClass.INTERACTIVE, new TokenBucket(interactiveBudget));
+        mClassBuckets.put(TrafficClass.UPLOAD, new TokenBucket(uploadsBudget));
+        mClassBuckets.put(TrafficClass.DOWNLOAD, new TokenBucket(downloadsBudget));
+    }
+
+
+    /**
+     * Changes the budget of all the traffic.
+     *
+     * @param bytesPerSecond    New budget, or 0 for no limit.
+     */
+    public void setTotalBudget(long bytesPerSecond) {
+        mGlobalBucket.setRate(bytesPerSecond);
+    }
+
+
+    /**
+     * Changes the budget of a class of traffic.
+     *
+     * @param trafficClass      Class of traffic.
+     * @param bytesPerSecond    New budget, or 0 for no limit.
+     */
+    public void setBudget(TrafficClass trafficClass, long bytesPerSecond) {
+        mClassBuckets.get(trafficClass).setRate(bytesPerSecond);
+    }
+
+
+    /**
+     * Waits until the budgets allow transferring some bytes, and spends them.
+     *
+     * @param trafficClass      Class of the traffic.
+     * @param bytes             Number of bytes to transfer.
+     * @throws InterruptedIOException   If the thread is interrupted while waiting.
+     */
+    public void acquire(TrafficClass trafficClass, int bytes) throws InterruptedIOException {
+        TokenBucket classBucket = mClassBuckets.get(trafficClass);
+        boolean interactive = (trafficClass == TrafficClass.INTERACTIVE);
+        try {
+            while (bytes > 0) {
+                int quantum = Math.min(bytes, QUANTUM);
+                classBucket.take(quantum, interactive, 0);
+                mGlobalBucket.take(quantum, interactive,
+                        (!interactive && isInteractiveInProgress()) ? INTERACTIVE_RESERVE : 0);
+                bytes -= quantum;
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+
+    /**
+     * Signals the start of interactive traffic; bulk transfers leave it part of the global
+     * budget, if any, until {@link #endInteractive()} is called.
+     */
+    public void beginInteractive() {
+        synchronized (mInteractiveLock) {
+            mInteractiveCount++;
+        }
+    }
+
+
+    /**
+     * Signals the end of interactive traffic started with {@link #beginInteractive()}.
+     */
+    public void endInteractive() {
+        synchronized (mInteractiveLock) {
+            if (mInteractiveCount > 0) {
+                mInteractiveCount--;
+            }
+        }
+    }
+
+
+    private boolean isInteractiveInProgress() {
+        synchronized (mInteractiveLock) {
+            return mInteractiveCount > 0;
+        }
+    }
+
+
+    /**
+     * Token bucket refilled at a constant rate, able to hold the tokens of
+     * {@link #BURST_MILLIS} milliseconds.
+     */
+    private static class TokenBucket {
+
+        private static final long BURST_MILLIS = 500;
+        private static final long MIN_CAPACITY = 4 * QUANTUM;
+
+        private long mRate;
+        private double mTokens;
+        private long mLastRefill;
+        private int mPriorityWaiting = 0;
+
+        TokenBucket(long rate) {
+            mRate = Math.max(0, rate);
+            mTokens = capacity();
+            mLastRefill = System.nanoTime();
+        }
+
+        synchronized void setRate(long rate) {
+            refill();
+            mRate = Math.max(0, rate);
+            mTokens = Math.min(mTokens, capacity());
+            notifyAll();    // waiting threads recompute their delay
+        }
+
+        /**
+         * Takes tokens, waiting for them if needed. Never more than the capacity of the bucket
+         * minus the reserve must be requested at once.
+         *
+         * @param tokens    Tokens to take.
+         * @param priority  'true' to be served before the takers without priority.
+         * @param reserve   Tokens that must be left in the bucket; ignored with priority.
+         */
+        synchronized void take(int tokens, boolean priority, int reserve)
+                throws InterruptedException {
+            if (mRate <= 0) {
+                return;
+            }
+            refill();
+            if (priority) {
+                mPriorityWaiting++;
+                try {
+                    while (mRate > 0 && mTokens < tokens) {
+                        waitFor(tokens);
+                    }
+                } finally {
+                    mPriorityWaiting--;
+                    notifyAll();    // takers without priority may go on
+                }
+            } else {
+                while (mRate > 0 && (mPriorityWaiting > 0 || mTokens < tokens + reserve)) {
+                    waitFor(tokens + reserve);
+                }
+            }
+            if (mRate > 0) {
+                mTokens -= tokens;
+            }
+        }
+
+        private void waitFor(double tokens) throws InterruptedException {
+            long delay = (long) Math.ceil(Math.max(0, tokens - mTokens) * 1000 / mRate);
+            wait(Math.max(1, delay));
+            refill();
+        }
+
+        private long capacity() {
+            return Math.max(MIN_CAPACITY, mRate * BURST_MILLIS / 1000);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (mRate > 0) {
+                mTokens = Math.min(capacity(),
+                        mTokens + (now - mLastRefill) * mRate / 1000000000.0);
+            }
+            mLastRefill = now;
+        }
+    }
+
+}
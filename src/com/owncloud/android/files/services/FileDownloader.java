@@ -22,16 +22,22 @@ package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
+import com.owncloud.android.datamodel.ContentHashIndex;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.db.QueuedTransfer;
 
 import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
 import com.owncloud.android.lib.common.OwnCloudAccount;
@@ -59,19 +65,19 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
-import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.util.Pair;
 
 public class FileDownloader extends Service
-        implements OnDatatransferProgressListener, OnAccountsUpdateListener {
+        implements OnAccountsUpdateListener, TransferDispatcher.TransferPerformer {
 
     public static final String EXTRA_ACCOUNT = "ACCOUNT";
     public static final String EXTRA_FILE = "FILE";
+    public static final String EXTRA_FOLDER_ID = "FOLDER_ID";
+
+    /** Action to run the downloads stored in the persistent queue that are ready to run */
+    private static final String ACTION_RESUME_DOWNLOADS = "RESUME_DOWNLOADS";
 
     private static final String DOWNLOAD_ADDED_MESSAGE = "DOWNLOAD_ADDED";
     private static final String DOWNLOAD_FINISH_MESSAGE = "DOWNLOAD_FINISH";
@@ -83,20 +89,32 @@ public class FileDownloader extends Service
 
     private static final String TAG = "FileDownloader";
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    private TransferDispatcher mDispatcher;
     private IBinder mBinder;
-    private OwnCloudClient mDownloadClient = null;
-    private Account mCurrentAccount = null;
-    private FileDataStorageManager mStorageManager;
+
+    /** Start id of the last command that added new downloads */
+    private volatile int mLastStartId;
 
     private IndexedForest<DownloadFileOperation> mPendingDownloads = new IndexedForest<DownloadFileOperation>();
 
-    private DownloadFileOperation mCurrentDownload = null;
+    /** Copy of the queue of downloads surviving the end of the process */
+    private PersistentTransferQueue mPersistentQueue;
+    private boolean mPersistentQueueRecovered = false;
+    private Handler mHandler;
+
+    /** Downloads being performed by the workers, indexed by download key */
+    private Map<String, DownloadFileOperation> mCurrentDownloads =
+            new ConcurrentHashMap<String, DownloadFileOperation>();
 
     private NotificationManager mNotificationManager;
+
+    /** Aggregated progress of the current downloads, shown in a single notification */
+    private final Map<String, long[]> mProgressByDownload = new HashMap<String, long[]>();
     private NotificationCompat.Builder mNotificationBuilder;
     private int mLastPercent;
+    private final ProgressThrottle mNotificationThrottle = new ProgressThrottle();
+    private String mProgressContentFormat;
+    private String mProgressMultipleContentFormat;
 
 
     public static String getDownloadAddedMessage() {
@@ -115,16 +133,29 @@ public class FileDownloader extends Service
         super.onCreate();
         Log_OC.d(TAG, "Creating service");
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileDownloaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        mProgressContentFormat = getString(R.string.downloader_download_in_progress_content);
+        mProgressMultipleContentFormat =
+                getString(R.string.downloader_download_in_progress_multiple_content);
+        mDispatcher = new TransferDispatcher(
+                "FileDownloaderThread",
+                getResources().getInteger(R.integer.downloader_max_workers),
+                getResources().getInteger(R.integer.downloader_max_workers_per_account),
+                this
+        );
         mBinder = new FileDownloaderBinder();
+        mHandler = new Handler();
+        mPersistentQueue = new PersistentTransferQueue(this, QueuedTransfer.TYPE_DOWNLOAD,
+                FileDownloader.class, ACTION_RESUME_DOWNLOADS);
 
         // add AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
         am.addOnAccountsUpdatedListener(this, null, false);
+
+        // run the downloads left by a former instance of the service; started, so that they
+        // go on although the component creating the service is only binding it
+        Intent resume = new Intent(this, FileDownloader.class);
+        resume.setAction(ACTION_RESUME_DOWNLOADS);
+        startService(resume);
     }
 
 
@@ -134,11 +165,12 @@ public class FileDownloader extends Service
     @Override
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service");
+        mDispatcher.shutdown();
+        mPersistentQueue.close();   // interrupted downloads are kept for the next start
+        for (DownloadFileOperation download : mCurrentDownloads.values()) {
+            download.interrupt();
+        }
         mBinder = null;
-        mServiceHandler = null;
-        mServiceLooper.quit();
-        mServiceLooper = null;
-        mNotificationManager = null;
 
         // remove AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -158,43 +190,250 @@ public class FileDownloader extends Service
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log_OC.d(TAG, "Starting command with id " + startId);
 
-        if (!intent.hasExtra(EXTRA_ACCOUNT) ||
-                !intent.hasExtra(EXTRA_FILE)
+        if (ACTION_RESUME_DOWNLOADS.equals(intent.getAction())) {
+            mLastStartId = startId;
+            resumePersistentQueue();
+
+        } else if (!intent.hasExtra(EXTRA_ACCOUNT) ||
+                !(intent.hasExtra(EXTRA_FILE) || intent.hasExtra(EXTRA_FOLDER_ID))
                 ) {
             Log_OC.e(TAG, "Not enough information provided in intent");
             return START_NOT_STICKY;
         } else {
             final Account account = intent.getParcelableExtra(EXTRA_ACCOUNT);
-            final OCFile file = intent.getParcelableExtra(EXTRA_FILE);
-            AbstractList<String> requestedDownloads = new Vector<String>();
-            try {
-                DownloadFileOperation newDownload = new DownloadFileOperation(account, file);
-                newDownload.addDatatransferProgressListener(this);
-                newDownload.addDatatransferProgressListener((FileDownloaderBinder) mBinder);
-                Pair<String, String> putResult = mPendingDownloads.putIfAbsent(
-                        account, file.getRemotePath(), newDownload
-                );
-                if (putResult != null) {
-                    String downloadKey = putResult.first;
-                    requestedDownloads.add(downloadKey);
-                    sendBroadcastNewDownload(newDownload, putResult.second);
-                }   // else, file already in the queue of downloads; don't repeat the request
-
-            } catch (IllegalArgumentException e) {
-                Log_OC.e(TAG, "Not enough information provided in intent: " + e.getMessage());
-                return START_NOT_STICKY;
+            if (intent.hasExtra(EXTRA_FILE)) {
+                AbstractList<String> requestedDownloads = new Vector<String>();
+                try {
+                    final OCFile file = intent.getParcelableExtra(EXTRA_FILE);
+                    enqueueDownload(account, file, requestedDownloads);
+
+                } catch (IllegalArgumentException e) {
+                    Log_OC.e(TAG, "Not enough information provided in intent: " +
+                            e.getMessage());
+                    return START_NOT_STICKY;
+                }
+                dispatchDownloads(account, requestedDownloads, true, startId);
+
+            } else {
+                final long folderId = intent.getLongExtra(EXTRA_FOLDER_ID, -1);
+                enqueueFolderContents(account, folderId, startId);
             }
+        }
+
+        return START_NOT_STICKY;
+    }
+
+
+    /**
+     * Stores and runs new downloads added to the queue of pending downloads.
+     *
+     * @param account       ownCloud account of the downloads.
+     * @param downloadKeys  Keys of the new downloads in the queue of pending downloads.
+     * @param userRequested 'true' if the user is waiting for the downloads.
+     * @param startId       Identifier of the command requesting the downloads.
+     */
+    private void dispatchDownloads(Account account, List<String> downloadKeys,
+                                   boolean userRequested, int startId) {
+        if (downloadKeys.size() > 0) {
+            storeDownloads(account, downloadKeys, userRequested ?
+                    QueuedTransfer.PRIORITY_USER : QueuedTransfer.PRIORITY_BACKGROUND);
+            Iterator<String> it = downloadKeys.iterator();
+            while (it.hasNext()) {
+                mDispatcher.dispatch(account.name, it.next(), userRequested);
+            }
+            mLastStartId = startId;
+        }
+    }
+
+
+    /**
+     * Stores new downloads in the persistent queue, so that they are not lost if the process
+     * is killed before they are done.
+     *
+     * @param account       ownCloud account of the downloads.
+     * @param downloadKeys  Keys of the new downloads in the queue of pending downloads.
+     * @param priority      Priority of the downloads.
+     */
+    private void storeDownloads(Account account, List<String> downloadKeys, int priority) {
+        List<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>(downloadKeys.size());
+        List<String> storedKeys = new ArrayList<String>(downloadKeys.size());
+        for (String downloadKey : downloadKeys) {
+            DownloadFileOperation download = mPendingDownloads.get(downloadKey);
+            if (download != null) {
+                transfers.add(QueuedTransfer.newDownload(account.name, download.getRemotePath(),
+                        priority));
+                storedKeys.add(downloadKey);
+            }
+        }
+        mPersistentQueue.add(transfers, storedKeys);
+    }
+
 
+    /**
+     * Adds to the queue of downloads the downloads in the persistent queue that are ready to
+     * run. The first time, those interrupted by the end of the former process are included.
+     *
+     * The persistent queue is read in a separate thread; the downloads are added to the queue
+     * from the main thread, as the rest.
+     */
+    private void resumePersistentQueue() {
+        final boolean afterRestart = !mPersistentQueueRecovered;
+        mPersistentQueueRecovered = true;
+        new Thread("FileDownloaderQueueRecovery") {
+            @Override
+            public void run() {
+                final List<QueuedTransfer> transfers = mPersistentQueue.recover(afterRestart);
+                final List<Account> accounts = new ArrayList<Account>(transfers.size());
+                final List<OCFile> files = new ArrayList<OCFile>(transfers.size());
+                Map<String, FileDataStorageManager> storageManagers =
+                        new HashMap<String, FileDataStorageManager>();
+                Iterator<QueuedTransfer> it = transfers.iterator();
+                while (it.hasNext()) {
+                    QueuedTransfer transfer = it.next();
+                    Account account = new Account(transfer.getAccountName(),
+                            MainApp.getAccountType());
+                    FileDataStorageManager storageManager =
+                            storageManagers.get(transfer.getAccountName());
+                    if (storageManager == null &&
+                            AccountUtils.exists(account, getApplicationContext())) {
+                        storageManager = new FileDataStorageManager(account,
+                                getContentResolver());
+                        storageManagers.put(transfer.getAccountName(), storageManager);
+                    }
+                    OCFile file = (storageManager != null) ?
+                            storageManager.getFileByPath(transfer.getRemotePath()) : null;
+                    if (file == null || file.isFolder()) {
+                        Log_OC.d(TAG, "Discarding stored download of " +
+                                transfer.getRemotePath());
+                        mPersistentQueue.discard(transfer);
+                        it.remove();
+                    } else {
+                        accounts.add(account);
+                        files.add(file);
+                    }
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        enqueueStoredDownloads(transfers, accounts, files);
+                    }
+                });
+            }
+        }.start();
+    }
+
+
+    private void enqueueStoredDownloads(List<QueuedTransfer> transfers, List<Account> accounts,
+                                        List<OCFile> files) {
+        if (mBinder == null) {
+            return;     // service destroyed meanwhile; will be done in the next start
+        }
+        AbstractList<String> requestedDownloads = new Vector<String>(1);
+        int resumed = 0;
+        for (int i = 0; i < transfers.size(); i++) {
+            QueuedTransfer transfer = transfers.get(i);
+            Account account = accounts.get(i);
+            requestedDownloads.clear();
+            enqueueDownload(account, files.get(i), requestedDownloads);
             if (requestedDownloads.size() > 0) {
-                Message msg = mServiceHandler.obtainMessage();
-                msg.arg1 = startId;
-                msg.obj = requestedDownloads;
-                mServiceHandler.sendMessage(msg);
+                String downloadKey = requestedDownloads.get(0);
+                mPersistentQueue.bind(downloadKey, transfer);
+                mDispatcher.dispatch(account.name, downloadKey,
+                        transfer.getPriority() >= QueuedTransfer.PRIORITY_USER);
+                resumed++;
+
+            } else {
+                // if requested again while stored, the new request has its own copy
+                mPersistentQueue.discardUnlessBound(
+                        mPendingDownloads.buildKey(account, files.get(i).getRemotePath()),
+                        transfer);
             }
-            //}
         }
+        Log_OC.d(TAG, "Resumed " + resumed + " stored downloads");
+        if (mDispatcher.isIdle()) {
+            stopSelf(mLastStartId);
+        }
+    }
 
-        return START_NOT_STICKY;
+
+    /**
+     * Adds a single file to the queue of downloads.
+     *
+     * Can be called from any thread; the queue of pending downloads is safe for concurrent use.
+     *
+     * @param account               ownCloud account where the remote file is stored.
+     * @param file                  File to download.
+     * @param requestedDownloads    List where the key of the new download is added, if it was
+     *                              not in the queue yet.
+     */
+    private void enqueueDownload(Account account, OCFile file,
+                                 AbstractList<String> requestedDownloads) {
+        DownloadFileOperation newDownload = new DownloadFileOperation(account, file);
+        Pair<String, String> putResult = mPendingDownloads.putIfAbsent(
+                account, file.getRemotePath(), newDownload, file.getFileLength()
+        );
+        if (putResult != null) {
+            String downloadKey = putResult.first;
+            newDownload.addDatatransferProgressListener(
+                    new DownloadProgressListener(downloadKey, newDownload)
+            );
+            requestedDownloads.add(downloadKey);
+            sendBroadcastNewDownload(newDownload, putResult.second);
+        }   // else, file already in the queue of downloads; don't repeat the request
+    }
+
+
+    /**
+     * Adds to the queue of downloads all the files in a folder that are not downloaded yet.
+     *
+     * The contents of the folder are read from the local database in a single query, so that
+     * callers synchronizing big folders don't need to send an intent per file.
+     *
+     * The query and the addition to the queue are done in a separate thread, as they take long
+     * for big folders; the new downloads are run from the main thread, as the rest.
+     *
+     * Subfolders are not visited.
+     *
+     * @param account               ownCloud account where the folder is stored.
+     * @param folderId              Identifier of the folder in the local database.
+     * @param startId               Identifier of the command requesting the downloads.
+     */
+    private void enqueueFolderContents(final Account account, final long folderId,
+                                       final int startId) {
+        new Thread("FileDownloaderFolderContents") {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                FileDataStorageManager storageManager =
+                        new FileDataStorageManager(account, getContentResolver());
+                OCFile folder = storageManager.getFileById(folderId);
+                if (folder == null || !folder.isFolder()) {
+                    Log_OC.e(TAG, "Not enough information provided in intent: Folder " +
+                            folderId + " not found");
+                    return;
+                }
+                final AbstractList<String> requestedDownloads = new Vector<String>();
+                Vector<OCFile> children = storageManager.getFolderContent(folder);
+                for (OCFile child : children) {
+                    if (!child.isFolder() && !child.isDown()) {
+                        enqueueDownload(account, child, requestedDownloads);
+                    }
+                }
+                Log_OC.d(TAG, "Enqueued " + requestedDownloads.size() + " downloads from " +
+                        folder.getRemotePath() + " in " +
+                        (System.currentTimeMillis() - startTime) + " ms");
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mBinder == null) {
+                            return;     // service destroyed meanwhile
+                        }
+                        dispatchDownloads(account, requestedDownloads, false, startId);
+                    }
+                });
+            }
+        }.start();
     }
 
 
@@ -221,10 +460,11 @@ public class FileDownloader extends Service
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-         //review the current download and cancel it if its account doesn't exist
-        if (mCurrentDownload != null &&
-                !AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-            mCurrentDownload.cancel();
+        //review the current downloads and cancel them if their account doesn't exist
+        for (DownloadFileOperation download : mCurrentDownloads.values()) {
+            if (!AccountUtils.exists(download.getAccount(), getApplicationContext())) {
+                download.cancel();
+            }
         }
         // The rest of downloads are cancelled when they try to start
     }
@@ -235,7 +475,7 @@ public class FileDownloader extends Service
      * <p/>
      * It provides by itself the available operations.
      */
-    public class FileDownloaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileDownloaderBinder extends Binder {
 
         /**
          * Map of listeners that will be reported about progress of downloads from a
@@ -243,7 +483,7 @@ public class FileDownloader extends Service
          * instance.
          */
         private Map<Long, OnDatatransferProgressListener> mBoundListeners =
-                new HashMap<Long, OnDatatransferProgressListener>();
+                new ConcurrentHashMap<Long, OnDatatransferProgressListener>();
 
 
         /**
@@ -253,15 +493,17 @@ public class FileDownloader extends Service
          * @param file    A file in the queue of pending downloads
          */
         public void cancel(Account account, OCFile file) {
+            mPersistentQueue.remove(account.name, file.getRemotePath());
             Pair<DownloadFileOperation, String> removeResult = mPendingDownloads.remove(account, file.getRemotePath());
             DownloadFileOperation download = removeResult.first;
             if (download != null) {
                 download.cancel();
             } else {
-                if (mCurrentDownload != null && mCurrentAccount != null &&
-                        mCurrentDownload.getRemotePath().startsWith(file.getRemotePath()) &&
-                        account.name.equals(mCurrentAccount.name)) {
-                    mCurrentDownload.cancel();
+                for (DownloadFileOperation current : mCurrentDownloads.values()) {
+                    if (current.getRemotePath().startsWith(file.getRemotePath()) &&
+                            account.name.equals(current.getAccount().name)) {
+                        current.cancel();
+                    }
                 }
             }
         }
@@ -274,10 +516,10 @@ public class FileDownloader extends Service
         public void cancel(Account account) {
             Log_OC.d(TAG, "Account= " + account.name);
 
-            if (mCurrentDownload != null) {
-                Log_OC.d(TAG, "Current Download Account= " + mCurrentDownload.getAccount().name);
-                if (mCurrentDownload.getAccount().name.equals(account.name)) {
-                    mCurrentDownload.cancel();
+            for (DownloadFileOperation current : mCurrentDownloads.values()) {
+                if (current.getAccount().name.equals(account.name)) {
+                    Log_OC.d(TAG, "Cancelling current download of " + current.getRemotePath());
+                    current.cancel();
                 }
             }
             // Cancel pending downloads
@@ -305,6 +547,34 @@ public class FileDownloader extends Service
         }
 
 
+        /**
+         * Returns the number of pending or current downloads of a file, or of the files inside
+         * a folder at any depth.
+         *
+         * Doesn't visit the contents of the folder.
+         *
+         * @param account   ownCloud account where the remote file or folder is stored.
+         * @param file      A file or folder that could contain files being downloaded.
+         */
+        public int getPendingDownloads(Account account, OCFile file) {
+            if (account == null || file == null) return 0;
+            return mPendingDownloads.getPendingCount(account, file.getRemotePath());
+        }
+
+
+        /**
+         * Returns the bytes of the pending or current downloads of a file, or of the files
+         * inside a folder at any depth.
+         *
+         * @param account   ownCloud account where the remote file or folder is stored.
+         * @param file      A file or folder that could contain files being downloaded.
+         */
+        public long getPendingDownloadBytes(Account account, OCFile file) {
+            if (account == null || file == null) return 0;
+            return mPendingDownloads.getPendingBytes(account, file.getRemotePath());
+        }
+
+
         /**
          * Adds a listener interested in the progress of the download for a concrete file.
          *
@@ -337,11 +607,16 @@ public class FileDownloader extends Service
             }
         }
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                       long totalToTransfer, String fileName) {
+        /**
+         * Forwards the progress of a download to the listener bound for its file, if any.
+         *
+         * @param download      Download in progress.
+         */
+        private void onTransferProgress(DownloadFileOperation download, long progressRate,
+                                        long totalTransferredSoFar, long totalToTransfer,
+                                        String fileName) {
             OnDatatransferProgressListener boundListener =
-                    mBoundListeners.get(mCurrentDownload.getFile().getFileId());
+                    mBoundListeners.get(download.getFile().getFileId());
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar,
                         totalToTransfer, fileName);
@@ -352,78 +627,88 @@ public class FileDownloader extends Service
 
 
     /**
-     * Download worker. Performs the pending downloads in the order they were requested.
-
-     * Created with the Looper of a new thread, started in {@link FileUploader#onCreate()}.
+     * Reports the progress of a single download to the status notification and to the
+     * listener bound for its file, at most twice per second.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will warn about a
-        // possible memory leak
-        FileDownloader mService;
-
-        public ServiceHandler(Looper looper, FileDownloader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+    private class DownloadProgressListener implements OnDatatransferProgressListener {
+
+        private final String mDownloadKey;
+        private final DownloadFileOperation mDownload;
+        private final ProgressThrottle mThrottle = new ProgressThrottle();
+
+        public DownloadProgressListener(String downloadKey, DownloadFileOperation download) {
+            mDownloadKey = downloadKey;
+            mDownload = download;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedDownloads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedDownloads.iterator();
-                while (it.hasNext()) {
-                    String next = it.next();
-                    mService.downloadFile(next);
-                }
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                       long totalToTransfer, String fileName) {
+            if (!mThrottle.onProgress(progressRate, totalTransferredSoFar, totalToTransfer)) {
+                return;
+            }
+            updateDownloadProgress(mDownloadKey, totalTransferredSoFar, totalToTransfer);
+            FileDownloaderBinder binder = (FileDownloaderBinder) mBinder;
+            if (binder != null) {
+                binder.onTransferProgress(mDownload, mThrottle.takePendingBytes(),
+                        totalTransferredSoFar, totalToTransfer, fileName);
             }
-            Log_OC.d(TAG, "Stopping after command with id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
         }
     }
 
 
+    /**
+     * Called by the workers in {@link #mDispatcher} when all the pending downloads are done.
+     */
+    @Override
+    public void onTransfersFinished() {
+        Log_OC.d(TAG, "Stopping after command with id " + mLastStartId);
+        stopSelf(mLastStartId);
+    }
+
+
     /**
      * Core download method: requests a file to download and stores it.
      *
+     * Called from the worker threads in {@link #mDispatcher}, so several downloads can be in
+     * progress at the same time.
+     *
      * @param downloadKey Key to access the download to perform, contained in mPendingDownloads
      */
-    private void downloadFile(String downloadKey) {
+    @Override
+    public void performTransfer(String downloadKey) {
 
-        mCurrentDownload = mPendingDownloads.get(downloadKey);
+        DownloadFileOperation download = mPendingDownloads.get(downloadKey);
 
-        if (mCurrentDownload != null) {
+        if (download != null) {
             // Detect if the account exists
-            if (AccountUtils.exists(mCurrentDownload.getAccount(), getApplicationContext())) {
-                Log_OC.d(TAG, "Account " + mCurrentDownload.getAccount().name + " exists");
+            Account account = download.getAccount();
+            if (AccountUtils.exists(account, getApplicationContext())) {
+                Log_OC.d(TAG, "Account " + account.name + " exists");
 
-                notifyDownloadStart(mCurrentDownload);
+                mCurrentDownloads.put(downloadKey, download);
+                mPersistentQueue.onTransferStarted(downloadKey);
+                notifyDownloadStart(downloadKey, download);
 
                 RemoteOperationResult downloadResult = null;
                 try {
                     /// prepare client object to send the request to the ownCloud server
-                    if (mCurrentAccount == null ||
-                            !mCurrentAccount.equals(mCurrentDownload.getAccount())) {
-                        mCurrentAccount = mCurrentDownload.getAccount();
-                        mStorageManager = new FileDataStorageManager(
-                                mCurrentAccount,
-                                getContentResolver()
-                        );
-                    }   // else, reuse storage manager from previous operation
+                    FileDataStorageManager storageManager = new FileDataStorageManager(
+                            account,
+                            getContentResolver()
+                    );
 
                     // always get client from client manager, to get fresh credentials in case
                     // of update
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mCurrentAccount, this);
-                    mDownloadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
-                            getClientFor(ocAccount, this);
+                    OwnCloudAccount ocAccount = new OwnCloudAccount(account, this);
+                    OwnCloudClient downloadClient = OwnCloudClientManagerFactory.
+                            getDefaultSingleton().getClientFor(ocAccount, this);
 
 
                     /// perform the download
-                    downloadResult = mCurrentDownload.execute(mDownloadClient);
+                    downloadResult = download.execute(downloadClient);
                     if (downloadResult.isSuccess()) {
-                        saveDownloadedFile();
+                        saveDownloadedFile(download, storageManager);
                     }
 
                 } catch (Exception e) {
@@ -431,21 +716,21 @@ public class FileDownloader extends Service
                     downloadResult = new RemoteOperationResult(e);
 
                 } finally {
+                    mCurrentDownloads.remove(downloadKey);
                     Pair<DownloadFileOperation, String> removeResult =
-                            mPendingDownloads.removePayload(mCurrentAccount,
-                                    mCurrentDownload.getRemotePath());
+                            mPendingDownloads.removePayload(account, download.getRemotePath());
+                    mPersistentQueue.onTransferFinished(downloadKey, downloadResult);
 
                     /// notify result
-                    notifyDownloadResult(mCurrentDownload, downloadResult);
+                    notifyDownloadResult(downloadKey, download, downloadResult);
 
-                    sendBroadcastDownloadFinished(mCurrentDownload, downloadResult, removeResult.second);
+                    sendBroadcastDownloadFinished(download, downloadResult, removeResult.second);
                 }
 
             } else {
                 // Cancel the transfer
-                Log_OC.d(TAG, "Account " + mCurrentDownload.getAccount().toString() +
-                        " doesn't exist");
-                cancelDownloadsForAccount(mCurrentDownload.getAccount());
+                Log_OC.d(TAG, "Account " + account.toString() + " doesn't exist");
+                cancelDownloadsForAccount(account);
 
             }
         }
@@ -457,75 +742,126 @@ public class FileDownloader extends Service
      *
      * TODO move to DownloadFileOperation
      */
-    private void saveDownloadedFile() {
-        OCFile file = mStorageManager.getFileById(mCurrentDownload.getFile().getFileId());
+    private void saveDownloadedFile(DownloadFileOperation download,
+                                    FileDataStorageManager storageManager) {
+        OCFile file = storageManager.getFileById(download.getFile().getFileId());
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForProperties(syncDate);
         file.setLastSyncDateForData(syncDate);
         file.setNeedsUpdateThumbnail(true);
-        file.setModificationTimestamp(mCurrentDownload.getModificationTimestamp());
-        file.setModificationTimestampAtLastSyncForData(mCurrentDownload.getModificationTimestamp());
-        file.setEtag(mCurrentDownload.getEtag());
-        file.setMimetype(mCurrentDownload.getMimeType());
-        file.setStoragePath(mCurrentDownload.getSavePath());
-        file.setFileLength((new File(mCurrentDownload.getSavePath()).length()));
-        file.setRemoteId(mCurrentDownload.getFile().getRemoteId());
-        mStorageManager.saveFile(file);
-        mStorageManager.triggerMediaScan(file.getStoragePath());
-        mStorageManager.saveConflict(file, null);
+        file.setImageOrientation(OCFile.IMAGE_ORIENTATION_UNKNOWN);
+        file.setModificationTimestamp(download.getModificationTimestamp());
+        file.setModificationTimestampAtLastSyncForData(download.getModificationTimestamp());
+        file.setEtag(download.getEtag());
+        file.setMimetype(download.getMimeType());
+        file.setStoragePath(download.getSavePath());
+        file.setFileLength((new File(download.getSavePath()).length()));
+        file.setRemoteId(download.getFile().getRemoteId());
+        storageManager.saveFile(file);
+        storageManager.triggerMediaScan(file.getStoragePath());
+        storageManager.saveConflict(file, null);
+
+        // known contents of the remote file, to recognize later uploads of the same contents
+        new ContentHashIndex(this).put(download.getAccount().name, file.getRemotePath(),
+                download.getContentHash(), file.getFileLength(), file.getEtag());
     }
 
     /**
-     * Creates a status notification to show the download progress
+     * Creates a status notification to show the download progress, or adds the download
+     * to the one already shown for other downloads in progress.
      *
-     * @param download Download operation starting.
+     * @param downloadKey   Key of the download starting.
+     * @param download      Download operation starting.
      */
-    private void notifyDownloadStart(DownloadFileOperation download) {
-        /// create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder =
-                NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
-        mNotificationBuilder
-                .setSmallIcon(R.drawable.notification_icon)
-                .setTicker(getString(R.string.downloader_download_in_progress_ticker))
-                .setContentTitle(getString(R.string.downloader_download_in_progress_ticker))
-                .setOngoing(true)
-                .setProgress(100, 0, download.getSize() < 0)
-                .setContentText(
-                        String.format(getString(R.string.downloader_download_in_progress_content), 0,
-                                new File(download.getSavePath()).getName())
-                );
+    private void notifyDownloadStart(String downloadKey, DownloadFileOperation download) {
+        synchronized (mProgressByDownload) {
+            mProgressByDownload.put(downloadKey, new long[]{0, download.getSize()});
+            if (mProgressByDownload.size() > 1) {
+                // a notification is already shown; just update it
+                updateProgressNotification(true);
+                return;
+            }
 
-        /// includes a pending intent in the notification showing the details view of the file
-        Intent showDetailsIntent = null;
-        if (PreviewImageFragment.canBePreviewed(download.getFile())) {
-            showDetailsIntent = new Intent(this, PreviewImageActivity.class);
-        } else {
-            showDetailsIntent = new Intent(this, FileDisplayActivity.class);
+            /// create status notification with a progress bar
+            mLastPercent = 0;
+            mNotificationBuilder =
+                    NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+            mNotificationBuilder
+                    .setSmallIcon(R.drawable.notification_icon)
+                    .setTicker(getString(R.string.downloader_download_in_progress_ticker))
+                    .setContentTitle(getString(R.string.downloader_download_in_progress_ticker))
+                    .setOngoing(true)
+                    .setProgress(100, 0, download.getSize() < 0)
+                    .setContentText(
+                            String.format(getString(R.string.downloader_download_in_progress_content), 0,
+                                    new File(download.getSavePath()).getName())
+                    );
+
+            /// includes a pending intent in the notification showing the details view of the file
+            Intent showDetailsIntent = null;
+            if (PreviewImageFragment.canBePreviewed(download.getFile())) {
+                showDetailsIntent = new Intent(this, PreviewImageActivity.class);
+            } else {
+                showDetailsIntent = new Intent(this, FileDisplayActivity.class);
+            }
+            showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, download.getFile());
+            showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, download.getAccount());
+            showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+
+            mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                    this, (int) System.currentTimeMillis(), showDetailsIntent, 0
+            ));
+
+            mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
         }
-        showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, download.getFile());
-        showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, download.getAccount());
-        showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+    }
 
-        mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
-                this, (int) System.currentTimeMillis(), showDetailsIntent, 0
-        ));
 
-        mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
+    /**
+     * Updates the progress of a download in the status notification.
+     */
+    private void updateDownloadProgress(String downloadKey, long totalTransferredSoFar,
+                                        long totalToTransfer) {
+        synchronized (mProgressByDownload) {
+            long[] progress = mProgressByDownload.get(downloadKey);
+            if (progress != null) {
+                progress[0] = totalTransferredSoFar;
+                progress[1] = totalToTransfer;
+                if (mNotificationThrottle.isDue()) {
+                    updateProgressNotification(false);
+                }
+            }
+        }
     }
 
 
     /**
-     * Callback method to update the progress bar in the status notification.
+     * Refreshes the status notification with the aggregated progress of all the downloads in
+     * progress.
+     *
+     * Must be called with the lock of {@link #mProgressByDownload} held.
+     *
+     * @param force     When 'true', the notification is refreshed although the percentage
+     *                  didn't change.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                   long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
-            mNotificationBuilder.setProgress(100, percent, totalToTransfer < 0);
-            String fileName = filePath.substring(filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.downloader_download_in_progress_content), percent, fileName);
+    private void updateProgressNotification(boolean force) {
+        long transferred = 0, total = 0;
+        for (long[] progress : mProgressByDownload.values()) {
+            transferred += progress[0];
+            total += Math.max(progress[1], 0);
+        }
+        int percent = (total > 0) ? (int) (100.0 * ((double) transferred) / ((double) total)) : 0;
+        if (mNotificationBuilder != null && (force || percent != mLastPercent)) {
+            mNotificationBuilder.setProgress(100, percent, total <= 0);
+            String text;
+            if (mProgressByDownload.size() == 1) {
+                String key = mProgressByDownload.keySet().iterator().next();
+                String fileName = key.substring(key.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
+                text = String.format(mProgressContentFormat, percent, fileName);
+            } else {
+                text = String.format(mProgressMultipleContentFormat, percent,
+                        mProgressByDownload.size());
+            }
             mNotificationBuilder.setContentText(text);
             mNotificationManager.notify(R.string.downloader_download_in_progress_ticker, mNotificationBuilder.build());
         }
@@ -536,12 +872,21 @@ public class FileDownloader extends Service
     /**
      * Updates the status notification with the result of a download operation.
      *
-     * @param downloadResult Result of the download operation.
+     * @param downloadKey    Key of the finished download.
      * @param download       Finished download operation
+     * @param downloadResult Result of the download operation.
      */
-    private void notifyDownloadResult(DownloadFileOperation download,
+    private void notifyDownloadResult(String downloadKey, DownloadFileOperation download,
                                       RemoteOperationResult downloadResult) {
-        mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+        synchronized (mProgressByDownload) {
+            mProgressByDownload.remove(downloadKey);
+            if (mProgressByDownload.isEmpty()) {
+                mNotificationManager.cancel(R.string.downloader_download_in_progress_ticker);
+                mNotificationBuilder = null;
+            } else {
+                updateProgressNotification(true);
+            }
+        }
         if (!downloadResult.isCancelled()) {
             int tickerId = (downloadResult.isSuccess()) ? R.string.downloader_download_succeeded_ticker :
                     R.string.downloader_download_failed_ticker;
@@ -553,7 +898,10 @@ public class FileDownloader extends Service
             tickerId = (needsToUpdateCredentials) ?
                     R.string.downloader_download_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            NotificationCompat.Builder notificationBuilder =
+                    NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+            notificationBuilder
+                    .setSmallIcon(R.drawable.notification_icon)
                     .setTicker(getString(tickerId))
                     .setContentTitle(getString(tickerId))
                     .setAutoCancel(true)
@@ -573,7 +921,7 @@ public class FileDownloader extends Service
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder
+                notificationBuilder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), updateAccountCredentials,
                                 PendingIntent.FLAG_ONE_SHOT));
@@ -581,16 +929,16 @@ public class FileDownloader extends Service
             } else {
                 // TODO put something smart in showDetailsIntent
                 Intent showDetailsIntent = new Intent();
-                mNotificationBuilder
+                notificationBuilder
                         .setContentIntent(PendingIntent.getActivity(
                                 this, (int) System.currentTimeMillis(), showDetailsIntent, 0));
             }
 
-            mNotificationBuilder.setContentText(
+            notificationBuilder.setContentText(
                     ErrorMessageAdapter.getErrorCauseMessage(downloadResult, download,
                             getResources())
             );
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            mNotificationManager.notify(tickerId, notificationBuilder.build());
 
             // Remove success notification
             if (downloadResult.isSuccess()) {
@@ -653,6 +1001,8 @@ public class FileDownloader extends Service
      */
     private void cancelDownloadsForAccount(Account account) {
         // Cancel pending downloads
-        mPendingDownloads.remove(account);
+        int removed = mPendingDownloads.remove(account).size();
+        Log_OC.d(TAG, "Removed " + removed + " pending downloads of " + account.name);
+        mPersistentQueue.remove(account.name, null);
     }
 }
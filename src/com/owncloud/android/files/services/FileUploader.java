@@ -22,10 +22,14 @@ package com.owncloud.android.files.services;
 
 import java.io.File;
 import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -36,21 +40,20 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
-import android.os.Process;
 import android.support.v4.app.NotificationCompat;
 import android.util.Pair;
 import android.webkit.MimeTypeMap;
 
+import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
+import com.owncloud.android.datamodel.ContentHashIndex;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.db.QueuedTransfer;
 import com.owncloud.android.lib.common.OwnCloudAccount;
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.common.OwnCloudClientManagerFactory;
@@ -76,7 +79,7 @@ import com.owncloud.android.utils.UriUtils;
 
 
 public class FileUploader extends Service
-        implements OnDatatransferProgressListener, OnAccountsUpdateListener {
+        implements OnAccountsUpdateListener, TransferDispatcher.TransferPerformer {
 
     private static final String UPLOAD_FINISH_MESSAGE = "UPLOAD_FINISH";
     public static final String EXTRA_UPLOAD_RESULT = "RESULT";
@@ -105,21 +108,40 @@ public class FileUploader extends Service
     public static final int UPLOAD_SINGLE_FILE = 0;
     public static final int UPLOAD_MULTIPLE_FILES = 1;
 
+    /** Action to run the uploads stored in the persistent queue that are ready to run */
+    private static final String ACTION_RESUME_UPLOADS = "RESUME_UPLOADS";
+
     private static final String TAG = FileUploader.class.getSimpleName();
 
-    private Looper mServiceLooper;
-    private ServiceHandler mServiceHandler;
+    private TransferDispatcher mDispatcher;
     private IBinder mBinder;
-    private OwnCloudClient mUploadClient = null;
-    private Account mCurrentAccount = null;
-    private FileDataStorageManager mStorageManager;
+
+    /** Start id of the last command that added new uploads */
+    private volatile int mLastStartId;
 
     private IndexedForest<UploadFileOperation> mPendingUploads = new IndexedForest<UploadFileOperation>();
-    private UploadFileOperation mCurrentUpload = null;
+
+    /** Copy of the queue of uploads surviving the end of the process */
+    private PersistentTransferQueue mPersistentQueue;
+    private boolean mPersistentQueueRecovered = false;
+    private Handler mHandler;
+
+    /** Uploads being performed by the workers, indexed by upload key */
+    private Map<String, UploadFileOperation> mCurrentUploads =
+            new ConcurrentHashMap<String, UploadFileOperation>();
+
+    /** Locks serializing the creation of remote folders, per account */
+    private ConcurrentMap<String, Object> mFolderLocks = new ConcurrentHashMap<String, Object>();
 
     private NotificationManager mNotificationManager;
+
+    /** Aggregated progress of the current uploads, shown in a single notification */
+    private final Map<String, long[]> mProgressByUpload = new HashMap<String, long[]>();
     private NotificationCompat.Builder mNotificationBuilder;
     private int mLastPercent;
+    private final ProgressThrottle mNotificationThrottle = new ProgressThrottle();
+    private String mProgressContentFormat;
+    private String mProgressMultipleContentFormat;
 
     private static final String MIME_TYPE_PDF = "application/pdf";
     private static final String FILE_EXTENSION_PDF = ".pdf";
@@ -151,16 +173,29 @@ public class FileUploader extends Service
         super.onCreate();
         Log_OC.d(TAG, "Creating service");
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        HandlerThread thread = new HandlerThread("FileUploaderThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mServiceLooper = thread.getLooper();
-        mServiceHandler = new ServiceHandler(mServiceLooper, this);
+        mProgressContentFormat = getString(R.string.uploader_upload_in_progress_content);
+        mProgressMultipleContentFormat =
+                getString(R.string.uploader_upload_in_progress_multiple_content);
+        mDispatcher = new TransferDispatcher(
+                "FileUploaderThread",
+                getResources().getInteger(R.integer.uploader_max_workers),
+                getResources().getInteger(R.integer.uploader_max_workers_per_account),
+                this
+        );
         mBinder = new FileUploaderBinder();
+        mHandler = new Handler();
+        mPersistentQueue = new PersistentTransferQueue(this, QueuedTransfer.TYPE_UPLOAD,
+                FileUploader.class, ACTION_RESUME_UPLOADS);
 
         // add AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
         am.addOnAccountsUpdatedListener(this, null, false);
+
+        // run the uploads left by a former instance of the service; started, so that they
+        // go on although the component creating the service is only binding it
+        Intent resume = new Intent(this, FileUploader.class);
+        resume.setAction(ACTION_RESUME_UPLOADS);
+        startService(resume);
     }
 
     /**
@@ -169,11 +204,12 @@ public class FileUploader extends Service
     @Override
     public void onDestroy() {
         Log_OC.v(TAG, "Destroying service" );
+        mDispatcher.shutdown();
+        mPersistentQueue.close();   // interrupted uploads are kept for the next start
+        for (UploadFileOperation upload : mCurrentUploads.values()) {
+            upload.cancel();
+        }
         mBinder = null;
-        mServiceHandler = null;
-        mServiceLooper.quit();
-        mServiceLooper = null;
-        mNotificationManager = null;
 
         // remove AccountsUpdatedListener
         AccountManager am = AccountManager.get(getApplicationContext());
@@ -194,6 +230,12 @@ public class FileUploader extends Service
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log_OC.d(TAG, "Starting command with id " + startId);
 
+        if (ACTION_RESUME_UPLOADS.equals(intent.getAction())) {
+            mLastStartId = startId;
+            resumePersistentQueue();
+            return Service.START_NOT_STICKY;
+        }
+
         if (!intent.hasExtra(KEY_ACCOUNT) || !intent.hasExtra(KEY_UPLOAD_TYPE)
                 || !(intent.hasExtra(KEY_LOCAL_FILE) || intent.hasExtra(KEY_FILE))) {
             Log_OC.e(TAG, "Not enough information provided in intent");
@@ -281,6 +323,10 @@ public class FileUploader extends Service
         AbstractList<String> requestedUploads = new Vector<String>();
         String uploadKey = null;
         UploadFileOperation newUpload = null;
+        List<QueuedTransfer> transfersToStore = new ArrayList<QueuedTransfer>(files.length);
+        List<String> keysToStore = new ArrayList<String>(files.length);
+        int priority = isInstant ?
+                QueuedTransfer.PRIORITY_BACKGROUND : QueuedTransfer.PRIORITY_USER;
         try {
             for (int i = 0; i < files.length; i++) {
                 newUpload = new UploadFileOperation(
@@ -294,14 +340,17 @@ public class FileUploader extends Service
                 if (isInstant) {
                     newUpload.setRemoteFolderToBeCreated();
                 }
-                newUpload.addDatatransferProgressListener(this);
-                newUpload.addDatatransferProgressListener((FileUploaderBinder) mBinder);
-                Pair<String, String> putResult = mPendingUploads.putIfAbsent(
-                        account, files[i].getRemotePath(), newUpload
-                );
-                if (putResult != null) {
-                    uploadKey = putResult.first;
+                uploadKey = enqueueUpload(account, newUpload);
+                if (uploadKey != null) {
                     requestedUploads.add(uploadKey);
+                    String localPath = files[i].getStoragePath();
+                    if (!localPath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
+                        // access granted to content:// URIs doesn't survive the process
+                        transfersToStore.add(QueuedTransfer.newUpload(account.name,
+                                files[i].getRemotePath(), localPath, files[i].getMimetype(),
+                                localAction, forceOverwrite, isInstant, priority));
+                        keysToStore.add(uploadKey);
+                    }
                 }   // else, file already in the queue of uploads; don't repeat the request
             }
 
@@ -320,14 +369,132 @@ public class FileUploader extends Service
         }
 
         if (requestedUploads.size() > 0) {
-            Message msg = mServiceHandler.obtainMessage();
-            msg.arg1 = startId;
-            msg.obj = requestedUploads;
-            mServiceHandler.sendMessage(msg);
+            mPersistentQueue.add(transfersToStore, keysToStore);
+            Iterator<String> it = requestedUploads.iterator();
+            while (it.hasNext()) {
+                mDispatcher.dispatch(account.name, it.next(), !isInstant);
+            }
+            mLastStartId = startId;
         }
         return Service.START_NOT_STICKY;
     }
 
+
+    /**
+     * Adds an upload to the queue of uploads, if the same file is not there yet.
+     *
+     * @param account   ownCloud account where the file will be uploaded.
+     * @param newUpload Upload to add.
+     * @return          Key of the new upload in the queue, or null if the file was already in it.
+     */
+    private String enqueueUpload(Account account, UploadFileOperation newUpload) {
+        Pair<String, String> putResult = mPendingUploads.putIfAbsent(
+                account, newUpload.getRemotePath(), newUpload,
+                newUpload.getFile().getFileLength()
+        );
+        if (putResult != null) {
+            String uploadKey = putResult.first;
+            newUpload.addDatatransferProgressListener(
+                    new UploadProgressListener(uploadKey, newUpload)
+            );
+            return uploadKey;
+        }
+        return null;
+    }
+
+
+    /**
+     * Adds to the queue of uploads the uploads in the persistent queue that are ready to
+     * run. The first time, those interrupted by the end of the former process are included.
+     *
+     * The persistent queue is read in a separate thread; the uploads are added to the queue
+     * from the main thread, as the rest.
+     */
+    private void resumePersistentQueue() {
+        final boolean afterRestart = !mPersistentQueueRecovered;
+        mPersistentQueueRecovered = true;
+        new Thread("FileUploaderQueueRecovery") {
+            @Override
+            public void run() {
+                final List<QueuedTransfer> transfers = mPersistentQueue.recover(afterRestart);
+                final List<UploadFileOperation> uploads =
+                        new ArrayList<UploadFileOperation>(transfers.size());
+                Iterator<QueuedTransfer> it = transfers.iterator();
+                while (it.hasNext()) {
+                    QueuedTransfer transfer = it.next();
+                    UploadFileOperation upload = null;
+                    Account account = new Account(transfer.getAccountName(),
+                            MainApp.getAccountType());
+                    if (AccountUtils.exists(account, getApplicationContext())) {
+                        try {
+                            OCFile file = obtainNewOCFileToUpload(transfer.getRemotePath(),
+                                    transfer.getLocalPath(), transfer.getMimeType());
+                            upload = new UploadFileOperation(
+                                    account,
+                                    file,
+                                    chunkedUploadIsSupported(
+                                            AccountUtils.getServerVersion(account)),
+                                    transfer.isInstant(),
+                                    transfer.isForceOverwrite(),
+                                    transfer.getLocalBehaviour(),
+                                    getApplicationContext()
+                            );
+                            if (transfer.isInstant()) {
+                                upload.setRemoteFolderToBeCreated();
+                            }
+                        } catch (RuntimeException e) {
+                            Log_OC.e(TAG, "Stored upload of " + transfer.getLocalPath() +
+                                    " can't be resumed", e);
+                        }
+                    }
+                    if (upload == null) {
+                        Log_OC.d(TAG, "Discarding stored upload of " + transfer.getLocalPath());
+                        mPersistentQueue.discard(transfer);
+                        it.remove();
+                    } else {
+                        uploads.add(upload);
+                    }
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        enqueueStoredUploads(transfers, uploads);
+                    }
+                });
+            }
+        }.start();
+    }
+
+
+    private void enqueueStoredUploads(List<QueuedTransfer> transfers,
+                                      List<UploadFileOperation> uploads) {
+        if (mBinder == null) {
+            return;     // service destroyed meanwhile; will be done in the next start
+        }
+        int resumed = 0;
+        for (int i = 0; i < transfers.size(); i++) {
+            QueuedTransfer transfer = transfers.get(i);
+            UploadFileOperation upload = uploads.get(i);
+            Account account = upload.getAccount();
+            String uploadKey = enqueueUpload(account, upload);
+            if (uploadKey != null) {
+                mPersistentQueue.bind(uploadKey, transfer);
+                mDispatcher.dispatch(account.name, uploadKey,
+                        transfer.getPriority() >= QueuedTransfer.PRIORITY_USER);
+                resumed++;
+
+            } else {
+                // if requested again while stored, the new request has its own copy
+                mPersistentQueue.discardUnlessBound(
+                        mPendingUploads.buildKey(account, upload.getRemotePath()), transfer);
+            }
+        }
+        Log_OC.d(TAG, "Resumed " + resumed + " stored uploads");
+        if (mDispatcher.isIdle()) {
+            stopSelf(mLastStartId);
+        }
+    }
+
     /**
      * Provides a binder object that clients can use to perform operations on
      * the queue of uploads, excepting the addition of new files.
@@ -351,10 +518,11 @@ public class FileUploader extends Service
 
     @Override
     public void onAccountsUpdated(Account[] accounts) {
-        // Review current upload, and cancel it if its account doen't exist
-        if (mCurrentUpload != null &&
-                !AccountUtils.exists(mCurrentUpload.getAccount(), getApplicationContext())) {
-            mCurrentUpload.cancel();
+        // Review current uploads, and cancel them if their account doesn't exist
+        for (UploadFileOperation upload : mCurrentUploads.values()) {
+            if (!AccountUtils.exists(upload.getAccount(), getApplicationContext())) {
+                upload.cancel();
+            }
         }
         // The rest of uploads are cancelled when they try to start
     }
@@ -365,14 +533,14 @@ public class FileUploader extends Service
      *
      * It provides by itself the available operations.
      */
-    public class FileUploaderBinder extends Binder implements OnDatatransferProgressListener {
+    public class FileUploaderBinder extends Binder {
 
         /**
          * Map of listeners that will be reported about progress of uploads from a
          * {@link FileUploaderBinder} instance
          */
         private Map<String, OnDatatransferProgressListener> mBoundListeners =
-                new HashMap<String, OnDatatransferProgressListener>();
+                new ConcurrentHashMap<String, OnDatatransferProgressListener>();
 
         /**
          * Cancels a pending or current upload of a remote file.
@@ -381,15 +549,17 @@ public class FileUploader extends Service
          * @param file      A file in the queue of pending uploads
          */
         public void cancel(Account account, OCFile file) {
+            mPersistentQueue.remove(account.name, file.getRemotePath());
             Pair<UploadFileOperation, String> removeResult = mPendingUploads.remove(account, file.getRemotePath());
             UploadFileOperation upload = removeResult.first;
             if (upload != null) {
                 upload.cancel();
             } else {
-                if (mCurrentUpload != null && mCurrentAccount != null &&
-                        mCurrentUpload.getRemotePath().startsWith(file.getRemotePath()) &&
-                        account.name.equals(mCurrentAccount.name)) {
-                    mCurrentUpload.cancel();
+                for (UploadFileOperation current : mCurrentUploads.values()) {
+                    if (current.getRemotePath().startsWith(file.getRemotePath()) &&
+                            account.name.equals(current.getAccount().name)) {
+                        current.cancel();
+                    }
                 }
             }
         }
@@ -402,10 +572,10 @@ public class FileUploader extends Service
         public void cancel(Account account) {
             Log_OC.d(TAG, "Account= " + account.name);
 
-            if (mCurrentUpload != null) {
-                Log_OC.d(TAG, "Current Upload Account= " + mCurrentUpload.getAccount().name);
-                if (mCurrentUpload.getAccount().name.equals(account.name)) {
-                    mCurrentUpload.cancel();
+            for (UploadFileOperation current : mCurrentUploads.values()) {
+                if (current.getAccount().name.equals(account.name)) {
+                    Log_OC.d(TAG, "Cancelling current upload of " + current.getRemotePath());
+                    current.cancel();
                 }
             }
             // Cancel pending uploads
@@ -433,6 +603,34 @@ public class FileUploader extends Service
         }
 
 
+        /**
+         * Returns the number of pending or current uploads of a file, or of the files inside
+         * a folder at any depth.
+         *
+         * Doesn't visit the contents of the folder.
+         *
+         * @param account   ownCloud account where the remote file or folder is stored.
+         * @param file      A file or folder that could contain files being uploaded.
+         */
+        public int getPendingUploads(Account account, OCFile file) {
+            if (account == null || file == null) return 0;
+            return mPendingUploads.getPendingCount(account, file.getRemotePath());
+        }
+
+
+        /**
+         * Returns the bytes of the pending or current uploads of a file, or of the files inside
+         * a folder at any depth.
+         *
+         * @param account   ownCloud account where the remote file or folder is stored.
+         * @param file      A file or folder that could contain files being uploaded.
+         */
+        public long getPendingUploadBytes(Account account, OCFile file) {
+            if (account == null || file == null) return 0;
+            return mPendingUploads.getPendingBytes(account, file.getRemotePath());
+        }
+
+
         /**
          * Adds a listener interested in the progress of the upload for a concrete file.
          *
@@ -466,10 +664,15 @@ public class FileUploader extends Service
         }
 
 
-        @Override
-        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                       long totalToTransfer, String fileName) {
-            String key = buildRemoteName(mCurrentUpload.getAccount(), mCurrentUpload.getFile());
+        /**
+         * Forwards the progress of an upload to the listener bound for its file, if any.
+         *
+         * @param upload        Upload in progress.
+         */
+        private void onTransferProgress(UploadFileOperation upload, long progressRate,
+                                        long totalTransferredSoFar, long totalToTransfer,
+                                        String fileName) {
+            String key = buildRemoteName(upload.getAccount(), upload.getFile());
             OnDatatransferProgressListener boundListener = mBoundListeners.get(key);
             if (boundListener != null) {
                 boundListener.onTransferProgress(progressRate, totalTransferredSoFar,
@@ -494,90 +697,102 @@ public class FileUploader extends Service
     }
 
     /**
-     * Upload worker. Performs the pending uploads in the order they were
-     * requested.
-     *
-     * Created with the Looper of a new thread, started in
-     * {@link FileUploader#onCreate()}.
+     * Reports the progress of a single upload to the status notification and to the
+     * listener bound for its file, at most twice per second.
      */
-    private static class ServiceHandler extends Handler {
-        // don't make it a final class, and don't remove the static ; lint will
-        // warn about a possible memory leak
-        FileUploader mService;
+    private class UploadProgressListener implements OnDatatransferProgressListener {
 
-        public ServiceHandler(Looper looper, FileUploader service) {
-            super(looper);
-            if (service == null)
-                throw new IllegalArgumentException("Received invalid NULL in parameter 'service'");
-            mService = service;
+        private final String mUploadKey;
+        private final UploadFileOperation mUpload;
+        private final ProgressThrottle mThrottle = new ProgressThrottle();
+
+        public UploadProgressListener(String uploadKey, UploadFileOperation upload) {
+            mUploadKey = uploadKey;
+            mUpload = upload;
         }
 
         @Override
-        public void handleMessage(Message msg) {
-            @SuppressWarnings("unchecked")
-            AbstractList<String> requestedUploads = (AbstractList<String>) msg.obj;
-            if (msg.obj != null) {
-                Iterator<String> it = requestedUploads.iterator();
-                while (it.hasNext()) {
-                    mService.uploadFile(it.next());
-                }
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                       long totalToTransfer, String fileName) {
+            if (!mThrottle.onProgress(progressRate, totalTransferredSoFar, totalToTransfer)) {
+                return;
+            }
+            updateUploadProgress(mUploadKey, totalTransferredSoFar, totalToTransfer);
+            FileUploaderBinder binder = (FileUploaderBinder) mBinder;
+            if (binder != null) {
+                binder.onTransferProgress(mUpload, mThrottle.takePendingBytes(),
+                        totalTransferredSoFar, totalToTransfer, fileName);
             }
-            Log_OC.d(TAG, "Stopping command after id " + msg.arg1);
-            mService.stopSelf(msg.arg1);
         }
     }
 
+
+    /**
+     * Called by the workers in {@link #mDispatcher} when all the pending uploads are done.
+     */
+    @Override
+    public void onTransfersFinished() {
+        Log_OC.d(TAG, "Stopping command after id " + mLastStartId);
+        stopSelf(mLastStartId);
+    }
+
+
     /**
      * Core upload method: sends the file(s) to upload
      *
+     * Called from the worker threads in {@link #mDispatcher}, so several uploads can be in
+     * progress at the same time.
+     *
      * @param uploadKey Key to access the upload to perform, contained in mPendingUploads
      */
-    public void uploadFile(String uploadKey) {
+    @Override
+    public void performTransfer(String uploadKey) {
 
-        mCurrentUpload = mPendingUploads.get(uploadKey);
+        UploadFileOperation upload = mPendingUploads.get(uploadKey);
 
-        if (mCurrentUpload != null) {
+        if (upload != null) {
             // Detect if the account exists
-            if (AccountUtils.exists(mCurrentUpload.getAccount(), getApplicationContext())) {
-                Log_OC.d(TAG, "Account " + mCurrentUpload.getAccount().name + " exists");
+            Account account = upload.getAccount();
+            if (AccountUtils.exists(account, getApplicationContext())) {
+                Log_OC.d(TAG, "Account " + account.name + " exists");
 
-                notifyUploadStart(mCurrentUpload);
+                mCurrentUploads.put(uploadKey, upload);
+                mPersistentQueue.onTransferStarted(uploadKey);
+                notifyUploadStart(uploadKey, upload);
 
                 RemoteOperationResult uploadResult = null, grantResult;
 
                 try {
                     /// prepare client object to send the request to the ownCloud server
-                    if (mCurrentAccount == null || !mCurrentAccount.equals(mCurrentUpload.getAccount())) {
-                        mCurrentAccount = mCurrentUpload.getAccount();
-                        mStorageManager = new FileDataStorageManager(
-                                mCurrentAccount,
-                                getContentResolver()
-                        );
-                    }   // else, reuse storage manager from previous operation
+                    FileDataStorageManager storageManager = new FileDataStorageManager(
+                            account,
+                            getContentResolver()
+                    );
 
                     // always get client from client manager, to get fresh credentials in case of update
-                    OwnCloudAccount ocAccount = new OwnCloudAccount(mCurrentAccount, this);
-                    mUploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
+                    OwnCloudAccount ocAccount = new OwnCloudAccount(account, this);
+                    OwnCloudClient uploadClient = OwnCloudClientManagerFactory.getDefaultSingleton().
                             getClientFor(ocAccount, this);
 
 
                     /// check the existence of the parent folder for the file to upload
-                    String remoteParentPath = new File(mCurrentUpload.getRemotePath()).getParent();
+                    String remoteParentPath = new File(upload.getRemotePath()).getParent();
                     remoteParentPath = remoteParentPath.endsWith(OCFile.PATH_SEPARATOR) ?
                             remoteParentPath : remoteParentPath + OCFile.PATH_SEPARATOR;
-                    grantResult = grantFolderExistence(remoteParentPath);
+                    grantResult = grantFolderExistence(remoteParentPath, upload, uploadClient,
+                            storageManager);
 
                     /// perform the upload
                     if (grantResult.isSuccess()) {
-                        OCFile parent = mStorageManager.getFileByPath(remoteParentPath);
-                        mCurrentUpload.getFile().setParentId(parent.getFileId());
-                        uploadResult = mCurrentUpload.execute(mUploadClient);
+                        OCFile parent = storageManager.getFileByPath(remoteParentPath);
+                        upload.getFile().setParentId(parent.getFileId());
+                        uploadResult = upload.execute(uploadClient);
                         if (uploadResult.isSuccess()) {
-                            saveUploadedFile();
+                            saveUploadedFile(upload, uploadClient, storageManager);
 
                         } else if (uploadResult.getCode() == ResultCode.SYNC_CONFLICT) {
-                            mStorageManager.saveConflict(mCurrentUpload.getFile(),
-                                    mCurrentUpload.getFile().getEtagInConflict());
+                            storageManager.saveConflict(upload.getFile(),
+                                    upload.getFile().getEtagInConflict());
                         }
                     } else {
                         uploadResult = grantResult;
@@ -588,30 +803,32 @@ public class FileUploader extends Service
                     uploadResult = new RemoteOperationResult(e);
 
                 } finally {
+                    mCurrentUploads.remove(uploadKey);
                     Pair<UploadFileOperation, String> removeResult;
-                    if (mCurrentUpload.wasRenamed()) {
+                    if (upload.wasRenamed()) {
                         removeResult = mPendingUploads.removePayload(
-                                mCurrentAccount,
-                                mCurrentUpload.getOldFile().getRemotePath()
+                                account,
+                                upload.getOldFile().getRemotePath()
                         );
                     } else {
                         removeResult = mPendingUploads.removePayload(
-                                mCurrentAccount,
-                                mCurrentUpload.getRemotePath()
+                                account,
+                                upload.getRemotePath()
                         );
                     }
 
+                    mPersistentQueue.onTransferFinished(uploadKey, uploadResult);
+
                     /// notify result
-                    notifyUploadResult(mCurrentUpload, uploadResult);
+                    notifyUploadResult(uploadKey, upload, uploadResult);
 
-                    sendBroadcastUploadFinished(mCurrentUpload, uploadResult, removeResult.second);
+                    sendBroadcastUploadFinished(upload, uploadResult, removeResult.second);
                 }
 
             } else {
                 // Cancel the transfer
-                Log_OC.d(TAG, "Account " + mCurrentUpload.getAccount().toString() +
-                        " doesn't exist");
-                cancelUploadsForAccount(mCurrentUpload.getAccount());
+                Log_OC.d(TAG, "Account " + account.toString() + " doesn't exist");
+                cancelUploadsForAccount(account);
 
             }
         }
@@ -629,18 +846,32 @@ public class FileUploader extends Service
      *  @return  An {@link OCFile} instance corresponding to the folder where the file
      *  will be uploaded.
      */
-    private RemoteOperationResult grantFolderExistence(String pathToGrant) {
+    private RemoteOperationResult grantFolderExistence(String pathToGrant,
+                                                       UploadFileOperation upload,
+                                                       OwnCloudClient client,
+                                                       FileDataStorageManager storageManager) {
         RemoteOperation operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
-        RemoteOperationResult result = operation.execute(mUploadClient);
+        RemoteOperationResult result = operation.execute(client);
+        Object folderLock = getFolderLock(upload.getAccount());
         if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND &&
-                mCurrentUpload.isRemoteFolderToBeCreated()) {
-            SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
-            result = syncOp.execute(mUploadClient, mStorageManager);
+                upload.isRemoteFolderToBeCreated()) {
+            synchronized (folderLock) {
+                // other worker could have created it while waiting for the lock
+                operation = new ExistenceCheckRemoteOperation(pathToGrant, this, false);
+                result = operation.execute(client);
+                if (!result.isSuccess() && result.getCode() == ResultCode.FILE_NOT_FOUND) {
+                    SyncOperation syncOp = new CreateFolderOperation( pathToGrant, true);
+                    result = syncOp.execute(client, storageManager);
+                }
+            }
         }
         if (result.isSuccess()) {
-            OCFile parentDir = mStorageManager.getFileByPath(pathToGrant);
-            if (parentDir == null) {
-                parentDir = createLocalFolder(pathToGrant);
+            OCFile parentDir;
+            synchronized (folderLock) {
+                parentDir = storageManager.getFileByPath(pathToGrant);
+                if (parentDir == null) {
+                    parentDir = createLocalFolder(pathToGrant, storageManager);
+                }
             }
             if (parentDir != null) {
                 result = new RemoteOperationResult(ResultCode.OK);
@@ -652,19 +883,38 @@ public class FileUploader extends Service
     }
 
 
-    private OCFile createLocalFolder(String remotePath) {
+    /**
+     * Returns the object used to serialize the creation of folders in an account, so that
+     * several uploads targeting the same new folder don't try to create it twice.
+     *
+     * @param account   ownCloud account where folders will be created.
+     * @return          Lock for the account.
+     */
+    private Object getFolderLock(Account account) {
+        Object lock = mFolderLocks.get(account.name);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = mFolderLocks.putIfAbsent(account.name, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    private OCFile createLocalFolder(String remotePath, FileDataStorageManager storageManager) {
         String parentPath = new File(remotePath).getParent();
         parentPath = parentPath.endsWith(OCFile.PATH_SEPARATOR) ?
                 parentPath : parentPath + OCFile.PATH_SEPARATOR;
-        OCFile parent = mStorageManager.getFileByPath(parentPath);
+        OCFile parent = storageManager.getFileByPath(parentPath);
         if (parent == null) {
-            parent = createLocalFolder(parentPath);
+            parent = createLocalFolder(parentPath, storageManager);
         }
         if (parent != null) {
             OCFile createdFolder = new OCFile(remotePath);
             createdFolder.setMimetype("DIR");
             createdFolder.setParentId(parent.getFileId());
-            mStorageManager.saveFile(createdFolder);
+            storageManager.saveFile(createdFolder);
             return createdFolder;
         }
         return null;
@@ -680,10 +930,11 @@ public class FileUploader extends Service
      *
      * TODO move into UploadFileOperation
      */
-    private void saveUploadedFile() {
-        OCFile file = mCurrentUpload.getFile();
+    private void saveUploadedFile(UploadFileOperation upload, OwnCloudClient client,
+                                  FileDataStorageManager storageManager) {
+        OCFile file = upload.getFile();
         if (file.fileExists()) {
-            file = mStorageManager.getFileById(file.getFileId());
+            file = storageManager.getFileById(file.getFileId());
         }
         long syncDate = System.currentTimeMillis();
         file.setLastSyncDateForData(syncDate);
@@ -691,8 +942,8 @@ public class FileUploader extends Service
         // new PROPFIND to keep data consistent with server 
         // in theory, should return the same we already have
         ReadRemoteFileOperation operation =
-                new ReadRemoteFileOperation(mCurrentUpload.getRemotePath());
-        RemoteOperationResult result = operation.execute(mUploadClient);
+                new ReadRemoteFileOperation(upload.getRemotePath());
+        RemoteOperationResult result = operation.execute(client);
         if (result.isSuccess()) {
             updateOCFile(file, (RemoteFile) result.getData().get(0));
             file.setLastSyncDateForProperties(syncDate);
@@ -702,22 +953,29 @@ public class FileUploader extends Service
 
         // / maybe this would be better as part of UploadFileOperation... or
         // maybe all this method
-        if (mCurrentUpload.wasRenamed()) {
-            OCFile oldFile = mCurrentUpload.getOldFile();
+        if (upload.wasRenamed()) {
+            OCFile oldFile = upload.getOldFile();
             if (oldFile.fileExists()) {
                 oldFile.setStoragePath(null);
-                mStorageManager.saveFile(oldFile);
-                mStorageManager.saveConflict(oldFile, null);
+                storageManager.saveFile(oldFile);
+                storageManager.saveConflict(oldFile, null);
 
             } // else: it was just an automatic renaming due to a name
             // coincidence; nothing else is needed, the storagePath is right
-            // in the instance returned by mCurrentUpload.getFile()
+            // in the instance returned by upload.getFile()
         }
         file.setNeedsUpdateThumbnail(true);
-        mStorageManager.saveFile(file);
-        mStorageManager.saveConflict(file, null);
+        file.setImageOrientation(OCFile.IMAGE_ORIENTATION_UNKNOWN);
+        storageManager.saveFile(file);
+        storageManager.saveConflict(file, null);
+
+        // known contents of the remote file, to recognize later uploads of the same contents
+        if (result.isSuccess()) {
+            new ContentHashIndex(this).put(upload.getAccount().name, file.getRemotePath(),
+                    upload.getContentHash(), file.getFileLength(), file.getEtag());
+        }
         
-        mStorageManager.triggerMediaScan(file.getStoragePath());
+        storageManager.triggerMediaScan(file.getStoragePath());
 
     }
 
@@ -771,48 +1029,91 @@ public class FileUploader extends Service
     }
 
     /**
-     * Creates a status notification to show the upload progress
+     * Creates a status notification to show the upload progress, or adds the upload to the
+     * one already shown for other uploads in progress.
      *
-     * @param upload Upload operation starting.
+     * @param uploadKey Key of the upload starting.
+     * @param upload    Upload operation starting.
      */
-    private void notifyUploadStart(UploadFileOperation upload) {
-        // / create status notification with a progress bar
-        mLastPercent = 0;
-        mNotificationBuilder =
-                NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
-        mNotificationBuilder
-                .setOngoing(true)
-                .setSmallIcon(R.drawable.notification_icon)
-                .setTicker(getString(R.string.uploader_upload_in_progress_ticker))
-                .setContentTitle(getString(R.string.uploader_upload_in_progress_ticker))
-                .setProgress(100, 0, false)
-                .setContentText(
-                        String.format(getString(R.string.uploader_upload_in_progress_content), 0, upload.getFileName()));
-
-        /// includes a pending intent in the notification showing the details view of the file
-        Intent showDetailsIntent = new Intent(this, FileDisplayActivity.class);
-        showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
-        showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
-        showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-        mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
-                this, (int) System.currentTimeMillis(), showDetailsIntent, 0
-        ));
-
-        mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
+    private void notifyUploadStart(String uploadKey, UploadFileOperation upload) {
+        synchronized (mProgressByUpload) {
+            mProgressByUpload.put(uploadKey, new long[]{0, upload.getFile().getFileLength()});
+            if (mProgressByUpload.size() > 1) {
+                // a notification is already shown; just update it
+                updateProgressNotification(true);
+                return;
+            }
+
+            // / create status notification with a progress bar
+            mLastPercent = 0;
+            mNotificationBuilder =
+                    NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+            mNotificationBuilder
+                    .setOngoing(true)
+                    .setSmallIcon(R.drawable.notification_icon)
+                    .setTicker(getString(R.string.uploader_upload_in_progress_ticker))
+                    .setContentTitle(getString(R.string.uploader_upload_in_progress_ticker))
+                    .setProgress(100, 0, false)
+                    .setContentText(
+                            String.format(getString(R.string.uploader_upload_in_progress_content), 0, upload.getFileName()));
+
+            /// includes a pending intent in the notification showing the details view of the file
+            Intent showDetailsIntent = new Intent(this, FileDisplayActivity.class);
+            showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
+            showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
+            showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+            mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                    this, (int) System.currentTimeMillis(), showDetailsIntent, 0
+            ));
+
+            mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
+        }
     }
 
     /**
-     * Callback method to update the progress bar in the status notification
+     * Updates the progress of an upload in the status notification.
      */
-    @Override
-    public void onTransferProgress(long progressRate, long totalTransferredSoFar,
-                                   long totalToTransfer, String filePath) {
-        int percent = (int) (100.0 * ((double) totalTransferredSoFar) / ((double) totalToTransfer));
-        if (percent != mLastPercent) {
+    private void updateUploadProgress(String uploadKey, long totalTransferredSoFar,
+                                      long totalToTransfer) {
+        synchronized (mProgressByUpload) {
+            long[] progress = mProgressByUpload.get(uploadKey);
+            if (progress != null) {
+                progress[0] = totalTransferredSoFar;
+                progress[1] = totalToTransfer;
+                if (mNotificationThrottle.isDue()) {
+                    updateProgressNotification(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refreshes the status notification with the aggregated progress of all the uploads in
+     * progress.
+     *
+     * Must be called with the lock of {@link #mProgressByUpload} held.
+     *
+     * @param force     When 'true', the notification is refreshed although the percentage
+     *                  didn't change.
+     */
+    private void updateProgressNotification(boolean force) {
+        long transferred = 0, total = 0;
+        for (long[] progress : mProgressByUpload.values()) {
+            transferred += progress[0];
+            total += Math.max(progress[1], 0);
+        }
+        int percent = (total > 0) ? (int) (100.0 * ((double) transferred) / ((double) total)) : 0;
+        if (mNotificationBuilder != null && (force || percent != mLastPercent)) {
             mNotificationBuilder.setProgress(100, percent, false);
-            String fileName = filePath.substring(
-                    filePath.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
-            String text = String.format(getString(R.string.uploader_upload_in_progress_content), percent, fileName);
+            String text;
+            if (mProgressByUpload.size() == 1) {
+                String key = mProgressByUpload.keySet().iterator().next();
+                String fileName = key.substring(key.lastIndexOf(FileUtils.PATH_SEPARATOR) + 1);
+                text = String.format(mProgressContentFormat, percent, fileName);
+            } else {
+                text = String.format(mProgressMultipleContentFormat, percent,
+                        mProgressByUpload.size());
+            }
             mNotificationBuilder.setContentText(text);
             mNotificationManager.notify(R.string.uploader_upload_in_progress_ticker, mNotificationBuilder.build());
         }
@@ -822,14 +1123,23 @@ public class FileUploader extends Service
     /**
      * Updates the status notification with the result of an upload operation.
      *
-     * @param uploadResult  Result of the upload operation.
+     * @param uploadKey     Key of the finished upload.
      * @param upload        Finished upload operation
+     * @param uploadResult  Result of the upload operation.
      */
-    private void notifyUploadResult(UploadFileOperation upload,
+    private void notifyUploadResult(String uploadKey, UploadFileOperation upload,
                                     RemoteOperationResult uploadResult) {
         Log_OC.d(TAG, "NotifyUploadResult with resultCode: " + uploadResult.getCode());
         // / cancelled operation or success -> silent removal of progress notification
-        mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+        synchronized (mProgressByUpload) {
+            mProgressByUpload.remove(uploadKey);
+            if (mProgressByUpload.isEmpty()) {
+                mNotificationManager.cancel(R.string.uploader_upload_in_progress_ticker);
+                mNotificationBuilder = null;
+            } else {
+                updateProgressNotification(true);
+            }
+        }
 
         // Show the result: success or fail notification
         if (!uploadResult.isCancelled()) {
@@ -846,7 +1156,10 @@ public class FileUploader extends Service
             tickerId = (needsToUpdateCredentials) ?
                     R.string.uploader_upload_failed_credentials_error : tickerId;
 
-            mNotificationBuilder
+            NotificationCompat.Builder notificationBuilder =
+                    NotificationBuilderWithProgressBar.newNotificationBuilderWithProgressBar(this);
+            notificationBuilder
+                    .setSmallIcon(R.drawable.notification_icon)
                     .setTicker(getString(tickerId))
                     .setContentTitle(getString(tickerId))
                     .setAutoCancel(true)
@@ -870,17 +1183,21 @@ public class FileUploader extends Service
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                 updateAccountCredentials.addFlags(Intent.FLAG_ACTIVITY_EXCLUDE_FROM_RECENTS);
                 updateAccountCredentials.addFlags(Intent.FLAG_FROM_BACKGROUND);
-                mNotificationBuilder.setContentIntent(PendingIntent.getActivity(
+                notificationBuilder.setContentIntent(PendingIntent.getActivity(
                         this,
                         (int) System.currentTimeMillis(),
                         updateAccountCredentials,
                         PendingIntent.FLAG_ONE_SHOT
                 ));
-
-                mUploadClient = null;
-                // grant that future retries on the same account will get the fresh credentials
             } else {
-                mNotificationBuilder.setContentText(content);
+                Intent showDetailsIntent = new Intent(this, FileDisplayActivity.class);
+                showDetailsIntent.putExtra(FileActivity.EXTRA_FILE, upload.getFile());
+                showDetailsIntent.putExtra(FileActivity.EXTRA_ACCOUNT, upload.getAccount());
+                showDetailsIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+                notificationBuilder.setContentIntent(PendingIntent.getActivity(
+                        this, (int) System.currentTimeMillis(), showDetailsIntent, 0
+                ));
+                notificationBuilder.setContentText(content);
 
                 if (upload.isInstant()) {
                     DbHandler db = null;
@@ -910,13 +1227,13 @@ public class FileUploader extends Service
                 }
             }
 
-            mNotificationBuilder.setContentText(content);
-            mNotificationManager.notify(tickerId, mNotificationBuilder.build());
+            notificationBuilder.setContentText(content);
+            mNotificationManager.notify(tickerId, notificationBuilder.build());
 
             if (uploadResult.isSuccess()) {
 
                 DbHandler db = new DbHandler(this.getBaseContext());
-                db.removeIUPendingFile(mCurrentUpload.getOriginalStoragePath());
+                db.removeIUPendingFile(upload.getOriginalStoragePath());
                 db.close();
 
                 // remove success notification, with a delay of 2 seconds
@@ -984,6 +1301,8 @@ public class FileUploader extends Service
      */
     private void cancelUploadsForAccount(Account account){
         // Cancel pending uploads
-        mPendingUploads.remove(account);
+        int removed = mPendingUploads.remove(account).size();
+        Log_OC.d(TAG, "Removed " + removed + " pending uploads of " + account.name);
+        mPersistentQueue.remove(account.name, null);
     }
 }
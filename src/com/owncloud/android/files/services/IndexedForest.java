@@ -24,11 +24,14 @@ import android.accounts.Account;
 import android.util.Pair;
 
 import com.owncloud.android.datamodel.OCFile;
-import com.owncloud.android.lib.common.utils.Log_OC;
 
-import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -38,25 +41,51 @@ import java.util.concurrent.ConcurrentMap;
  *
  *  A map provides the indexation based in hashing.
  *
- *  A tree is created per account.
+ *  A tree is created per account, with its own index of nodes, so that operations on all the
+ *  elements of an account only visit the nodes of that account.
+ *
+ *  Every node counts the values kept in its subtree and their sizes, so that the pending work
+ *  below a folder is known without visiting it.
+ *
+ *  Safe for concurrent use. Changes in the tree of an account are done holding the lock of that
+ *  tree, so that threads working on different accounts do not block each other; reads by key do
+ *  not take any lock.
  */
 public class IndexedForest<V> {
 
+    /**
+     * Separates the account name from the path in keys; can't be part of any of them, so that
+     * account names prefixing each other do not produce the same keys for different paths.
+     */
+    private static final String KEY_SEPARATOR = "\u0000";
+
     private ConcurrentMap<String, Node<V>> mMap = new ConcurrentHashMap<String, Node<V>>();
 
+    /** Trees of the accounts with any node, indexed by account name */
+    private ConcurrentMap<String, Tree> mTrees = new ConcurrentHashMap<String, Tree>();
+
     private class Node<V> {
         String mKey = null;
+        // parent and children are only accessed holding the lock of the tree of the node
         Node<V> mParent = null;
-        Set<Node<V>> mChildren = new HashSet<Node<V>>();    // TODO be careful with hash()
-        V mPayload = null;
+        Set<Node<V>> mChildren = new HashSet<Node<V>>();
+        volatile V mPayload = null;
+        long mBytes = 0;
+
+        // values and bytes in the subtree, this node included; only written holding the lock
+        volatile int mSubtreeCount = 0;
+        volatile long mSubtreeBytes = 0;
 
         // payload is optional
-        public Node(String key, V payload) {
+        public Node(String key, V payload, long bytes) {
             if (key == null) {
                 throw new IllegalArgumentException("Argument key MUST NOT be null");
             }
             mKey = key;
             mPayload = payload;
+            if (payload != null) {
+                mBytes = bytes;
+            }
         }
 
         public Node<V> getParent() {
@@ -85,7 +114,7 @@ public class IndexedForest<V> {
         }
 
         public boolean hasChildren() {
-            return mChildren.size() > 0;
+            return !mChildren.isEmpty();
         }
 
         public void removeChild(Node<V> removed) {
@@ -94,37 +123,109 @@ public class IndexedForest<V> {
 
         public void clearPayload() {
             mPayload = null;
+            mBytes = 0;
+        }
+
+        /**
+         * Adds to the counters of the subtree of this node and of every ancestor.
+         */
+        public void addToSubtrees(int count, long bytes) {
+            Node<V> node = this;
+            while (node != null) {
+                node.mSubtreeCount += count;
+                node.mSubtreeBytes += bytes;
+                node = node.getParent();
+            }
         }
     }
 
+    /**
+     * Nodes of an account, from the root folder down.
+     *
+     * Its fields are only accessed holding the lock of the tree.
+     */
+    private class Tree {
+        /** Nodes of the account, indexed by key */
+        Map<String, Node<V>> mNodes = new HashMap<String, Node<V>>();
+        int mPayloadCount = 0;
+        /** Set when the tree is taken out of mTrees; a new one must be used then */
+        boolean mDiscarded = false;
+    }
+
+
+    public Pair<String, String> putIfAbsent(Account account, String remotePath, V value) {
+        return putIfAbsent(account, remotePath, value, 0);
+    }
+
+    /**
+     * Adds a value, if there is not other for the same path.
+     *
+     * @param account       ownCloud account.
+     * @param remotePath    Path of the file in the server.
+     * @param value         Value to keep.
+     * @param bytes         Size of the work represented by the value, added to the pending bytes
+     *                      of the folders containing it.
+     * @return              Key of the value and path of the closest ancestor already in the
+     *                      forest, or null if the path was already in the forest.
+     */
+    public Pair<String, String> putIfAbsent(Account account, String remotePath, V value,
+                                            long bytes) {
+        while (true) {
+            Tree tree = mTrees.get(account.name);
+            if (tree == null) {
+                Tree newTree = new Tree();
+                tree = mTrees.putIfAbsent(account.name, newTree);
+                if (tree == null) {
+                    tree = newTree;
+                }
+            }
+            synchronized (tree) {
+                if (!tree.mDiscarded) {
+                    return putIfAbsent(tree, account, remotePath, value, bytes);
+                }
+            }
+            // the tree was emptied and discarded by other thread meanwhile; try again
+        }
+    }
 
-    public /* synchronized */ Pair<String, String> putIfAbsent(Account account, String remotePath, V value) {
+    private Pair<String, String> putIfAbsent(Tree tree, Account account, String remotePath,
+                                             V value, long bytes) {
         String targetKey = buildKey(account, remotePath);
-        Node<V> valuedNode = new Node(targetKey, value);
+        Node<V> valuedNode = new Node(targetKey, value, bytes);
         Node<V> previousValue = mMap.putIfAbsent(
             targetKey,
             valuedNode
         );
+        while (previousValue != null && tree.mNodes.get(targetKey) != previousValue) {
+            // left in the map by a discarded tree of the account, still being removed; absent
+            if (mMap.replace(targetKey, previousValue, valuedNode)) {
+                previousValue = null;
+            } else {
+                previousValue = mMap.putIfAbsent(targetKey, valuedNode);
+            }
+        }
         if (previousValue != null) {
             // remotePath already known; not replaced
+            discardIfEmpty(tree, account);
             return null;
 
         } else {
             // value really added
+            addToTree(tree, valuedNode);
+
             String currentPath = remotePath, parentPath = null, parentKey = null;
             Node<V> currentNode = valuedNode, parentNode = null;
             boolean linked = false;
             while (!OCFile.ROOT_PATH.equals(currentPath) && !linked) {
-                parentPath = new File(currentPath).getParent();
-                if (!parentPath.endsWith(OCFile.PATH_SEPARATOR)) {
-                    parentPath += OCFile.PATH_SEPARATOR;
-                }
+                parentPath = getParentPath(currentPath);
                 parentKey = buildKey(account, parentPath);
-                parentNode = mMap.get(parentKey);
+                // only nodes of the same account can be parents
+                parentNode = tree.mNodes.get(parentKey);
                 if (parentNode == null) {
-                    parentNode = new Node(parentKey, null);
+                    parentNode = new Node(parentKey, null, 0);
                     parentNode.addChild(currentNode);
                     mMap.put(parentKey, parentNode);
+                    addToTree(tree, parentNode);
                 } else {
                     parentNode.addChild(currentNode);
                     linked = true;
@@ -133,9 +234,13 @@ public class IndexedForest<V> {
                 currentNode = parentNode;
             }
 
+            if (value != null) {
+                valuedNode.addToSubtrees(1, valuedNode.mBytes);
+            }
+
             String linkedTo = OCFile.ROOT_PATH;
             if (linked) {
-                linkedTo = parentNode.getKey().substring(account.name.length());
+                linkedTo = getPath(account, parentNode.getKey());
             }
 
             return new Pair<String, String>(targetKey, linkedTo);
@@ -144,35 +249,63 @@ public class IndexedForest<V> {
 
 
     public Pair<V, String> removePayload(Account account, String remotePath) {
-        String targetKey = buildKey(account, remotePath);
-        Node<V> target = mMap.get(targetKey);
-        if (target != null) {
-            target.clearPayload();
-            if (!target.hasChildren()) {
-                return remove(account, remotePath);
+        Tree tree = mTrees.get(account.name);
+        if (tree != null) {
+            synchronized (tree) {
+                String targetKey = buildKey(account, remotePath);
+                Node<V> target = tree.mNodes.get(targetKey);
+                if (target != null) {
+                    if (target.getPayload() != null) {
+                        tree.mPayloadCount--;
+                        target.addToSubtrees(-1, -target.mBytes);
+                    }
+                    target.clearPayload();
+                    if (!target.hasChildren()) {
+                        return remove(tree, account, remotePath);
+                    }
+                }
             }
         }
         return new Pair<V, String>(null, null);
     }
 
 
-    public /* synchronized */ Pair<V, String> remove(Account account, String remotePath) {
+    public Pair<V, String> remove(Account account, String remotePath) {
+        Tree tree = mTrees.get(account.name);
+        if (tree != null) {
+            synchronized (tree) {
+                return remove(tree, account, remotePath);
+            }
+        }
+        return new Pair<V, String>(null, null);
+    }
+
+    private Pair<V, String> remove(Tree tree, Account account, String remotePath) {
         String targetKey = buildKey(account, remotePath);
-        Node<V> firstRemoved = mMap.remove(targetKey);
+        Node<V> firstRemoved = tree.mNodes.get(targetKey);
         String unlinkedFrom = null;
 
         if (firstRemoved != null) {
+            mMap.remove(targetKey, firstRemoved);
+            removeFromTree(tree, firstRemoved);
+            if (firstRemoved.getParent() != null) {
+                firstRemoved.getParent().addToSubtrees(
+                        -firstRemoved.mSubtreeCount, -firstRemoved.mSubtreeBytes
+                );
+            }
+
             /// remove children
-            removeDescendants(firstRemoved);
+            removeDescendants(tree, firstRemoved);
 
             /// remove ancestors if only here due to firstRemoved
             Node<V> removed = firstRemoved;
             Node<V> parent = removed.getParent();
-            boolean unlinked = false;
             while (parent != null) {
                 parent.removeChild(removed);
                 if (!parent.hasChildren()) {
-                    removed = mMap.remove(parent.getKey());
+                    mMap.remove(parent.getKey(), parent);
+                    removeFromTree(tree, parent);
+                    removed = parent;
                     parent = removed.getParent();
                 } else {
                     break;
@@ -180,8 +313,9 @@ public class IndexedForest<V> {
             }
 
             if (parent != null) {
-                unlinkedFrom = parent.getKey().substring(account.name.length());
+                unlinkedFrom = getPath(account, parent.getKey());
             }
+            discardIfEmpty(tree, account);
 
             return new Pair<V, String>(firstRemoved.getPayload(), unlinkedFrom);
         }
@@ -189,13 +323,34 @@ public class IndexedForest<V> {
         return new Pair<V, String>(null, null);
     }
 
-    private void removeDescendants(Node<V> removed) {
+    private void removeDescendants(Tree tree, Node<V> removed) {
         Iterator<Node<V>> childrenIt = removed.getChildren().iterator();
         Node<V> child = null;
         while (childrenIt.hasNext()) {
             child = childrenIt.next();
-            mMap.remove(child.getKey());
-            removeDescendants(child);
+            mMap.remove(child.getKey(), child);
+            removeFromTree(tree, child);
+            removeDescendants(tree, child);
+        }
+    }
+
+    private void addToTree(Tree tree, Node<V> node) {
+        tree.mNodes.put(node.getKey(), node);
+        if (node.getPayload() != null) {
+            tree.mPayloadCount++;
+        }
+    }
+
+    private void removeFromTree(Tree tree, Node<V> node) {
+        if (tree.mNodes.remove(node.getKey()) != null && node.getPayload() != null) {
+            tree.mPayloadCount--;
+        }
+    }
+
+    private void discardIfEmpty(Tree tree, Account account) {
+        if (tree.mNodes.isEmpty()) {
+            tree.mDiscarded = true;
+            mTrees.remove(account.name, tree);
         }
     }
 
@@ -204,7 +359,7 @@ public class IndexedForest<V> {
         return mMap.containsKey(targetKey);
     }
 
-    public /* synchronized */ V get(String key) {
+    public V get(String key) {
         Node<V> node = mMap.get(key);
         if (node != null) {
             return node.getPayload();
@@ -220,17 +375,86 @@ public class IndexedForest<V> {
 
 
     /**
-     * Remove the elements that contains account as a part of its key
-     * @param account
+     * @param account       ownCloud account.
+     * @param remotePath    Path of a file or folder in the server.
+     * @return              Number of values kept for the path and the paths below it.
+     */
+    public int getPendingCount(Account account, String remotePath) {
+        Node<V> node = mMap.get(buildKey(account, remotePath));
+        return (node != null) ? node.mSubtreeCount : 0;
+    }
+
+    /**
+     * @param account       ownCloud account.
+     * @param remotePath    Path of a file or folder in the server.
+     * @return              Bytes of the values kept for the path and the paths below it.
+     */
+    public long getPendingBytes(Account account, String remotePath) {
+        Node<V> node = mMap.get(buildKey(account, remotePath));
+        return (node != null) ? node.mSubtreeBytes : 0;
+    }
+
+
+    /**
+     * Removes all the elements of an account.
+     *
+     * Only the nodes of the account are visited.
+     *
+     * @param account   ownCloud account.
+     * @return          Values removed.
      */
-    public void remove(Account account){
-        Iterator<String> it = mMap.keySet().iterator();
-        while (it.hasNext()) {
-            String key = it.next();
-            Log_OC.d("IndexedForest", "Number of pending downloads= "  + mMap.size());
-            if (key.startsWith(account.name)) {
-                mMap.remove(key);
+    public List<V> remove(Account account) {
+        Tree tree = mTrees.remove(account.name);
+        if (tree == null) {
+            return Collections.emptyList();
+        }
+        synchronized (tree) {
+            tree.mDiscarded = true;
+            List<V> removed = new ArrayList<V>(tree.mPayloadCount);
+            for (Node<V> node : tree.mNodes.values()) {
+                // nodes added meanwhile by a new tree of the account are kept
+                mMap.remove(node.getKey(), node);
+                if (node.getPayload() != null) {
+                    removed.add(node.getPayload());
+                }
             }
+            tree.mNodes.clear();
+            tree.mPayloadCount = 0;
+            return removed;
+        }
+    }
+
+    /**
+     * @param account   ownCloud account.
+     * @return          Number of values kept for the account.
+     */
+    public int count(Account account) {
+        Tree tree = mTrees.get(account.name);
+        if (tree == null) {
+            return 0;
+        }
+        synchronized (tree) {
+            return tree.mPayloadCount;
+        }
+    }
+
+    /**
+     * @param account   ownCloud account.
+     * @return          Values kept for the account, in no particular order.
+     */
+    public List<V> getValues(Account account) {
+        Tree tree = mTrees.get(account.name);
+        if (tree == null) {
+            return Collections.emptyList();
+        }
+        synchronized (tree) {
+            List<V> values = new ArrayList<V>(tree.mPayloadCount);
+            for (Node<V> node : tree.mNodes.values()) {
+                if (node.getPayload() != null) {
+                    values.add(node.getPayload());
+                }
+            }
+            return values;
         }
     }
 
@@ -240,8 +464,29 @@ public class IndexedForest<V> {
      * @param account       Account where the file to download is stored
      * @param remotePath    Path of the file in the server
      */
-    private String buildKey(Account account, String remotePath) {
-        return account.name + remotePath;
+    public String buildKey(Account account, String remotePath) {
+        return account.name + KEY_SEPARATOR + remotePath;
+    }
+
+    private String getPath(Account account, String key) {
+        return key.substring(account.name.length() + KEY_SEPARATOR.length());
+    }
+
+    /**
+     * @param remotePath    Path of a file or folder in the server; paths of folders may end
+     *                      with a separator.
+     * @return              Path of the parent folder, always ending with a separator.
+     */
+    static String getParentPath(String remotePath) {
+        int end = remotePath.length();
+        if (remotePath.endsWith(OCFile.PATH_SEPARATOR)) {
+            end--;
+        }
+        int separator = remotePath.lastIndexOf(OCFile.PATH_SEPARATOR, end - 1);
+        if (separator < 0) {
+            return OCFile.ROOT_PATH;
+        }
+        return remotePath.substring(0, separator + 1);
     }
 
 }
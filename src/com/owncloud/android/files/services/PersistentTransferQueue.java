@@ -0,0 +1,304 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.db.QueuedTransfer;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+/**
+ * Keeps in the database a copy of the queue of a transfer service, so that the transfers
+ * waiting or in progress are not lost when the process of the app is killed.
+ *
+ * Transfers are stored when they are added to the in-memory queue of the service and removed
+ * when they finish, are cancelled, or fail for reasons that will not go away by themselves.
+ * Transfers failing for transient reasons are kept and the service is started again to retry
+ * them after a delay, with an alarm.
+ *
+ * The in-memory queue of the service keeps on being the reference while the service is alive;
+ * the stored copy is only read when the service starts and when a retry is due.
+ *
+ * Changes are written in a thread of its own, in the order they are requested, so that the
+ * main thread of the service doesn't wait for the database.
+ */
+public class PersistentTransferQueue {
+
+    private static final String TAG = PersistentTransferQueue.class.getSimpleName();
+
+    private final Context mContext;
+    private final int mType;
+    private final Class<?> mServiceClass;
+    private final String mRetryAction;
+
+    /** Identifiers in the database of the transfers in the in-memory queue, by transfer key */
+    private final Map<String, Long> mIds = new ConcurrentHashMap<String, Long>();
+
+    /** Writes the changes, one after other */
+    private final Handler mWriter;
+
+
+    /**
+     * @param context       Context of the transfer service.
+     * @param type          Type of transfers: {@link QueuedTransfer#TYPE_DOWNLOAD} or
+     *                      {@link QueuedTransfer#TYPE_UPLOAD}.
+     * @param serviceClass  Class of the transfer service, started when a retry is due.
+     * @param retryAction   Action of the intent starting the service when a retry is due.
+     */
+    public PersistentTransferQueue(Context context, int type, Class<?> serviceClass,
+                                   String retryAction) {
+        mContext = context.getApplicationContext();
+        mType = type;
+        mServiceClass = serviceClass;
+        mRetryAction = retryAction;
+
+        HandlerThread writerThread = new HandlerThread(TAG + mType,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        writerThread.start();
+        mWriter = new Handler(writerThread.getLooper());
+    }
+
+
+    /**
+     * Stores new transfers.
+     *
+     * Done before the transfers are run, so that they are stored when they start.
+     *
+     * @param transfers     Transfers to store.
+     * @param keys          Keys of the transfers in the in-memory queue, in the same order.
+     */
+    public void add(final List<QueuedTransfer> transfers, final List<String> keys) {
+        if (transfers.isEmpty()) {
+            return;
+        }
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                DbHandler db = new DbHandler(mContext);
+                try {
+                    db.putTransfers(transfers);
+                } finally {
+                    db.close();
+                }
+                for (int i = 0; i < transfers.size(); i++) {
+                    long id = transfers.get(i).getId();
+                    if (id != -1) {
+                        mIds.put(keys.get(i), id);
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Links a transfer read from the database with its key in the in-memory queue.
+     */
+    public void bind(final String key, final QueuedTransfer transfer) {
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                mIds.put(key, transfer.getId());
+            }
+        });
+    }
+
+
+    /**
+     * Forgets a transfer read from the database, unless the transfer in the in-memory queue
+     * with the given key is its copy.
+     */
+    public void discardUnlessBound(final String key, final QueuedTransfer transfer) {
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                Long id = mIds.get(key);
+                if (id == null || id != transfer.getId()) {
+                    discard(transfer);
+                }
+            }
+        });
+    }
+
+
+    public void onTransferStarted(final String key) {
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                Long id = mIds.get(key);
+                if (id != null) {
+                    DbHandler db = new DbHandler(mContext);
+                    try {
+                        db.setTransferInProgress(id);
+                    } finally {
+                        db.close();
+                    }
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Removes a finished transfer, or schedules a retry if it failed for a transient reason.
+     *
+     * @param key       Key of the transfer in the in-memory queue.
+     * @param result    Result of the transfer.
+     */
+    public void onTransferFinished(final String key, final RemoteOperationResult result) {
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                Long id = mIds.remove(key);
+                if (id == null) {
+                    return;
+                }
+                DbHandler db = new DbHandler(mContext);
+                try {
+                    boolean cancelled =
+                            (result != null && result.getCode() == ResultCode.CANCELLED);
+                    if (!cancelled && QueuedTransfer.isRetriable(result)) {
+                        long nextAttempt = db.setTransferFailed(id, System.currentTimeMillis());
+                        if (nextAttempt > 0) {
+                            Log_OC.d(TAG, "Transfer " + key + " will be retried at " +
+                                    nextAttempt);
+                            scheduleRetry(db.getNextTransferAttempt(mType));
+                        }
+                    } else {
+                        db.removeTransfer(id);
+                    }
+                } finally {
+                    db.close();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Removes the transfers of a file or folder, or of a full account.
+     *
+     * @param accountName   Name of the ownCloud account.
+     * @param remotePath    Path of a file or folder in the server, or null for all the
+     *                      transfers of the account.
+     */
+    public void remove(final String accountName, final String remotePath) {
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                DbHandler db = new DbHandler(mContext);
+                try {
+                    db.removeTransfers(mType, accountName, remotePath);
+                } finally {
+                    db.close();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Forgets a transfer read from the database that can't be performed anymore.
+     *
+     * Blocks on the database; don't call from the main thread.
+     */
+    public void discard(QueuedTransfer transfer) {
+        DbHandler db = new DbHandler(mContext);
+        try {
+            db.removeTransfer(transfer.getId());
+        } finally {
+            db.close();
+        }
+    }
+
+
+    /**
+     * Reads the stored transfers that are ready to run, and schedules the retry of the rest.
+     *
+     * Blocks on the database; don't call from the main thread.
+     *
+     * @param afterRestart  When 'true', transfers stored as in progress are considered
+     *                      interrupted by the end of the former process and returned too.
+     * @return              Transfers ready to run, in the order they should run.
+     */
+    public List<QueuedTransfer> recover(boolean afterRestart) {
+        DbHandler db = new DbHandler(mContext);
+        try {
+            if (afterRestart) {
+                int interrupted = db.resetTransfersInProgress(mType);
+                if (interrupted > 0) {
+                    Log_OC.d(TAG, "Recovered " + interrupted + " interrupted transfers");
+                }
+            }
+            List<QueuedTransfer> transfers =
+                    db.getTransfersToRun(mType, System.currentTimeMillis());
+            scheduleRetry(db.getNextTransferAttempt(mType));
+            return transfers;
+
+        } finally {
+            db.close();
+        }
+    }
+
+
+    /**
+     * Stops tracking the transfers in the in-memory queue, so that the transfers interrupted
+     * by the end of the service are kept to be run the next time it starts.
+     *
+     * The changes requested before are still written; later ones are ignored.
+     */
+    public void close() {
+        mWriter.post(new Runnable() {
+            @Override
+            public void run() {
+                mIds.clear();
+                mWriter.getLooper().quit();
+            }
+        });
+    }
+
+
+    private void scheduleRetry(long when) {
+        if (when <= 0) {
+            return;
+        }
+        Intent retry = new Intent(mContext, mServiceClass);
+        retry.setAction(mRetryAction);
+        PendingIntent pendingRetry = PendingIntent.getService(mContext, mType, retry,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        // not waking up the device; the retry can wait until it's awake
+        am.set(AlarmManager.RTC, when, pendingRetry);
+    }
+
+}
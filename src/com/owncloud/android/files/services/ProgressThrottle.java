@@ -0,0 +1,102 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+/**
+ * Limits the rate at which the progress of a transfer is reported to status notifications and
+ * listeners.
+ *
+ * Transfers report progress for every buffer sent or received, many times per second; this
+ * lets through at most one report per interval, plus the first one and the one reaching the
+ * end of the transfer. The bytes of the reports held back are accumulated, so that the next
+ * report carries all of them.
+ */
+public class ProgressThrottle {
+
+    /** Default minimum time between reports, in milliseconds: at most 2 per second */
+    public static final long DEFAULT_INTERVAL = 500;
+
+    private final long mIntervalNanos;
+    private long mLastReport;
+    private boolean mReported = false;
+    private long mPendingBytes = 0;
+
+
+    public ProgressThrottle() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * @param intervalMillis    Minimum time between reports, in milliseconds.
+     */
+    public ProgressThrottle(long intervalMillis) {
+        mIntervalNanos = intervalMillis * 1000000L;
+    }
+
+
+    /**
+     * Accounts new progress of the transfer.
+     *
+     * @param progressRate      Bytes transferred since the last progress.
+     * @param transferred       Total bytes transferred so far.
+     * @param total             Total bytes to transfer, or a negative value if unknown.
+     * @return                  'True' if the progress must be reported now; the bytes to
+     *                          report are returned by {@link #takePendingBytes()}.
+     */
+    public synchronized boolean onProgress(long progressRate, long transferred, long total) {
+        mPendingBytes += progressRate;
+        long now = System.nanoTime();
+        if (!mReported || now - mLastReport >= mIntervalNanos ||
+                (total >= 0 && transferred >= total)) {
+            mReported = true;
+            mLastReport = now;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Checks if the minimum interval passed since the last report, without accounting any
+     * progress; for reports aggregating several transfers.
+     *
+     * @return  'True' if a report must be done now.
+     */
+    public synchronized boolean isDue() {
+        long now = System.nanoTime();
+        if (!mReported || now - mLastReport >= mIntervalNanos) {
+            mReported = true;
+            mLastReport = now;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * @return  Bytes transferred since the last report, and forgets them.
+     */
+    public synchronized long takePendingBytes() {
+        long pending = mPendingBytes;
+        mPendingBytes = 0;
+        return pending;
+    }
+
+}
@@ -0,0 +1,76 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream reading from another one at the pace allowed by a {@link BandwidthGovernor}
+ * for a class of traffic.
+ *
+ * Wrapping the stream of a response slows down its reading, and so the sender, through the
+ * flow control of the connection.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+
+    private final BandwidthGovernor mGovernor;
+    private final BandwidthGovernor.TrafficClass mTrafficClass;
+
+    public ThrottledInputStream(InputStream in, BandwidthGovernor.TrafficClass trafficClass) {
+        this(in, BandwidthGovernor.getInstance(), trafficClass);
+    }
+
+    public ThrottledInputStream(InputStream in, BandwidthGovernor governor,
+                                BandwidthGovernor.TrafficClass trafficClass) {
+        super(in);
+        mGovernor = governor;
+        mTrafficClass = trafficClass;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = super.read();
+        if (read >= 0) {
+            mGovernor.acquire(mTrafficClass, 1);
+        }
+        return read;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read > 0) {
+            mGovernor.acquire(mTrafficClass, read);
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = super.skip(count);
+        if (skipped > 0) {
+            mGovernor.acquire(mTrafficClass, (int) Math.min(skipped, Integer.MAX_VALUE));
+        }
+        return skipped;
+    }
+
+}
@@ -0,0 +1,253 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.files.services;
+
+import android.os.Process;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ *  Pool of worker threads performing the transfers requested to a transfer service.
+ *
+ *  Transfers are identified by a key and grouped by account. Workers take transfers from the
+ *  groups in round-robin order, so that a burst of requests for an account doesn't delay the
+ *  transfers of the rest. No more than a fixed number of transfers of the same group are run
+ *  at the same time.
+ */
+public class TransferDispatcher {
+
+    private static final String TAG = TransferDispatcher.class.getSimpleName();
+
+    /**
+     * Performs the transfers taken by the workers, and is notified when all of them are done.
+     */
+    public interface TransferPerformer {
+
+        /**
+         * Performs a transfer. Called from a worker thread.
+         *
+         * @param transferKey   Key of the transfer to perform.
+         */
+        void performTransfer(String transferKey);
+
+        /**
+         * Called from a worker thread when no transfer is running or waiting.
+         */
+        void onTransfersFinished();
+    }
+
+    private final TransferPerformer mPerformer;
+    private final int mMaxWorkersPerGroup;
+    private final Thread[] mWorkers;
+
+    /** Groups with waiting transfers, in the order they will be served */
+    private final LinkedList<String> mGroupsOrder = new LinkedList<String>();
+
+    /** Waiting transfers, per group */
+    private final Map<String, LinkedList<String>> mWaiting =
+            new HashMap<String, LinkedList<String>>();
+
+    /** Waiting transfers to run before the rest of their group, per group */
+    private final Map<String, LinkedList<String>> mUrgent =
+            new HashMap<String, LinkedList<String>>();
+
+    /** Number of transfers currently running, per group */
+    private final Map<String, Integer> mRunning = new HashMap<String, Integer>();
+
+    private int mRunningCount = 0;
+    private boolean mShutdown = false;
+
+
+    /**
+     * Creates and starts a pool of workers.
+     *
+     * @param name                  Name for the worker threads.
+     * @param maxWorkers            Maximum number of transfers to perform at the same time.
+     * @param maxWorkersPerGroup    Maximum number of transfers of the same group to perform at
+     *                              the same time.
+     * @param performer             Object performing every transfer.
+     */
+    public TransferDispatcher(String name, int maxWorkers, int maxWorkersPerGroup,
+                              TransferPerformer performer) {
+        if (performer == null) {
+            throw new IllegalArgumentException("Received invalid NULL in parameter 'performer'");
+        }
+        mPerformer = performer;
+        mMaxWorkersPerGroup = Math.max(1, maxWorkersPerGroup);
+        mWorkers = new Thread[Math.max(1, maxWorkers)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(name + i);
+            mWorkers[i].start();
+        }
+    }
+
+
+    /**
+     * Adds a transfer to the tail of the queue of its group.
+     *
+     * @param group         Group of the transfer; usually, the name of its account.
+     * @param transferKey   Key of the transfer, passed to {@link TransferPerformer}.
+     */
+    public synchronized void dispatch(String group, String transferKey) {
+        dispatch(group, transferKey, false);
+    }
+
+
+    /**
+     * Adds a transfer to the queue of its group.
+     *
+     * Urgent transfers run before the non urgent transfers waiting in the same group, and their
+     * group gets the next turn.
+     *
+     * @param group         Group of the transfer; usually, the name of its account.
+     * @param transferKey   Key of the transfer, passed to {@link TransferPerformer}.
+     * @param urgent        When 'true', the transfer is run as soon as possible.
+     */
+    public synchronized void dispatch(String group, String transferKey, boolean urgent) {
+        Map<String, LinkedList<String>> queues = urgent ? mUrgent : mWaiting;
+        LinkedList<String> waiting = queues.get(group);
+        if (waiting == null) {
+            waiting = new LinkedList<String>();
+            queues.put(group, waiting);
+        }
+        waiting.add(transferKey);
+        if (urgent) {
+            mGroupsOrder.remove(group);
+            mGroupsOrder.addFirst(group);
+        } else if (!mGroupsOrder.contains(group)) {
+            mGroupsOrder.add(group);
+        }
+        notifyAll();
+    }
+
+
+    /**
+     * @return  'true' if no transfer is running or waiting.
+     */
+    public synchronized boolean isIdle() {
+        return (mRunningCount == 0 && mGroupsOrder.isEmpty());
+    }
+
+
+    /**
+     * Stops the workers. Transfers waiting in the queue are discarded; transfers in progress
+     * should be cancelled by the caller.
+     */
+    public synchronized void shutdown() {
+        mShutdown = true;
+        mWaiting.clear();
+        mUrgent.clear();
+        mGroupsOrder.clear();
+        notifyAll();
+    }
+
+
+    /**
+     * Takes the next transfer to run, if any is allowed.
+     *
+     * Must be called with the monitor held.
+     *
+     * @return  Pair group - key of the next transfer, or null if no transfer can be run now.
+     */
+    private String[] takeNext() {
+        Iterator<String> it = mGroupsOrder.iterator();
+        while (it.hasNext()) {
+            String group = it.next();
+            Integer running = mRunning.get(group);
+            if (running == null || running < mMaxWorkersPerGroup) {
+                Map<String, LinkedList<String>> queues =
+                        mUrgent.containsKey(group) ? mUrgent : mWaiting;
+                LinkedList<String> waiting = queues.get(group);
+                String key = waiting.removeFirst();
+                it.remove();
+                if (waiting.isEmpty()) {
+                    queues.remove(group);
+                }
+                if (mUrgent.containsKey(group) || mWaiting.containsKey(group)) {
+                    mGroupsOrder.add(group);    // to the tail; next group gets the next turn
+                }
+                mRunning.put(group, (running == null) ? 1 : running + 1);
+                mRunningCount++;
+                return new String[]{group, key};
+            }
+        }
+        return null;
+    }
+
+
+    private synchronized boolean release(String group) {
+        int running = mRunning.get(group) - 1;
+        if (running > 0) {
+            mRunning.put(group, running);
+        } else {
+            mRunning.remove(group);
+        }
+        mRunningCount--;
+        notifyAll();    // a worker could be waiting for the limit of this group
+        return (mRunningCount == 0 && mGroupsOrder.isEmpty() && !mShutdown);
+    }
+
+
+    private class Worker extends Thread {
+
+        public Worker(String name) {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            String[] next;
+            while (true) {
+                synchronized (TransferDispatcher.this) {
+                    next = takeNext();
+                    while (next == null && !mShutdown) {
+                        try {
+                            TransferDispatcher.this.wait();
+                        } catch (InterruptedException e) {
+                            Log_OC.w(TAG, "Worker " + getName() + " interrupted while waiting");
+                        }
+                        next = takeNext();
+                    }
+                    if (mShutdown) {
+                        return;
+                    }
+                }
+                try {
+                    mPerformer.performTransfer(next[1]);
+
+                } catch (RuntimeException e) {
+                    Log_OC.e(TAG, "Unexpected exception performing " + next[1], e);
+
+                } finally {
+                    if (release(next[0])) {
+                        mPerformer.onTransfersFinished();
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PutMethod;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+
+/**
+ * Remote operation uploading in a single request the contents read from a {@link FileChannel},
+ * such as the one of a file descriptor handed out by a content provider, with no need of a
+ * copy in the local file system.
+ *
+ * The channel is read with positional reads, so the request can be sent again if needed. The
+ * channel is not closed by the operation.
+ */
+public class ChannelUploadRemoteFileOperation extends UploadRemoteFileOperation {
+
+    private static final String TAG = ChannelUploadRemoteFileOperation.class.getSimpleName();
+
+    private static final String OC_TOTAL_LENGTH_HEADER = "OC-Total-Length";
+    private static final String IF_MATCH_HEADER = "If-Match";
+
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final String mSourceName;
+    private final String mTargetPath;
+    private final String mContentType;
+    private final String mEtagToMatch;
+
+    private final Set<OnDatatransferProgressListener> mListeners =
+            new HashSet<OnDatatransferProgressListener>();
+    private final AtomicBoolean mCancelled = new AtomicBoolean(false);
+    private PutMethod mPut;
+    private FileChunkRequestEntity mEntity;
+
+
+    /**
+     * @param channel       Channel to read the contents to upload from.
+     * @param length        Length of the contents.
+     * @param sourceName    Name of the source of the contents, passed to the listeners.
+     * @param remotePath    Path of the file in the server.
+     * @param mimeType      MIME type of the file.
+     * @param requiredEtag  ETag the remote file must match to be overwritten, or null.
+     */
+    public ChannelUploadRemoteFileOperation(FileChannel channel, long length, String sourceName,
+                                            String remotePath, String mimeType,
+                                            String requiredEtag) {
+        super(sourceName, remotePath, mimeType, requiredEtag);
+        mChannel = channel;
+        mLength = length;
+        mSourceName = sourceName;
+        mTargetPath = remotePath;
+        mContentType = mimeType;
+        mEtagToMatch = requiredEtag;
+    }
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        PutMethod put = new PutMethod(client.getWebdavUri() + WebdavUtils.encodePath(mTargetPath));
+        try {
+            if (mEtagToMatch != null && mEtagToMatch.length() > 0) {
+                put.addRequestHeader(IF_MATCH_HEADER, "\"" + mEtagToMatch + "\"");
+            }
+            put.addRequestHeader(OC_TOTAL_LENGTH_HEADER, String.valueOf(mLength));
+            mEntity = new FileChunkRequestEntity(mChannel, 0, mLength, mContentType,
+                    mSourceName, new OnDatatransferProgressListener() {
+                        @Override
+                        public void onTransferProgress(long progressRate,
+                                                       long totalTransferredSoFar,
+                                                       long totalToTransfer, String fileName) {
+                            notifyProgress(progressRate, totalTransferredSoFar);
+                        }
+                    });
+            put.setRequestEntity(mEntity);
+
+            synchronized (mCancelled) {
+                if (mCancelled.get()) {
+                    throw new OperationCancelledException();
+                }
+                mPut = put;
+            }
+            int status = client.executeMethod(put);
+            client.exhaustResponse(put.getResponseBodyAsStream());
+            result = new RemoteOperationResult(isSuccess(status), status,
+                    put.getResponseHeaders());
+
+        } catch (Exception e) {
+            if (mCancelled.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+                Log_OC.e(TAG, "Upload of " + mSourceName + " to " + mTargetPath + ": " +
+                        result.getLogMessage(), e);
+            }
+
+        } finally {
+            put.releaseConnection();    // let the connection available for other methods
+        }
+        return result;
+    }
+
+
+    /**
+     * @return  Hash of the contents sent, computed by
+     *          {@link com.owncloud.android.utils.ContentHash}; null if they were not
+     *          completely sent.
+     */
+    public String getContentHash() {
+        return (mEntity != null) ? mEntity.getContentHash() : null;
+    }
+
+
+    private boolean isSuccess(int status) {
+        return (status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED ||
+                status == HttpStatus.SC_NO_CONTENT);
+    }
+
+
+    private void notifyProgress(long progressRate, long transferred) {
+        synchronized (mListeners) {
+            Iterator<OnDatatransferProgressListener> it = mListeners.iterator();
+            while (it.hasNext()) {
+                it.next().onTransferProgress(progressRate, transferred, mLength, mSourceName);
+            }
+        }
+    }
+
+
+    @Override
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (mCancelled) {
+            mCancelled.set(true);
+            if (mPut != null) {
+                mPut.abort();
+            }
+        }
+        super.cancel();
+    }
+
+}
@@ -0,0 +1,136 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Suggests the size of the chunks for chunked uploads from the throughput and error rate
+ * measured in the chunks sent before through the same type of network.
+ *
+ * The size aims to keep every chunk in transit for about {@link #TARGET_CHUNK_DURATION}, so that
+ * fast links don't waste round trips in small chunks, and is reduced when chunks fail often, so
+ * that retrying a chunk is cheap on bad links.
+ */
+public class ChunkSizeAdvisor {
+
+    public static final long MIN_CHUNK_SIZE = 256 * 1024;
+    public static final long MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    /** Time a chunk should be in transit, in milliseconds */
+    public static final long TARGET_CHUNK_DURATION = 5000;
+
+    private static final long CHUNK_SIZE_STEP = 64 * 1024;
+    private static final double THROUGHPUT_WEIGHT = 0.3;
+    private static final double ERROR_RATE_WEIGHT = 0.2;
+
+    private static final Map<String, ChunkSizeAdvisor> sAdvisors =
+            new HashMap<String, ChunkSizeAdvisor>();
+
+    private final long mInitialChunkSize;
+
+    /** Moving average of the throughput of the chunks sent, in bytes per millisecond */
+    private double mThroughput = -1;
+
+    /** Moving average of the ratio of chunks failed */
+    private double mErrorRate = 0;
+
+    private long mLastChunkSize;
+
+
+    /**
+     * @param context   Context to access the state of the network.
+     * @return          Advisor for the type of network currently in use.
+     */
+    public static ChunkSizeAdvisor forCurrentNetwork(Context context) {
+        String networkType = "none";
+        ConnectivityManager cm =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = (cm != null) ? cm.getActiveNetworkInfo() : null;
+        if (info != null) {
+            networkType = info.getTypeName() + "/" + info.getSubtypeName();
+        }
+        synchronized (sAdvisors) {
+            ChunkSizeAdvisor advisor = sAdvisors.get(networkType);
+            if (advisor == null) {
+                advisor = new ChunkSizeAdvisor(
+                        ResumableChunkedUploadRemoteFileOperation.CHUNK_SIZE);
+                sAdvisors.put(networkType, advisor);
+            }
+            return advisor;
+        }
+    }
+
+
+    /**
+     * @param initialChunkSize  Size suggested until there are measures to decide.
+     */
+    public ChunkSizeAdvisor(long initialChunkSize) {
+        mInitialChunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, initialChunkSize));
+        mLastChunkSize = mInitialChunkSize;
+    }
+
+
+    /**
+     * @return  Size for the chunks of a new upload.
+     */
+    public synchronized long getChunkSize() {
+        double size = (mThroughput < 0) ?
+                mInitialChunkSize : mThroughput * TARGET_CHUNK_DURATION;
+        size *= (1 - Math.min(2 * mErrorRate, 0.75));
+
+        // change smoothly; a single good or bad measure is not a trend
+        size = Math.min(size, 2 * mLastChunkSize);
+        size = Math.max(size, mLastChunkSize / 4);
+
+        long chunkSize = ((long) size / CHUNK_SIZE_STEP) * CHUNK_SIZE_STEP;
+        chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+        mLastChunkSize = chunkSize;
+        return chunkSize;
+    }
+
+
+    /**
+     * Registers a chunk sent successfully.
+     *
+     * @param bytes     Length of the chunk.
+     * @param millis    Time the chunk took to be sent and confirmed.
+     */
+    public synchronized void onChunkSent(long bytes, long millis) {
+        double throughput = (double) bytes / Math.max(millis, 1);
+        mThroughput = (mThroughput < 0) ? throughput :
+                (1 - THROUGHPUT_WEIGHT) * mThroughput + THROUGHPUT_WEIGHT * throughput;
+        mErrorRate = (1 - ERROR_RATE_WEIGHT) * mErrorRate;
+    }
+
+
+    /**
+     * Registers a chunk that could not be sent.
+     */
+    public synchronized void onChunkFailed() {
+        mErrorRate = (1 - ERROR_RATE_WEIGHT) * mErrorRate + ERROR_RATE_WEIGHT;
+    }
+
+}
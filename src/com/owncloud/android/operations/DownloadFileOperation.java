@@ -34,7 +34,6 @@ import com.owncloud.android.lib.common.operations.OperationCancelledException;
 import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.DownloadRemoteFileOperation;
 import com.owncloud.android.utils.FileStorageUtils;
 
 import android.accounts.Account;
@@ -42,6 +41,9 @@ import android.webkit.MimeTypeMap;
 
 /**
  * Remote mDownloadOperation performing the download of a file to an ownCloud server
+ *
+ * Downloads interrupted by a failure or a cancellation are resumed in the next attempt,
+ * see {@link ResumableDownloadRemoteFileOperation}.
  */
 public class DownloadFileOperation extends RemoteOperation {
     
@@ -52,9 +54,12 @@ public class DownloadFileOperation extends RemoteOperation {
     private Set<OnDatatransferProgressListener> mDataTransferListeners = new HashSet<OnDatatransferProgressListener>();
     private long mModificationTimestamp = 0;
     private String mEtag = "";
+    private String mContentHash = null;
     private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
     
-    private DownloadRemoteFileOperation mDownloadOperation;
+    private volatile ResumableDownloadRemoteFileOperation mDownloadOperation;
+    /** Set when stopped to be resumed later, instead of cancelled */
+    private volatile boolean mKeepPartial = false;
 
     
     public DownloadFileOperation(Account account, OCFile file) {
@@ -131,6 +136,13 @@ public class DownloadFileOperation extends RemoteOperation {
         return mEtag;
     }
 
+    /**
+     * @return  Hash of the contents downloaded, or null if unknown.
+     */
+    public String getContentHash() {
+        return mContentHash;
+    }
+
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
         RemoteOperationResult result;
@@ -149,7 +161,16 @@ public class DownloadFileOperation extends RemoteOperation {
             }
         }
         
-        mDownloadOperation = new DownloadRemoteFileOperation(mFile.getRemotePath(), tmpFolder);
+        mDownloadOperation = new ResumableDownloadRemoteFileOperation(mFile.getRemotePath(),
+                tmpFolder);
+        if (mCancellationRequested.get()) {
+            // stopped while starting
+            if (mKeepPartial) {
+                mDownloadOperation.interrupt();
+            } else {
+                mDownloadOperation.cancel();
+            }
+        }
         Iterator<OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
         while (listener.hasNext()) {
             mDownloadOperation.addDatatransferProgressListener(listener.next());
@@ -159,6 +180,7 @@ public class DownloadFileOperation extends RemoteOperation {
         if (result.isSuccess()) {
             mModificationTimestamp = mDownloadOperation.getModificationTimestamp();
             mEtag = mDownloadOperation.getEtag();
+            mContentHash = mDownloadOperation.getContentHash();
             newFile = new File(getSavePath());
             newFile.getParentFile().mkdirs();
             moved = tmpFile.renameTo(newFile);
@@ -172,10 +194,31 @@ public class DownloadFileOperation extends RemoteOperation {
         return result;
     }
 
+    /**
+     * Cancels the download; the partial contents received, in this or a former attempt, are
+     * discarded.
+     */
     public void cancel() {
         mCancellationRequested.set(true);   // atomic set; there is no need of synchronizing it
-        if (mDownloadOperation != null) {
-            mDownloadOperation.cancel();
+        ResumableDownloadRemoteFileOperation download = mDownloadOperation;
+        if (download != null) {
+            download.cancel();
+        } else {
+            // not started; partial contents of a former attempt would not be resumed
+            ResumableDownloadRemoteFileOperation.discardPartial(getTmpPath());
+        }
+    }
+
+    /**
+     * Stops the download keeping the partial contents received, so that a later download of
+     * the same file resumes it.
+     */
+    public void interrupt() {
+        mKeepPartial = true;
+        mCancellationRequested.set(true);
+        ResumableDownloadRemoteFileOperation download = mDownloadOperation;
+        if (download != null) {
+            download.interrupt();
         }
     }
 
@@ -0,0 +1,150 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import com.owncloud.android.files.services.BandwidthGovernor;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.utils.ContentHash;
+
+/**
+ * Request entity sending a chunk of a local file.
+ *
+ * Contents are read with positional reads from a {@link FileChannel} that can be shared by
+ * several entities at the same time, since the position of the channel is never modified.
+ *
+ * Contents are sent at the pace allowed by the {@link BandwidthGovernor} for uploads.
+ *
+ * An MD5 hash of the contents is computed while they are sent, so that a resumed upload can
+ * check if the chunk is still equal in the local file.
+ */
+public class FileChunkRequestEntity implements RequestEntity {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private final FileChannel mChannel;
+    private final long mOffset;
+    private final long mLength;
+    private final String mContentType;
+    private final String mFileName;
+    private final OnDatatransferProgressListener mListener;
+    private volatile String mContentHash = null;
+
+
+    /**
+     * @param channel       Channel to the local file; shared, its position is not modified.
+     * @param offset        Position in the file of the first byte of the chunk.
+     * @param length        Length of the chunk.
+     * @param contentType   MIME type of the file.
+     * @param fileName      Name of the local file, passed to the listener.
+     * @param listener      Listener notified about the bytes sent; may be null. When the
+     *                      entity is written again, the count restarts from 0.
+     */
+    public FileChunkRequestEntity(FileChannel channel, long offset, long length,
+                                  String contentType, String fileName,
+                                  OnDatatransferProgressListener listener) {
+        if (channel == null) {
+            throw new IllegalArgumentException("Received invalid NULL in parameter 'channel'");
+        }
+        mChannel = channel;
+        mOffset = offset;
+        mLength = length;
+        mContentType = contentType;
+        mFileName = fileName;
+        mListener = listener;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mLength;
+    }
+
+    @Override
+    public String getContentType() {
+        return mContentType;
+    }
+
+    /**
+     * @return  MD5 hash of the contents, in hexadecimal, after they were completely written;
+     *          null before.
+     */
+    public String getContentHash() {
+        return mContentHash;
+    }
+
+    @Override
+    public void writeRequest(OutputStream out) throws IOException {
+        mContentHash = null;
+        MessageDigest digest = ContentHash.newDigest();
+        BandwidthGovernor governor = BandwidthGovernor.getInstance();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(mLength, 1)));
+        long position = mOffset;
+        long end = mOffset + mLength;
+        long transferred = 0;
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file " + mFileName + " at position " +
+                        position);
+            }
+            governor.acquire(BandwidthGovernor.TrafficClass.UPLOAD, read);
+            out.write(buffer.array(), 0, read);
+            digest.update(buffer.array(), 0, read);
+            position += read;
+            transferred += read;
+            if (mListener != null) {
+                mListener.onTransferProgress(read, transferred, mLength, mFileName);
+            }
+        }
+        mContentHash = ContentHash.toHex(digest.digest());
+    }
+
+
+    /**
+     * Computes the hash that {@link #getContentHash()} would return for a chunk of a file,
+     * without sending it.
+     *
+     * @param channel       Channel to the local file; its position is not modified.
+     * @param offset        Position in the file of the first byte of the chunk.
+     * @param length        Length of the chunk.
+     * @return              MD5 hash of the chunk, in hexadecimal.
+     */
+    public static String computeHash(FileChannel channel, long offset, long length)
+            throws IOException {
+        return ContentHash.compute(channel, offset, length);
+    }
+
+}
@@ -33,6 +33,7 @@ import android.util.Log;
 
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.files.services.BandwidthGovernor;
 
 import com.owncloud.android.lib.common.OwnCloudClient;
 import com.owncloud.android.lib.resources.shares.OCShare;
@@ -190,21 +191,32 @@ public class RefreshFolderOperation extends RemoteOperation {
 
         }
         
-        result = checkForChanges(client);
-        
-        if (result.isSuccess()) {
-            if (mRemoteFolderChanged) {
-                result = fetchAndSyncRemoteFolder(client);
-            } else {
-                fetchFavoritesToSyncFromLocalData();
-                mChildren = mStorageManager.getFolderContent(mLocalFolder/*, false*/);
-            }
+        BandwidthGovernor governor = BandwidthGovernor.getInstance();
+        if (!mSyncFullAccount) {
+            // the user is waiting for the contents of the folder; bulk transfers give way
+            governor.beginInteractive();
+        }
+        try {
+            result = checkForChanges(client);
 
             if (result.isSuccess()) {
-                // request for the synchronization of KEPT-IN-SYNC file contents
-                startContentSynchronizations(mFilesToSyncContents, client);
+                if (mRemoteFolderChanged) {
+                    result = fetchAndSyncRemoteFolder(client);
+                } else {
+                    fetchFavoritesToSyncFromLocalData();
+                    mChildren = mStorageManager.getFolderContent(mLocalFolder/*, false*/);
+                }
+            }
+        } finally {
+            if (!mSyncFullAccount) {
+                governor.endInteractive();
             }
         }
+
+        if (result.isSuccess()) {
+            // request for the synchronization of KEPT-IN-SYNC file contents
+            startContentSynchronizations(mFilesToSyncContents, client);
+        }
         
         if (!mSyncFullAccount) {            
             sendLocalBroadcast(
@@ -394,6 +406,7 @@ public class RefreshFolderOperation extends RemoteOperation {
                         localFile.getModificationTimestampAtLastSyncForData()
                 );
                 updatedFile.setStoragePath(localFile.getStoragePath());
+                updatedFile.setImageOrientation(localFile.getImageOrientation());
                 // eTag will not be updated unless file CONTENTS are synchronized
                 updatedFile.setEtag(localFile.getEtag());
                 if (updatedFile.isFolder()) {
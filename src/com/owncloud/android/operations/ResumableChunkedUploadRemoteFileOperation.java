@@ -0,0 +1,709 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.PutMethod;
+
+import android.content.Context;
+import android.os.Process;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
+import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+
+/**
+ * Remote operation performing the chunked upload of a local file, able to resume a former
+ * upload of the same file that was interrupted, even by the death of the process.
+ *
+ * Every chunk accepted by the server is recorded in the database together with the transfer
+ * id of the upload. A later upload of the same local file, unmodified, to the same remote
+ * path, reuses the transfer id and sends only the chunks that were not recorded; the server
+ * assembles the file when it has received all of them.
+ *
+ * Up to a given number of chunks are sent in parallel, read with positional reads from a
+ * single {@link FileChannel}, so memory use is bounded by the number of chunks in transit and
+ * not by the size of the file. A chunk that fails is retried on its own a few times before
+ * the upload is given up.
+ *
+ * The size of the chunks is suggested by a {@link ChunkSizeAdvisor} from the throughput and
+ * errors measured in former chunks, and fed with the measures of the chunks of this upload.
+ * It is decided when the upload starts, since the number of chunks is part of their names.
+ *
+ * A former upload of the same local file that was modified afterwards without changing its
+ * length, as files kept in sync usually are, is resumed too: the recorded chunks whose
+ * contents hash as when they were sent are not sent again.
+ */
+public class ResumableChunkedUploadRemoteFileOperation extends UploadRemoteFileOperation {
+
+    private static final String TAG = ResumableChunkedUploadRemoteFileOperation.class.getSimpleName();
+
+    public static final long CHUNK_SIZE = ChunkedUploadRemoteFileOperation.CHUNK_SIZE;
+
+    /**
+     * Time the chunks of an unfinished upload are considered valid; servers discard them some
+     * time after, 24 hours by default.
+     */
+    private static final long CHUNKS_LIFETIME = 12 * 60 * 60 * 1000;
+
+    private static final String OC_CHUNKED_HEADER = "OC-Chunked";
+    private static final String OC_CHUNK_SIZE_HEADER = "OC-Chunk-Size";
+    private static final String OC_TOTAL_LENGTH_HEADER = "OC-Total-Length";
+    private static final String IF_MATCH_HEADER = "If-Match";
+
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
+    private static final long CHUNK_RETRY_DELAY = 1000;
+
+    /** Serializes the access of the uploads in progress to their records in the database */
+    private static final Object sDbLock = new Object();
+
+    private final Context mContext;
+    private final String mAccountName;
+    private final String mFilePath;
+    private final String mSourcePath;
+    private final long mSourceModified;
+    private final String mTargetPath;
+    private final String mContentType;
+    private final String mEtagToMatch;
+    private final int mParallelChunks;
+    private final ChunkSizeAdvisor mChunkSizeAdvisor;
+
+    private final Set<OnDatatransferProgressListener> mListeners =
+            new HashSet<OnDatatransferProgressListener>();
+    private final AtomicBoolean mCancelled = new AtomicBoolean(false);
+
+    /** Requests in transit; access synchronized on mCancelled */
+    private final Set<PutMethod> mPutsInTransit = new HashSet<PutMethod>();
+    private volatile PutMethod mLastPut;
+
+    private long mFileLength;
+    private FileChannel mLocalChannel = null;
+    private long mChunkSize = CHUNK_SIZE;
+    private final AtomicInteger mFailedAttempts = new AtomicInteger(0);
+    private final AtomicLong mTransferred = new AtomicLong(0);
+
+    /** State shared by the senders of chunks; access synchronized on mPendingChunks */
+    private final LinkedList<Long> mPendingChunks = new LinkedList<Long>();
+    private int mFailedStatus = -1;
+    private Exception mFailure = null;
+
+
+    /**
+     * @param context           Context to access the database of recorded chunks.
+     * @param accountName       Name of the ownCloud account.
+     * @param localPath         Path to the local file to upload.
+     * @param sourcePath        Path to the file the upload comes from, used to identify
+     *                          former uploads of the same contents; may be different from
+     *                          localPath when the file was copied to a temporal folder
+     *                          before the upload.
+     * @param sourceModified    Last modification timestamp of the file in sourcePath; when 0,
+     *                          the upload can't be resumed later.
+     * @param remotePath        Path of the file in the server.
+     * @param mimeType          MIME type of the file.
+     * @param requiredEtag      ETag the remote file must match to be overwritten, or null.
+     * @param parallelChunks    Maximum number of chunks to send at the same time.
+     * @param chunkSizeAdvisor  Advisor deciding the size of the chunks; if null, the size is
+     *                          {@link #CHUNK_SIZE}.
+     */
+    public ResumableChunkedUploadRemoteFileOperation(Context context, String accountName,
+                                                     String localPath, String sourcePath,
+                                                     long sourceModified, String remotePath,
+                                                     String mimeType, String requiredEtag,
+                                                     int parallelChunks,
+                                                     ChunkSizeAdvisor chunkSizeAdvisor) {
+        super(localPath, remotePath, mimeType, requiredEtag);
+        mContext = context;
+        mAccountName = accountName;
+        mFilePath = localPath;
+        mSourcePath = sourcePath;
+        mSourceModified = sourceModified;
+        mTargetPath = remotePath;
+        mContentType = mimeType;
+        mEtagToMatch = requiredEtag;
+        mParallelChunks = Math.max(1, parallelChunks);
+        mChunkSizeAdvisor = chunkSizeAdvisor;
+    }
+
+    /**
+     * Makes the operation read the contents to upload from a channel instead of from the local
+     * path, such as the one of a file descriptor handed out by a content provider.
+     *
+     * The channel must allow positional reads; it is not closed by the operation.
+     *
+     * @param channel       Channel to read the contents to upload from.
+     * @param length        Length of the contents.
+     */
+    public void setLocalChannel(FileChannel channel, long length) {
+        mLocalChannel = channel;
+        mFileLength = length;
+    }
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+        try {
+            if (mCancelled.get()) {
+                throw new OperationCancelledException();
+            }
+            int status = uploadChunks(client);
+            result = new RemoteOperationResult(isSuccess(status), status,
+                    (mLastPut != null ? mLastPut.getResponseHeaders() : null));
+
+        } catch (Exception e) {
+            if (mCancelled.get()) {
+                result = new RemoteOperationResult(new OperationCancelledException());
+            } else {
+                result = new RemoteOperationResult(e);
+            }
+        }
+        return result;
+    }
+
+
+    private int uploadChunks(OwnCloudClient client) throws IOException,
+            OperationCancelledException {
+        File file = new File(mFilePath);
+        if (mLocalChannel == null) {
+            mFileLength = file.length();
+        }
+        mChunkSize = (mChunkSizeAdvisor != null) ? mChunkSizeAdvisor.getChunkSize() : CHUNK_SIZE;
+        boolean resumable = (mSourceModified > 0);
+
+        /// look for the chunks already sent in a former upload of the same file
+        String transferId = null;
+        Set<Long> uploadedChunks = Collections.emptySet();
+        if (resumable) {
+            String modifiedTransferId = null;
+            synchronized (sDbLock) {
+                DbHandler db = new DbHandler(mContext);
+                try {
+                    db.removeExpiredChunks(System.currentTimeMillis() - CHUNKS_LIFETIME);
+                    transferId = db.getChunkedUploadTransferId(mAccountName, mSourcePath,
+                            mTargetPath, mFileLength, mSourceModified,
+                            System.currentTimeMillis() - CHUNKS_LIFETIME);
+                    if (transferId == null) {
+                        modifiedTransferId = db.getChunkedUploadTransferId(mAccountName,
+                                mSourcePath, mTargetPath, mFileLength,
+                                System.currentTimeMillis() - CHUNKS_LIFETIME);
+                    }
+                } finally {
+                    db.close();
+                }
+            }
+            if (modifiedTransferId != null &&
+                    keepUnchangedChunks(modifiedTransferId, file) > 0) {
+                transferId = modifiedTransferId;
+            }
+            synchronized (sDbLock) {
+                DbHandler db = new DbHandler(mContext);
+                try {
+                    if (transferId != null) {
+                        // the chunks of a resumed upload keep the size they had
+                        long formerChunkSize = db.getChunkedUploadChunkSize(transferId);
+                        mChunkSize = (formerChunkSize > 0) ? formerChunkSize : CHUNK_SIZE;
+                        uploadedChunks = db.getUploadedChunks(transferId);
+                        if (uploadedChunks.size() >= chunkCount()) {
+                            // the server already assembled the file, or is not going to
+                            db.removeChunkedUpload(transferId);
+                            transferId = null;
+                            uploadedChunks = Collections.emptySet();
+                            mChunkSize = (mChunkSizeAdvisor != null) ?
+                                    mChunkSizeAdvisor.getChunkSize() : CHUNK_SIZE;
+                        }
+                    }
+                } finally {
+                    db.close();
+                }
+            }
+        }
+        long chunkCount = chunkCount();
+        if (transferId == null) {
+            transferId = String.valueOf(1000 + new Random().nextInt(Integer.MAX_VALUE - 1000));
+        } else {
+            Log_OC.d(TAG, "Resuming upload of " + mFilePath + " to " + mTargetPath + " with " +
+                    uploadedChunks.size() + " of " + chunkCount + " chunks already sent");
+        }
+
+        long alreadySent = 0;
+        for (Long index : uploadedChunks) {
+            alreadySent += chunkLength(index);
+        }
+        mTransferred.set(alreadySent);
+        if (alreadySent > 0) {
+            notifyProgress(0, alreadySent);
+        }
+
+        synchronized (mPendingChunks) {
+            mPendingChunks.clear();
+            for (long index = 0; index < chunkCount; index++) {
+                if (!uploadedChunks.contains(index)) {
+                    mPendingChunks.add(index);
+                }
+            }
+            mFailedStatus = -1;
+            mFailure = null;
+        }
+
+        String uriPrefix = client.getWebdavUri() + WebdavUtils.encodePath(mTargetPath) +
+                "-chunking-" + transferId + "-" + chunkCount + "-";
+        int lastStatus;
+        RandomAccessFile raf = null;
+        FileChannel channel = mLocalChannel;
+        if (channel == null) {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+        }
+        try {
+            /// send the pending chunks; the current thread is one of the senders
+            int sendersCount = (int) Math.min(mParallelChunks, chunkCount - uploadedChunks.size());
+            ChunkSender[] senders = new ChunkSender[sendersCount];
+            Thread[] threads = new Thread[sendersCount];
+            for (int i = 0; i < sendersCount; i++) {
+                senders[i] = new ChunkSender(client, channel, uriPrefix, transferId,
+                        file.getName(), resumable);
+                if (i > 0) {
+                    threads[i] = new Thread(senders[i], TAG + "-" + transferId + "-" + i);
+                    threads[i].start();
+                }
+            }
+            senders[0].run();
+            for (int i = 1; i < sendersCount; i++) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    cancel();
+                    throw new OperationCancelledException();
+                }
+            }
+            lastStatus = -1;
+            for (ChunkSender sender : senders) {
+                if (sender.mLastStatus != -1) {
+                    lastStatus = sender.mLastStatus;
+                }
+            }
+
+        } finally {
+            if (raf != null) {
+                channel.close();
+                raf.close();
+            }
+            Log_OC.d(TAG, "Chunks of " + mChunkSize + " bytes sent for " + mFilePath + "; " +
+                    mFailedAttempts.get() + " failed attempts");
+        }
+
+        int status;
+        synchronized (mPendingChunks) {
+            if (mFailure instanceof IOException) {
+                throw (IOException) mFailure;
+            } else if (mFailure instanceof OperationCancelledException) {
+                throw (OperationCancelledException) mFailure;
+            } else if (mFailure != null) {
+                throw new IOException(mFailure);
+            }
+            status = (mFailedStatus != -1) ? mFailedStatus : lastStatus;
+        }
+
+        if (resumable && (isSuccess(status) || status < HttpStatus.SC_INTERNAL_SERVER_ERROR)) {
+            // finished, or rejected by the server; nothing to resume later
+            synchronized (sDbLock) {
+                DbHandler db = new DbHandler(mContext);
+                try {
+                    db.removeChunkedUpload(transferId);
+                } finally {
+                    db.close();
+                }
+            }
+        }
+        return status;
+    }
+
+
+    /**
+     * Checks which chunks recorded for a former upload of the local file, modified after
+     * them, still hash as when they were sent, and forgets the rest.
+     *
+     * @param transferId    Transfer id of the former upload.
+     * @param file          Local file to upload.
+     * @return              Number of recorded chunks that are still valid.
+     */
+    private int keepUnchangedChunks(String transferId, File file) throws IOException {
+        Map<Long, String> hashes;
+        long chunkSize;
+        synchronized (sDbLock) {
+            DbHandler db = new DbHandler(mContext);
+            try {
+                hashes = db.getUploadedChunkHashes(transferId);
+                chunkSize = db.getChunkedUploadChunkSize(transferId);
+            } finally {
+                db.close();
+            }
+        }
+        if (chunkSize <= 0) {
+            chunkSize = CHUNK_SIZE;
+        }
+
+        Set<Long> changed = new HashSet<Long>();
+        RandomAccessFile raf = null;
+        FileChannel channel = mLocalChannel;
+        if (channel == null) {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+        }
+        try {
+            for (Map.Entry<Long, String> chunk : hashes.entrySet()) {
+                long offset = chunk.getKey() * chunkSize;
+                long length = Math.min(chunkSize, mFileLength - offset);
+                if (chunk.getValue() == null || length <= 0 ||
+                        !chunk.getValue().equals(
+                                FileChunkRequestEntity.computeHash(channel, offset, length))) {
+                    changed.add(chunk.getKey());
+                }
+            }
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+
+        synchronized (sDbLock) {
+            DbHandler db = new DbHandler(mContext);
+            try {
+                if (changed.size() == hashes.size()) {
+                    db.removeChunkedUpload(transferId);
+                } else {
+                    for (Long index : changed) {
+                        db.removeUploadedChunk(transferId, index);
+                    }
+                    db.updateChunkedUploadModified(transferId, mSourceModified);
+                }
+            } finally {
+                db.close();
+            }
+        }
+        Log_OC.d(TAG, mFilePath + " changed after a former upload; " +
+                (hashes.size() - changed.size()) + " of " + hashes.size() +
+                " chunks sent are still valid");
+        return hashes.size() - changed.size();
+    }
+
+
+    /**
+     * @return  Index of the next chunk to send, or null if there are no more chunks to send,
+     *          or the upload failed or was cancelled.
+     */
+    private Long nextChunk() {
+        synchronized (mPendingChunks) {
+            if (mPendingChunks.isEmpty() || mFailedStatus != -1 || mFailure != null ||
+                    mCancelled.get()) {
+                return null;
+            }
+            return mPendingChunks.removeFirst();
+        }
+    }
+
+
+    /**
+     * Makes the whole upload fail, and stops the rest of the chunks in transit.
+     */
+    private void fail(int status, Exception failure) {
+        synchronized (mPendingChunks) {
+            if (mFailedStatus == -1 && mFailure == null) {
+                mFailedStatus = status;
+                mFailure = failure;
+            }
+        }
+        abortPutsInTransit();
+    }
+
+
+    private void abortPutsInTransit() {
+        synchronized (mCancelled) {
+            for (PutMethod put : mPutsInTransit) {
+                put.abort();
+            }
+        }
+    }
+
+
+    private int uploadChunk(OwnCloudClient client, String uri, long index,
+                            FileChunkRequestEntity entity)
+            throws IOException, OperationCancelledException {
+        long length = entity.getContentLength();
+        PutMethod put = new PutMethod(uri);
+        if (mEtagToMatch != null && mEtagToMatch.length() > 0) {
+            put.addRequestHeader(IF_MATCH_HEADER, "\"" + mEtagToMatch + "\"");
+        }
+        put.addRequestHeader(OC_CHUNKED_HEADER, OC_CHUNKED_HEADER);
+        put.addRequestHeader(OC_CHUNK_SIZE_HEADER, String.valueOf(length));
+        put.addRequestHeader(OC_TOTAL_LENGTH_HEADER, String.valueOf(mFileLength));
+        put.setRequestEntity(entity);
+
+        synchronized (mCancelled) {
+            if (mCancelled.get()) {
+                throw new OperationCancelledException();
+            }
+            mPutsInTransit.add(put);
+        }
+        long start = System.currentTimeMillis();
+        boolean failed = true;
+        try {
+            int status = client.executeMethod(put);
+            client.exhaustResponse(put.getResponseBodyAsStream());
+            Log_OC.d(TAG, "Upload of chunk " + index + " of " + mFilePath + ", HTTP result " +
+                    status);
+            if (isSuccess(status)) {
+                mLastPut = put;
+                if (mChunkSizeAdvisor != null) {
+                    mChunkSizeAdvisor.onChunkSent(length, System.currentTimeMillis() - start);
+                }
+            }
+            failed = (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            return status;
+
+        } finally {
+            if (failed && !mCancelled.get()) {
+                mFailedAttempts.incrementAndGet();
+                if (mChunkSizeAdvisor != null) {
+                    mChunkSizeAdvisor.onChunkFailed();
+                }
+            }
+            synchronized (mCancelled) {
+                mPutsInTransit.remove(put);
+            }
+            put.releaseConnection();    // let the connection available for other methods
+        }
+    }
+
+
+    private void recordChunk(String transferId, long index, String hash) {
+        synchronized (sDbLock) {
+            DbHandler db = new DbHandler(mContext);
+            try {
+                db.putUploadedChunk(transferId, mAccountName, mSourcePath, mTargetPath,
+                        mFileLength, mSourceModified, mChunkSize, index, hash);
+            } finally {
+                db.close();
+            }
+        }
+    }
+
+
+    private long chunkCount() {
+        return (mFileLength + mChunkSize - 1) / mChunkSize;
+    }
+
+
+    private long chunkLength(long index) {
+        return Math.min(mChunkSize, mFileLength - index * mChunkSize);
+    }
+
+
+    private boolean isSuccess(int status) {
+        return (status == HttpStatus.SC_OK || status == HttpStatus.SC_CREATED ||
+                status == HttpStatus.SC_NO_CONTENT);
+    }
+
+
+    private void notifyProgress(long progressRate, long transferred) {
+        if (transferred < 0) {
+            return;
+        }
+        synchronized (mListeners) {
+            Iterator<OnDatatransferProgressListener> it = mListeners.iterator();
+            while (it.hasNext()) {
+                it.next().onTransferProgress(progressRate, transferred, mFileLength, mFilePath);
+            }
+        }
+    }
+
+
+    @Override
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (mCancelled) {
+            mCancelled.set(true);
+        }
+        abortPutsInTransit();
+        super.cancel();
+    }
+
+
+    /**
+     * Sends chunks one after another until there are no more left, retrying every failed chunk
+     * a few times.
+     */
+    private class ChunkSender implements Runnable {
+
+        private final OwnCloudClient mClient;
+        private final FileChannel mChannel;
+        private final String mUriPrefix;
+        private final String mTransferId;
+        private final String mFileName;
+        private final boolean mRecordChunks;
+        private int mLastStatus = -1;
+        private String mLastHash = null;
+
+        public ChunkSender(OwnCloudClient client, FileChannel channel, String uriPrefix,
+                           String transferId, String fileName, boolean recordChunks) {
+            mClient = client;
+            mChannel = channel;
+            mUriPrefix = uriPrefix;
+            mTransferId = transferId;
+            mFileName = fileName;
+            mRecordChunks = recordChunks;
+        }
+
+        @Override
+        public void run() {
+            if (Thread.currentThread().getName().startsWith(TAG)) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+            Long index;
+            try {
+                while ((index = nextChunk()) != null) {
+                    int status = sendChunk(index);
+                    mLastStatus = status;
+                    if (!isSuccess(status)) {
+                        fail(status, null);
+                        return;
+                    }
+                    if (mRecordChunks) {
+                        recordChunk(mTransferId, index, mLastHash);
+                    }
+                }
+                if (mCancelled.get()) {
+                    fail(-1, new OperationCancelledException());
+                }
+
+            } catch (Exception e) {
+                fail(-1, mCancelled.get() ? new OperationCancelledException() : e);
+            }
+        }
+
+        private int sendChunk(long index) throws IOException, OperationCancelledException {
+            for (int attempt = 1; ; attempt++) {
+                ChunkProgressListener listener = new ChunkProgressListener();
+                FileChunkRequestEntity entity = new FileChunkRequestEntity(mChannel,
+                        index * mChunkSize, chunkLength(index), mContentType, mFileName,
+                        listener);
+                try {
+                    int status = uploadChunk(mClient, mUriPrefix + index, index, entity);
+                    mLastHash = entity.getContentHash();
+                    if (isSuccess(status) || status < HttpStatus.SC_INTERNAL_SERVER_ERROR ||
+                            attempt >= MAX_CHUNK_ATTEMPTS) {
+                        if (!isSuccess(status)) {
+                            listener.rollback();
+                        }
+                        return status;
+                    }
+                    Log_OC.w(TAG, "Chunk " + index + " of " + mFilePath + " failed with HTTP " +
+                            "result " + status + ", retrying");
+
+                } catch (IOException e) {
+                    listener.rollback();
+                    if (mCancelled.get()) {
+                        throw new OperationCancelledException();
+                    }
+                    if (attempt >= MAX_CHUNK_ATTEMPTS || !isStillRunning()) {
+                        throw e;
+                    }
+                    Log_OC.w(TAG, "Chunk " + index + " of " + mFilePath + " failed, retrying", e);
+                }
+                listener.rollback();
+                try {
+                    Thread.sleep(CHUNK_RETRY_DELAY * attempt);
+                } catch (InterruptedException e) {
+                    throw new OperationCancelledException();
+                }
+                if (!isStillRunning()) {
+                    throw new OperationCancelledException();
+                }
+            }
+        }
+
+        private boolean isStillRunning() {
+            synchronized (mPendingChunks) {
+                return (mFailedStatus == -1 && mFailure == null && !mCancelled.get());
+            }
+        }
+    }
+
+
+    /**
+     * Translates the progress of a chunk in transit into progress of the whole file, merged
+     * with the progress of the rest of chunks in transit.
+     */
+    private class ChunkProgressListener implements OnDatatransferProgressListener {
+
+        private long mSent = 0;
+
+        @Override
+        public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                       long totalToTransfer, String fileName) {
+            long delta = totalTransferredSoFar - mSent;   // the entity could be written again
+            mSent = totalTransferredSoFar;
+            notifyProgress(delta, mTransferred.addAndGet(delta));
+        }
+
+        /**
+         * Discounts the bytes of a failed attempt from the progress of the upload.
+         */
+        public void rollback() {
+            if (mSent > 0) {
+                mTransferred.addAndGet(-mSent);
+                mSent = 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,382 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.operations;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import com.owncloud.android.files.services.BandwidthGovernor;
+import com.owncloud.android.files.services.ThrottledInputStream;
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.network.WebdavUtils;
+import com.owncloud.android.lib.common.operations.OperationCancelledException;
+import com.owncloud.android.lib.common.operations.RemoteOperation;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.utils.ContentHash;
+
+/**
+ * Remote operation performing the download of a remote file to a temporal folder, able to
+ * resume a former download that was interrupted.
+ *
+ * The temporal file of an interrupted download is kept together with the ETag of the remote
+ * file it belongs to. The next attempt requests only the missing bytes with a Range header,
+ * conditioned to the ETag with an If-Range header; if the remote file changed, the server
+ * sends the full contents and the download restarts from the beginning.
+ */
+public class ResumableDownloadRemoteFileOperation extends RemoteOperation {
+
+    private static final String TAG = ResumableDownloadRemoteFileOperation.class.getSimpleName();
+
+    /** Suffix of the file keeping the ETag of a partial download, next to the temporal file */
+    public static final String PARTIAL_INFO_SUFFIX = ".ocpartial";
+
+    private static final String RANGE_HEADER = "Range";
+    private static final String IF_RANGE_HEADER = "If-Range";
+    private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+    private static final String LAST_MODIFIED_HEADER = "Last-Modified";
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private Set<OnDatatransferProgressListener> mDataTransferListeners =
+            new HashSet<OnDatatransferProgressListener>();
+    private final AtomicBoolean mCancellationRequested = new AtomicBoolean(false);
+    /** Set when stopped to be resumed later, instead of cancelled */
+    private volatile boolean mKeepPartial = false;
+    private long mModificationTimestamp = 0;
+    private String mEtag = "";
+    private String mContentHash = null;
+    private GetMethod mGet;
+
+    private String mRemotePath;
+    private String mLocalFolderPath;
+
+
+    public ResumableDownloadRemoteFileOperation(String remotePath, String localFolderPath) {
+        mRemotePath = remotePath;
+        mLocalFolderPath = localFolderPath;
+    }
+
+    @Override
+    protected RemoteOperationResult run(OwnCloudClient client) {
+        RemoteOperationResult result = null;
+
+        /// download will be performed to a temporal file, then moved to the final location
+        File tmpFile = new File(getTmpPath());
+
+        /// perform the download
+        try {
+            tmpFile.getParentFile().mkdirs();
+            int status = downloadFile(client, tmpFile, true);
+            result = new RemoteOperationResult(isSuccess(status), status,
+                    (mGet != null ? mGet.getResponseHeaders() : null));
+            Log_OC.i(TAG, "Download of " + mRemotePath + " to " + getTmpPath() + ": " +
+                    result.getLogMessage());
+
+        } catch (Exception e) {
+            result = new RemoteOperationResult(e);
+            Log_OC.e(TAG, "Download of " + mRemotePath + " to " + getTmpPath() + ": " +
+                    result.getLogMessage(), e);
+        }
+
+        return result;
+    }
+
+
+    private int downloadFile(OwnCloudClient client, File targetFile, boolean rangeAllowed)
+            throws IOException, OperationCancelledException {
+        int status = -1;
+        boolean savedFile = false;
+        File infoFile = new File(targetFile.getPath() + PARTIAL_INFO_SUFFIX);
+
+        /// check if there is a former partial download to resume
+        long offset = 0;
+        String partialEtag = readPartialEtag(infoFile);
+        if (rangeAllowed && partialEtag != null && targetFile.isFile()) {
+            offset = targetFile.length();
+        }
+
+        mGet = new GetMethod(client.getWebdavUri() + WebdavUtils.encodePath(mRemotePath));
+        if (offset > 0) {
+            mGet.addRequestHeader(RANGE_HEADER, "bytes=" + offset + "-");
+            mGet.addRequestHeader(IF_RANGE_HEADER, "\"" + partialEtag + "\"");
+        }
+
+        OutputStream fos = null;
+        try {
+            status = client.executeMethod(mGet);
+
+            if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                // partial file is not valid anymore; start again
+                client.exhaustResponse(mGet.getResponseBodyAsStream());
+                mGet.releaseConnection();
+                discardPartial(targetFile, infoFile);
+                return downloadFile(client, targetFile, false);
+            }
+
+            if (isSuccess(status)) {
+                if (status != HttpStatus.SC_PARTIAL_CONTENT) {
+                    // full contents received; any former partial content is discarded
+                    offset = 0;
+                }
+                if (offset > 0) {
+                    Log_OC.d(TAG, "Resuming download of " + mRemotePath + " from byte " + offset);
+                }
+
+                mEtag = WebdavUtils.getEtagFromResponse(mGet);
+                if (mEtag != null && mEtag.length() > 0) {
+                    writePartialEtag(infoFile, mEtag);
+                } else {
+                    Log_OC.e(TAG, "Could not read eTag from response downloading " + mRemotePath);
+                    infoFile.delete();  // without ETag, a partial download can't be resumed
+                }
+
+                Header contentLength = mGet.getResponseHeader(CONTENT_LENGTH_HEADER);
+                long totalToTransfer = (contentLength != null &&
+                        contentLength.getValue().length() > 0) ?
+                        offset + Long.parseLong(contentLength.getValue()) : -1;
+
+                BufferedInputStream bis = new BufferedInputStream(new ThrottledInputStream(
+                        mGet.getResponseBodyAsStream(),
+                        BandwidthGovernor.TrafficClass.DOWNLOAD));
+                // the hash of the contents is computed as they arrive, starting with the
+                // part already downloaded
+                MessageDigest digest = ContentHash.newDigest();
+                if (offset > 0) {
+                    digestPartialFile(digest, targetFile, offset);
+                }
+                fos = new FileOutputStream(targetFile, offset > 0);
+                long transferred = offset;
+                byte[] bytes = new byte[BUFFER_SIZE];
+                int readResult;
+                Iterator<OnDatatransferProgressListener> it;
+                while ((readResult = bis.read(bytes)) != -1) {
+                    synchronized (mCancellationRequested) {
+                        if (mCancellationRequested.get()) {
+                            mGet.abort();
+                            throw new OperationCancelledException();
+                        }
+                    }
+                    fos.write(bytes, 0, readResult);
+                    digest.update(bytes, 0, readResult);
+                    transferred += readResult;
+                    synchronized (mDataTransferListeners) {
+                        it = mDataTransferListeners.iterator();
+                        while (it.hasNext()) {
+                            it.next().onTransferProgress(readResult, transferred,
+                                    totalToTransfer, targetFile.getName());
+                        }
+                    }
+                }
+
+                if (totalToTransfer >= 0 && transferred != totalToTransfer) {
+                    throw new IOException("Connection closed after " + transferred + " of " +
+                            totalToTransfer + " bytes");
+                }
+                savedFile = true;
+                mContentHash = ContentHash.toHex(digest.digest());
+
+                Header modificationTime = mGet.getResponseHeader(LAST_MODIFIED_HEADER);
+                if (modificationTime != null) {
+                    Date d = WebdavUtils.parseResponseDate(modificationTime.getValue());
+                    mModificationTimestamp = (d != null) ? d.getTime() : 0;
+                } else {
+                    Log_OC.e(TAG, "Could not read modification time from response downloading "
+                            + mRemotePath);
+                }
+
+            } else {
+                client.exhaustResponse(mGet.getResponseBodyAsStream());
+            }
+
+        } finally {
+            if (fos != null) {
+                fos.close();
+            }
+            if (savedFile) {
+                infoFile.delete();
+            } else if (!infoFile.exists()) {
+                // nothing to resume from
+                targetFile.delete();
+            } else if (mCancellationRequested.get() && !mKeepPartial) {
+                // cancelled; nothing will resume it
+                discardPartial(targetFile, infoFile);
+            }   // else, keep the partial file to resume the download later
+            mGet.releaseConnection();    // let the connection available for other methods
+        }
+        return status;
+    }
+
+
+    private boolean isSuccess(int status) {
+        return (status == HttpStatus.SC_OK || status == HttpStatus.SC_PARTIAL_CONTENT);
+    }
+
+
+    private void digestPartialFile(MessageDigest digest, File partialFile, long length)
+            throws IOException {
+        InputStream in = new FileInputStream(partialFile);
+        try {
+            byte[] bytes = new byte[BUFFER_SIZE];
+            long remaining = length;
+            int read;
+            while (remaining > 0 &&
+                    (read = in.read(bytes, 0, (int) Math.min(bytes.length, remaining))) != -1) {
+                digest.update(bytes, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Reads the ETag kept for a partial download.
+     *
+     * @param infoFile      File keeping the ETag.
+     * @return              ETag of the remote file the partial download belongs to, or null if
+     *                      there is no partial download.
+     */
+    private String readPartialEtag(File infoFile) {
+        if (!infoFile.isFile()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(infoFile);
+            byte[] buffer = new byte[(int) Math.min(infoFile.length(), 1024)];
+            int read = in.read(buffer);
+            String etag = (read > 0) ? new String(buffer, 0, read, "UTF-8").trim() : "";
+            return (etag.length() > 0) ? etag : null;
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not read state of partial download of " + mRemotePath, e);
+            return null;
+
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing " + infoFile + " (ignoring)", e);
+                }
+            }
+        }
+    }
+
+
+    private void writePartialEtag(File infoFile, String etag) throws IOException {
+        OutputStream out = new FileOutputStream(infoFile);
+        try {
+            out.write(etag.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+
+    private void discardPartial(File targetFile, File infoFile) {
+        Log_OC.d(TAG, "Discarding partial download of " + mRemotePath);
+        infoFile.delete();
+        targetFile.delete();
+    }
+
+
+    /**
+     * Deletes the partial contents kept of a download that will not be resumed, if any.
+     *
+     * @param tmpPath       Path of the temporal file of the download, as {@link #getTmpPath()}.
+     */
+    public static void discardPartial(String tmpPath) {
+        File infoFile = new File(tmpPath + PARTIAL_INFO_SUFFIX);
+        if (infoFile.exists()) {
+            Log_OC.d(TAG, "Discarding partial download in " + tmpPath);
+            infoFile.delete();
+            new File(tmpPath).delete();
+        }
+    }
+
+
+    public String getTmpPath() {
+        return mLocalFolderPath + mRemotePath;
+    }
+
+    /**
+     * Cancels the download; the partial contents received are discarded.
+     */
+    public void cancel() {
+        mCancellationRequested.set(true);   // atomic set; there is no need of synchronizing it
+    }
+
+    /**
+     * Stops the download keeping the partial contents received, so that a later download of
+     * the same file resumes it.
+     */
+    public void interrupt() {
+        mKeepPartial = true;
+        mCancellationRequested.set(true);
+    }
+
+    public void addDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.add(listener);
+        }
+    }
+
+    public void removeDatatransferProgressListener(OnDatatransferProgressListener listener) {
+        synchronized (mDataTransferListeners) {
+            mDataTransferListeners.remove(listener);
+        }
+    }
+
+    public long getModificationTimestamp() {
+        return mModificationTimestamp;
+    }
+
+    public String getEtag() {
+        return mEtag;
+    }
+
+    /**
+     * @return  Hash of the contents downloaded, computed by {@link ContentHash}; null if the
+     *          download did not finish.
+     */
+    public String getContentHash() {
+        return mContentHash;
+    }
+
+}
@@ -327,6 +327,7 @@ public class SynchronizeFolderOperation extends SyncOperation {
                         localFile.getModificationTimestampAtLastSyncForData()
                 );
                 updatedFile.setStoragePath(localFile.getStoragePath());
+                updatedFile.setImageOrientation(localFile.getImageOrientation());
                 // eTag will not be updated unless file CONTENTS are synchronized
                 updatedFile.setEtag(localFile.getEtag());
                 if (updatedFile.isFolder()) {
@@ -426,16 +427,18 @@ public class SynchronizeFolderOperation extends SyncOperation {
 
     
     private void startDirectDownloads() throws OperationCancelledException {
-        for (OCFile file : mFilesForDirectDownload) {
-            synchronized(mCancellationRequested) {
-                if (mCancellationRequested.get()) {
-                    throw new OperationCancelledException();
-                }
-                Intent i = new Intent(mContext, FileDownloader.class);
-                i.putExtra(FileDownloader.EXTRA_ACCOUNT, mAccount);
-                i.putExtra(FileDownloader.EXTRA_FILE, file);
-                mContext.startService(i);
+        if (mFilesForDirectDownload.isEmpty()) {
+            return;
+        }
+        synchronized(mCancellationRequested) {
+            if (mCancellationRequested.get()) {
+                throw new OperationCancelledException();
             }
+            /// a single request for all the files; FileDownloader reads them from the database
+            Intent i = new Intent(mContext, FileDownloader.class);
+            i.putExtra(FileDownloader.EXTRA_ACCOUNT, mAccount);
+            i.putExtra(FileDownloader.EXTRA_FOLDER_ID, mLocalFolder.getFileId());
+            mContext.startService(i);
         }
     }
 
@@ -20,13 +20,14 @@
 
 package com.owncloud.android.operations;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -38,8 +39,11 @@ import org.apache.commons.httpclient.methods.RequestEntity;
 import android.accounts.Account;
 import android.content.Context;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 
 import com.owncloud.android.MainApp;
+import com.owncloud.android.R;
+import com.owncloud.android.datamodel.ContentHashIndex;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.services.FileUploader;
@@ -51,9 +55,11 @@ import com.owncloud.android.lib.common.operations.RemoteOperation;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult;
 import com.owncloud.android.lib.common.operations.RemoteOperationResult.ResultCode;
 import com.owncloud.android.lib.common.utils.Log_OC;
-import com.owncloud.android.lib.resources.files.ChunkedUploadRemoteFileOperation;
 import com.owncloud.android.lib.resources.files.ExistenceCheckRemoteOperation;
+import com.owncloud.android.lib.resources.files.ReadRemoteFileOperation;
+import com.owncloud.android.lib.resources.files.RemoteFile;
 import com.owncloud.android.lib.resources.files.UploadRemoteFileOperation;
+import com.owncloud.android.utils.ContentHash;
 import com.owncloud.android.utils.FileStorageUtils;
 import com.owncloud.android.utils.UriUtils;
 
@@ -83,6 +89,9 @@ public class UploadFileOperation extends RemoteOperation {
     
     private UploadRemoteFileOperation mUploadOperation;
 
+    /** Hash of the contents uploaded, when known */
+    private String mContentHash = null;
+
     protected RequestEntity mEntity = null;
 
     
@@ -114,6 +123,11 @@ public class UploadFileOperation extends RemoteOperation {
         mOriginalStoragePath = mFile.getStoragePath();
         mOriginalFileName = mFile.getFileName();
         mContext = context;
+        if (mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME) &&
+                mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_MOVE) {
+            // contents in a content provider can't be moved
+            mLocalBehaviour = FileUploader.LOCAL_BEHAVIOUR_COPY;
+        }
     }
 
     public Account getAccount() {
@@ -168,6 +182,14 @@ public class UploadFileOperation extends RemoteOperation {
         return mWasRenamed;
     }
 
+    /**
+     * @return  Hash of the contents uploaded, computed by {@link ContentHash} while they were
+     *          read for the upload or for a local copy; null if unknown.
+     */
+    public String getContentHash() {
+        return mContentHash;
+    }
+
     public Set<OnDatatransferProgressListener> getDataTransferListeners() {
         return mDataTransferListeners;
     }
@@ -193,11 +215,33 @@ public class UploadFileOperation extends RemoteOperation {
     @Override
     protected RemoteOperationResult run(OwnCloudClient client) {
         RemoteOperationResult result = null;
-        boolean localCopyPassed = false, nameCheckPassed = false;
+        boolean localCopyPassed = false, nameCheckPassed = false, copyDeferred = false;
+        long originalLength = 0, originalModified = 0;
+        File fileToHash = null;
+        long fileToHashLength = 0, fileToHashModified = 0;
         File temporalFile = null, originalFile = new File(mOriginalStoragePath), expectedFile = null;
+        boolean fromContentUri = mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME);
+        ParcelFileDescriptor contentDescriptor = null;
+        FileInputStream contentStream = null;
+        FileInputStream fileStream = null;
         try {
+            // contents from a content provider are streamed straight from its file descriptor,
+            // when it's a regular file that can be read again for retries and chunks
+            if (fromContentUri) {
+                contentDescriptor = openSeekableDescriptor(Uri.parse(mOriginalStoragePath));
+                if (contentDescriptor != null) {
+                    originalLength = contentDescriptor.getStatSize();
+                    contentStream = new FileInputStream(contentDescriptor.getFileDescriptor());
+                }
+            }
+
+            /// contents the server already has in the target path are not uploaded again
+            boolean alreadyInServer = (!fromContentUri || contentStream != null) &&
+                    isAlreadyInServer(client, contentStream,
+                            fromContentUri ? originalLength : originalFile.length());
+
             // / rename the file to upload, if necessary
-            if (!mForceOverwrite) {
+            if (!mForceOverwrite && !alreadyInServer) {
                 String remotePath = getAvailableRemotePath(client, mRemotePath);
                 mWasRenamed = !remotePath.equals(mRemotePath);
                 if (mWasRenamed) {
@@ -213,16 +257,31 @@ public class UploadFileOperation extends RemoteOperation {
                                                                                                 // !!!
             expectedFile = new File(expectedPath);
 
-            // check location of local file; if not the expected, copy to a
-            // temporal file before upload (if COPY is the expected behaviour)
-            if (!mOriginalStoragePath.equals(expectedPath) &&
-                    mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY) {
+            // check location of local file; if not the expected, copy it to the expected
+            // location (if COPY is the expected behaviour); contents from a content provider
+            // that can't be streamed are always copied to a temporal file
+            if ((!mOriginalStoragePath.equals(expectedPath) &&
+                    mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_COPY) ||
+                    (fromContentUri && contentDescriptor == null)) {
 
-                if (FileStorageUtils.getUsableSpace(mAccount.name) < originalFile.length()) {
+                long lengthToCopy = fromContentUri ? originalLength : originalFile.length();
+                if (FileStorageUtils.getUsableSpace(mAccount.name) < lengthToCopy) {
                     result = new RemoteOperationResult(ResultCode.LOCAL_STORAGE_FULL);
                     return result; // error condition when the file should be
                                    // copied
 
+                } else if (contentDescriptor != null) {
+                    // the local copy is done after the upload succeeds
+                    copyDeferred = true;
+
+                } else if (!fromContentUri &&
+                        originalFile.isFile() && originalFile.canRead()) {
+                    // upload straight from the original file; the copy is done after the
+                    // upload succeeds, so failed or cancelled uploads don't pay for it
+                    copyDeferred = true;
+                    originalLength = originalFile.length();
+                    originalModified = originalFile.lastModified();
+
                 } else {
 
                     String temporalPath = FileStorageUtils.getTemporalPath(mAccount.name) +
@@ -241,26 +300,18 @@ public class UploadFileOperation extends RemoteOperation {
                     }
 
                     InputStream in = null;
-                    OutputStream out = null;
-
                     try {
+                        // the hash of the contents is computed while they are copied
+                        MessageDigest digest = ContentHash.newDigest();
 
                         // In case document provider schema as 'content://'
-                        if (mOriginalStoragePath.startsWith(UriUtils.URI_CONTENT_SCHEME)) {
+                        if (fromContentUri) {
 
                             Uri uri = Uri.parse(mOriginalStoragePath);
 
                             in = MainApp.getAppContext().getContentResolver().openInputStream(uri);
-                            out = new FileOutputStream(temporalFile);
-
-                            int nRead;
-                            byte[] data = new byte[16384];
-
-                            while (!mCancellationRequested.get() &&
-                                    (nRead = in.read(data, 0, data.length)) != -1) {
-                                out.write(data, 0, nRead);
-                            }
-                            out.flush();
+                            FileStorageUtils.copyToFile(in, temporalFile,
+                                    mCancellationRequested, digest);
 
                         } else {
                             if (!mOriginalStoragePath.equals(temporalPath)) { // preventing
@@ -270,17 +321,15 @@ public class UploadFileOperation extends RemoteOperation {
                                                                           // situation
 
                                 in = new FileInputStream(originalFile);
-                                out = new FileOutputStream(temporalFile);
-                                byte[] buf = new byte[1024];
-                                int len;
-                                while (!mCancellationRequested.get() && (len = in.read(buf)) > 0) {
-                                    out.write(buf, 0, len);
-                                }
+                                FileStorageUtils.copyToFile(in, temporalFile,
+                                        mCancellationRequested, digest);
                             }
                         }
 
                         if (mCancellationRequested.get()) {
                             result = new RemoteOperationResult(new OperationCancelledException());
+                        } else if (in != null) {
+                            mContentHash = ContentHash.toHex(digest.digest());
                         }
 
 
@@ -296,90 +345,123 @@ public class UploadFileOperation extends RemoteOperation {
                             Log_OC.d(TAG, "Weird exception while closing input stream for " +
                                     mOriginalStoragePath + " (ignoring)", e);
                         }
-                        try {
-                            if (out != null)
-                                out.close();
-                        } catch (Exception e) {
-                            Log_OC.d(TAG, "Weird exception while closing output stream for " +
-                                    expectedPath + " (ignoring)", e);
-                        }
                     }
                 }
             }
             localCopyPassed = (result == null);
 
             /// perform the upload
-            if ( mChunked &&
-                    (new File(mFile.getStoragePath())).length() >
-                            ChunkedUploadRemoteFileOperation.CHUNK_SIZE ) {
-                mUploadOperation = new ChunkedUploadRemoteFileOperation(mFile.getStoragePath(),
-                        mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict());
+            if (alreadyInServer) {
+                result = new RemoteOperationResult(ResultCode.OK);
+
             } else {
-                mUploadOperation = new UploadRemoteFileOperation(mFile.getStoragePath(),
-                        mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict());
-            }
-            Iterator <OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
-            while (listener.hasNext()) {
-                mUploadOperation.addDatatransferProgressListener(listener.next());
-            }
-            if (mCancellationRequested.get()) {
-                throw new OperationCancelledException();
-            }
+                long lengthToUpload = (contentStream != null) ?
+                        originalLength : new File(mFile.getStoragePath()).length();
+                if ( mChunked &&
+                        lengthToUpload > ResumableChunkedUploadRemoteFileOperation.CHUNK_SIZE ) {
+                    // chunks sent are recorded against the original file, so that the upload can
+                    // be resumed even when a new temporal copy is done
+                    long sourceModified = fromContentUri ? 0 : originalFile.lastModified();
+                    ResumableChunkedUploadRemoteFileOperation chunkedUpload =
+                            new ResumableChunkedUploadRemoteFileOperation(mContext,
+                            mAccount.name, mFile.getStoragePath(), mOriginalStoragePath,
+                            sourceModified, mFile.getRemotePath(), mFile.getMimetype(),
+                            mFile.getEtagInConflict(),
+                            mContext.getResources().getInteger(R.integer.uploader_parallel_chunks),
+                            ChunkSizeAdvisor.forCurrentNetwork(mContext));
+                    if (contentStream != null) {
+                        chunkedUpload.setLocalChannel(contentStream.getChannel(), lengthToUpload);
+                    } else if (mContentHash == null && mFile.isFavorite()) {
+                        // chunks are not hashed as a whole; files kept in sync are hashed
+                        // after the upload, so that uploading them again without changes
+                        // is avoided by isAlreadyInServer
+                        fileToHash = new File(mFile.getStoragePath());
+                        fileToHashLength = fileToHash.length();
+                        fileToHashModified = fileToHash.lastModified();
+                    }
+                    mUploadOperation = chunkedUpload;
+
+                } else if (contentStream != null) {
+                    mUploadOperation = new ChannelUploadRemoteFileOperation(
+                            contentStream.getChannel(), lengthToUpload, mOriginalStoragePath,
+                            mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict());
+
+                } else {
+                    // sent through a channel too, so that the upload is governed by the
+                    // BandwidthGovernor as the rest
+                    fileStream = new FileInputStream(mFile.getStoragePath());
+                    mUploadOperation = new ChannelUploadRemoteFileOperation(
+                            fileStream.getChannel(), lengthToUpload, mFile.getStoragePath(),
+                            mFile.getRemotePath(), mFile.getMimetype(), mFile.getEtagInConflict());
+                }
+                Iterator <OnDatatransferProgressListener> listener = mDataTransferListeners.iterator();
+                while (listener.hasNext()) {
+                    mUploadOperation.addDatatransferProgressListener(listener.next());
+                }
+                if (mCancellationRequested.get()) {
+                    throw new OperationCancelledException();
+                }
 
-            result = mUploadOperation.execute(client);
+                result = mUploadOperation.execute(client);
+            }
 
             /// move local temporal file or original file to its corresponding
             // location in the ownCloud local folder
             if (result.isSuccess()) {
+                if (mContentHash == null &&
+                        mUploadOperation instanceof ChannelUploadRemoteFileOperation) {
+                    mContentHash =
+                            ((ChannelUploadRemoteFileOperation) mUploadOperation).getContentHash();
+                }
                 if (mLocalBehaviour == FileUploader.LOCAL_BEHAVIOUR_FORGET) {
                     mFile.setStoragePath("");
                 } else {
                     mFile.setStoragePath(expectedPath);
-                    File fileToMove = null;
-                    if (temporalFile != null) { // FileUploader.LOCAL_BEHAVIOUR_COPY
-                        // ; see where temporalFile was
-                        // set
-                        fileToMove = temporalFile;
-                    } else { // FileUploader.LOCAL_BEHAVIOUR_MOVE
-                        fileToMove = originalFile;
-                    }
-                    if (!expectedFile.equals(fileToMove)) {
-                        File expectedFolder = expectedFile.getParentFile();
-                        expectedFolder.mkdirs();
-
-                        if (expectedFolder.isDirectory()){
-                            if (!fileToMove.renameTo(expectedFile)){
-                                // try to copy and then delete
-                                expectedFile.createNewFile();
-                                FileChannel inChannel = new FileInputStream(fileToMove).getChannel();
-                                FileChannel outChannel = new FileOutputStream(expectedFile).getChannel();
-
-                                try {
-                                    inChannel.transferTo(0, inChannel.size(), outChannel);
-                                    fileToMove.delete();
-                                } catch (Exception e){
-                                    mFile.setStoragePath(null); // forget the local file
-                                    // by now, treat this as a success; the file was
-                                    // uploaded; the user won't like that the local file
-                                    // is not linked, but this should be a very rare
-                                    // fail;
-                                    // the best option could be show a warning message
-                                    // (but not a fail)
-                                    // result = new
-                                    // RemoteOperationResult(ResultCode.LOCAL_STORAGE_NOT_MOVED);
-                                    // return result;
-                                }
-                                finally {
-                                    if (inChannel != null) inChannel.close();
-                                    if (outChannel != null) outChannel.close();
+                    if (copyDeferred && fromContentUri) {
+                        copyContentAfterUpload(Uri.parse(mOriginalStoragePath), expectedFile);
+
+                    } else if (copyDeferred) {
+                        if (originalFile.length() != originalLength ||
+                                originalFile.lastModified() != originalModified) {
+                            // the local copy would not match the uploaded contents
+                            Log_OC.w(TAG, mOriginalStoragePath + " changed during upload; " +
+                                    "local copy not done");
+                            mFile.setStoragePath(null);
+                        } else {
+                            copyAfterUpload(originalFile, expectedFile);
+                        }
+
+                    } else {
+                        File fileToMove = null;
+                        if (temporalFile != null) { // FileUploader.LOCAL_BEHAVIOUR_COPY
+                            // ; see where temporalFile was
+                            // set
+                            fileToMove = temporalFile;
+                        } else { // FileUploader.LOCAL_BEHAVIOUR_MOVE
+                            fileToMove = originalFile;
+                        }
+                        if (!expectedFile.equals(fileToMove)) {
+                            File expectedFolder = expectedFile.getParentFile();
+                            expectedFolder.mkdirs();
+
+                            if (expectedFolder.isDirectory()){
+                                if (!fileToMove.renameTo(expectedFile)){
+                                    // try to copy and then delete
+                                    if (copyAfterUpload(fileToMove, expectedFile)) {
+                                        fileToMove.delete();
+                                    }
                                 }
-                            }
 
-                        } else {
-                            mFile.setStoragePath(null);
+                            } else {
+                                mFile.setStoragePath(null);
+                            }
                         }
                     }
                 }
+                if (mContentHash == null && fileToHash != null) {
+                    mContentHash = hashIfUnchanged(fileToHash, fileToHashLength,
+                            fileToHashModified);
+                }
                 FileDataStorageManager.triggerMediaScan(originalFile.getAbsolutePath());
                 FileDataStorageManager.triggerMediaScan(expectedFile.getAbsolutePath());
             } else if (result.getHttpCode() == HttpStatus.SC_PRECONDITION_FAILED ) {
@@ -393,6 +475,15 @@ public class UploadFileOperation extends RemoteOperation {
             if (temporalFile != null && !originalFile.equals(temporalFile)) {
                 temporalFile.delete();
             }
+            closeQuietly(fileStream);
+            if (contentDescriptor != null) {
+                try {
+                    contentDescriptor.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing descriptor for " +
+                            mOriginalStoragePath + " (ignoring)", e);
+                }
+            }
             if (result.isSuccess()) {
                 Log_OC.i(TAG, "Upload of " + mOriginalStoragePath + " to " + mRemotePath + ": " +
                         result.getLogMessage());
@@ -418,6 +509,214 @@ public class UploadFileOperation extends RemoteOperation {
         return result;
     }
 
+    /**
+     * Checks if the server already has the contents to upload in the target path, comparing
+     * their hash with the one known for the current version of the remote file.
+     *
+     * The local contents are hashed only when the hash of a remote file with the same length
+     * and the current ETag is known.
+     *
+     * @param client            Client to check the ETag of the file in the server.
+     * @param contentStream     Stream to read the contents from a content provider, or null
+     *                          to read them from the local file.
+     * @param length            Length of the contents to upload.
+     * @return                  'True' if the server has the same contents in the target path.
+     */
+    private boolean isAlreadyInServer(OwnCloudClient client, FileInputStream contentStream,
+                                      long length) {
+        ContentHashIndex index = new ContentHashIndex(mContext);
+        String knownEtag = index.getKnownEtag(mAccount.name, mRemotePath, length);
+        if (knownEtag == null) {
+            return false;
+        }
+        ReadRemoteFileOperation operation = new ReadRemoteFileOperation(mRemotePath);
+        RemoteOperationResult result = operation.execute(client);
+        if (!result.isSuccess()) {
+            return false;
+        }
+        RemoteFile remoteFile = (RemoteFile) result.getData().get(0);
+        if (!knownEtag.equals(remoteFile.getEtag()) || remoteFile.getLength() != length) {
+            return false;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            FileChannel channel;
+            if (contentStream != null) {
+                channel = contentStream.getChannel();
+            } else {
+                raf = new RandomAccessFile(mOriginalStoragePath, "r");
+                channel = raf.getChannel();
+            }
+            mContentHash = ContentHash.compute(channel, 0, length);
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not compute hash of " + mOriginalStoragePath, e);
+            return false;
+
+        } finally {
+            closeQuietly(raf);
+        }
+
+        if (mContentHash.equals(index.getHash(mAccount.name, mRemotePath, length, knownEtag))) {
+            Log_OC.d(TAG, mRemotePath + " already has the contents of " + mOriginalStoragePath +
+                    "; " + length + " bytes not sent");
+            index.addBytesAvoided(length);
+            return true;
+        }
+        // the contents could change before they are sent; the hash is taken again from them
+        mContentHash = null;
+        return false;
+    }
+
+    /**
+     * Copies a file already uploaded to its location in the ownCloud local folder.
+     *
+     * A failure is not considered a failure of the upload; the local copy is just forgotten.
+     *
+     * @return  'True' if the copy was done.
+     */
+    private boolean copyAfterUpload(File source, File target) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(source);
+            // the caller checked that the file did not change since it was uploaded
+            return copyStreamAfterUpload(in, target, true);
+
+        } catch (IOException e) {
+            return copyAfterUploadFailed(source.getAbsolutePath(), target, e);
+
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Copies contents already uploaded from a content provider to their location in the
+     * ownCloud local folder.
+     *
+     * The contents are not hashed: the provider could have changed them since they were sent,
+     * and a wrong hash recorded for the new ETag would let later uploads be skipped.
+     *
+     * A failure is not considered a failure of the upload; the local copy is just forgotten.
+     *
+     * @return  'True' if the copy was done.
+     */
+    private boolean copyContentAfterUpload(Uri source, File target) {
+        InputStream in = null;
+        try {
+            in = MainApp.getAppContext().getContentResolver().openInputStream(source);
+            return copyStreamAfterUpload(in, target, false);
+
+        } catch (IOException e) {
+            return copyAfterUploadFailed(source.toString(), target, e);
+
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * @param hashContents  'True' to compute the hash of the uploaded contents while they are
+     *                      copied, if not known yet; only for contents known to be the same
+     *                      that were sent.
+     */
+    private boolean copyStreamAfterUpload(InputStream in, File target, boolean hashContents)
+            throws IOException {
+        File targetFolder = target.getParentFile();
+        targetFolder.mkdirs();
+        if (!targetFolder.isDirectory()) {
+            throw new IOException("Folder " + targetFolder + " could not be created");
+        }
+        if (hashContents && mContentHash == null) {
+            MessageDigest digest = ContentHash.newDigest();
+            FileStorageUtils.copyToFile(in, target, null, digest);
+            mContentHash = ContentHash.toHex(digest.digest());
+        } else {
+            FileStorageUtils.copyToFile(in, target, null);
+        }
+        return true;
+    }
+
+    private boolean copyAfterUploadFailed(String source, File target, IOException e) {
+        // by now, treat this as a success; the file was uploaded; the user won't like that
+        // the local file is not linked, but this should be a very rare fail;
+        // the best option could be show a warning message (but not a fail)
+        Log_OC.e(TAG, "Local copy of " + source + " in " + target + " failed", e);
+        mFile.setStoragePath(null); // forget the local file
+        target.delete();
+        return false;
+    }
+
+    /**
+     * Hashes a local file uploaded, if it did not change since the upload started.
+     *
+     * @param file          Local file uploaded.
+     * @param length        Length of the file when the upload started.
+     * @param modified      Modification time of the file when the upload started.
+     * @return              Hash of the contents uploaded, or null if they could not be read
+     *                      or changed meanwhile.
+     */
+    private String hashIfUnchanged(File file, long length, long modified) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            String hash = ContentHash.compute(raf.getChannel(), 0, length);
+            if (file.length() != length || file.lastModified() != modified) {
+                return null;
+            }
+            return hash;
+
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Could not compute hash of " + file, e);
+            return null;
+
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private void closeQuietly(Closeable in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log_OC.d(TAG, "Weird exception while closing input (ignoring)", e);
+            }
+        }
+    }
+
+    /**
+     * Opens the file descriptor of some contents in a content provider, if it refers to a
+     * regular file whose contents can be read with positional reads.
+     *
+     * @param uri   URI of the contents.
+     * @return      File descriptor, or null if the contents must be read as a stream.
+     */
+    private ParcelFileDescriptor openSeekableDescriptor(Uri uri) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = MainApp.getAppContext().getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor != null && descriptor.getStatSize() >= 0) {
+                return descriptor;
+            }
+            Log_OC.d(TAG, uri + " is not a regular file; it will be copied before the upload");
+
+        } catch (Exception e) {
+            Log_OC.d(TAG, "No file descriptor for " + uri + "; it will be copied before the " +
+                    "upload", e);
+        }
+        if (descriptor != null) {
+            try {
+                descriptor.close();
+            } catch (IOException e) {
+                Log_OC.d(TAG, "Weird exception while closing descriptor for " + uri +
+                        " (ignoring)", e);
+            }
+        }
+        return null;
+    }
+
     private void createNewOCFile(String newRemotePath) {
         // a new OCFile instance must be created for a new remote path
         OCFile newFile = new OCFile(newRemotePath);
@@ -485,7 +784,7 @@ public class UploadFileOperation extends RemoteOperation {
     }
     
     public void cancel() {
-        mCancellationRequested = new AtomicBoolean(true);
+        mCancellationRequested.set(true);
         if (mUploadOperation != null) {
             mUploadOperation.cancel();
         }
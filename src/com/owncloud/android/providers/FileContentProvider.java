@@ -505,7 +505,8 @@ public class FileContentProvider extends ContentProvider {
                             + ProviderTableMeta.FILE_UPDATE_THUMBNAIL + " INTEGER," //boolean
                             + ProviderTableMeta.FILE_IS_DOWNLOADING + " INTEGER," //boolean
                             + ProviderTableMeta.FILE_ETAG_IN_CONFLICT + " TEXT,"
-                            + ProviderTableMeta.FILE_SHARED_WITH_SHAREE + " INTEGER);"
+                            + ProviderTableMeta.FILE_SHARED_WITH_SHAREE + " INTEGER,"
+                            + ProviderTableMeta.FILE_IMAGE_ORIENTATION + " INTEGER DEFAULT 0);"
             );
 
             // Create table ocshares
@@ -761,6 +762,23 @@ public class FileContentProvider extends ContentProvider {
                 Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
                         ", newVersion == " + newVersion);
 
+            if (oldVersion < 14 && newVersion >= 14) {
+                Log_OC.i("SQL", "Entering in the #14 ADD in onUpgrade");
+                db.beginTransaction();
+                try {
+                    db .execSQL("ALTER TABLE " + ProviderTableMeta.FILE_TABLE_NAME +
+                            " ADD COLUMN " + ProviderTableMeta.FILE_IMAGE_ORIENTATION + " INTEGER " +
+                            " DEFAULT 0");
+                    upgraded = true;
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            if (!upgraded)
+                Log_OC.i("SQL", "OUT of the ADD in onUpgrade; oldVersion == " + oldVersion +
+                        ", newVersion == " + newVersion);
+
         }
     }
 
@@ -70,6 +70,7 @@ import com.owncloud.android.authentication.AccountUtils;
 import com.owncloud.android.authentication.AuthenticatorActivity;
 import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.db.DbHandler;
 import com.owncloud.android.files.FileOperationsHelper;
 import com.owncloud.android.files.services.FileDownloader;
@@ -238,6 +239,18 @@ public class Preferences extends PreferenceActivity
             
         }
 
+        Preference pThumbnailsCacheSize =
+                findPreference(ThumbnailsCacheManager.PREF_DISK_CACHE_MAX_SIZE);
+        if (pThumbnailsCacheSize != null) {
+            pThumbnailsCacheSize.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    ThumbnailsCacheManager.setDiskCacheMaxSize(Long.parseLong((String) newValue));
+                    return true;
+                }
+            });
+        }
+
         PreferenceCategory preferenceCategory = (PreferenceCategory) findPreference("more");
         
         boolean helpEnabled = getResources().getBoolean(R.bool.help_enabled);
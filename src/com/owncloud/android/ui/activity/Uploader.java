@@ -23,6 +23,7 @@
 package com.owncloud.android.ui.activity;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -47,6 +48,7 @@ import android.content.res.Resources.NotFoundException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
@@ -545,7 +547,24 @@ public class Uploader extends FileActivity
                     else {
                         throw new SecurityException();
                     }
-                    if (data == null) {
+                    if (data == null && isSeekableContent(uri)) {
+                        // streamed by the uploader from the content provider, no copy needed;
+                        // the service keeps the permission to read it while it's running
+                        Intent streamIntent = new Intent(getApplicationContext(),
+                                FileUploader.class);
+                        streamIntent.setData(uri);
+                        streamIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                        streamIntent.putExtra(FileUploader.KEY_UPLOAD_TYPE,
+                                FileUploader.UPLOAD_SINGLE_FILE);
+                        streamIntent.putExtra(FileUploader.KEY_LOCAL_FILE, uri.toString());
+                        streamIntent.putExtra(FileUploader.KEY_REMOTE_FILE, filePath);
+                        streamIntent.putExtra(FileUploader.KEY_MIME_TYPE,
+                                getContentResolver().getType(uri));
+                        streamIntent.putExtra(FileUploader.KEY_ACCOUNT, getAccount());
+                        startService(streamIntent);
+
+                    } else if (data == null) {
+                        // can't be read again later; copied to a temporal file before
                         mRemoteCacheData.add(filePath);
                         CopyTmpFileAsyncTask copyTask = new CopyTmpFileAsyncTask(this);
                         Object[] params = { uri, filePath, mRemoteCacheData.size()-1,
@@ -685,6 +704,34 @@ public class Uploader extends FileActivity
     }
 
 
+    /**
+     * Checks if the contents behind a content:// URI are in a regular file, so that they can
+     * be read with positional reads for retries and chunked uploads.
+     *
+     * @param uri       URI to check.
+     * @return          'True' if the contents can be uploaded with no temporal copy.
+     */
+    private boolean isSeekableContent(Uri uri) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = getContentResolver().openFileDescriptor(uri, "r");
+            return (descriptor != null && descriptor.getStatSize() >= 0);
+
+        } catch (Exception e) {
+            Log_OC.d(TAG, "No file descriptor for " + uri, e);
+            return false;
+
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log_OC.d(TAG, "Weird exception while closing descriptor for " + uri, e);
+                }
+            }
+        }
+    }
+
     /**
      * Process the result of CopyTmpFileAsyncTask
      * @param result
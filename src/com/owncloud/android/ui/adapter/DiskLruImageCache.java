@@ -23,9 +23,19 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
@@ -34,36 +44,155 @@ import android.graphics.BitmapFactory;
 import com.jakewharton.disklrucache.DiskLruCache;
 import com.owncloud.android.BuildConfig;
 import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.utils.ContentHash;
 
 public class DiskLruImageCache {
 
     private DiskLruCache mDiskCache;
     private CompressFormat mCompressFormat;
     private int mCompressQuality;
-    private static final int CACHE_VERSION = 1;
+    /** Version 2 names the entries with {@link #convertToValidKey(String)} */
+    private static final int CACHE_VERSION = 2;
     private static final int VALUE_COUNT = 1;
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /** Puts between flushes of the cache in write-behind mode */
+    private static final int PUTS_PER_FLUSH = 32;
+    /** Maximum delay of the flush after a put in write-behind mode */
+    private static final long FLUSH_DELAY_MS = 3000;
             
     private static final String TAG = DiskLruImageCache.class.getSimpleName();
 
+    private final boolean mWriteBehind;
+    private int mPutsSinceFlush = 0;
+    private ScheduledExecutorService mFlusher = null;
+    private ScheduledFuture<?> mScheduledFlush = null;
+
+    private final long mSizeAtOpen;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mPuts = new AtomicLong();
+    private final AtomicLong mBytesPut = new AtomicLong();
+    private final AtomicLong mBytesRemoved = new AtomicLong();
+
+
+    /**
+     * Counters of the use of the cache since it was opened.
+     */
+    public static class Stats {
+        private final long mHits;
+        private final long mMisses;
+        private final long mPuts;
+        private final long mBytesPut;
+        private final long mEvictedBytes;
+        private final long mSize;
+        private final long mMaxSize;
+
+        private Stats(long hits, long misses, long puts, long bytesPut, long evictedBytes,
+                      long size, long maxSize) {
+            mHits = hits;
+            mMisses = misses;
+            mPuts = puts;
+            mBytesPut = bytesPut;
+            mEvictedBytes = evictedBytes;
+            mSize = size;
+            mMaxSize = maxSize;
+        }
+
+        public long getHits() {
+            return mHits;
+        }
+
+        public long getMisses() {
+            return mMisses;
+        }
+
+        /**
+         * @return  Share of reads that found the entry, between 0 and 1.
+         */
+        public float getHitRate() {
+            long reads = mHits + mMisses;
+            return (reads == 0) ? 0 : (float) mHits / reads;
+        }
+
+        public long getPuts() {
+            return mPuts;
+        }
+
+        /**
+         * @return  Bytes of the entries evicted to keep the cache under its maximum size,
+         *          including the former versions of entries replaced.
+         */
+        public long getEvictedBytes() {
+            return mEvictedBytes;
+        }
+
+        /**
+         * @return  Estimation of the entries evicted, from the average size of the entries put.
+         */
+        public long getEvictions() {
+            return (mBytesPut == 0) ? 0 : mEvictedBytes * mPuts / mBytesPut;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getMaxSize() {
+            return mMaxSize;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d hits, %d misses (%.1f%% hit rate), %d puts, " +
+                            "~%d evictions (%d bytes); %d of %d bytes used",
+                    mHits, mMisses, getHitRate() * 100, mPuts, getEvictions(), mEvictedBytes,
+                    mSize, mMaxSize);
+        }
+    }
+
+
     //public DiskLruImageCache( Context context,String uniqueName, int diskCacheSize,
     public DiskLruImageCache(
             File diskCacheDir, int diskCacheSize, CompressFormat compressFormat, int quality 
             ) throws IOException {
+        this(diskCacheDir, diskCacheSize, compressFormat, quality, false);
+    }
+
+    /**
+     * @param writeBehind   When 'true', entries are committed at once but the cache is flushed
+     *                      every {@link #PUTS_PER_FLUSH} puts or {@link #FLUSH_DELAY_MS} ms after
+     *                      the last one, instead of in every put; {@link #close()} must be called
+     *                      to flush the last ones when the cache is not needed anymore.
+     */
+    public DiskLruImageCache(
+            File diskCacheDir, long diskCacheSize, CompressFormat compressFormat, int quality,
+            boolean writeBehind
+            ) throws IOException {
 
         mDiskCache = DiskLruCache.open(
                 diskCacheDir, CACHE_VERSION, VALUE_COUNT, diskCacheSize 
         );
         mCompressFormat = compressFormat;
         mCompressQuality = quality;
+        mWriteBehind = writeBehind;
+        mSizeAtOpen = mDiskCache.size();
     }
 
-    private boolean writeBitmapToFile( Bitmap bitmap, DiskLruCache.Editor editor )
+    /**
+     * @return  Bytes written, or -1 if the bitmap could not be compressed.
+     */
+    private long writeBitmapToFile( Bitmap bitmap, DiskLruCache.Editor editor )
         throws IOException, FileNotFoundException {
-        OutputStream out = null;
+        CountingOutputStream out = null;
         try {
-            out = new BufferedOutputStream( editor.newOutputStream( 0 ), IO_BUFFER_SIZE );
-            return bitmap.compress( mCompressFormat, mCompressQuality, out );
+            out = new CountingOutputStream(
+                    new BufferedOutputStream( editor.newOutputStream( 0 ), IO_BUFFER_SIZE ));
+            if (!bitmap.compress( mCompressFormat, mCompressQuality, out )) {
+                return -1;
+            }
+            out.flush();
+            return out.getCount();
         } finally {
             if ( out != null ) {
                 out.close();
@@ -81,9 +210,16 @@ public class DiskLruImageCache {
                 return;
             }
 
-            if( writeBitmapToFile( data, editor ) ) {               
-                mDiskCache.flush();
+            long written = writeBitmapToFile( data, editor );
+            if( written >= 0 ) {
                 editor.commit();
+                mPuts.incrementAndGet();
+                mBytesPut.addAndGet(written);
+                if (mWriteBehind) {
+                    onPutCommitted();
+                } else {
+                    mDiskCache.flush();
+                }
                 if ( BuildConfig.DEBUG ) {
                    Log_OC.d( "cache_test_DISK_", "image put on disk cache " + validKey );
                 }
@@ -107,6 +243,70 @@ public class DiskLruImageCache {
 
     }
 
+    /**
+     * Flushes the cache after {@link #PUTS_PER_FLUSH} puts, or schedules a flush to happen
+     * {@link #FLUSH_DELAY_MS} ms later if none is waiting.
+     */
+    private synchronized void onPutCommitted() throws IOException {
+        mPutsSinceFlush++;
+        if (mPutsSinceFlush >= PUTS_PER_FLUSH) {
+            flush();
+
+        } else if (mScheduledFlush == null) {
+            if (mFlusher == null) {
+                mFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG + " flusher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            mScheduledFlush = mFlusher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        Log_OC.w(TAG, "Delayed flush of thumbnails cache failed", e);
+                    }
+                }
+            }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the pending changes of the journal and evicts the oldest entries if the cache
+     * grew over its maximum size.
+     */
+    public synchronized void flush() throws IOException {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        mPutsSinceFlush = 0;
+        if (!mDiskCache.isClosed()) {
+            mDiskCache.flush();
+        }
+    }
+
+    /**
+     * Flushes the pending changes and closes the cache; it can't be used after this.
+     */
+    public synchronized void close() {
+        try {
+            flush();
+            mDiskCache.close();
+        } catch (IOException e) {
+            Log_OC.w(TAG, "Thumbnails cache could not be closed cleanly", e);
+        }
+        if (mFlusher != null) {
+            mFlusher.shutdown();
+            mFlusher = null;
+        }
+    }
+
     public Bitmap getBitmap( String key ) {
 
         Bitmap bitmap = null;
@@ -116,8 +316,10 @@ public class DiskLruImageCache {
 
             snapshot = mDiskCache.get( validKey );
             if ( snapshot == null ) {
+                mMisses.incrementAndGet();
                 return null;
             }
+            mHits.incrementAndGet();
             final InputStream in = snapshot.getInputStream( 0 );
             if ( in != null ) {
                 final BufferedInputStream buffIn = 
@@ -175,9 +377,57 @@ public class DiskLruImageCache {
     public File getCacheFolder() {
         return mDiskCache.getDirectory();
     }
-    
-    private String convertToValidKey(String key) {
-        return Integer.toString(key.hashCode());
+
+    /**
+     * Changes the maximum size of the cache; the oldest entries are evicted in background if
+     * it's over the new one.
+     *
+     * @param maxSize   Maximum size in bytes.
+     */
+    public void setMaxSize(long maxSize) {
+        mDiskCache.setMaxSize(maxSize);
+    }
+
+    public long getMaxSize() {
+        return mDiskCache.getMaxSize();
+    }
+
+    /**
+     * @return  Bytes used by the entries in the cache.
+     */
+    public long size() {
+        return mDiskCache.size();
+    }
+
+    /**
+     * @return  Counters of the use of the cache since it was opened.
+     */
+    public Stats getStats() {
+        long size = mDiskCache.size();
+        // all that was put and not removed on purpose is either still in the cache or evicted
+        long evicted = mSizeAtOpen + mBytesPut.get() - mBytesRemoved.get() - size;
+        return new Stats(mHits.get(), mMisses.get(), mPuts.get(), mBytesPut.get(),
+                Math.max(0, evicted), size, mDiskCache.getMaxSize());
+    }
+
+    /**
+     * Names entries after the SHA-1 of the key: the names accepted by {@link DiskLruCache}
+     * are too limited to use the key itself, and a 32 bits hash of it, as the key's hashCode(),
+     * makes different thumbnails collide after some thousands of them.
+     *
+     * @param key   Key of the thumbnail.
+     * @return      Name of the entry in the {@link DiskLruCache}.
+     */
+    static String convertToValidKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return ContentHash.toHex(digest.digest(key.getBytes("UTF-8")));
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not available", e);
+        }
     }
 
     /**
@@ -187,10 +437,40 @@ public class DiskLruImageCache {
     public void removeKey( String key ) {
         String validKey = convertToValidKey(key);
         try {
-            mDiskCache.remove(validKey);
+            long sizeBefore = mDiskCache.size();
+            if (mDiskCache.remove(validKey)) {
+                mBytesRemoved.addAndGet(Math.max(0, sizeBefore - mDiskCache.size()));
+            }
             Log_OC.d(TAG, "removeKey from cache: " + validKey);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Counts the bytes written, to know the size of the entries put.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            mCount += length;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
@@ -222,7 +222,7 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
                         }
 
                     } else { //Folder
-                        fileSizeV.setVisibility(View.INVISIBLE);
+                        showPendingTransfers(file, fileSizeV);
                     }
 
                 case GRID_ITEM:
@@ -316,7 +316,7 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
             if (!file.isFolder()) {
                 if (file.isImage() && file.getRemoteId() != null){
                     // Thumbnail in Cache?
-                    Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(
+                    Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromMemoryCache(
                             String.valueOf(file.getRemoteId())
                             );
                     if (thumbnail != null && !file.needsUpdateThumbnail()){
@@ -338,7 +338,7 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
                                     task
                                     );
                             fileIcon.setImageDrawable(asyncDrawable);
-                            task.execute(file);
+                            task.start(file);
                         }
                     }
 
@@ -367,6 +367,65 @@ public class FileListListAdapter extends BaseAdapter implements ListAdapter {
         return view;
     }
 
+    /**
+     * Shows in a folder row the number and size of the transfers pending in the folder or in
+     * any folder inside it, or hides the view if there are none.
+     *
+     * The counters are kept by the transfer services per folder; the contents of the folder are
+     * not visited.
+     */
+    private void showPendingTransfers(OCFile folder, TextView view) {
+        int pendingTransfers = 0;
+        long pendingBytes = 0;
+        FileDownloaderBinder downloaderBinder = mTransferServiceGetter.getFileDownloaderBinder();
+        if (downloaderBinder != null) {
+            pendingTransfers += downloaderBinder.getPendingDownloads(mAccount, folder);
+            pendingBytes += downloaderBinder.getPendingDownloadBytes(mAccount, folder);
+        }
+        FileUploaderBinder uploaderBinder = mTransferServiceGetter.getFileUploaderBinder();
+        if (uploaderBinder != null) {
+            pendingTransfers += uploaderBinder.getPendingUploads(mAccount, folder);
+            pendingBytes += uploaderBinder.getPendingUploadBytes(mAccount, folder);
+        }
+        if (pendingTransfers > 0) {
+            view.setText(mContext.getString(
+                    R.string.file_list_pending_transfers,
+                    pendingTransfers,
+                    DisplayUtils.bytesToHumanReadable(pendingBytes)
+            ));
+            view.setVisibility(View.VISIBLE);
+        } else {
+            view.setVisibility(View.INVISIBLE);
+        }
+    }
+
+    /**
+     * Starts the generation of the thumbnail of the file in a position, if it's an image whose
+     * thumbnail is not in memory yet.
+     *
+     * @param position          Position of the file in the adapter.
+     * @param allowDownload     When 'false', thumbnails of files not downloaded are skipped,
+     *                          since they would be got from the server.
+     * @return                  Task generating the thumbnail, or null if not needed.
+     */
+    public ThumbnailsCacheManager.ThumbnailGenerationTask prefetchThumbnail(
+            int position, boolean allowDownload) {
+        OCFile file = (OCFile) getItem(position);
+        if (file == null || file.isFolder() || !file.isImage() || file.getRemoteId() == null ||
+                mStorageManager == null || (!allowDownload && !file.isDown())) {
+            return null;
+        }
+        if (ThumbnailsCacheManager.getBitmapFromMemoryCache(String.valueOf(file.getRemoteId()))
+                != null && !file.needsUpdateThumbnail()) {
+            return null;
+        }
+        ThumbnailsCacheManager.ThumbnailGenerationTask task =
+                new ThumbnailsCacheManager.ThumbnailGenerationTask(
+                        null, mStorageManager, mAccount
+                );
+        return task.prefetch(file) ? task : null;
+    }
+
     @Override
     public int getViewTypeCount() {
         return 1;
@@ -144,7 +144,7 @@ public class LocalFileListAdapter extends BaseAdapter implements ListAdapter {
              // get Thumbnail if file is image
                 if (BitmapUtils.isImage(file)){
                 // Thumbnail in Cache?
-                    Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(
+                    Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromMemoryCache(
                             String.valueOf(file.hashCode())
                     );
                     if (thumbnail != null){
@@ -165,7 +165,7 @@ public class LocalFileListAdapter extends BaseAdapter implements ListAdapter {
                                     task
                 		        );
                             fileIcon.setImageDrawable(asyncDrawable);
-                            task.execute(file);
+                            task.start(file);
                             Log_OC.v(TAG, "Executing task to generate a new thumbnail");
 
                         } // else, already being generated, don't restart it
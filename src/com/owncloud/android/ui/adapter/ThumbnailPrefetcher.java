@@ -0,0 +1,173 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.owncloud.android.ui.adapter;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.AsyncTask;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.widget.AbsListView;
+
+import com.owncloud.android.R;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager.ThumbnailGenerationTask;
+
+/**
+ * Generates in advance the thumbnails of the files that are about to be shown in a list or grid,
+ * following its scroll.
+ *
+ * While scrolling, the thumbnails of the next files in the direction of the scroll are requested;
+ * when the scroll stops, those of the files before and after the visible ones. Requests pending
+ * are cancelled when the direction of the scroll changes.
+ *
+ * Thumbnails that would be downloaded from the server are not prefetched while the active network
+ * is metered, unless enabled in setup.xml.
+ */
+public class ThumbnailPrefetcher implements AbsListView.OnScrollListener {
+
+    private static final int DIRECTION_NONE = 0;
+    private static final int DIRECTION_DOWN = 1;
+    private static final int DIRECTION_UP = -1;
+
+    private final FileListListAdapter mAdapter;
+    private final ConnectivityManager mConnectivityManager;
+
+    /** Files prefetched before and after the visible ones */
+    private final int mPrefetchedItems;
+    private final boolean mPrefetchOnMetered;
+
+    private final List<ThumbnailGenerationTask> mPendingTasks =
+            new ArrayList<ThumbnailGenerationTask>();
+
+    private int mLastFirstVisible = -1;
+    private int mDirection = DIRECTION_NONE;
+    private boolean mAllowDownload;
+
+
+    public ThumbnailPrefetcher(Context context, FileListListAdapter adapter) {
+        mAdapter = adapter;
+        mConnectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mPrefetchedItems = context.getResources().getInteger(R.integer.thumbnails_prefetch_items);
+        mPrefetchOnMetered = context.getResources().getBoolean(
+                R.bool.thumbnails_prefetch_on_metered_network
+        );
+        mAllowDownload = isDownloadAllowed();
+    }
+
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (mPrefetchedItems <= 0) {
+            return;
+        }
+        if (scrollState == SCROLL_STATE_TOUCH_SCROLL) {
+            // checked once per gesture, not per row
+            mAllowDownload = isDownloadAllowed();
+
+        } else if (scrollState == SCROLL_STATE_IDLE) {
+            int first = view.getFirstVisiblePosition();
+            int visible = view.getChildCount();
+            prefetch(first + visible, first + visible + mPrefetchedItems);
+            prefetch(first - mPrefetchedItems, first);
+        }
+    }
+
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                         int totalItemCount) {
+        if (mPrefetchedItems <= 0 || totalItemCount == 0 || firstVisibleItem == mLastFirstVisible) {
+            return;
+        }
+        int direction = (firstVisibleItem > mLastFirstVisible) ? DIRECTION_DOWN : DIRECTION_UP;
+        mLastFirstVisible = firstVisibleItem;
+        if (direction != mDirection) {
+            cancel();
+            mDirection = direction;
+        }
+        if (direction == DIRECTION_DOWN) {
+            int end = firstVisibleItem + visibleItemCount;
+            prefetch(end, end + mPrefetchedItems);
+        } else {
+            prefetch(firstVisibleItem - mPrefetchedItems, firstVisibleItem);
+        }
+    }
+
+
+    /**
+     * Cancels the prefetches not started yet, and forgets the position of the scroll; to call
+     * when the contents of the list are replaced or the list is hidden.
+     */
+    public void reset() {
+        cancel();
+        mLastFirstVisible = -1;
+        mDirection = DIRECTION_NONE;
+    }
+
+
+    private void cancel() {
+        for (ThumbnailGenerationTask task : mPendingTasks) {
+            // running tasks are left to finish; the thumbnail is close to be got
+            task.cancel(false);
+        }
+        mPendingTasks.clear();
+        ThumbnailsCacheManager.purgePrefetches();
+    }
+
+
+    /**
+     * Requests the thumbnails of the files in a range of positions; the closest to the visible
+     * files are requested last, so that they are served first.
+     *
+     * @param start     First position, included.
+     * @param end       Last position, excluded.
+     */
+    private void prefetch(int start, int end) {
+        Iterator<ThumbnailGenerationTask> it = mPendingTasks.iterator();
+        while (it.hasNext()) {
+            if (it.next().getStatus() == AsyncTask.Status.FINISHED) {
+                it.remove();
+            }
+        }
+        start = Math.max(start, 0);
+        end = Math.min(end, mAdapter.getCount());
+        boolean forward = (start >= mLastFirstVisible);
+        for (int i = 0; i < end - start; i++) {
+            int position = forward ? end - 1 - i : start + i;
+            ThumbnailGenerationTask task = mAdapter.prefetchThumbnail(position, mAllowDownload);
+            if (task != null) {
+                mPendingTasks.add(task);
+            }
+        }
+    }
+
+
+    private boolean isDownloadAllowed() {
+        return mPrefetchOnMetered || mConnectivityManager == null ||
+                !ConnectivityManagerCompat.isActiveNetworkMetered(mConnectivityManager);
+    }
+
+}
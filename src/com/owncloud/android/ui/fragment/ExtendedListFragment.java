@@ -96,6 +96,14 @@ public class ExtendedListFragment extends Fragment
         return mCurrentListView;
     }
 
+    /**
+     * Sets a listener for the scroll of both the list and the grid of files.
+     */
+    protected void setOnScrollListener(AbsListView.OnScrollListener listener) {
+        mListView.setOnScrollListener(listener);
+        mGridView.setOnScrollListener(listener);
+    }
+
 
     protected void switchToGridView() {
         if ((mCurrentListView == mListView)) {
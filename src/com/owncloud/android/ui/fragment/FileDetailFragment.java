@@ -408,7 +408,7 @@ public class FileDetailFragment extends FileFragment implements OnClickListener
 
             if (file.isImage()) {
                 String tagId = String.valueOf(file.getRemoteId());
-                thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(tagId);
+                thumbnail = ThumbnailsCacheManager.getBitmapFromMemoryCache(tagId);
 
                 if (thumbnail != null && !file.needsUpdateThumbnail()) {
                     iv.setImageBitmap(thumbnail);
@@ -429,7 +429,7 @@ public class FileDetailFragment extends FileFragment implements OnClickListener
                                         task
                                 );
                         iv.setImageDrawable(asyncDrawable);
-                        task.execute(file);
+                        task.start(file);
                     }
                 }
             } else {
@@ -47,6 +47,7 @@ import com.owncloud.android.ui.activity.FileDisplayActivity;
 import com.owncloud.android.ui.activity.FolderPickerActivity;
 import com.owncloud.android.ui.activity.OnEnforceableRefreshListener;
 import com.owncloud.android.ui.adapter.FileListListAdapter;
+import com.owncloud.android.ui.adapter.ThumbnailPrefetcher;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
 import com.owncloud.android.ui.dialog.FileActionsDialogFragment;
 import com.owncloud.android.ui.dialog.RemoveFileDialogFragment;
@@ -80,6 +81,7 @@ public class OCFileListFragment extends ExtendedListFragment
 
     private OCFile mFile = null;
     private FileListListAdapter mAdapter;
+    private ThumbnailPrefetcher mThumbnailPrefetcher;
     private boolean mJustFolders;
     
     private OCFile mTargetFile;
@@ -110,6 +112,15 @@ public class OCFileListFragment extends ExtendedListFragment
     }
 
 
+    @Override
+    public void onPause() {
+        if (mThumbnailPrefetcher != null) {
+            mThumbnailPrefetcher.reset();
+        }
+        super.onPause();
+    }
+
+
     @Override
     public void onDetach() {
         setOnRefreshListener(null);
@@ -144,6 +155,9 @@ public class OCFileListFragment extends ExtendedListFragment
         );
         setListAdapter(mAdapter);
 
+        mThumbnailPrefetcher = new ThumbnailPrefetcher(getActivity(), mAdapter);
+        setOnScrollListener(mThumbnailPrefetcher);
+
         registerLongClickListener();
   }
 
@@ -483,6 +497,7 @@ public class OCFileListFragment extends ExtendedListFragment
 
             // TODO Enable when "On Device" is recovered ?
             mAdapter.swapDirectory(directory, storageManager/*, onlyOnDevice*/);
+            mThumbnailPrefetcher.reset();
             if (mFile == null || !mFile.equals(directory)) {
                 mCurrentListView.setSelection(0);
             }
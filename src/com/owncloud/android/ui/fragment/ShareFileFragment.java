@@ -40,8 +40,10 @@ import android.widget.Switch;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.owncloud.android.MainApp;
 import com.owncloud.android.R;
 import com.owncloud.android.authentication.AccountUtils;
+import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.datamodel.ThumbnailsCacheManager;
 import com.owncloud.android.lib.common.utils.Log_OC;
@@ -171,9 +173,31 @@ public class ShareFileFragment extends Fragment
                 mFile.getFileName()));
         if (mFile.isImage()) {
             String remoteId = String.valueOf(mFile.getRemoteId());
-            Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromDiskCache(remoteId);
-            if (thumbnail != null) {
+            Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromMemoryCache(remoteId);
+            if (thumbnail != null && !mFile.needsUpdateThumbnail()) {
                 icon.setImageBitmap(thumbnail);
+            } else {
+                // generate new Thumbnail, or read it from the disk cache, in background
+                if (ThumbnailsCacheManager.cancelPotentialWork(mFile, icon)) {
+                    final ThumbnailsCacheManager.ThumbnailGenerationTask task =
+                            new ThumbnailsCacheManager.ThumbnailGenerationTask(
+                                    icon,
+                                    new FileDataStorageManager(mAccount,
+                                            getActivity().getContentResolver()),
+                                    mAccount
+                            );
+                    if (thumbnail == null) {
+                        thumbnail = ThumbnailsCacheManager.mDefaultImg;
+                    }
+                    final ThumbnailsCacheManager.AsyncDrawable asyncDrawable =
+                            new ThumbnailsCacheManager.AsyncDrawable(
+                                    MainApp.getAppContext().getResources(),
+                                    thumbnail,
+                                    task
+                            );
+                    icon.setImageDrawable(asyncDrawable);
+                    task.start(mFile);
+                }
             }
         }
         // Name
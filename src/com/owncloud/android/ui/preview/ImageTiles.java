@@ -0,0 +1,326 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.ui.preview;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.view.View;
+
+import com.owncloud.android.lib.common.utils.Log_OC;
+import com.owncloud.android.utils.BitmapUtils;
+import com.owncloud.android.utils.BoundedLifoExecutor;
+
+/**
+ * Parts of an image decoded at the resolution it's shown with, drawn over a preview of the
+ * whole image decoded at screen size, so that zooming into very large images shows their
+ * details without decoding them whole.
+ *
+ * Only the tiles visible at the current zoom are decoded, in background and newest first;
+ * a few screens of them are kept in memory. Tiles are drawn only when the zoom needs more
+ * resolution than the preview has.
+ *
+ * Except for the decoding, MUST be used from the main thread.
+ */
+public class ImageTiles {
+
+    private static final String TAG = ImageTiles.class.getSimpleName();
+
+    /** Side of a tile, in pixels of the decoded tile */
+    private static final int TILE_SIZE = 512;
+
+    /** Screens of tiles kept in memory */
+    private static final int CACHED_SCREENS = 2;
+
+    /** Tiles waiting to be decoded; tiles scrolled out of the screen are dropped first */
+    private static final int MAX_WAITING_TILES = 16;
+
+    private static final BoundedLifoExecutor mDecodeExecutor =
+            new BoundedLifoExecutor(1, MAX_WAITING_TILES, "Preview tiles");
+
+    private final BitmapRegionDecoder mDecoder;
+    private final int mWidth;
+    private final int mHeight;
+
+    /** Transforms the image as stored into the preview as shown: orientation and scale */
+    private final Matrix mImageToPreview;
+    /** Pixels of the image in a pixel of the preview */
+    private final float mPreviewSampleSize;
+
+    private final LruCache<String, Bitmap> mCache;
+    private final Set<String> mPending = new HashSet<String>();
+    /** Tiles visible in the last draw; read from the decoding thread */
+    private volatile Set<String> mWanted = Collections.emptySet();
+    private volatile boolean mReleased = false;
+    /** Tiles requested and not done yet; the decoder is recycled when none is left */
+    private final AtomicInteger mTasksInFlight = new AtomicInteger(0);
+    private final AtomicBoolean mDecoderRecycled = new AtomicBoolean(false);
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private WeakReference<View> mViewRef = new WeakReference<View>(null);
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mDrawMatrix = new Matrix();
+    private final Matrix mViewToImage = new Matrix();
+    private final RectF mVisible = new RectF();
+
+
+    /**
+     * Opens an image to decode its tiles, if it's large enough to need them.
+     *
+     * Reads the file; MUST NOT be called from the main thread.
+     *
+     * @param path              Path to the image file.
+     * @param orientation       EXIF orientation of the image.
+     * @param preview           Preview of the whole image, decoded as stored; it's shown with the
+     *                          orientation applied by the view.
+     * @param screenWidth       Width of the screen, in pixels.
+     * @param screenHeight      Height of the screen, in pixels.
+     * @return                  Tiles of the image, or null if the preview has already all the
+     *                          resolution of the image or the format can't be decoded by parts.
+     */
+    public static ImageTiles open(String path, int orientation, Bitmap preview, int screenWidth,
+                                  int screenHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth < preview.getWidth() * 2) {
+            // zooming the preview shows as much as the image
+            return null;
+        }
+        try {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(path, false);
+            return new ImageTiles(decoder, orientation, preview, screenWidth, screenHeight);
+
+        } catch (IOException e) {
+            Log_OC.d(TAG, "Image can't be decoded by tiles: " + path);
+            return null;
+        }
+    }
+
+
+    private ImageTiles(BitmapRegionDecoder decoder, int orientation, Bitmap preview,
+                       int screenWidth, int screenHeight) {
+        mDecoder = decoder;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+
+        // the preview is stored as the image, and shown with the same orientation
+        mImageToPreview = BitmapUtils.getOrientationMatrix(orientation, mWidth, mHeight);
+        boolean swapsSides = BitmapUtils.swapsSides(orientation);
+        int shownWidth = swapsSides ? mHeight : mWidth;
+        int shownHeight = swapsSides ? mWidth : mHeight;
+        int shownPreviewWidth = swapsSides ? preview.getHeight() : preview.getWidth();
+        int shownPreviewHeight = swapsSides ? preview.getWidth() : preview.getHeight();
+        mImageToPreview.postScale((float) shownPreviewWidth / shownWidth,
+                (float) shownPreviewHeight / shownHeight);
+        mPreviewSampleSize = (float) mWidth / preview.getWidth();
+
+        // a screen needs up to one tile more per row and column than fit in it
+        int tilesPerScreen = (screenWidth / TILE_SIZE + 2) * (screenHeight / TILE_SIZE + 2);
+        mCache = new LruCache<String, Bitmap>(
+                CACHED_SCREENS * tilesPerScreen * TILE_SIZE * TILE_SIZE * 4) {
+            @Override
+            protected int sizeOf(String key, Bitmap tile) {
+                return tile.getByteCount();
+            }
+        };
+    }
+
+
+    /**
+     * @return  Zoom at which a pixel of the image is shown in a pixel of the preview.
+     */
+    public float getPreviewSampleSize() {
+        return mPreviewSampleSize;
+    }
+
+
+    /**
+     * Draws the tiles of the image visible in a view, over its preview, and requests the ones
+     * missing; the view is invalidated when they are decoded.
+     *
+     * @param canvas            Canvas of the view, with the coordinates of the preview.
+     * @param previewToView     Matrix transforming the preview into the contents of the view.
+     * @param view              View where the preview is shown.
+     */
+    public void draw(Canvas canvas, Matrix previewToView, View view) {
+        if (mReleased) {
+            return;
+        }
+        mViewRef = new WeakReference<View>(view);
+
+        mDrawMatrix.set(mImageToPreview);
+        mDrawMatrix.postConcat(previewToView);
+        float scale = mDrawMatrix.mapRadius(1f);   // pixels of the view per pixel of the image
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1) {
+            sampleSize *= 2;
+        }
+        if (sampleSize >= mPreviewSampleSize) {
+            // the preview has enough resolution at this zoom
+            mWanted = Collections.emptySet();
+            return;
+        }
+
+        if (!mDrawMatrix.invert(mViewToImage)) {
+            return;
+        }
+        mVisible.set(0, 0, view.getWidth(), view.getHeight());
+        mViewToImage.mapRect(mVisible);
+        if (!mVisible.intersect(0, 0, mWidth, mHeight)) {
+            return;
+        }
+
+        int tileSize = TILE_SIZE * sampleSize;   // in pixels of the image
+        Set<String> wanted = new HashSet<String>();
+        for (int top = (int) mVisible.top / tileSize * tileSize; top < mVisible.bottom;
+             top += tileSize) {
+            for (int left = (int) mVisible.left / tileSize * tileSize; left < mVisible.right;
+                 left += tileSize) {
+                Rect region = new Rect(left, top, Math.min(left + tileSize, mWidth),
+                        Math.min(top + tileSize, mHeight));
+                String key = sampleSize + ":" + left + ":" + top;
+                wanted.add(key);
+                Bitmap tile = mCache.get(key);
+                if (tile != null) {
+                    drawTile(canvas, tile, region);
+                } else if (!mPending.contains(key)) {
+                    mPending.add(key);
+                    mTasksInFlight.incrementAndGet();
+                    mDecodeExecutor.execute(new TileTask(key, region, sampleSize));
+                }
+            }
+        }
+        mWanted = wanted;
+    }
+
+
+    private void drawTile(Canvas canvas, Bitmap tile, Rect region) {
+        mDrawMatrix.setScale((float) region.width() / tile.getWidth(),
+                (float) region.height() / tile.getHeight());
+        mDrawMatrix.postTranslate(region.left, region.top);
+        mDrawMatrix.postConcat(mImageToPreview);
+        canvas.drawBitmap(tile, mDrawMatrix, mPaint);
+    }
+
+
+    /**
+     * Stops decoding tiles and releases the memory used for them; the tiles can't be used
+     * after this.
+     */
+    public void release() {
+        mReleased = true;
+        mWanted = Collections.emptySet();
+        mCache.evictAll();
+        recycleDecoderIfIdle();
+    }
+
+
+    /**
+     * Recycles the decoder once the tiles are released and no tile is being decoded or waiting
+     * for it; called from any thread.
+     *
+     * Not queued in the executor, that can drop waiting tasks when full.
+     */
+    private void recycleDecoderIfIdle() {
+        if (mReleased && mTasksInFlight.get() == 0 &&
+                mDecoderRecycled.compareAndSet(false, true)) {
+            mDecoder.recycle();
+        }
+    }
+
+
+    /**
+     * Decodes a tile in background, and keeps it in the main thread when done.
+     */
+    private class TileTask extends FutureTask<Bitmap> {
+
+        private final String mKey;
+
+        TileTask(final String key, final Rect region, final int sampleSize) {
+            super(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    if (mReleased || !mWanted.contains(key)) {
+                        // scrolled out of the screen while waiting
+                        return null;
+                    }
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = sampleSize;
+                    return mDecoder.decodeRegion(region, options);
+                }
+            });
+            mKey = key;
+        }
+
+        @Override
+        protected void done() {
+            // also called for tiles dropped from the executor while waiting
+            mTasksInFlight.decrementAndGet();
+            recycleDecoderIfIdle();
+
+            Bitmap tile = null;
+            if (!isCancelled()) {
+                try {
+                    tile = get();
+                } catch (InterruptedException e) {
+                    Log_OC.w(TAG, "Interrupted decoding tile " + mKey);
+                } catch (ExecutionException e) {
+                    Log_OC.w(TAG, "Tile " + mKey + " could not be decoded", e.getCause());
+                }
+            }
+            final Bitmap decoded = tile;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mPending.remove(mKey);
+                    if (decoded != null && !mReleased) {
+                        mCache.put(mKey, decoded);
+                        View view = mViewRef.get();
+                        if (view != null) {
+                            view.invalidate();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+}
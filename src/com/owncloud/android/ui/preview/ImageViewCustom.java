@@ -4,6 +4,8 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.view.View;
@@ -23,6 +25,9 @@ public class ImageViewCustom extends ImageView {
     private int mBitmapHeight;
     private int mBitmapWidth;
 
+    private ImageTiles mTiles = null;
+    private final Matrix mPreviewToView = new Matrix();
+
     
     public ImageViewCustom(Context context) {
         super(context);
@@ -51,6 +56,26 @@ public class ImageViewCustom extends ImageView {
         }
 
         super.onDraw(canvas);
+
+        if (mTiles != null && getDrawable() != null) {
+            // tiles are drawn with the same transformation as the bitmap, over it
+            mPreviewToView.set(getImageMatrix());
+            mPreviewToView.postTranslate(getPaddingLeft(), getPaddingTop());
+            int saveCount = canvas.save();
+            canvas.concat(mPreviewToView);
+            mTiles.draw(canvas, mPreviewToView, this);
+            canvas.restoreToCount(saveCount);
+        }
+    }
+
+    /**
+     * Sets the tiles of the image shown, to draw its details over the bitmap when zoomed.
+     *
+     * @param tiles     Tiles of the image in the bitmap set, or null to draw only the bitmap.
+     */
+    public void setImageTiles(ImageTiles tiles) {
+        mTiles = tiles;
+        invalidate();
     }
 
     /**
@@ -80,4 +105,22 @@ public class ImageViewCustom extends ImageView {
         super.setImageBitmap(bm);
     }
 
+    /**
+     * Shows a bitmap decoded as stored in its file, in the EXIF orientation of the image,
+     * without creating a rotated copy of it.
+     *
+     * @param bm            Bitmap to show.
+     * @param orientation   EXIF orientation of the image in the bitmap.
+     */
+    public void setImageBitmap(Bitmap bm, int orientation) {
+        if (orientation == ExifInterface.ORIENTATION_NORMAL ||
+                orientation == ExifInterface.ORIENTATION_UNDEFINED) {
+            setImageBitmap(bm);
+        } else {
+            mBitmapWidth = bm.getWidth();
+            mBitmapHeight = bm.getHeight();
+            setImageDrawable(new OrientedBitmapDrawable(bm, orientation));
+        }
+    }
+
 }
@@ -0,0 +1,105 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.ui.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+import com.owncloud.android.utils.BitmapUtils;
+
+/**
+ * Draws a bitmap decoded as stored in its file, in the EXIF orientation it has to be shown
+ * with, instead of keeping a rotated copy of it.
+ *
+ * The intrinsic size is the one of the bitmap as shown, so views fitting or zooming the
+ * drawable see the image as a rotated bitmap.
+ */
+public class OrientedBitmapDrawable extends Drawable {
+
+    private final Bitmap mBitmap;
+    private final Matrix mOrientation;
+    private final int mWidth;
+    private final int mHeight;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+
+    /**
+     * @param bitmap        Bitmap decoded as stored in its file.
+     * @param orientation   EXIF orientation of the image.
+     */
+    public OrientedBitmapDrawable(Bitmap bitmap, int orientation) {
+        mBitmap = bitmap;
+        mOrientation = BitmapUtils.getOrientationMatrix(orientation, bitmap.getWidth(),
+                bitmap.getHeight());
+        boolean swapsSides = BitmapUtils.swapsSides(orientation);
+        mWidth = swapsSides ? bitmap.getHeight() : bitmap.getWidth();
+        mHeight = swapsSides ? bitmap.getWidth() : bitmap.getHeight();
+    }
+
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        int saveCount = canvas.save();
+        canvas.translate(bounds.left, bounds.top);
+        canvas.scale((float) bounds.width() / mWidth, (float) bounds.height() / mHeight);
+        canvas.drawBitmap(mBitmap, mOrientation, mPaint);
+        canvas.restoreToCount(saveCount);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return (mBitmap.hasAlpha() || mPaint.getAlpha() < 255) ?
+                PixelFormat.TRANSLUCENT : PixelFormat.OPAQUE;
+    }
+
+}
@@ -42,12 +42,14 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import com.owncloud.android.R;
+import com.owncloud.android.datamodel.FileDataStorageManager;
 import com.owncloud.android.datamodel.OCFile;
 import com.owncloud.android.files.FileMenuFilter;
 import com.owncloud.android.lib.common.utils.Log_OC;
 import com.owncloud.android.ui.dialog.ConfirmationDialogFragment;
 import com.owncloud.android.ui.dialog.RemoveFileDialogFragment;
 import com.owncloud.android.ui.fragment.FileFragment;
+import com.owncloud.android.utils.BitmapPool;
 import com.owncloud.android.utils.BitmapUtils;
 import com.owncloud.android.utils.DisplayUtils;
 
@@ -75,6 +77,7 @@ public class PreviewImageFragment extends FileFragment {
     private ProgressBar mProgressWheel;
 
     public Bitmap mBitmap = null;
+    private ImageTiles mImageTiles = null;
 
     private static final String TAG = PreviewImageFragment.class.getSimpleName();
 
@@ -199,7 +202,8 @@ public class PreviewImageFragment extends FileFragment {
     public void onStart() {
         super.onStart();
         if (getFile() != null) {
-            mLoadBitmapTask = new LoadBitmapTask(mImageView, mMessageView, mProgressWheel);
+            mLoadBitmapTask = new LoadBitmapTask(mImageView, mMessageView, mProgressWheel,
+                    mContainerActivity.getStorageManager());
             //mLoadBitmapTask.execute(new String[]{getFile().getStoragePath()});
 //            mLoadBitmapTask.execute(getFile().getStoragePath());
             mLoadBitmapTask.execute(getFile());
@@ -341,9 +345,14 @@ public class PreviewImageFragment extends FileFragment {
 
     @Override
     public void onDestroy() {
+        if (mImageTiles != null) {
+            mImageTiles.release();
+            mImageTiles = null;
+        }
         if (mBitmap != null) {
-            mBitmap.recycle();
-            System.gc();
+            // released to be reused by the next preview, instead of recycled
+            BitmapPool.getInstance().put(mBitmap);
+            mBitmap = null;
                 // putting this in onStop() is just the same; the fragment is always destroyed by
                 // {@link FragmentStatePagerAdapter} when the fragment in swiped further than the
                 // valid offscreen distance, and onStop() is never called before than that
@@ -389,6 +398,12 @@ public class PreviewImageFragment extends FileFragment {
         private final WeakReference<ProgressBar> mProgressWheelRef;
 
 
+        /**
+         * Storage where the orientation of the image is saved once read; may be null.
+         */
+        private final FileDataStorageManager mStorageManager;
+
+
         /**
          * Error message to show when a load fails
          */
@@ -399,12 +414,14 @@ public class PreviewImageFragment extends FileFragment {
          * Constructor.
          *
          * @param imageView Target {@link ImageView} where the bitmap will be loaded into.
+         * @param storageManager Storage to save the orientation of the image in; may be null.
          */
         public LoadBitmapTask(ImageViewCustom imageView, TextView messageView,
-                              ProgressBar progressWheel) {
+                              ProgressBar progressWheel, FileDataStorageManager storageManager) {
             mImageViewRef = new WeakReference<ImageViewCustom>(imageView);
             mMessageViewRef = new WeakReference<TextView>(messageView);
             mProgressWheelRef = new WeakReference<ProgressBar>(progressWheel);
+            mStorageManager = storageManager;
         }
 
         @Override
@@ -413,27 +430,45 @@ public class PreviewImageFragment extends FileFragment {
             if (params.length != 1) return null;
             OCFile ocFile = params[0];
             String storagePath = ocFile.getStoragePath();
+            BitmapPool pool = BitmapPool.getInstance();
+            ImageTiles tiles = null;
+            int orientation = ocFile.getImageOrientation();
             try {
 
                 int maxDownScale = 3;   // could be a parameter passed to doInBackground(...)
                 Point screenSize = DisplayUtils.getScreenSize(getActivity());
-                int minWidth = screenSize.x;
-                int minHeight = screenSize.y;
+                if (orientation == OCFile.IMAGE_ORIENTATION_UNKNOWN) {
+                    // read once, before decoding; kept until the file changes
+                    orientation = BitmapUtils.getExifOrientation(storagePath);
+                    ocFile.setImageOrientation(orientation);
+                    if (mStorageManager != null) {
+                        mStorageManager.saveImageOrientation(ocFile);
+                    }
+                }
+                // the bitmap is decoded as stored, and turned by the view
+                boolean swapsSides = BitmapUtils.swapsSides(orientation);
+                int minWidth = swapsSides ? screenSize.y : screenSize.x;
+                int minHeight = swapsSides ? screenSize.x : screenSize.y;
                 for (int i = 0; i < maxDownScale && result == null; i++) {
                     if (isCancelled()) return null;
                     try {
                         result = BitmapUtils.decodeSampledBitmapFromFile(storagePath, minWidth,
-                                minHeight);
+                                minHeight, pool);
 
-                        if (isCancelled()) return new LoadImage(result, ocFile);
+                        if (isCancelled()) {
+                            return new LoadImage(result, orientation, ocFile, null);
+                        }
 
                         if (result == null) {
                             mErrorMessageId = R.string.preview_image_error_unknown_format;
                             Log_OC.e(TAG, "File could not be loaded as a bitmap: " + storagePath);
                             break;
                         } else {
-                            // Rotate image, obeying exif tag.
-                            result = BitmapUtils.rotateImage(result, storagePath);
+                            // details of very large images are decoded by parts when zoomed
+                            if (!isCancelled()) {
+                                tiles = ImageTiles.open(storagePath, orientation, result,
+                                        screenSize.x, screenSize.y);
+                            }
                         }
 
                     } catch (OutOfMemoryError e) {
@@ -452,6 +487,12 @@ public class PreviewImageFragment extends FileFragment {
                             result.recycle();
                         }
                         result = null;
+                        if (tiles != null) {
+                            tiles.release();
+                            tiles = null;
+                        }
+                        // bitmaps kept to reuse are not worth failing
+                        pool.clear();
                     }
                 }
 
@@ -466,13 +507,16 @@ public class PreviewImageFragment extends FileFragment {
 
             }
 
-            return new LoadImage(result, ocFile);
+            return new LoadImage(result, orientation, ocFile, tiles);
         }
 
         @Override
         protected void onCancelled(LoadImage result) {
             if (result != null && result.bitmap != null) {
-                result.bitmap.recycle();
+                BitmapPool.getInstance().put(result.bitmap);
+            }
+            if (result != null && result.tiles != null) {
+                result.tiles.release();
             }
         }
 
@@ -487,7 +531,10 @@ public class PreviewImageFragment extends FileFragment {
             }
             if (result.bitmap != null && mBitmap != result.bitmap)  {
                 // unused bitmap, release it! (just in case)
-                result.bitmap.recycle();
+                BitmapPool.getInstance().put(result.bitmap);
+                if (result.tiles != null) {
+                    result.tiles.release();
+                }
             }
         }
 
@@ -504,9 +551,18 @@ public class PreviewImageFragment extends FileFragment {
                     imageView.setBackground(backrepeat);
                 }
 
-                imageView.setImageBitmap(bitmap);
+                // obeying exif tag, without a rotated copy of the bitmap
+                imageView.setImageBitmap(bitmap, result.orientation);
+                imageView.setImageTiles(result.tiles);
                 imageView.setVisibility(View.VISIBLE);
                 mBitmap  = bitmap;  // needs to be kept for recycling when not useful
+                mImageTiles = result.tiles;
+                if (result.tiles != null && mImageView != null) {
+                    // allow to zoom until a pixel of the image is shown in a pixel of the screen;
+                    // the preview fits the screen at most halved
+                    mImageView.setMaxZoom(Math.max(mImageView.getMaxZoom(),
+                            2 * result.tiles.getPreviewSampleSize()));
+                }
             }
 
             final TextView messageView = mMessageViewRef.get();
@@ -564,11 +620,15 @@ public class PreviewImageFragment extends FileFragment {
 
     private class LoadImage {
         private Bitmap bitmap;
+        private int orientation;
         private OCFile ocFile;
+        private ImageTiles tiles;
 
-        public LoadImage(Bitmap bitmap, OCFile ocFile){
+        public LoadImage(Bitmap bitmap, int orientation, OCFile ocFile, ImageTiles tiles){
             this.bitmap = bitmap;
+            this.orientation = orientation;
             this.ocFile = ocFile;
+            this.tiles = tiles;
         }
 
     }
@@ -0,0 +1,280 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.utils;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Build;
+
+import com.owncloud.android.MainApp;
+
+/**
+ * Bitmaps not needed anymore, kept to decode or draw new bitmaps into them instead of allocating
+ * new ones.
+ *
+ * Bitmaps are kept in buckets by the bytes of their allocation, so that a bitmap big enough for
+ * a request is found without going through all of them. From KitKat on, any bitmap with enough
+ * bytes can be reused with other dimensions; before, only bitmaps with the same dimensions and
+ * configuration.
+ *
+ * Bitmaps put in the pool MUST NOT be used anymore by whoever put them.
+ */
+public class BitmapPool {
+
+    /** Fraction of the memory class of the app used for bitmaps to reuse: 1/8 */
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+
+    /** Bitmaps with more bytes than this times the requested ones are not reused for it */
+    private static final int MAX_WASTE_FACTOR = 4;
+
+    private static BitmapPool sInstance = null;
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets =
+            new TreeMap<Integer, LinkedList<Bitmap>>();
+
+    /** All the bitmaps in the pool, oldest first */
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+
+    private final long mMaxBytes;
+    private long mBytes = 0;
+
+    private long mReuses = 0;
+    private long mAllocations = 0;
+    private long mAllocatedBytes = 0;
+
+
+    /**
+     * @return  Pool shared by the app, sized from the memory class of the device.
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            Context context = MainApp.getAppContext();
+            ActivityManager activityManager =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            sInstance = new BitmapPool(
+                    activityManager.getMemoryClass() * 1024L * 1024L / MEMORY_CLASS_DIVISOR);
+        }
+        return sInstance;
+    }
+
+
+    /**
+     * @param maxBytes      Maximum bytes of the bitmaps kept in the pool; the oldest ones are
+     *                      recycled to keep under it.
+     */
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+
+    /**
+     * Returns a mutable bitmap to draw into, cleared to transparent.
+     *
+     * @param width     Width of the bitmap, in pixels.
+     * @param height    Height of the bitmap, in pixels.
+     * @param config    Configuration of the bitmap.
+     * @return          Bitmap from the pool, or a new one if none fits.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = getReusable(width, height, config);
+        if (bitmap != null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                bitmap.reconfigure(width, height, config);
+            }
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+        bitmap = Bitmap.createBitmap(width, height, config);
+        countAllocation(bitmap);
+        return bitmap;
+    }
+
+
+    /**
+     * Takes out of the pool a bitmap that can hold an image with the given dimensions and
+     * configuration, to set it as {@link android.graphics.BitmapFactory.Options#inBitmap}.
+     *
+     * The bitmap keeps its former dimensions and contents.
+     *
+     * @param width     Width of the image, in pixels.
+     * @param height    Height of the image, in pixels.
+     * @param config    Configuration of the image.
+     * @return          Bitmap from the pool, or null if none fits.
+     */
+    public synchronized Bitmap getReusable(int width, int height, Bitmap.Config config) {
+        int bytes = width * height * getBytesPerPixel(config);
+        boolean anyDimensions = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        int maxBytes = anyDimensions ? bytes * MAX_WASTE_FACTOR : bytes;
+        for (Map.Entry<Integer, LinkedList<Bitmap>> bucket :
+                mBuckets.subMap(bytes, true, maxBytes, true).entrySet()) {
+            Iterator<Bitmap> bitmaps = bucket.getValue().iterator();
+            while (bitmaps.hasNext()) {
+                Bitmap bitmap = bitmaps.next();
+                if (anyDimensions || (bitmap.getWidth() == width &&
+                        bitmap.getHeight() == height && bitmap.getConfig() == config)) {
+                    bitmaps.remove();
+                    if (bucket.getValue().isEmpty()) {
+                        mBuckets.remove(bucket.getKey());
+                    }
+                    mBitmaps.remove(bitmap);
+                    mBytes -= bucket.getKey();
+                    mReuses++;
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Counts a bitmap allocated out of the pool because none could be reused for it.
+     */
+    public synchronized void countAllocation(Bitmap bitmap) {
+        if (bitmap != null) {
+            mAllocations++;
+            mAllocatedBytes += getAllocationBytes(bitmap);
+        }
+    }
+
+
+    /**
+     * Keeps a bitmap not used anymore to reuse it later, or recycles it if it can't be reused.
+     *
+     * @param bitmap    Bitmap not used anymore by the caller.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || mBitmaps.contains(bitmap)) {
+            return;
+        }
+        int bytes = getAllocationBytes(bitmap);
+        if (!bitmap.isMutable() || bytes > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        LinkedList<Bitmap> bucket = mBuckets.get(bytes);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(bytes, bucket);
+        }
+        bucket.add(bitmap);
+        mBitmaps.add(bitmap);
+        mBytes += bytes;
+        trimToSize(mMaxBytes);
+    }
+
+
+    /**
+     * Recycles the oldest bitmaps in the pool until it keeps no more than the given bytes.
+     *
+     * @param maxBytes  Bytes to keep.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        while (mBytes > maxBytes && !mBitmaps.isEmpty()) {
+            Bitmap bitmap = mBitmaps.removeFirst();
+            int bytes = getAllocationBytes(bitmap);
+            LinkedList<Bitmap> bucket = mBuckets.get(bytes);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(bytes);
+            }
+            mBytes -= bytes;
+            bitmap.recycle();
+        }
+    }
+
+
+    /**
+     * Recycles all the bitmaps in the pool.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+
+    /**
+     * Releases bitmaps kept in the pool when the system asks for it.
+     *
+     * @param level     Level received in {@link ComponentCallbacks2#onTrimMemory}.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+
+    /**
+     * @return  Bitmaps taken from the pool instead of allocated.
+     */
+    public synchronized long getReuses() {
+        return mReuses;
+    }
+
+    /**
+     * @return  Bitmaps allocated because none in the pool could be reused.
+     */
+    public synchronized long getAllocations() {
+        return mAllocations;
+    }
+
+    /**
+     * @return  Bytes of the bitmaps allocated because none in the pool could be reused.
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * @return  Bytes of the bitmaps kept in the pool.
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+
+    private static int getAllocationBytes(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+}
@@ -23,7 +23,9 @@ import com.owncloud.android.lib.common.utils.Log_OC;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.BitmapFactory.Options;
 import android.media.ExifInterface;
 import android.net.Uri;
@@ -39,39 +41,93 @@ public class BitmapUtils {
     
     /**
      * Decodes a bitmap from a file containing it minimizing the memory use, known that the bitmap
-     * will be drawn in a surface of reqWidth x reqHeight
-     * 
+     * will be drawn in a surface of reqWidth x reqHeight, into a bitmap of the pool if any fits.
+     *
+     * The result is mutable, so that it can be put in the pool when not needed anymore.
+     *
      * @param srcPath       Absolute path to the file containing the image.
      * @param reqWidth      Width of the surface where the Bitmap will be drawn on, in pixels.
      * @param reqHeight     Height of the surface where the Bitmap will be drawn on, in pixels.
-     * @return
+     * @param pool          Pool of bitmaps to reuse.
+     * @return              Decoded bitmap, or null if the file could not be decoded.
      */
-    public static Bitmap decodeSampledBitmapFromFile(String srcPath, int reqWidth, int reqHeight) {
-    
-        // set desired options that will affect the size of the bitmap
+    public static Bitmap decodeSampledBitmapFromFile(String srcPath, int reqWidth, int reqHeight,
+                                                     BitmapPool pool) {
         final Options options = new Options();
         options.inScaled = true;
-        options.inPurgeable = true;
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.GINGERBREAD_MR1) {
-            options.inPreferQualityOverSpeed = false;
-        }
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB) {
-            options.inMutable = false;
-        }
-        
-        // make a false load of the bitmap to get its dimensions
+        options.inPreferQualityOverSpeed = false;
+        options.inMutable = true;   // purgeable bitmaps can't be reused
+
         options.inJustDecodeBounds = true;
-        
-        BitmapFactory.decodeFile(srcPath, options);   
-        
-        // calculate factor to subsample the bitmap
+        BitmapFactory.decodeFile(srcPath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
         options.inSampleSize = calculateSampleFactor(options, reqWidth, reqHeight);
-
-        // decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(srcPath, options);
-        
-    }    
+
+        // before KitKat, only bitmaps with the same size and not subsampled can be reused
+        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT ||
+                options.inSampleSize == 1) {
+            int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+            int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+            options.inBitmap = pool.getReusable(width, height, Bitmap.Config.ARGB_8888);
+        }
+        if (options.inBitmap != null) {
+            try {
+                Bitmap bitmap = BitmapFactory.decodeFile(srcPath, options);
+                if (bitmap == null) {
+                    pool.put(options.inBitmap);
+                }
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                // the decoder refused the bitmap; decode into a new one
+                pool.put(options.inBitmap);
+                options.inBitmap = null;
+            }
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(srcPath, options);
+        pool.countAllocation(bitmap);
+        return bitmap;
+    }
+
+
+    /**
+     * Draws the center of an image, scaled down to cover a square and in the orientation it
+     * has to be shown with, in a single bitmap of the pool.
+     *
+     * Replaces {@link android.media.ThumbnailUtils#extractThumbnail(Bitmap, int, int)}
+     * followed by a rotated copy of the result, that allocate a bitmap each.
+     *
+     * @param source            Decoded image; not modified.
+     * @param size              Side of the square, in pixels.
+     * @param orientation       EXIF orientation of the image, see {@link #getExifOrientation}.
+     * @param backgroundColor   Color to draw behind the image, for images with transparency;
+     *                          {@link android.graphics.Color#TRANSPARENT} for none.
+     * @param pool              Pool of bitmaps to take the result from.
+     * @return                  Square bitmap of size x size pixels.
+     */
+    public static Bitmap extractThumbnail(Bitmap source, int size, int orientation,
+                                          int backgroundColor, BitmapPool pool) {
+        boolean swapsSides = swapsSides(orientation);
+        float shownWidth = swapsSides ? source.getHeight() : source.getWidth();
+        float shownHeight = swapsSides ? source.getWidth() : source.getHeight();
+
+        // as ThumbnailUtils, images smaller than the square are not scaled up
+        float scale = Math.min(1f, Math.max(size / shownWidth, size / shownHeight));
+
+        Matrix matrix = new Matrix();
+        matrix.postTranslate(-source.getWidth() / 2f, -source.getHeight() / 2f);
+        applyOrientation(matrix, orientation);
+        matrix.postScale(scale, scale);
+        matrix.postTranslate(size / 2f, size / 2f);
+
+        Bitmap thumbnail = pool.get(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(thumbnail);
+        canvas.drawColor(backgroundColor);
+        canvas.drawBitmap(source, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return thumbnail;
+    }
 
 
     /**
@@ -108,73 +164,107 @@ public class BitmapUtils {
     }
     
     /**
-     * Rotate bitmap according to EXIF orientation. 
-     * Cf. http://www.daveperrett.com/articles/2012/07/28/exif-orientation-handling-is-a-ghetto/ 
-     * @param bitmap Bitmap to be rotated
-     * @param storagePath Path to source file of bitmap. Needed for EXIF information. 
-     * @return correctly EXIF-rotated bitmap
+     * @param storagePath   Path to an image file.
+     * @return              Orientation of the image in its EXIF data, or
+     *                      {@link ExifInterface#ORIENTATION_NORMAL} if unknown; never
+     *                      {@link ExifInterface#ORIENTATION_UNDEFINED}, so that it can be told
+     *                      apart from an orientation not read yet.
      */
-    public static Bitmap rotateImage(Bitmap bitmap, String storagePath){
-        Bitmap resultBitmap = bitmap;
-
-        try
-        {
+    public static int getExifOrientation(String storagePath) {
+        try {
             ExifInterface exifInterface = new ExifInterface(storagePath);
-            int orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
+            int orientation = exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+            if (orientation < ExifInterface.ORIENTATION_NORMAL ||
+                    orientation > ExifInterface.ORIENTATION_ROTATE_270) {
+                return ExifInterface.ORIENTATION_NORMAL;
+            }
+            return orientation;
 
-            Matrix matrix = new Matrix();
+        } catch (Exception e) {
+            Log_OC.e("BitmapUtil", "Could not read the orientation of the image: " +
+                    storagePath);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
 
-            // 1: nothing to do
-            
-            // 2
-            if (orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL)
-            {
-                matrix.postScale(-1.0f, 1.0f);
-            }
-            // 3
-            else if (orientation == ExifInterface.ORIENTATION_ROTATE_180)
-            {
-                matrix.postRotate(180);
-            }
-            // 4
-            else if (orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL)
-            {
-                matrix.postScale(1.0f, -1.0f);
-            }
-            // 5
-            else if (orientation == ExifInterface.ORIENTATION_TRANSPOSE)
-            {
-                matrix.postRotate(-90);
-                matrix.postScale(1.0f, -1.0f);
-            }
-            // 6
-            else if (orientation == ExifInterface.ORIENTATION_ROTATE_90)
-            {
-                matrix.postRotate(90);
-            }
-            // 7
-            else if (orientation == ExifInterface.ORIENTATION_TRANSVERSE)
-            {
-                matrix.postRotate(90);
-                matrix.postScale(1.0f, -1.0f);
-            }
-            // 8
-            else if (orientation == ExifInterface.ORIENTATION_ROTATE_270)
-            {
-                matrix.postRotate(270);
-            } 
-            
-            // Rotate the bitmap
-            resultBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-            if (resultBitmap != bitmap) {
-                bitmap.recycle();
-            }
+
+    /**
+     * @param orientation   EXIF orientation of an image.
+     * @param width         Width of the image as stored, in pixels.
+     * @param height        Height of the image as stored, in pixels.
+     * @return              Matrix transforming the image as stored into the image as shown,
+     *                      with the top left corner of both at the origin.
+     */
+    public static Matrix getOrientationMatrix(int orientation, int width, int height) {
+        boolean swapsSides = swapsSides(orientation);
+        Matrix matrix = new Matrix();
+        matrix.postTranslate(-width / 2f, -height / 2f);
+        applyOrientation(matrix, orientation);
+        matrix.postTranslate((swapsSides ? height : width) / 2f,
+                (swapsSides ? width : height) / 2f);
+        return matrix;
+    }
+
+
+    /**
+     * Adds to a matrix the transformations that show an image in its EXIF orientation, around
+     * the origin.
+     *
+     * @param matrix        Matrix to transform.
+     * @param orientation   EXIF orientation of the image.
+     */
+    private static void applyOrientation(Matrix matrix, int orientation) {
+        // 1: nothing to do
+
+        // 2
+        if (orientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL)
+        {
+            matrix.postScale(-1.0f, 1.0f);
+        }
+        // 3
+        else if (orientation == ExifInterface.ORIENTATION_ROTATE_180)
+        {
+            matrix.postRotate(180);
+        }
+        // 4
+        else if (orientation == ExifInterface.ORIENTATION_FLIP_VERTICAL)
+        {
+            matrix.postScale(1.0f, -1.0f);
+        }
+        // 5
+        else if (orientation == ExifInterface.ORIENTATION_TRANSPOSE)
+        {
+            matrix.postRotate(-90);
+            matrix.postScale(1.0f, -1.0f);
         }
-        catch (Exception exception)
+        // 6
+        else if (orientation == ExifInterface.ORIENTATION_ROTATE_90)
         {
-            Log_OC.e("BitmapUtil", "Could not rotate the image: " + storagePath);
+            matrix.postRotate(90);
         }
-        return resultBitmap;
+        // 7
+        else if (orientation == ExifInterface.ORIENTATION_TRANSVERSE)
+        {
+            matrix.postRotate(90);
+            matrix.postScale(1.0f, -1.0f);
+        }
+        // 8
+        else if (orientation == ExifInterface.ORIENTATION_ROTATE_270)
+        {
+            matrix.postRotate(270);
+        }
+    }
+
+    /**
+     * @return  'true' if the EXIF orientation turns the image a quarter, so its width is shown
+     *          as height.
+     */
+    public static boolean swapsSides(int orientation) {
+        return orientation == ExifInterface.ORIENTATION_TRANSPOSE ||
+                orientation == ExifInterface.ORIENTATION_ROTATE_90 ||
+                orientation == ExifInterface.ORIENTATION_TRANSVERSE ||
+                orientation == ExifInterface.ORIENTATION_ROTATE_270;
     }
 
     /**
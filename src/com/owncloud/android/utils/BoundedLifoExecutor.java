@@ -0,0 +1,87 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.owncloud.android.utils;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor running the newest tasks first, with a bounded number of waiting tasks.
+ *
+ * When the queue is full, the oldest waiting task is dropped to make room for the new one;
+ * dropped tasks implementing {@link Future}, as the ones of an {@link android.os.AsyncTask},
+ * are cancelled.
+ *
+ * Suited for work requested by views that may leave the screen before it is done, as the
+ * thumbnails of a list being scrolled.
+ */
+public class BoundedLifoExecutor extends ThreadPoolExecutor {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * @param threads       Number of threads running tasks.
+     * @param capacity      Maximum number of tasks waiting for a thread.
+     * @param name          Prefix for the names of the threads.
+     */
+    public BoundedLifoExecutor(int threads, int capacity, final String name) {
+        super(
+                threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LifoQueue(capacity),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, name + " #" + mCount.getAndIncrement());
+                    }
+                }
+        );
+        allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Queue taking the newest task first, and dropping the oldest one when full.
+     */
+    private static class LifoQueue extends LinkedBlockingDeque<Runnable> {
+
+        LifoQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(Runnable task) {
+            while (!offerFirst(task)) {
+                Runnable dropped = pollLast();
+                if (dropped instanceof Future) {
+                    ((Future<?>) dropped).cancel(false);
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes identifying the contents of files, used to recognize contents already known in the
+ * server.
+ */
+public class ContentHash {
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * @return  New digest computing hashes of contents.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+
+    /**
+     * Computes the hash of a range of the contents of a channel, with positional reads.
+     *
+     * @param channel       Channel to read the contents from; its position is not modified.
+     * @param offset        Position of the first byte of the range.
+     * @param length        Length of the range.
+     * @return              Hash of the range, in hexadecimal.
+     */
+    public static String compute(FileChannel channel, long offset, long length)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, channel, offset, length);
+        return toHex(digest.digest());
+    }
+
+
+    /**
+     * Updates a digest with a range of the contents of a channel, with positional reads.
+     *
+     * @param digest        Digest to update.
+     * @param channel       Channel to read the contents from; its position is not modified.
+     * @param offset        Position of the first byte of the range.
+     * @param length        Length of the range.
+     */
+    public static void update(MessageDigest digest, FileChannel channel, long offset,
+                              long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of contents at position " + position);
+            }
+            digest.update(buffer.array(), 0, read);
+            position += read;
+        }
+    }
+
+
+    /**
+     * @param hash      Hash computed by a digest.
+     * @return          Hash in hexadecimal.
+     */
+    public static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+}
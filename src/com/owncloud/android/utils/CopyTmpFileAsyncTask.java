@@ -26,7 +26,6 @@ import android.os.AsyncTask;
 import com.owncloud.android.lib.common.utils.Log_OC;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 
@@ -68,7 +67,6 @@ public class CopyTmpFileAsyncTask  extends AsyncTask<Object, Void, String> {
 
             String fullTempPath = FileStorageUtils.getTemporalPath(accountName) + filePath;
             InputStream inputStream = null;
-            FileOutputStream outputStream = null;
 
             try {
                 inputStream = contentResolver.openInputStream(uri);
@@ -78,16 +76,7 @@ public class CopyTmpFileAsyncTask  extends AsyncTask<Object, Void, String> {
                     tempDir.mkdirs();
                 }
                 cacheFile.createNewFile();
-                outputStream = new FileOutputStream(fullTempPath);
-                byte[] buffer = new byte[4096];
-
-                int count = 0;
-
-                while ((count = inputStream.read(buffer)) > 0) {
-                    outputStream.write(buffer, 0, count);
-                }
-
-                outputStream.close();
+                FileStorageUtils.copyToFile(inputStream, cacheFile, null);
                 inputStream.close();
 
                 result = fullTempPath;
@@ -101,14 +90,6 @@ public class CopyTmpFileAsyncTask  extends AsyncTask<Object, Void, String> {
                     }
                 }
 
-                if (outputStream != null) {
-                    try {
-                        outputStream.close();
-                    } catch (Exception e1) {
-                        Log_OC.e(TAG, "Output Stream Exception ", e1);
-                    }
-                }
-
                 if (fullTempPath != null) {
                     File f = new File(fullTempPath);
                     f.delete();
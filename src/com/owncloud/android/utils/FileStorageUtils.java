@@ -21,9 +21,16 @@
 package com.owncloud.android.utils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import third_parties.daveKoeller.AlphanumComparator;
 
@@ -53,6 +60,12 @@ public class FileStorageUtils {
     public static Integer mSortOrder = SORT_NAME;
     public static Boolean mSortAscending = true;
 
+    /** Maximum length of a single channel transfer; the copies can be cancelled between them */
+    private static final long COPY_TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    /** Buffer for the copies from streams that don't allow channel transfers */
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
     
     public static final String getSavePath(String accountName) {
         File sdCard = Environment.getExternalStorageDirectory();
@@ -330,4 +343,99 @@ public class FileStorageUtils {
         }
     }
 
+    /**
+     * Copies a local file.
+     *
+     * @param src           File to copy.
+     * @param target        File to write; created or overwritten.
+     * @param cancelled     Flag to stop the copy before it's finished; may be null.
+     * @return              Number of bytes copied.
+     */
+    public static long copyFile(File src, File target, AtomicBoolean cancelled)
+            throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        try {
+            return copyToFile(in, target, cancelled);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies the contents of a stream into a file.
+     *
+     * Streams on regular files, including the ones got from content providers for file
+     * descriptors, are copied with channel transfers, so the system can move the data without
+     * passing it through the Java heap. The rest are read with a large buffer.
+     *
+     * @param in            Stream to read until its end; not closed.
+     * @param target        File to write; created or overwritten.
+     * @param cancelled     Flag to stop the copy before it's finished; may be null.
+     * @return              Number of bytes copied.
+     */
+    public static long copyToFile(InputStream in, File target, AtomicBoolean cancelled)
+            throws IOException {
+        return copyToFile(in, target, cancelled, null);
+    }
+
+    /**
+     * Copies the contents of a stream into a file, as {@link #copyToFile(InputStream, File,
+     * AtomicBoolean)}, updating a digest with the bytes copied.
+     *
+     * The ranges moved with channel transfers are read again from the source with positional
+     * reads, usually served from the page cache, to keep the transfers.
+     *
+     * @param digest        Digest to update with the contents copied; may be null.
+     */
+    public static long copyToFile(InputStream in, File target, AtomicBoolean cancelled,
+                                  MessageDigest digest) throws IOException {
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            FileChannel outChannel = out.getChannel();
+            long copied = 0;
+            if (in instanceof FileInputStream) {
+                FileChannel inChannel = ((FileInputStream) in).getChannel();
+                long position, size;
+                try {
+                    position = inChannel.position();
+                    size = inChannel.size();
+                } catch (IOException e) {
+                    position = size = 0;    // not a regular file; pipe or socket
+                }
+                long transferred = 1;
+                while (position < size && transferred > 0 && !isCancelled(cancelled)) {
+                    transferred = inChannel.transferTo(position,
+                            Math.min(COPY_TRANSFER_SIZE, size - position), outChannel);
+                    if (digest != null && transferred > 0) {
+                        ContentHash.update(digest, inChannel, position, transferred);
+                    }
+                    position += transferred;
+                    copied += transferred;
+                }
+                if (copied > 0) {
+                    inChannel.position(position);   // transferTo doesn't move it
+                }
+            }
+
+            // whatever was not copied with channel transfers, if any
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while (!isCancelled(cancelled) && (read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);     // shares the file position with outChannel
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                copied += read;
+            }
+            return copied;
+
+        } finally {
+            out.close();
+        }
+    }
+
+    private static boolean isCancelled(AtomicBoolean cancelled) {
+        return (cancelled != null && cancelled.get());
+    }
+
 }
@@ -0,0 +1,183 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.owncloud.android.files.services.BandwidthGovernor;
+import com.owncloud.android.files.services.BandwidthGovernor.TrafficClass;
+import com.owncloud.android.files.services.ThrottledInputStream;
+
+/**
+ * Tests the budgets and the priority of interactive traffic enforced by
+ * {@link BandwidthGovernor}, reading from memory through {@link ThrottledInputStream}.
+ */
+public class BandwidthGovernorTest extends AndroidTestCase {
+
+    private static final String TAG = BandwidthGovernorTest.class.getSimpleName();
+
+    private static final int KB = 1024;
+
+    public void testClassBudget() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor(0, 0, 0, 256 * KB);
+        long elapsed = readAll(governor, TrafficClass.DOWNLOAD, 768 * KB);
+        Log.i(TAG, "768 KB with a budget of 256 KB/s read in " + elapsed + " ms");
+        // the bucket starts full, with the tokens of half a second
+        assertTrue("Budget exceeded: " + elapsed + " ms", elapsed >= 2300);
+        assertTrue("Budget not used: " + elapsed + " ms", elapsed < 3500);
+
+        // other classes are not limited
+        elapsed = readAll(governor, TrafficClass.UPLOAD, 768 * KB);
+        assertTrue("Unlimited class slowed down: " + elapsed + " ms", elapsed < 500);
+    }
+
+
+    public void testTotalBudgetIsShared() throws Exception {
+        final BandwidthGovernor governor = new BandwidthGovernor(256 * KB, 0, 0, 0);
+        final AtomicLong uploadTime = new AtomicLong();
+        Thread upload = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    uploadTime.set(readAll(governor, TrafficClass.UPLOAD, 384 * KB));
+                } catch (IOException e) {
+                    uploadTime.set(-1);
+                }
+            }
+        };
+        long start = System.currentTimeMillis();
+        upload.start();
+        readAll(governor, TrafficClass.DOWNLOAD, 384 * KB);
+        upload.join();
+        long elapsed = System.currentTimeMillis() - start;
+        Log.i(TAG, "2 x 384 KB with a total budget of 256 KB/s read in " + elapsed + " ms");
+        assertTrue(uploadTime.get() > 0);
+        assertTrue("Total budget exceeded: " + elapsed + " ms", elapsed >= 2300);
+    }
+
+
+    public void testInteractiveTrafficHasPriority() throws Exception {
+        final BandwidthGovernor governor = new BandwidthGovernor(256 * KB, 0, 0, 0);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Thread bulk = startBulkTransfer(governor, stop, new AtomicLong());
+        try {
+            Thread.sleep(1000);     // the bulk transfer takes the burst of the bucket
+
+            governor.beginInteractive();
+            long elapsed;
+            try {
+                elapsed = readAll(governor, TrafficClass.INTERACTIVE, 128 * KB);
+            } finally {
+                governor.endInteractive();
+            }
+            Log.i(TAG, "128 KB of interactive traffic read in " + elapsed +
+                    " ms, with a total budget of 256 KB/s shared with a bulk transfer");
+            // sharing the budget in halves would take a second
+            assertTrue("Interactive traffic did not have priority: " + elapsed + " ms",
+                    elapsed < 800);
+        } finally {
+            stop.set(true);
+            bulk.join();
+        }
+    }
+
+
+    public void testInteractiveTrafficDoesNotSlowDownUnlimitedBulk() throws Exception {
+        final BandwidthGovernor governor = new BandwidthGovernor(0, 0, 0, 0);
+        final AtomicLong bulkRead = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Thread bulk = startBulkTransfer(governor, stop, bulkRead);
+
+        Thread.sleep(200);
+        long before = bulkRead.get();
+        Thread.sleep(1000);
+        long alone = bulkRead.get() - before;
+
+        governor.beginInteractive();
+        before = bulkRead.get();
+        Thread.sleep(1000);
+        long withInteractive = bulkRead.get() - before;
+        governor.endInteractive();
+
+        stop.set(true);
+        bulk.join();
+        Log.i(TAG, "Bulk bytes per second: " + alone + " alone, " + withInteractive +
+                " with interactive traffic");
+        // without budgets there is nothing to give way
+        assertTrue("Bulk traffic slowed down without budgets: " + withInteractive,
+                withInteractive > alone / 2);
+    }
+
+
+    private Thread startBulkTransfer(final BandwidthGovernor governor, final AtomicBoolean stop,
+                                     final AtomicLong bulkRead) {
+        Thread bulk = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[16 * KB];
+                InputStream in = new ThrottledInputStream(new EndlessInputStream(), governor,
+                        TrafficClass.DOWNLOAD);
+                try {
+                    while (!stop.get()) {
+                        bulkRead.addAndGet(in.read(buffer));
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Bulk transfer failed", e);
+                }
+            }
+        };
+        bulk.start();
+        return bulk;
+    }
+
+
+    private long readAll(BandwidthGovernor governor, TrafficClass trafficClass, int length)
+            throws IOException {
+        InputStream in = new ThrottledInputStream(new ByteArrayInputStream(new byte[length]),
+                governor, trafficClass);
+        byte[] buffer = new byte[32 * KB];
+        long start = System.currentTimeMillis();
+        while (in.read(buffer) != -1) {
+            // just read
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+
+    private static class EndlessInputStream extends InputStream {
+        @Override
+        public int read() {
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            return count;
+        }
+    }
+
+}
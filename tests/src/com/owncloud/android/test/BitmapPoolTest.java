@@ -0,0 +1,202 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.media.ThumbnailUtils;
+import android.os.Build;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.owncloud.android.utils.BitmapPool;
+import com.owncloud.android.utils.BitmapUtils;
+
+/**
+ * Checks the reuse of bitmaps in {@link BitmapPool}, and measures the bitmaps allocated and the
+ * garbage collections while generating 1000 thumbnails, as in a scroll of the list of files,
+ * with and without the pool.
+ */
+public class BitmapPoolTest extends AndroidTestCase {
+
+    private static final String TAG = BitmapPoolTest.class.getSimpleName();
+
+    private static final int THUMBNAILS = 1000;
+    private static final int THUMBNAIL_SIZE = 192;
+    private static final int IMAGES = 10;
+
+
+    public void testBitmapsAreReused() {
+        BitmapPool pool = new BitmapPool(8 * 1024 * 1024);
+        Bitmap bitmap = pool.get(100, 50, Bitmap.Config.ARGB_8888);
+        assertEquals(1, pool.getAllocations());
+
+        pool.put(bitmap);
+        assertEquals(100 * 50 * 4, pool.getBytes());
+        assertSame(bitmap, pool.get(100, 50, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.getReuses());
+        assertEquals(0, pool.getBytes());
+
+        pool.put(bitmap);
+        Bitmap smaller = pool.get(50, 50, Bitmap.Config.ARGB_8888);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            assertSame(bitmap, smaller);
+            assertEquals(50, smaller.getWidth());
+        } else {
+            assertNotSame(bitmap, smaller);
+        }
+    }
+
+
+    public void testOldestBitmapsAreRecycledOverMaxSize() {
+        BitmapPool pool = new BitmapPool(2 * 100 * 100 * 4);
+        Bitmap first = pool.get(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap second = pool.get(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap third = pool.get(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+        assertTrue(first.isRecycled());
+        assertFalse(third.isRecycled());
+        assertEquals(2 * 100 * 100 * 4, pool.getBytes());
+
+        Bitmap immutable = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888)
+                .copy(Bitmap.Config.ARGB_8888, false);
+        pool.put(immutable);
+        assertTrue(immutable.isRecycled());
+
+        pool.clear();
+        assertEquals(0, pool.getBytes());
+        assertTrue(third.isRecycled());
+    }
+
+
+    public void testThumbnailIsRotated() {
+        BitmapPool pool = new BitmapPool(8 * 1024 * 1024);
+        Bitmap bitmap = pool.get(20, 20, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        bitmap.setPixel(0, 0, Color.RED);
+        Bitmap thumbnail = BitmapUtils.extractThumbnail(bitmap, 20,
+                ExifInterface.ORIENTATION_ROTATE_90, Color.TRANSPARENT, pool);
+        assertEquals(20, thumbnail.getWidth());
+        assertEquals(20, thumbnail.getHeight());
+        // the top left corner is shown at the top right after turning clockwise
+        assertEquals(Color.RED, thumbnail.getPixel(19, 0));
+        assertEquals(Color.TRANSPARENT, thumbnail.getPixel(0, 0));
+    }
+
+
+    public void testAllocationsOfThousandThumbnails() throws Exception {
+        File[] images = createImages();
+        try {
+            // former pipeline: decode, crop and scale, rotate; each in a new bitmap
+            measure("without pool", images, null);
+            measure("with pool", images, new BitmapPool(16 * 1024 * 1024));
+        } finally {
+            for (File image : images) {
+                image.delete();
+            }
+        }
+    }
+
+
+    @SuppressWarnings("deprecation")
+    private void measure(String name, File[] images, BitmapPool pool) {
+        System.gc();
+        Debug.resetAllCounts();
+        Debug.startAllocCounting();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < THUMBNAILS; i++) {
+            String path = images[i % images.length].getAbsolutePath();
+            Bitmap thumbnail;
+            if (pool == null) {
+                thumbnail = extractThumbnailWithoutPool(path);
+            } else {
+                Bitmap decoded = BitmapUtils.decodeSampledBitmapFromFile(path, THUMBNAIL_SIZE,
+                        THUMBNAIL_SIZE, pool);
+                thumbnail = BitmapUtils.extractThumbnail(decoded, THUMBNAIL_SIZE,
+                        BitmapUtils.getExifOrientation(path), Color.TRANSPARENT, pool);
+                pool.put(decoded);
+            }
+            assertNotNull(thumbnail);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Debug.stopAllocCounting();
+        Log.i(TAG, THUMBNAILS + " thumbnails " + name + ": " + elapsed + " ms, " +
+                Debug.getGlobalAllocCount() + " objects and " + Debug.getGlobalAllocSize() +
+                " bytes allocated in the heap, " + Debug.getGlobalGcInvocationCount() +
+                " garbage collections" + ((pool == null) ? "" : "; " + pool.getAllocations() +
+                " bitmaps (" + pool.getAllocatedBytes() + " bytes) allocated, " +
+                pool.getReuses() + " reused"));
+    }
+
+    /**
+     * Former pipeline: decodes the image, crops and scales it, and rotates it; each in a new
+     * bitmap.
+     */
+    private Bitmap extractThumbnailWithoutPool(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        options.inSampleSize = 1;
+        while (options.outWidth / 2 / options.inSampleSize > THUMBNAIL_SIZE &&
+                options.outHeight / 2 / options.inSampleSize > THUMBNAIL_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        Bitmap decoded = BitmapFactory.decodeFile(path, options);
+
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(decoded, THUMBNAIL_SIZE,
+                THUMBNAIL_SIZE);
+        Matrix matrix = BitmapUtils.getOrientationMatrix(BitmapUtils.getExifOrientation(path),
+                thumbnail.getWidth(), thumbnail.getHeight());
+        return Bitmap.createBitmap(thumbnail, 0, 0, thumbnail.getWidth(), thumbnail.getHeight(),
+                matrix, true);
+    }
+
+    private File[] createImages() throws Exception {
+        File[] images = new File[IMAGES];
+        for (int i = 0; i < IMAGES; i++) {
+            // photos of different sizes, as found in a folder of a camera
+            int width = 1024 + 64 * i;
+            int height = 768 + 48 * i;
+            Bitmap image = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            new Canvas(image).drawColor(Color.rgb(20 * i, 128, 255 - 20 * i));
+            images[i] = new File(getContext().getCacheDir(), "bitmapPoolTest" + i + ".jpg");
+            FileOutputStream out = new FileOutputStream(images[i]);
+            try {
+                image.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            } finally {
+                out.close();
+            }
+            image.recycle();
+        }
+        return images;
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+import com.owncloud.android.utils.BoundedLifoExecutor;
+
+/**
+ * Checks that {@link BoundedLifoExecutor} runs the newest tasks first and cancels the oldest ones
+ * when too many are waiting.
+ */
+public class BoundedLifoExecutorTest extends AndroidTestCase {
+
+    private static final int CAPACITY = 3;
+
+    private BoundedLifoExecutor mExecutor;
+    private List<String> mRun;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mExecutor = new BoundedLifoExecutor(1, CAPACITY, "Test");
+        mRun = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        super.tearDown();
+    }
+
+
+    public void testNewestFirstAndOldestDropped() throws Exception {
+        // keep the only thread busy while the rest of tasks are queued
+        final CountDownLatch release = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        List<FutureTask<String>> tasks = new ArrayList<FutureTask<String>>();
+        for (String name : new String[]{"a", "b", "c", "d", "e"}) {
+            FutureTask<String> task = newTask(name);
+            tasks.add(task);
+            mExecutor.execute(task);
+        }
+        assertEquals(CAPACITY, mExecutor.getQueue().size());
+
+        release.countDown();
+        for (FutureTask<String> task : tasks.subList(2, tasks.size())) {
+            assertNotNull(task.get(5, TimeUnit.SECONDS));
+        }
+        assertTrue(tasks.get(0).isCancelled());
+        assertTrue(tasks.get(1).isCancelled());
+        assertEquals("[e, d, c]", mRun.toString());
+    }
+
+
+    public void testCancelledTasksArePurged() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        FutureTask<String> offScreen = newTask("off screen");
+        mExecutor.execute(offScreen);
+        FutureTask<String> visible = newTask("visible");
+        mExecutor.execute(visible);
+
+        offScreen.cancel(true);
+        mExecutor.purge();
+        assertEquals(1, mExecutor.getQueue().size());
+
+        release.countDown();
+        assertEquals("visible", visible.get(5, TimeUnit.SECONDS));
+        assertEquals("[visible]", mRun.toString());
+    }
+
+
+    private FutureTask<String> newTask(final String name) {
+        return new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() {
+                mRun.add(name);
+                return name;
+            }
+        });
+    }
+
+}
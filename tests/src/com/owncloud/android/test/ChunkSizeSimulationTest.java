@@ -0,0 +1,127 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.owncloud.android.operations.ChunkSizeAdvisor;
+import com.owncloud.android.operations.ResumableChunkedUploadRemoteFileOperation;
+
+/**
+ * Replays bandwidth traces against a simulated link to compare the time spent uploading a
+ * series of files with fixed size chunks and with the size suggested by
+ * {@link ChunkSizeAdvisor}.
+ *
+ * The link is simulated with a virtual clock: every chunk costs a round trip plus its length
+ * divided by the bandwidth of the trace at that moment, and fails with a probability growing
+ * with the time it is in transit, as connections dropped by the link do; a failed chunk costs
+ * part of its transfer time and is sent again.
+ */
+public class ChunkSizeSimulationTest extends AndroidTestCase {
+
+    private static final String TAG = ChunkSizeSimulationTest.class.getSimpleName();
+
+    private static final long FILE_SIZE = 10 * 1024 * 1024;
+    private static final int FILES = 40;
+
+    /** Fast and reliable link: {duration ms, bytes per ms, connection drops per minute} */
+    private static final double[][] WIFI_TRACE = {
+            {120000, 2500, 0.05}, {60000, 1200, 0.2}, {120000, 3000, 0.05}
+    };
+    private static final long WIFI_RTT = 30;
+
+    /** Slow link with bursts of losses */
+    private static final double[][] CELLULAR_TRACE = {
+            {300000, 200, 1}, {180000, 60, 4}, {300000, 150, 2}, {120000, 40, 6}
+    };
+    private static final long CELLULAR_RTT = 300;
+
+
+    public void testWifiTrace() {
+        compare("wifi", WIFI_TRACE, WIFI_RTT);
+    }
+
+    public void testCellularTrace() {
+        compare("cellular", CELLULAR_TRACE, CELLULAR_RTT);
+    }
+
+
+    private void compare(String name, double[][] trace, long rtt) {
+        long fixed = simulate(trace, rtt, null);
+        long adaptive = simulate(trace, rtt, new ChunkSizeAdvisor(
+                ResumableChunkedUploadRemoteFileOperation.CHUNK_SIZE));
+        Log.i(TAG, name + ": fixed chunks " + fixed + " ms, adaptive chunks " + adaptive + " ms");
+        assertTrue("Adaptive chunks slower than fixed chunks in " + name + " trace",
+                adaptive <= fixed);
+    }
+
+
+    /**
+     * @return  Virtual time spent uploading {@link #FILES} files, in milliseconds.
+     */
+    private long simulate(double[][] trace, long rtt, ChunkSizeAdvisor advisor) {
+        Random random = new Random(42);    // same failures for every run
+        long clock = 0;
+        for (int f = 0; f < FILES; f++) {
+            long chunkSize = (advisor != null) ?
+                    advisor.getChunkSize() : ResumableChunkedUploadRemoteFileOperation.CHUNK_SIZE;
+            long sent = 0;
+            while (sent < FILE_SIZE) {
+                long length = Math.min(chunkSize, FILE_SIZE - sent);
+                double[] segment = segmentAt(trace, clock);
+                long duration = rtt + (long) (length / segment[1]);
+                double failureProbability = 1 - Math.exp(-segment[2] * duration / 60000.0);
+                if (random.nextDouble() < failureProbability) {
+                    clock += (long) (duration * random.nextDouble());
+                    if (advisor != null) {
+                        advisor.onChunkFailed();
+                    }
+                } else {
+                    clock += duration;
+                    sent += length;
+                    if (advisor != null) {
+                        advisor.onChunkSent(length, duration);
+                    }
+                }
+            }
+        }
+        return clock;
+    }
+
+
+    private double[] segmentAt(double[][] trace, long clock) {
+        long traceLength = 0;
+        for (double[] segment : trace) {
+            traceLength += (long) segment[0];
+        }
+        long position = clock % traceLength;    // the trace is replayed in loop
+        for (double[] segment : trace) {
+            if (position < segment[0]) {
+                return segment;
+            }
+            position -= (long) segment[0];
+        }
+        return trace[trace.length - 1];
+    }
+
+}
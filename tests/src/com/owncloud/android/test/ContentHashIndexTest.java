@@ -0,0 +1,141 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+import com.owncloud.android.datamodel.ContentHashIndex;
+import com.owncloud.android.utils.ContentHash;
+import com.owncloud.android.utils.FileStorageUtils;
+
+/**
+ * Tests the index of hashes of remote contents used to avoid uploading contents the server
+ * already has.
+ */
+public class ContentHashIndexTest extends AndroidTestCase {
+
+    private static final String ACCOUNT = "content-hash-test@127.0.0.1";
+    private static final String PATH = "/Photos/IMG_0001.jpg";
+    private static final String HASH = "0123456789abcdef0123456789abcdef";
+
+    private ContentHashIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = new ContentHashIndex(getContext());
+        mIndex.put(ACCOUNT, PATH, HASH, 1000, "etag-1");
+    }
+
+
+    public void testHashIsBoundToVersion() {
+        assertEquals("etag-1", mIndex.getKnownEtag(ACCOUNT, PATH, 1000));
+        assertEquals(HASH, mIndex.getHash(ACCOUNT, PATH, 1000, "etag-1"));
+
+        assertNull("Hash returned for other length", mIndex.getKnownEtag(ACCOUNT, PATH, 1001));
+        assertNull("Hash returned for other version",
+                mIndex.getHash(ACCOUNT, PATH, 1000, "etag-2"));
+        assertNull(mIndex.getKnownEtag("other@127.0.0.1", PATH, 1000));
+
+        // a new version replaces the former one
+        mIndex.put(ACCOUNT, PATH, HASH.replace('0', 'f'), 1000, "etag-2");
+        assertEquals("etag-2", mIndex.getKnownEtag(ACCOUNT, PATH, 1000));
+        assertNull(mIndex.getHash(ACCOUNT, PATH, 1000, "etag-1"));
+    }
+
+
+    public void testVersionsWithoutEtagAreNotIndexed() {
+        mIndex.put(ACCOUNT, PATH, HASH.replace('0', 'f'), 2000, "");
+        assertEquals("etag-1", mIndex.getKnownEtag(ACCOUNT, PATH, 1000));
+    }
+
+
+    public void testHashesAreTheSameWhileCopyingAndFromChannel() throws Exception {
+        byte[] contents = new byte[300 * 1024 + 7];
+        new Random(7).nextBytes(contents);
+        File file = File.createTempFile("hash", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(contents);
+            out.close();
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            String fromChannel = ContentHash.compute(raf.getChannel(), 0, raf.length());
+            raf.close();
+
+            MessageDigest digest = ContentHash.newDigest();
+            DigestInputStream in =
+                    new DigestInputStream(new ByteArrayInputStream(contents), digest);
+            byte[] buffer = new byte[8192];
+            ByteArrayOutputStream copy = new ByteArrayOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                copy.write(buffer, 0, read);
+            }
+            assertEquals(fromChannel, ContentHash.toHex(digest.digest()));
+
+            // copies by channel transfers and by buffer hash the same
+            File target = new File(file.getPath() + ".copy");
+            try {
+                digest = ContentHash.newDigest();
+                FileInputStream fileIn = new FileInputStream(file);
+                try {
+                    FileStorageUtils.copyToFile(fileIn, target, null, digest);
+                } finally {
+                    fileIn.close();
+                }
+                assertEquals(fromChannel, ContentHash.toHex(digest.digest()));
+                assertEquals(contents.length, target.length());
+
+                digest = ContentHash.newDigest();
+                FileStorageUtils.copyToFile(new ByteArrayInputStream(contents), target, null,
+                        digest);
+                assertEquals(fromChannel, ContentHash.toHex(digest.digest()));
+            } finally {
+                target.delete();
+            }
+
+            contents[contents.length / 2]++;
+            digest.update(contents);
+            assertFalse(fromChannel.equals(ContentHash.toHex(digest.digest())));
+
+        } finally {
+            file.delete();
+        }
+    }
+
+
+    public void testBytesAvoidedAreCounted() {
+        long before = mIndex.getBytesAvoided();
+        mIndex.addBytesAvoided(12345);
+        assertEquals(before + 12345, mIndex.getBytesAvoided());
+    }
+
+}
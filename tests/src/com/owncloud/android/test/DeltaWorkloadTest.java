@@ -0,0 +1,193 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.owncloud.android.operations.FileChunkRequestEntity;
+import com.owncloud.android.operations.ResumableChunkedUploadRemoteFileOperation;
+import com.owncloud.android.utils.ContentHash;
+
+/**
+ * Measures the bytes not sent again after typical edits of a file kept in sync, compared with
+ * the whole file: the upload is skipped when the contents hash as the version in the server,
+ * and the chunks of an unfinished chunked upload that hash as when they were sent are not sent
+ * again.
+ */
+public class DeltaWorkloadTest extends AndroidTestCase {
+
+    private static final String TAG = DeltaWorkloadTest.class.getSimpleName();
+
+    private static final int FILE_LENGTH = 4 * 1024 * 1024;
+    private static final long CHUNK_SIZE = ResumableChunkedUploadRemoteFileOperation.CHUNK_SIZE;
+
+    private byte[] mOriginal;
+    private File mFile;
+
+    /** Hash of the whole file uploaded, as kept in the index of contents */
+    private String mHash;
+    /** Hashes of the chunks sent, as recorded for an unfinished chunked upload */
+    private String[] mChunkHashes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mOriginal = new byte[FILE_LENGTH];
+        new Random(42).nextBytes(mOriginal);
+        mFile = File.createTempFile("delta", ".bin");
+        write(mOriginal);
+
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            mHash = ContentHash.compute(channel, 0, FILE_LENGTH);
+            mChunkHashes = new String[(int) ((FILE_LENGTH + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < mChunkHashes.length; i++) {
+                mChunkHashes[i] = FileChunkRequestEntity.computeHash(channel, i * CHUNK_SIZE,
+                        Math.min(CHUNK_SIZE, FILE_LENGTH - i * CHUNK_SIZE));
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+
+    public void testUnchanged() throws Exception {
+        assertEquals(FILE_LENGTH, measure("unchanged", mOriginal));
+    }
+
+
+    public void testAppend() throws Exception {
+        byte[] appended = new byte[64 * 1024];
+        new Random(1).nextBytes(appended);
+        byte[] edited = concat(mOriginal, 0, FILE_LENGTH, appended);
+        // the last chunk of the former version grows; the rest are kept
+        assertEquals((mChunkHashes.length - 1) * CHUNK_SIZE, measure("append 64 KB", edited));
+    }
+
+
+    public void testInPlaceEdits() throws Exception {
+        byte[] edited = mOriginal.clone();
+        Random random = new Random(2);
+        int[] offsets = new int[]{100 * 1000, 2 * 1000 * 1000, 4 * 1000 * 1000};
+        for (int offset : offsets) {
+            for (int i = 0; i < 100; i++) {
+                edited[offset + i] = (byte) random.nextInt();
+            }
+        }
+        long skipped = measure("3 in-place edits of 100 bytes", edited);
+        long expected = 0;
+        for (int i = 0; i < mChunkHashes.length; i++) {
+            boolean touched = false;
+            for (int offset : offsets) {
+                touched |= (offset / CHUNK_SIZE == i);
+            }
+            if (!touched) {
+                expected += Math.min(CHUNK_SIZE, FILE_LENGTH - i * CHUNK_SIZE);
+            }
+        }
+        assertEquals(expected, skipped);
+    }
+
+
+    public void testInsertion() throws Exception {
+        byte[] inserted = new byte[1024];
+        new Random(3).nextBytes(inserted);
+        int middle = FILE_LENGTH / 2 + 1000;
+        byte[] edited = concat(concat(mOriginal, 0, middle, inserted), 0,
+                middle + inserted.length, subArray(mOriginal, middle, FILE_LENGTH));
+        // the insertion shifts every later chunk; only the former ones are kept
+        assertEquals(middle / CHUNK_SIZE * CHUNK_SIZE,
+                measure("insertion of 1 KB in the middle", edited));
+    }
+
+
+    /**
+     * Writes new contents and logs the bytes that would not be sent again for them.
+     *
+     * @return  Bytes of the new contents not sent again: all of them if the whole file hashes
+     *          as the uploaded one, or those in chunks that hash as the ones sent.
+     */
+    private long measure(String workload, byte[] contents) throws IOException {
+        write(contents);
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = raf.length();
+            long start = System.currentTimeMillis();
+            long skipped = 0;
+            if (mHash.equals(ContentHash.compute(channel, 0, length))) {
+                skipped = length;
+            } else {
+                for (int i = 0; i < mChunkHashes.length; i++) {
+                    long chunkLength = Math.min(CHUNK_SIZE, length - i * CHUNK_SIZE);
+                    if (chunkLength > 0 && mChunkHashes[i].equals(
+                            FileChunkRequestEntity.computeHash(channel, i * CHUNK_SIZE,
+                                    chunkLength))) {
+                        skipped += chunkLength;
+                    }
+                }
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            Log.i(TAG, workload + ": " + skipped + " of " + length + " bytes not sent again " +
+                    "with chunks of " + CHUNK_SIZE + " bytes; compared in " + elapsed + " ms");
+            return skipped;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void write(byte[] contents) throws IOException {
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] concat(byte[] first, int start, int end, byte[] second) {
+        byte[] result = new byte[end - start + second.length];
+        System.arraycopy(first, start, result, 0, end - start);
+        System.arraycopy(second, 0, result, end - start, second.length);
+        return result;
+    }
+
+    private static byte[] subArray(byte[] array, int start, int end) {
+        byte[] result = new byte[end - start];
+        System.arraycopy(array, start, result, 0, end - start);
+        return result;
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.owncloud.android.test;
+
+import java.io.File;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.owncloud.android.ui.adapter.DiskLruImageCache;
+
+/**
+ * Measures the thumbnails per second stored in a cold {@link DiskLruImageCache}, flushing it in
+ * every put or writing behind, and checks that entries written behind are kept after closing it,
+ * that keys with the same hash code don't collide and that the use of the cache is counted.
+ */
+public class DiskLruImageCacheTest extends AndroidTestCase {
+
+    private static final String TAG = DiskLruImageCacheTest.class.getSimpleName();
+
+    private static final int THUMBNAILS = 300;
+    private static final int THUMBNAIL_SIZE = 192;
+    private static final int CACHE_SIZE = 32 * 1024 * 1024;
+
+    private File mCacheDir;
+    private Bitmap mThumbnail;
+    private Canvas mCanvas;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), "diskLruImageCacheTest");
+        mThumbnail = Bitmap.createBitmap(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(mThumbnail);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.JPEG, 70).clearCache();
+        super.tearDown();
+    }
+
+
+    public void testThumbnailsPerSecondAtColdCache() throws Exception {
+        double writeThrough = measurePuts(false);
+        double writeBehind = measurePuts(true);
+        Log.i(TAG, THUMBNAILS + " thumbnails in a cold cache: " +
+                String.format("%.1f", writeThrough) + "/s flushing in every put, " +
+                String.format("%.1f", writeBehind) + "/s writing behind");
+    }
+
+
+    public void testEntriesWrittenBehindSurviveClose() throws Exception {
+        DiskLruImageCache cache =
+                new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.JPEG, 70, true);
+        for (int i = 0; i < 10; i++) {
+            put(cache, i);
+        }
+        cache.close();
+
+        DiskLruImageCache reopened =
+                new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.JPEG, 70, true);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(reopened.containsKey(key(i)));
+        }
+        assertNotNull(reopened.getBitmap(key(0)));
+        reopened.close();
+    }
+
+
+    public void testKeysWithSameHashCodeDoNotCollide() throws Exception {
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        DiskLruImageCache cache =
+                new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.PNG, 100, true);
+        cache.clearCache();
+        cache = new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.PNG, 100, true);
+        mCanvas.drawColor(Color.RED);
+        cache.put("Aa", mThumbnail);
+        mCanvas.drawColor(Color.BLUE);
+        cache.put("BB", mThumbnail);
+
+        assertEquals(Color.RED, cache.getBitmap("Aa").getPixel(0, 0));
+        assertEquals(Color.BLUE, cache.getBitmap("BB").getPixel(0, 0));
+        cache.close();
+    }
+
+
+    public void testStatsCountHitsMissesAndEvictions() throws Exception {
+        DiskLruImageCache cache =
+                new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.JPEG, 70, true);
+        cache.clearCache();
+        cache = new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.JPEG, 70, true);
+        for (int i = 0; i < 20; i++) {
+            put(cache, i);
+        }
+        assertNotNull(cache.getBitmap(key(0)));
+        assertNull(cache.getBitmap(key(20)));
+        DiskLruImageCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        assertEquals(20, stats.getPuts());
+        assertEquals(0, stats.getEvictedBytes());
+
+        // room for half of the thumbnails; the oldest ones are evicted when flushing
+        cache.setMaxSize(stats.getSize() / 2);
+        cache.flush();
+        stats = cache.getStats();
+        Log.i(TAG, "After halving the cache: " + stats);
+        assertTrue(stats.getSize() <= stats.getMaxSize());
+        assertTrue(stats.getEvictedBytes() > 0);
+        assertTrue(stats.getEvictions() >= 9 && stats.getEvictions() <= 11);
+        // the first thumbnail was read after the put, so the second one is the oldest
+        assertTrue(cache.containsKey(key(0)));
+        assertFalse(cache.containsKey(key(1)));
+        assertTrue(cache.containsKey(key(19)));
+        cache.close();
+    }
+
+
+    /**
+     * @return  Thumbnails stored per second in an empty cache.
+     */
+    private double measurePuts(boolean writeBehind) throws Exception {
+        DiskLruImageCache cache =
+                new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.JPEG, 70, writeBehind);
+        cache.clearCache();
+        cache = new DiskLruImageCache(mCacheDir, CACHE_SIZE, CompressFormat.JPEG, 70, writeBehind);
+        long start = System.nanoTime();
+        for (int i = 0; i < THUMBNAILS; i++) {
+            put(cache, i);
+        }
+        cache.close();
+        long elapsed = System.nanoTime() - start;
+        return THUMBNAILS * 1000000000.0 / elapsed;
+    }
+
+    private void put(DiskLruImageCache cache, int index) {
+        mCanvas.drawColor(Color.rgb(index % 256, (index / 256) % 256, 64));
+        cache.put(key(index), mThumbnail);
+    }
+
+    private static String key(int index) {
+        return "thumbnail" + index;
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import android.accounts.Account;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.files.services.IndexedForest;
+import com.owncloud.android.operations.DownloadFileOperation;
+
+/**
+ * Measures the work done to download the contents of a big folder with a single request: the
+ * query of the folder in the local database and the addition of its files to the queue of
+ * pending downloads, as done by the downloader service out of the main thread.
+ */
+public class FolderDownloadEnqueueTest extends AndroidTestCase {
+
+    private static final String TAG = FolderDownloadEnqueueTest.class.getSimpleName();
+
+    private static final String ACCOUNT = "folder-download-test@127.0.0.1";
+    private static final String FOLDER = "/folder-download-test/";
+    private static final int FILES = 10000;
+
+    private Account mAccount;
+    private FileDataStorageManager mStorageManager;
+    private OCFile mFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mAccount = new Account(ACCOUNT, MainApp.getAccountType());
+        mStorageManager = new FileDataStorageManager(mAccount, getContext().getContentResolver());
+
+        mFolder = new OCFile(FOLDER);
+        mFolder.setMimetype("DIR");
+        mFolder.setParentId(FileDataStorageManager.ROOT_PARENT_ID);
+        mStorageManager.saveFile(mFolder);
+
+        List<OCFile> children = new ArrayList<OCFile>(FILES);
+        for (int i = 0; i < FILES; i++) {
+            OCFile child = new OCFile(FOLDER + "file" + i + ".jpg");
+            child.setMimetype("image/jpeg");
+            child.setFileLength(1000);
+            child.setParentId(mFolder.getFileId());
+            children.add(child);
+        }
+        mStorageManager.saveFolder(mFolder, children, new ArrayList<OCFile>());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStorageManager.removeFolder(mFolder, true, false);
+        super.tearDown();
+    }
+
+
+    public void testEnqueueFolderBurst() {
+        long start = System.currentTimeMillis();
+        Vector<OCFile> children = mStorageManager.getFolderContent(mFolder);
+        long queryTime = System.currentTimeMillis() - start;
+
+        IndexedForest<DownloadFileOperation> pendingDownloads =
+                new IndexedForest<DownloadFileOperation>();
+        int enqueued = 0;
+        start = System.currentTimeMillis();
+        for (OCFile child : children) {
+            if (!child.isFolder() && !child.isDown() &&
+                    pendingDownloads.putIfAbsent(mAccount, child.getRemotePath(),
+                            new DownloadFileOperation(mAccount, child),
+                            child.getFileLength()) != null) {
+                enqueued++;
+            }
+        }
+        long enqueueTime = System.currentTimeMillis() - start;
+
+        Log.i(TAG, "Read " + children.size() + " files of a folder in " + queryTime +
+                " ms, enqueued " + enqueued + " downloads in " + enqueueTime + " ms");
+        assertEquals(FILES, children.size());
+        assertEquals(FILES, enqueued);
+        assertEquals(FILES, pendingDownloads.getPendingCount(mAccount, FOLDER));
+    }
+
+}
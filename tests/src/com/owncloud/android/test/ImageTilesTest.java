@@ -0,0 +1,106 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.test.AndroidTestCase;
+
+import com.owncloud.android.ui.preview.ImageTiles;
+import com.owncloud.android.utils.BitmapPool;
+import com.owncloud.android.utils.BitmapUtils;
+
+/**
+ * Checks that only images with more resolution than their preview are decoded by tiles, and
+ * the transformation of the stored image into the preview.
+ */
+public class ImageTilesTest extends AndroidTestCase {
+
+    private static final int SCREEN_WIDTH = 480;
+    private static final int SCREEN_HEIGHT = 800;
+
+    private File mImage;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mImage != null) {
+            mImage.delete();
+        }
+        super.tearDown();
+    }
+
+
+    public void testLargeImageIsTiled() throws Exception {
+        createImage(4000, 3000);
+        Bitmap preview = decodePreview();
+        ImageTiles tiles = ImageTiles.open(mImage.getAbsolutePath(),
+                ExifInterface.ORIENTATION_NORMAL, preview, SCREEN_WIDTH, SCREEN_HEIGHT);
+        assertNotNull(tiles);
+        assertEquals(4000f / preview.getWidth(), tiles.getPreviewSampleSize(), 0.01f);
+        tiles.release();
+    }
+
+
+    public void testImageAsLargeAsScreenIsNotTiled() throws Exception {
+        createImage(SCREEN_WIDTH, SCREEN_HEIGHT);
+        ImageTiles tiles = ImageTiles.open(mImage.getAbsolutePath(),
+                ExifInterface.ORIENTATION_NORMAL, decodePreview(), SCREEN_WIDTH, SCREEN_HEIGHT);
+        assertNull(tiles);
+    }
+
+
+    public void testOrientationMatrixKeepsImageAtOrigin() {
+        Matrix matrix = BitmapUtils.getOrientationMatrix(ExifInterface.ORIENTATION_ROTATE_90,
+                400, 300);
+        float[] corners = {0, 0, 400, 300};
+        matrix.mapPoints(corners);
+        // turned clockwise, the top left corner goes to the top right
+        assertEquals(300f, corners[0], 0.01f);
+        assertEquals(0f, corners[1], 0.01f);
+        assertEquals(0f, corners[2], 0.01f);
+        assertEquals(400f, corners[3], 0.01f);
+    }
+
+
+    private Bitmap decodePreview() {
+        return BitmapUtils.decodeSampledBitmapFromFile(mImage.getAbsolutePath(), SCREEN_WIDTH,
+                SCREEN_HEIGHT, new BitmapPool(0));
+    }
+
+    private void createImage(int width, int height) throws Exception {
+        Bitmap image = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        new Canvas(image).drawColor(Color.GRAY);
+        mImage = new File(getContext().getCacheDir(), "imageTilesTest.jpg");
+        FileOutputStream out = new FileOutputStream(mImage);
+        try {
+            image.compress(Bitmap.CompressFormat.JPEG, 80, out);
+        } finally {
+            out.close();
+        }
+        image.recycle();
+    }
+
+}
@@ -0,0 +1,406 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.accounts.Account;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.owncloud.android.files.services.IndexedForest;
+
+/**
+ * Checks that operations on all the elements of an account in {@link IndexedForest} keep the
+ * elements of other accounts, and measures them with many pending elements.
+ *
+ * Also checks the forest when used from several threads at once, and measures its throughput.
+ */
+public class IndexedForestTest extends AndroidTestCase {
+
+    private static final String TAG = IndexedForestTest.class.getSimpleName();
+
+    private static final int ACCOUNTS = 5;
+    private static final int ENTRIES = 100 * 1000;
+    private static final int FILES_PER_FOLDER = 100;
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 50 * 1000;
+
+    private Account[] mAccounts;
+    private IndexedForest<String> mForest;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // names prefixing each other must not be mixed up
+        mAccounts = new Account[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            mAccounts[i] = new Account("user@host" + (i == 0 ? "" : "/" + i), "owncloud");
+        }
+        mForest = new IndexedForest<String>();
+    }
+
+
+    public void testCountAndRemoveAccount() {
+        long start = System.nanoTime();
+        fill();
+        long fillTime = System.nanoTime() - start;
+
+        for (Account account : mAccounts) {
+            assertEquals(ENTRIES / ACCOUNTS, mForest.count(account));
+        }
+
+        start = System.nanoTime();
+        List<String> values = mForest.getValues(mAccounts[1]);
+        long iterateTime = System.nanoTime() - start;
+        assertEquals(ENTRIES / ACCOUNTS, values.size());
+
+        start = System.nanoTime();
+        List<String> removed = mForest.remove(mAccounts[0]);
+        long removeTime = System.nanoTime() - start;
+
+        assertEquals(ENTRIES / ACCOUNTS, removed.size());
+        assertEquals(0, mForest.count(mAccounts[0]));
+        assertNull(mForest.get(mAccounts[0], path(0)));
+        for (int i = 1; i < ACCOUNTS; i++) {
+            assertEquals(ENTRIES / ACCOUNTS, mForest.count(mAccounts[i]));
+            assertNotNull(mForest.get(mAccounts[i], path(0)));
+        }
+
+        Log.i(TAG, ENTRIES + " entries over " + ACCOUNTS + " accounts: added in " +
+                fillTime / 1000000 + " ms; values of an account in " + iterateTime / 1000 +
+                " us; account removed in " + removeTime / 1000 + " us");
+    }
+
+
+    public void testCountKeptOnSingleRemovals() {
+        Account account = mAccounts[2];
+        mForest.putIfAbsent(account, "/a/", "a");
+        mForest.putIfAbsent(account, "/a/b/c.txt", "c");
+        mForest.putIfAbsent(account, "/a/d.txt", "d");
+        assertNull(mForest.putIfAbsent(account, "/a/d.txt", "again"));
+        assertEquals(3, mForest.count(account));
+
+        mForest.removePayload(account, "/a/");
+        assertEquals(2, mForest.count(account));
+        assertTrue(mForest.contains(account, "/a/"));
+
+        mForest.remove(account, "/a/b/c.txt");
+        assertEquals(1, mForest.count(account));
+        assertFalse(mForest.contains(account, "/a/b/"));
+
+        mForest.remove(account, "/a/d.txt");
+        assertEquals(0, mForest.count(account));
+        assertFalse(mForest.contains(account, "/"));
+        assertTrue(mForest.remove(account).isEmpty());
+    }
+
+
+    public void testAccountsPrefixingEachOtherWithCollidingPaths() {
+        // "user@host" + "/1/x.txt" and "user@host/1" + "/x.txt" read the same when joined
+        Account account = mAccounts[0];
+        Account prefixed = mAccounts[1];
+        assertEquals(account.name + "/1", prefixed.name);
+        mForest.putIfAbsent(prefixed, "/x.txt", "prefixed", 10);
+        assertNotNull(mForest.putIfAbsent(account, "/1/x.txt", "account", 5));
+        assertEquals("/1/", mForest.putIfAbsent(account, "/1/y.txt", "y", 1).second);
+
+        assertEquals("prefixed", mForest.get(prefixed, "/x.txt"));
+        assertEquals("account", mForest.get(account, "/1/x.txt"));
+        assertEquals(2, mForest.count(account));
+        assertEquals(1, mForest.count(prefixed));
+        assertPending(account, "/", 2, 6);
+        assertPending(account, "/1/", 2, 6);
+        assertPending(prefixed, "/", 1, 10);
+
+        assertEquals(1, mForest.remove(prefixed).size());
+        assertEquals("account", mForest.get(account, "/1/x.txt"));
+        assertPending(account, "/", 2, 6);
+    }
+
+
+    public void testPendingCountersOfSubtrees() {
+        Account account = mAccounts[4];
+        mForest.putIfAbsent(account, "/a/", "a", 0);
+        mForest.putIfAbsent(account, "/a/b/c.txt", "c", 100);
+        mForest.putIfAbsent(account, "/a/b/d.txt", "d", 20);
+        mForest.putIfAbsent(account, "/e/f.txt", "f", 3);
+        assertNull(mForest.putIfAbsent(account, "/a/b/d.txt", "again", 1000));
+        assertPending(account, "/", 4, 123);
+        assertPending(account, "/a/", 3, 120);
+        assertPending(account, "/a/b/", 2, 120);
+        assertPending(account, "/a/b/c.txt", 1, 100);
+        assertPending(account, "/e/", 1, 3);
+
+        mForest.removePayload(account, "/a/b/c.txt");
+        assertPending(account, "/a/b/", 1, 20);
+        assertPending(account, "/", 3, 23);
+
+        mForest.removePayload(account, "/a/");
+        assertPending(account, "/a/", 1, 20);
+
+        mForest.remove(account, "/a/");
+        assertPending(account, "/a/", 0, 0);
+        assertPending(account, "/", 1, 3);
+
+        mForest.remove(account);
+        assertPending(account, "/", 0, 0);
+
+        // the counters of the root are read in constant time, whatever the pending values
+        fill();
+        long start = System.nanoTime();
+        int count = mForest.getPendingCount(mAccounts[1], "/");
+        long elapsed = System.nanoTime() - start;
+        assertEquals(ENTRIES / ACCOUNTS, count);
+        Log.i(TAG, count + " values counted in the root folder in " + elapsed / 1000 + " us");
+    }
+
+
+    public void testConcurrentPutAndRemove() throws Exception {
+        final List<Set<String>> alive = new ArrayList<Set<String>>();
+        final List<Set<String>> removed = new ArrayList<Set<String>>();
+        Thread[] threads = new Thread[THREADS];
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        for (int t = 0; t < THREADS; t++) {
+            final int index = t;
+            final Account account = mAccounts[t % ACCOUNTS];
+            final Set<String> threadAlive = new HashSet<String>();
+            final Set<String> threadRemoved = new HashSet<String>();
+            alive.add(threadAlive);
+            removed.add(threadRemoved);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Random random = new Random(index);
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            // threads of the same account share the folders
+                            String path = "/shared/sub" + random.nextInt(10) + "/t" + index +
+                                    "_" + random.nextInt(500);
+                            if (random.nextInt(3) > 0) {
+                                if (mForest.putIfAbsent(account, path, path) != null) {
+                                    assertTrue(threadAlive.add(path));
+                                    threadRemoved.remove(path);
+                                } else {
+                                    assertTrue(threadAlive.contains(path));
+                                }
+                            } else {
+                                String value = mForest.remove(account, path).first;
+                                assertEquals(threadAlive.remove(path) ? path : null, value);
+                                threadRemoved.add(path);
+                            }
+                            assertEquals(threadAlive.contains(path) ? path : null,
+                                    mForest.get(account, path));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Failures in threads: " + failures, failures.isEmpty());
+
+        int[] expectedCounts = new int[ACCOUNTS];
+        for (int t = 0; t < THREADS; t++) {
+            Account account = mAccounts[t % ACCOUNTS];
+            expectedCounts[t % ACCOUNTS] += alive.get(t).size();
+            for (String path : alive.get(t)) {
+                assertEquals(path, mForest.get(account, path));
+                assertTrue(mForest.contains(account, path.substring(0, path.lastIndexOf('/') + 1)));
+            }
+            for (String path : removed.get(t)) {
+                assertFalse(mForest.contains(account, path));
+            }
+        }
+        for (int a = 0; a < ACCOUNTS; a++) {
+            assertEquals(expectedCounts[a], mForest.count(mAccounts[a]));
+            assertEquals(expectedCounts[a], mForest.getValues(mAccounts[a]).size());
+            assertEquals(expectedCounts[a], mForest.getPendingCount(mAccounts[a], "/"));
+        }
+    }
+
+
+    public void testConcurrentPutIfAbsentOfSameKeys() throws Exception {
+        final Account account = mAccounts[3];
+        final int paths = 2000;
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+        runInThreads(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < paths; i++) {
+                    if (mForest.putIfAbsent(account, path(i), path(i)) != null) {
+                        added.incrementAndGet();
+                    }
+                }
+            }
+        });
+        assertEquals(paths, added.get());
+        assertEquals(paths, mForest.count(account));
+
+        runInThreads(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < paths; i++) {
+                    if (mForest.remove(account, path(i)).first != null) {
+                        removed.incrementAndGet();
+                    }
+                }
+            }
+        });
+        assertEquals(paths, removed.get());
+        assertEquals(0, mForest.count(account));
+        assertFalse(mForest.contains(account, "/"));
+    }
+
+
+    public void testConcurrentPutAndRemoveAccount() throws Exception {
+        final Account account = mAccounts[1];
+        final int paths = 5000;
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger nextThread = new AtomicInteger();
+        final List<String> removedWithAccount = new ArrayList<String>();
+        final CountDownLatch putsDone = new CountDownLatch(THREADS);
+        Thread remover = new Thread() {
+            @Override
+            public void run() {
+                // the tree of the account is discarded again and again while being filled
+                while (putsDone.getCount() > 0) {
+                    List<String> removed = mForest.remove(account);
+                    synchronized (removedWithAccount) {
+                        removedWithAccount.addAll(removed);
+                    }
+                }
+            }
+        };
+        remover.start();
+        runInThreads(new Runnable() {
+            @Override
+            public void run() {
+                int index = nextThread.getAndIncrement();
+                for (int i = 0; i < paths; i++) {
+                    String path = "/shared/sub" + (i % 10) + "/t" + index + "_" + i;
+                    if (mForest.putIfAbsent(account, path, path) != null) {
+                        added.incrementAndGet();
+                    }
+                }
+                putsDone.countDown();
+            }
+        });
+        remover.join();
+
+        // every value added was either removed with the account or is still there, whole
+        assertEquals(THREADS * paths, added.get());
+        List<String> kept = mForest.getValues(account);
+        assertEquals(added.get(), removedWithAccount.size() + kept.size());
+        assertEquals(kept.size(), mForest.count(account));
+        assertEquals(kept.size(), mForest.getPendingCount(account, "/"));
+        for (String path : kept) {
+            assertEquals(path, mForest.get(account, path));
+            assertTrue(mForest.contains(account, path.substring(0, path.lastIndexOf('/') + 1)));
+        }
+    }
+
+
+    public void testThroughput() throws Exception {
+        long single = measureThroughput(1);
+        long multiple = measureThroughput(THREADS);
+        Log.i(TAG, "Throughput of put and remove: " + single + " ops/s in 1 thread, " +
+                multiple + " ops/s in " + THREADS + " threads over " + ACCOUNTS + " accounts");
+    }
+
+
+    /**
+     * @return  Operations per second done by the given number of threads, each of them putting
+     *          and removing files in a folder of its own.
+     */
+    private long measureThroughput(int threads) throws Exception {
+        final AtomicInteger nextThread = new AtomicInteger();
+        Runnable work = new Runnable() {
+            @Override
+            public void run() {
+                int index = nextThread.getAndIncrement();
+                Account account = mAccounts[index % ACCOUNTS];
+                String folder = "/folder" + index + "/sub/";
+                for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                    mForest.putIfAbsent(account, folder + i, folder);
+                    if (i >= 100) {
+                        mForest.remove(account, folder + (i - 100));
+                    }
+                }
+            }
+        };
+        Thread[] running = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            running[t] = new Thread(work);
+            running[t].start();
+        }
+        for (Thread thread : running) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        return (long) threads * OPERATIONS_PER_THREAD * 2 * 1000000000L / elapsed;
+    }
+
+    private void runInThreads(Runnable work) throws Exception {
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread(work);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void assertPending(Account account, String path, int count, long bytes) {
+        assertEquals(count, mForest.getPendingCount(account, path));
+        assertEquals(bytes, mForest.getPendingBytes(account, path));
+    }
+
+    private void fill() {
+        for (int i = 0; i < ENTRIES; i++) {
+            mForest.putIfAbsent(mAccounts[i % ACCOUNTS], path(i / ACCOUNTS), "value" + i);
+        }
+    }
+
+    private static String path(int index) {
+        return "/folder" + (index / FILES_PER_FOLDER) + "/file" + index + ".jpg";
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.media.ExifInterface;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.ui.preview.OrientedBitmapDrawable;
+
+/**
+ * Checks that images are shown in their EXIF orientation without a rotated copy of the bitmap,
+ * and that the orientation read is kept with the file.
+ */
+public class OrientedBitmapDrawableTest extends AndroidTestCase {
+
+    public void testRotatedDrawableSwapsSides() {
+        Bitmap bitmap = Bitmap.createBitmap(40, 20, Bitmap.Config.ARGB_8888);
+        OrientedBitmapDrawable drawable =
+                new OrientedBitmapDrawable(bitmap, ExifInterface.ORIENTATION_ROTATE_90);
+        assertEquals(20, drawable.getIntrinsicWidth());
+        assertEquals(40, drawable.getIntrinsicHeight());
+        assertSame(bitmap, drawable.getBitmap());
+
+        drawable = new OrientedBitmapDrawable(bitmap, ExifInterface.ORIENTATION_ROTATE_180);
+        assertEquals(40, drawable.getIntrinsicWidth());
+        assertEquals(20, drawable.getIntrinsicHeight());
+    }
+
+
+    public void testRotatedDrawableIsDrawnTurned() {
+        Bitmap bitmap = Bitmap.createBitmap(40, 20, Bitmap.Config.ARGB_8888);
+        bitmap.setPixel(0, 0, Color.RED);
+        OrientedBitmapDrawable drawable =
+                new OrientedBitmapDrawable(bitmap, ExifInterface.ORIENTATION_ROTATE_90);
+        drawable.setBounds(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight());
+
+        Bitmap shown = Bitmap.createBitmap(20, 40, Bitmap.Config.ARGB_8888);
+        drawable.draw(new Canvas(shown));
+        // the top left corner is shown at the top right after turning clockwise
+        assertEquals(Color.RED, shown.getPixel(19, 0));
+        assertEquals(Color.TRANSPARENT, shown.getPixel(0, 0));
+    }
+
+
+    public void testImageOrientationIsParcelled() {
+        OCFile file = new OCFile("/photo.jpg");
+        assertEquals(OCFile.IMAGE_ORIENTATION_UNKNOWN, file.getImageOrientation());
+        file.setImageOrientation(ExifInterface.ORIENTATION_ROTATE_270);
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            file.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            OCFile read = OCFile.CREATOR.createFromParcel(parcel);
+            assertEquals(ExifInterface.ORIENTATION_ROTATE_270, read.getImageOrientation());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+}
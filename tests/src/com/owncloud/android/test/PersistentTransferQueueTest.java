@@ -0,0 +1,218 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.owncloud.android.db.DbHandler;
+import com.owncloud.android.db.QueuedTransfer;
+import com.owncloud.android.files.services.FileUploader;
+
+/**
+ * Tests the persistent queue of transfers: recovery of the transfers interrupted by the end
+ * of the process, order of recovery, retries with backoff, and the cost of storing a big
+ * burst of transfers.
+ */
+public class PersistentTransferQueueTest extends AndroidTestCase {
+
+    private static final String TAG = PersistentTransferQueueTest.class.getSimpleName();
+
+    private static final String ACCOUNT = "transfer-queue-test@127.0.0.1";
+    private static final int BURST_SIZE = 50000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clearQueue();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        clearQueue();
+        super.tearDown();
+    }
+
+
+    public void testRecoveryAfterProcessEnd() {
+        List<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>();
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/a.txt",
+                QueuedTransfer.PRIORITY_BACKGROUND));
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/b.txt",
+                QueuedTransfer.PRIORITY_USER));
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/c.txt",
+                QueuedTransfer.PRIORITY_BACKGROUND));
+        DbHandler db = new DbHandler(getContext());
+        assertEquals(3, db.putTransfers(transfers));
+        assertTrue(db.setTransferInProgress(transfers.get(1).getId()));
+        db.close();     // the process ends here
+
+        db = new DbHandler(getContext());
+        List<QueuedTransfer> toRun = ours(db.getTransfersToRun(QueuedTransfer.TYPE_DOWNLOAD,
+                System.currentTimeMillis()));
+        assertEquals("Transfer in progress returned as ready", 2, toRun.size());
+
+        assertTrue(db.resetTransfersInProgress(QueuedTransfer.TYPE_DOWNLOAD) >= 1);
+        toRun = ours(db.getTransfersToRun(QueuedTransfer.TYPE_DOWNLOAD,
+                System.currentTimeMillis()));
+        db.close();
+        assertEquals(3, toRun.size());
+        assertEquals("/b.txt", toRun.get(0).getRemotePath());   // higher priority first
+        assertEquals("/a.txt", toRun.get(1).getRemotePath());   // then older first
+        assertEquals("/c.txt", toRun.get(2).getRemotePath());
+    }
+
+
+    public void testUploadOptionsAreKept() {
+        List<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>();
+        transfers.add(QueuedTransfer.newUpload(ACCOUNT, "/InstantUpload/photo.jpg",
+                "/sdcard/DCIM/photo.jpg", "image/jpeg", FileUploader.LOCAL_BEHAVIOUR_MOVE, true,
+                true, QueuedTransfer.PRIORITY_BACKGROUND));
+        DbHandler db = new DbHandler(getContext());
+        db.putTransfers(transfers);
+        List<QueuedTransfer> toRun = ours(db.getTransfersToRun(QueuedTransfer.TYPE_UPLOAD,
+                System.currentTimeMillis()));
+        db.close();
+
+        assertEquals(1, toRun.size());
+        QueuedTransfer upload = toRun.get(0);
+        assertEquals("/sdcard/DCIM/photo.jpg", upload.getLocalPath());
+        assertEquals("image/jpeg", upload.getMimeType());
+        assertEquals(FileUploader.LOCAL_BEHAVIOUR_MOVE, upload.getLocalBehaviour());
+        assertTrue(upload.isForceOverwrite());
+        assertTrue(upload.isInstant());
+    }
+
+
+    public void testRetriesWithBackoff() {
+        List<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>();
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/a.txt",
+                QueuedTransfer.PRIORITY_USER));
+        DbHandler db = new DbHandler(getContext());
+        db.putTransfers(transfers);
+        long id = transfers.get(0).getId();
+        long now = System.currentTimeMillis();
+
+        long lastDelay = 0;
+        for (int attempt = 1; attempt < QueuedTransfer.MAX_ATTEMPTS; attempt++) {
+            long nextAttempt = db.setTransferFailed(id, now);
+            long delay = nextAttempt - now;
+            assertTrue("Delay not growing: " + delay, delay > lastDelay);
+            lastDelay = delay;
+            assertEquals(0, ours(db.getTransfersToRun(QueuedTransfer.TYPE_DOWNLOAD,
+                    nextAttempt - 1)).size());
+            List<QueuedTransfer> toRun = ours(db.getTransfersToRun(
+                    QueuedTransfer.TYPE_DOWNLOAD, nextAttempt));
+            assertEquals(1, toRun.size());
+            assertEquals(attempt, toRun.get(0).getAttempts());
+        }
+        assertEquals("Transfer not given up", -1, db.setTransferFailed(id, now));
+        assertEquals(0, ours(db.getTransfersToRun(QueuedTransfer.TYPE_DOWNLOAD,
+                Long.MAX_VALUE)).size());
+        db.close();
+    }
+
+
+    public void testRemoveFolder() {
+        List<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>();
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/folder/a.txt",
+                QueuedTransfer.PRIORITY_USER));
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/folder/sub/b.txt",
+                QueuedTransfer.PRIORITY_USER));
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/folder2/c.txt",
+                QueuedTransfer.PRIORITY_USER));
+        DbHandler db = new DbHandler(getContext());
+        db.putTransfers(transfers);
+        assertEquals(2, db.removeTransfers(QueuedTransfer.TYPE_DOWNLOAD, ACCOUNT, "/folder/"));
+        List<QueuedTransfer> toRun = ours(db.getTransfersToRun(QueuedTransfer.TYPE_DOWNLOAD,
+                System.currentTimeMillis()));
+        db.close();
+        assertEquals(1, toRun.size());
+        assertEquals("/folder2/c.txt", toRun.get(0).getRemotePath());
+    }
+
+
+    public void testRemoveFileKeepsFilesWithSamePrefix() {
+        List<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>();
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/a.txt",
+                QueuedTransfer.PRIORITY_USER));
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/a.txt.bak",
+                QueuedTransfer.PRIORITY_USER));
+        transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/a.txt2/b.txt",
+                QueuedTransfer.PRIORITY_USER));
+        DbHandler db = new DbHandler(getContext());
+        db.putTransfers(transfers);
+        assertEquals(1, db.removeTransfers(QueuedTransfer.TYPE_DOWNLOAD, ACCOUNT, "/a.txt"));
+        List<QueuedTransfer> toRun = ours(db.getTransfersToRun(QueuedTransfer.TYPE_DOWNLOAD,
+                System.currentTimeMillis()));
+        db.close();
+        assertEquals(2, toRun.size());
+    }
+
+
+    /**
+     * Measures the time to store and recover a burst of {@link #BURST_SIZE} transfers, like
+     * the one resulting from the synchronization of a big folder.
+     */
+    public void testEnqueueBurst() {
+        List<QueuedTransfer> transfers = new ArrayList<QueuedTransfer>(BURST_SIZE);
+        for (int i = 0; i < BURST_SIZE; i++) {
+            transfers.add(QueuedTransfer.newDownload(ACCOUNT, "/burst/file" + i + ".jpg",
+                    QueuedTransfer.PRIORITY_BACKGROUND));
+        }
+        DbHandler db = new DbHandler(getContext());
+        long start = System.currentTimeMillis();
+        int stored = db.putTransfers(transfers);
+        long storeTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        List<QueuedTransfer> toRun = ours(db.getTransfersToRun(QueuedTransfer.TYPE_DOWNLOAD,
+                System.currentTimeMillis()));
+        long recoverTime = System.currentTimeMillis() - start;
+        db.close();
+
+        Log.i(TAG, "Stored " + stored + " transfers in " + storeTime + " ms, recovered in " +
+                recoverTime + " ms");
+        assertEquals(BURST_SIZE, stored);
+        assertEquals(BURST_SIZE, toRun.size());
+    }
+
+
+    private List<QueuedTransfer> ours(List<QueuedTransfer> transfers) {
+        List<QueuedTransfer> result = new ArrayList<QueuedTransfer>();
+        for (QueuedTransfer transfer : transfers) {
+            if (ACCOUNT.equals(transfer.getAccountName())) {
+                result.add(transfer);
+            }
+        }
+        return result;
+    }
+
+    private void clearQueue() {
+        DbHandler db = new DbHandler(getContext());
+        db.removeTransfers(QueuedTransfer.TYPE_DOWNLOAD, ACCOUNT, null);
+        db.removeTransfers(QueuedTransfer.TYPE_UPLOAD, ACCOUNT, null);
+        db.close();
+    }
+
+}
@@ -0,0 +1,158 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.owncloud.android.files.services.ProgressThrottle;
+
+/**
+ * Tests the rate limit applied by {@link ProgressThrottle}, and measures the time spent in
+ * progress callbacks by parallel transfers with and without it.
+ *
+ * The cost of a report is simulated with the work the transfer services do for every
+ * refresh of the progress: aggregating the progress of all the transfers and formatting the
+ * text of the notification.
+ */
+public class ProgressThrottleTest extends AndroidTestCase {
+
+    private static final String TAG = ProgressThrottleTest.class.getSimpleName();
+
+    private static final int TRANSFERS = 8;
+    private static final long TRANSFER_MILLIS = 2000;
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+
+    public void testReportsAreLimited() throws Exception {
+        ProgressThrottle throttle = new ProgressThrottle(100);
+        assertTrue("First progress not reported", throttle.onProgress(10, 10, 100));
+        assertFalse(throttle.onProgress(10, 20, 100));
+        assertFalse(throttle.onProgress(10, 30, 100));
+        assertTrue("End of transfer not reported", throttle.onProgress(70, 100, 100));
+        assertEquals(100, throttle.takePendingBytes());
+        assertEquals(0, throttle.takePendingBytes());
+
+        assertFalse(throttle.onProgress(5, 105, -1));
+        Thread.sleep(120);
+        assertTrue("Progress held back after the interval", throttle.onProgress(5, 110, -1));
+        assertEquals(10, throttle.takePendingBytes());
+    }
+
+
+    public void testCallbackCost() throws Exception {
+        Result unthrottled = runTransfers(false);
+        Result throttled = runTransfers(true);
+        Log.i(TAG, "Without throttle: " + unthrottled);
+        Log.i(TAG, "With throttle: " + throttled);
+
+        // 2 reports per second and transfer, plus the first and the last ones
+        long maxReports = TRANSFERS * (TRANSFER_MILLIS / ProgressThrottle.DEFAULT_INTERVAL + 2);
+        assertTrue("Too many reports: " + throttled.mReports, throttled.mReports <= maxReports);
+        assertTrue(throttled.mCallbackNanos < unthrottled.mCallbackNanos);
+    }
+
+
+    private Result runTransfers(final boolean throttle) throws InterruptedException {
+        final Map<Integer, long[]> progressByTransfer = new HashMap<Integer, long[]>();
+        final AtomicLong callbackNanos = new AtomicLong();
+        final AtomicLong callbacks = new AtomicLong();
+        final AtomicInteger reports = new AtomicInteger();
+        Thread[] threads = new Thread[TRANSFERS];
+        for (int t = 0; t < TRANSFERS; t++) {
+            final int transfer = t;
+            synchronized (progressByTransfer) {
+                progressByTransfer.put(transfer, new long[]{0, -1});
+            }
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ProgressThrottle transferThrottle = new ProgressThrottle();
+                    long end = System.currentTimeMillis() + TRANSFER_MILLIS;
+                    long transferred = 0;
+                    int count = 0;
+                    while (System.currentTimeMillis() < end) {
+                        transferred += BUFFER_SIZE;
+                        long start = System.nanoTime();
+                        if (!throttle ||
+                                transferThrottle.onProgress(BUFFER_SIZE, transferred, -1)) {
+                            report(progressByTransfer, transfer, transferred);
+                            reports.incrementAndGet();
+                        }
+                        callbackNanos.addAndGet(System.nanoTime() - start);
+                        callbacks.incrementAndGet();
+                        if (++count % 16 == 0) {
+                            try {
+                                Thread.sleep(1);    // the network is not infinitely fast
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new Result(callbacks.get(), reports.get(), callbackNanos.get());
+    }
+
+
+    private static void report(Map<Integer, long[]> progressByTransfer, int transfer,
+                               long transferred) {
+        synchronized (progressByTransfer) {
+            progressByTransfer.get(transfer)[0] = transferred;
+            long total = 0;
+            for (long[] progress : progressByTransfer.values()) {
+                total += progress[0];
+            }
+            String.format("%d%% of %d uploads", total % 100, progressByTransfer.size());
+        }
+    }
+
+
+    private static class Result {
+        final long mCallbacks;
+        final int mReports;
+        final long mCallbackNanos;
+
+        Result(long callbacks, int reports, long callbackNanos) {
+            mCallbacks = callbacks;
+            mReports = reports;
+            mCallbackNanos = callbackNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mCallbacks + " callbacks, " + mReports + " reports, " +
+                    (mCallbackNanos / 1000000) + " ms in callbacks";
+        }
+    }
+
+}
@@ -0,0 +1,285 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.owncloud.android.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import com.owncloud.android.lib.common.OwnCloudClient;
+import com.owncloud.android.lib.common.OwnCloudClientFactory;
+import com.owncloud.android.lib.common.network.OnDatatransferProgressListener;
+import com.owncloud.android.lib.common.operations.RemoteOperationResult;
+import com.owncloud.android.operations.ResumableDownloadRemoteFileOperation;
+
+/**
+ * Tests resumption of interrupted downloads against a local stand-in of an HTTP server that
+ * drops connections in the middle of the transfer.
+ */
+public class ResumableDownloadTest extends AndroidTestCase {
+
+    private static final String REMOTE_PATH = "/video.mp4";
+    private static final int FILE_SIZE = 256 * 1024;
+
+    private DroppingServer mServer;
+    private OwnCloudClient mClient;
+    private File mTmpFolder;
+    private byte[] mContents;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContents = new byte[FILE_SIZE];
+        for (int i = 0; i < FILE_SIZE; i++) {
+            mContents[i] = (byte) (i % 251);
+        }
+        mServer = new DroppingServer(mContents);
+        mServer.start();
+        mClient = OwnCloudClientFactory.createOwnCloudClient(
+                Uri.parse("http://127.0.0.1:" + mServer.getPort()), getContext(), true);
+        mTmpFolder = new File(getContext().getCacheDir(), "resumableDownloadTest");
+        deleteRecursive(mTmpFolder);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        deleteRecursive(mTmpFolder);
+        super.tearDown();
+    }
+
+    public void testResumeAfterDroppedConnection() throws Exception {
+        mServer.setEtag("etag1");
+        mServer.setDropAfter(FILE_SIZE / 3);
+
+        RemoteOperationResult result = newOperation().execute(mClient);
+        assertFalse(result.isSuccess());
+        File tmpFile = new File(mTmpFolder.getPath() + REMOTE_PATH);
+        assertTrue(tmpFile.exists());
+        assertEquals(FILE_SIZE / 3, tmpFile.length());
+
+        mServer.setDropAfter(-1);
+        result = newOperation().execute(mClient);
+        assertTrue(result.isSuccess());
+        assertEquals("bytes=" + (FILE_SIZE / 3) + "-", mServer.getLastRange());
+        assertTrue(Arrays.equals(mContents, readFile(tmpFile)));
+        assertFalse(new File(tmpFile.getPath() +
+                ResumableDownloadRemoteFileOperation.PARTIAL_INFO_SUFFIX).exists());
+    }
+
+    public void testRestartWhenRemoteFileChanged() throws Exception {
+        mServer.setEtag("etag1");
+        mServer.setDropAfter(FILE_SIZE / 2);
+        assertFalse(newOperation().execute(mClient).isSuccess());
+
+        // new version in server; the partial contents must not be reused
+        for (int i = 0; i < FILE_SIZE; i++) {
+            mContents[i] = (byte) (i % 127);
+        }
+        mServer.setEtag("etag2");
+        mServer.setDropAfter(-1);
+        RemoteOperationResult result = newOperation().execute(mClient);
+        assertTrue(result.isSuccess());
+        File tmpFile = new File(mTmpFolder.getPath() + REMOTE_PATH);
+        assertTrue(Arrays.equals(mContents, readFile(tmpFile)));
+    }
+
+    public void testCancelDiscardsPartialContents() throws Exception {
+        mServer.setEtag("etag1");
+        final ResumableDownloadRemoteFileOperation operation = newOperation();
+        operation.addDatatransferProgressListener(new OnDatatransferProgressListener() {
+            @Override
+            public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                           long totalToTransfer, String fileName) {
+                operation.cancel();
+            }
+        });
+        assertFalse(operation.execute(mClient).isSuccess());
+        File tmpFile = new File(mTmpFolder.getPath() + REMOTE_PATH);
+        assertFalse(tmpFile.exists());
+        assertFalse(new File(tmpFile.getPath() +
+                ResumableDownloadRemoteFileOperation.PARTIAL_INFO_SUFFIX).exists());
+    }
+
+    public void testInterruptKeepsPartialContents() throws Exception {
+        mServer.setEtag("etag1");
+        final ResumableDownloadRemoteFileOperation operation = newOperation();
+        operation.addDatatransferProgressListener(new OnDatatransferProgressListener() {
+            @Override
+            public void onTransferProgress(long progressRate, long totalTransferredSoFar,
+                                           long totalToTransfer, String fileName) {
+                operation.interrupt();
+            }
+        });
+        assertFalse(operation.execute(mClient).isSuccess());
+        File tmpFile = new File(mTmpFolder.getPath() + REMOTE_PATH);
+        assertTrue(tmpFile.exists());
+        assertTrue(tmpFile.length() > 0 && tmpFile.length() < FILE_SIZE);
+
+        // not resumed at last
+        ResumableDownloadRemoteFileOperation.discardPartial(tmpFile.getPath());
+        assertFalse(tmpFile.exists());
+        assertFalse(new File(tmpFile.getPath() +
+                ResumableDownloadRemoteFileOperation.PARTIAL_INFO_SUFFIX).exists());
+    }
+
+    private ResumableDownloadRemoteFileOperation newOperation() {
+        return new ResumableDownloadRemoteFileOperation(REMOTE_PATH, mTmpFolder.getPath());
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0, read;
+            while (offset < data.length &&
+                    (read = in.read(data, offset, data.length - offset)) != -1) {
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void deleteRecursive(File file) {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+
+    /**
+     * Minimal HTTP server serving a single file, supporting Range and If-Range, and able to
+     * close the connection after sending a given number of bytes of the body.
+     */
+    private static class DroppingServer extends Thread {
+
+        private final ServerSocket mSocket;
+        private final byte[] mContents;
+        private volatile String mEtag = "";
+        private volatile int mDropAfter = -1;
+        private volatile String mLastRange = null;
+
+        public DroppingServer(byte[] contents) throws IOException {
+            mSocket = new ServerSocket(0);
+            mContents = contents;
+        }
+
+        public int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        public void setEtag(String etag) {
+            mEtag = etag;
+        }
+
+        public void setDropAfter(int bytes) {
+            mDropAfter = bytes;
+        }
+
+        public String getLastRange() {
+            return mLastRange;
+        }
+
+        public void shutdown() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                Socket connection = null;
+                try {
+                    connection = mSocket.accept();
+                    serve(connection);
+                } catch (IOException e) {
+                    // closed by the client or the test
+                } finally {
+                    if (connection != null) {
+                        try {
+                            connection.close();
+                        } catch (IOException e) {
+                            // nothing to do
+                        }
+                    }
+                }
+            }
+        }
+
+        private void serve(Socket connection) throws IOException {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), "ISO-8859-1"));
+            String line, range = null, ifRange = null;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    String name = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if ("Range".equalsIgnoreCase(name)) {
+                        range = value;
+                    } else if ("If-Range".equalsIgnoreCase(name)) {
+                        ifRange = value;
+                    }
+                }
+            }
+            mLastRange = range;
+
+            int start = 0;
+            String quotedEtag = "\"" + mEtag + "\"";
+            if (range != null && quotedEtag.equals(ifRange)) {
+                start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            }
+            int length = mContents.length - start;
+
+            StringBuilder headers = new StringBuilder();
+            if (start > 0) {
+                headers.append("HTTP/1.1 206 Partial Content\r\n");
+                headers.append("Content-Range: bytes ").append(start).append("-")
+                        .append(mContents.length - 1).append("/").append(mContents.length)
+                        .append("\r\n");
+            } else {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            }
+            headers.append("ETag: ").append(quotedEtag).append("\r\n");
+            headers.append("Content-Length: ").append(length).append("\r\n");
+            headers.append("Connection: close\r\n\r\n");
+
+            OutputStream out = connection.getOutputStream();
+            out.write(headers.toString().getBytes("ISO-8859-1"));
+            int toSend = (mDropAfter >= 0) ? Math.min(mDropAfter, length) : length;
+            out.write(mContents, start, toSend);
+            out.flush();
+        }
+    }
+
+}
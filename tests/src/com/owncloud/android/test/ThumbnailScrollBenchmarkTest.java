@@ -0,0 +1,205 @@
+/**
+ *   ownCloud Android client application
+ *
+ *   Copyright (C) 2015 ownCloud Inc.
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License version 2,
+ *   as published by the Free Software Foundation.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package com.owncloud.android.test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import android.accounts.Account;
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import android.widget.ImageView;
+
+import com.owncloud.android.MainApp;
+import com.owncloud.android.datamodel.FileDataStorageManager;
+import com.owncloud.android.datamodel.OCFile;
+import com.owncloud.android.datamodel.ThumbnailsCacheManager;
+
+/**
+ * Simulates scrolling a folder of 5,000 images, binding one new row per frame in the main
+ * thread, and counts the binds that alone take longer than a frame (16 ms).
+ *
+ * Rows are bound as {@link com.owncloud.android.ui.adapter.FileListListAdapter} does: checking
+ * the memory cache of {@link ThumbnailsCacheManager} and starting a
+ * {@link ThumbnailsCacheManager.ThumbnailGenerationTask} on a miss, that reads the disk cache in
+ * background. This is compared with reading the disk cache in the main thread, as done before.
+ *
+ * The thumbnails of the benchmark are left in the disk cache of the app, where they are the
+ * first ones evicted.
+ */
+public class ThumbnailScrollBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = ThumbnailScrollBenchmarkTest.class.getSimpleName();
+
+    private static final int IMAGES = 5000;
+    private static final int THUMBNAIL_SIZE = 192;
+    private static final int VISIBLE_ROWS = 12;
+    private static final long FRAME_BUDGET_NS = 16 * 1000 * 1000;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private OCFile[] mFiles;
+    private ImageView[] mRows;
+    private FileDataStorageManager mStorageManager;
+    private Account mAccount;
+    private int mPlaceholders;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // waits until the disk cache is open
+        ThumbnailsCacheManager.getBitmapFromDiskCache(key(0));
+
+        Bitmap thumbnail = Bitmap.createBitmap(
+                THUMBNAIL_SIZE, THUMBNAIL_SIZE, Bitmap.Config.ARGB_8888
+        );
+        Canvas canvas = new Canvas(thumbnail);
+        mFiles = new OCFile[IMAGES];
+        for (int i = 0; i < IMAGES; i++) {
+            canvas.drawColor(Color.rgb(i % 256, (i / 256) % 256, 128));
+            ThumbnailsCacheManager.addBitmapToCache(key(i), thumbnail);   // written right away
+            mFiles[i] = new OCFile("/benchmark/image" + i + ".jpg");
+            mFiles[i].setFileId(i + 1);
+            mFiles[i].setRemoteId(key(i));
+            mFiles[i].setMimetype("image/jpeg");
+            mFiles[i].setNeedsUpdateThumbnail(false);
+        }
+
+        mAccount = new Account("thumbnail-benchmark@127.0.0.1", MainApp.getAccountType());
+        mStorageManager = new FileDataStorageManager(mAccount, getContext().getContentResolver());
+        mRows = new ImageView[VISIBLE_ROWS];
+        for (int i = 0; i < VISIBLE_ROWS; i++) {
+            mRows[i] = new ImageView(getContext());
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ThumbnailsCacheManager.trimMemoryCache(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        super.tearDown();
+    }
+
+
+    public void testScrollJank() throws Exception {
+        ThumbnailsCacheManager.trimMemoryCache(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        int[] diskInMainThread = scroll(true);
+        ThumbnailsCacheManager.trimMemoryCache(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        int[] twoTiers = scroll(false);
+
+        Log.i(TAG, "Scroll over " + IMAGES + " images, down and up: " +
+                "disk in main thread: " + diskInMainThread[0] + " janky frames, worst " +
+                diskInMainThread[1] + " ms; " +
+                "memory first: " + twoTiers[0] + " janky frames, worst " + twoTiers[1] +
+                " ms, " + twoTiers[2] + " rows bound with placeholder");
+        assertTrue(twoTiers[0] <= diskInMainThread[0]);
+    }
+
+
+    /**
+     * Binds the rows of the folder in the main thread, scrolling down and up.
+     *
+     * @param diskInMainThread  'true' to read every thumbnail from the disk cache in the bind.
+     * @return                  Janky frames, worst frame in ms, and rows bound with placeholder.
+     */
+    private int[] scroll(boolean diskInMainThread) throws Exception {
+        mPlaceholders = 0;
+        int janky = 0;
+        long worst = 0;
+        for (int row : scrollOrder()) {
+            long frameTime = bindInMainThread(row, diskInMainThread);
+            if (frameTime > FRAME_BUDGET_NS) {
+                janky++;
+            }
+            worst = Math.max(worst, frameTime);
+        }
+        return new int[]{janky, (int) (worst / 1000000), mPlaceholders};
+    }
+
+
+    /**
+     * @return  Time taken to bind the row, in ns.
+     */
+    private long bindInMainThread(final int row, final boolean diskInMainThread)
+            throws Exception {
+        FutureTask<Long> bind = new FutureTask<Long>(new Callable<Long>() {
+            @Override
+            public Long call() {
+                long start = System.nanoTime();
+                OCFile file = mFiles[row];
+                ImageView fileIcon = mRows[row % VISIBLE_ROWS];
+                fileIcon.setTag(file.getFileId());
+                String key = String.valueOf(file.getRemoteId());
+                if (diskInMainThread) {
+                    fileIcon.setImageBitmap(ThumbnailsCacheManager.getBitmapFromDiskCache(key));
+                    return System.nanoTime() - start;
+                }
+
+                Bitmap thumbnail = ThumbnailsCacheManager.getBitmapFromMemoryCache(key);
+                if (thumbnail != null && !file.needsUpdateThumbnail()) {
+                    fileIcon.setImageBitmap(thumbnail);
+                } else {
+                    mPlaceholders++;
+                    if (ThumbnailsCacheManager.cancelPotentialWork(file, fileIcon)) {
+                        final ThumbnailsCacheManager.ThumbnailGenerationTask task =
+                                new ThumbnailsCacheManager.ThumbnailGenerationTask(
+                                        fileIcon, mStorageManager, mAccount
+                                );
+                        final ThumbnailsCacheManager.AsyncDrawable asyncDrawable =
+                                new ThumbnailsCacheManager.AsyncDrawable(
+                                        getContext().getResources(),
+                                        ThumbnailsCacheManager.mDefaultImg,
+                                        task
+                                );
+                        fileIcon.setImageDrawable(asyncDrawable);
+                        task.start(file);
+                    }
+                }
+                return System.nanoTime() - start;
+            }
+        });
+        mMainHandler.post(bind);
+        return bind.get();
+    }
+
+
+    /**
+     * Rows bound while scrolling to the bottom and back to the top.
+     */
+    private static int[] scrollOrder() {
+        int[] order = new int[IMAGES * 2];
+        for (int i = 0; i < IMAGES; i++) {
+            order[i] = i;
+            order[IMAGES + i] = IMAGES - 1 - i;
+        }
+        return order;
+    }
+
+    private static String key(int index) {
+        return "benchmark" + index;
+    }
+
+}